@@ -0,0 +1,28 @@
+package jebpf.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the suite with the GC profiler attached, so every result comes
+ * with gc.alloc.rate.norm (bytes/op) next to ns/op.
+ *
+ * Optional first argument is a JMH include regex, e.g. "Luhn".
+ */
+public class BenchmarkMain {
+
+	public static void main(String[] args) throws RunnerException {
+		String include = args.length > 0 ? args[0] : "jebpf.bench.*";
+		Options opts = new OptionsBuilder()
+				.include(include)
+				.addProfiler(GCProfiler.class)
+				.warmupIterations(3)
+				.measurementIterations(5)
+				.forks(1)
+				.build();
+		new Runner(opts).run();
+	}
+}
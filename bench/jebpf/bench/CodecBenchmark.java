@@ -0,0 +1,51 @@
+package jebpf.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.sobel.jebpf.EBPFInstruction;
+import com.sobel.jebpf.EBPFInstruction.EBPFDecodeException;
+import com.sobel.jebpf.EBPFInstruction.InstructionCode;
+
+/**
+ * decodeMany / encodeMany over a small and a large (Luhn, ~500 insn) program.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CodecBenchmark {
+
+	@Param({"alu", "luhn"})
+	public String program;
+
+	private EBPFInstruction[] mCode;
+	private byte[] mBytes;
+
+	@Setup
+	public void setup() {
+		if (program.equals("luhn")) {
+			mCode = Programs.luhn();
+		} else {
+			mCode = Programs.alu(InstructionCode.ADD, 4, 10);
+		}
+		mBytes = EBPFInstruction.encodeMany(mCode);
+	}
+
+	@Benchmark
+	public EBPFInstruction[] decodeMany() throws EBPFDecodeException {
+		return EBPFInstruction.decodeMany(mBytes);
+	}
+
+	@Benchmark
+	public byte[] encodeMany() {
+		return EBPFInstruction.encodeMany(mCode);
+	}
+}
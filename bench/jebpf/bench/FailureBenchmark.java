@@ -0,0 +1,47 @@
+package jebpf.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.sobel.jebpf.EBPFInterpreter;
+import com.sobel.jebpf.EBPFInterpreter.EBPFProgramException;
+import com.sobel.jebpf.EBPFInterpreter.Status;
+
+/**
+ * A truncated packet through the Luhn filter: run() throwing vs tryRun().
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FailureBenchmark {
+
+	private EBPFInterpreter mInterpreter;
+	// Claims 16 digits, carries 3.
+	private final byte[] mPacket = {0, 0, 0, 16, '4', '1', '1'};
+
+	@Setup
+	public void setup() {
+		mInterpreter = new EBPFInterpreter(Programs.luhn());
+	}
+
+	@Benchmark
+	public Object runThrows() {
+		try {
+			return mInterpreter.run(mPacket);
+		} catch (EBPFProgramException e) {
+			return e;
+		}
+	}
+
+	@Benchmark
+	public Status tryRun() {
+		return mInterpreter.tryRun(mPacket);
+	}
+}
@@ -0,0 +1,64 @@
+package jebpf.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.sobel.jebpf.EBPFCompiledProgram;
+import com.sobel.jebpf.EBPFFilterSet;
+import com.sobel.jebpf.EBPFInstruction;
+
+/**
+ * N filters over one packet: each compiled program on its own vs fused
+ * in an EBPFFilterSet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FilterSetBenchmark {
+
+	@Param({"8", "32"})
+	public int filters;
+
+	private EBPFCompiledProgram[] mPrograms;
+	private EBPFFilterSet mSet;
+	private int[] mFrame;
+	private long[] mResults;
+	private final byte[] mPacket = Programs.tcpPacket();
+
+	@Setup
+	public void setup() {
+		EBPFInstruction[][] code = new EBPFInstruction[filters][];
+		mPrograms = new EBPFCompiledProgram[filters];
+		int i;
+		for (i = 0; i < filters; i++) {
+			code[i] = Programs.filter(0x0800, i % 8, i);
+			mPrograms[i] = EBPFCompiledProgram.compile(code[i]);
+		}
+		mSet = new EBPFFilterSet(code);
+		mFrame = mPrograms[0].newFrame();
+		mResults = new long[filters];
+	}
+
+	@Benchmark
+	public long[] separate() {
+		int i;
+		for (i = 0; i < mPrograms.length; i++) {
+			mResults[i] = mPrograms[i].tryRun(mPacket, mFrame);
+		}
+		return mResults;
+	}
+
+	@Benchmark
+	public long[] fused() {
+		mSet.evaluate(mPacket, mResults);
+		return mResults;
+	}
+}
@@ -0,0 +1,54 @@
+package jebpf.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.sobel.jebpf.EBPFFlightRecorder;
+import com.sobel.jebpf.EBPFProgram;
+
+/**
+ * What a flight recorder costs the compiled filter: on runs it lets go
+ * ("ok") and on failures it keeps ("failing"), vs no recorder.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FlightRecorderBenchmark {
+
+	@Param({"false", "true"})
+	public boolean recorder;
+
+	private EBPFProgram mProgram;
+	private byte[] mPacket;
+	private byte[] mRunt;
+
+	@Setup
+	public void setup() {
+		mProgram = new EBPFProgram("filter", Programs.filter(0x0800, 6, 0), 0, null);
+		mProgram.compileNow();
+		if (recorder) {
+			mProgram.setFlightRecorder(new EBPFFlightRecorder(1024, 128));
+		}
+		mPacket = Programs.tcpPacket();
+		mRunt = new byte[20];
+		System.arraycopy(mPacket, 0, mRunt, 0, mRunt.length);
+	}
+
+	@Benchmark
+	public long ok() {
+		return mProgram.tryRun(mPacket);
+	}
+
+	@Benchmark
+	public long failing() {
+		return mProgram.tryRun(mRunt);
+	}
+}
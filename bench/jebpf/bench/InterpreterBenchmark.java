@@ -0,0 +1,52 @@
+package jebpf.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.sobel.jebpf.EBPFInstruction.InstructionCode;
+import com.sobel.jebpf.EBPFInterpreter;
+import com.sobel.jebpf.EBPFInterpreter.EBPFProgramException;
+
+/**
+ * EBPFInterpreter.run on the ALU / JMP microprograms from the tests,
+ * on interpreters built once in setup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class InterpreterBenchmark {
+
+	@Param({"ADD", "DIV", "MOD", "ARSH"})
+	public String aluOp;
+
+	@Param({"JEQ", "JGT", "JSGE"})
+	public String jmpOp;
+
+	private EBPFInterpreter mAlu;
+	private EBPFInterpreter mJmp;
+	private final byte[] mPacket = new byte[0];
+
+	@Setup
+	public void setup() {
+		mAlu = new EBPFInterpreter(Programs.alu(InstructionCode.valueOf(aluOp), 0x7654321, 13));
+		mJmp = new EBPFInterpreter(Programs.jmp(InstructionCode.valueOf(jmpOp), 5, 3));
+	}
+
+	@Benchmark
+	public int alu() throws EBPFProgramException {
+		return mAlu.run(mPacket);
+	}
+
+	@Benchmark
+	public int jmp() throws EBPFProgramException {
+		return mJmp.run(mPacket);
+	}
+}
@@ -0,0 +1,97 @@
+package jebpf.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.sobel.jebpf.EBPFCompiledProgram;
+import com.sobel.jebpf.EBPFInstruction;
+import com.sobel.jebpf.EBPFLaneProgram;
+import com.sobel.jebpf.EBPFProgramGenerator;
+
+/**
+ * One filter over a batch of packets: compiled, one packet at a time, vs
+ * an EBPFLaneProgram doing LANES at once. Scores are per packet, so the
+ * speedup is scalar / lanes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LaneBenchmark {
+
+	private static final int PACKETS = 256;
+
+	// "filter" is Programs.filter; "generated" a fixed set of generated
+	// packet-only programs, which branch all over.
+	@Param({"filter", "generated"})
+	public String program;
+
+	private EBPFCompiledProgram[] mScalar;
+	private EBPFLaneProgram[] mLanes;
+	private int[] mFrame;
+	private byte[][] mPackets;
+	private long[] mResults;
+
+	@Setup
+	public void setup() {
+		EBPFProgramGenerator g = new EBPFProgramGenerator(0x1A4E).setMemory(false).setLength(4, 16);
+		EBPFInstruction[][] code;
+		if (program.equals("filter")) {
+			code = new EBPFInstruction[][] {Programs.filter(0x0800, 6, 0)};
+		} else {
+			code = new EBPFInstruction[8][];
+			int i;
+			for (i = 0; i < code.length; i++) {
+				code[i] = g.nextProgram();
+			}
+		}
+		mScalar = new EBPFCompiledProgram[code.length];
+		mLanes = new EBPFLaneProgram[code.length];
+		int frame = 0;
+		int i;
+		for (i = 0; i < code.length; i++) {
+			mScalar[i] = EBPFCompiledProgram.compile(code[i]);
+			mLanes[i] = EBPFLaneProgram.compile(code[i]);
+			frame = Math.max(frame, mLanes[i].newFrame().length);
+		}
+		mFrame = new int[frame];
+
+		mPackets = new byte[PACKETS][];
+		for (i = 0; i < PACKETS; i++) {
+			// Mostly TCP over IPv4, the rest random.
+			mPackets[i] = i % 4 == 0 ? g.nextPacket() : Programs.tcpPacket();
+		}
+		mResults = new long[PACKETS];
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PACKETS)
+	public long[] scalar() {
+		int i;
+		int j;
+		for (i = 0; i < mScalar.length; i++) {
+			for (j = 0; j < PACKETS; j++) {
+				mResults[j] = mScalar[i].tryRun(mPackets[j], mFrame);
+			}
+		}
+		return mResults;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PACKETS)
+	public long[] lanes() {
+		int i;
+		for (i = 0; i < mLanes.length; i++) {
+			mLanes[i].tryRun(mPackets, 0, PACKETS, mResults, mFrame);
+		}
+		return mResults;
+	}
+}
@@ -0,0 +1,65 @@
+package jebpf.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.sobel.jebpf.EBPFCompiledProgram;
+import com.sobel.jebpf.EBPFInstruction;
+import com.sobel.jebpf.EBPFInterpreter;
+import com.sobel.jebpf.EBPFInterpreter.EBPFProgramException;
+
+/**
+ * End to end: the Luhn filter over card-number shaped inputs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LuhnBenchmark {
+
+	@Param({
+		"4111111111111111",
+		"4111 1111 1111 1111",
+		"5500-0000-0000-0004",
+		"378282246310005",
+		"6011111111111118",
+	})
+	public String input;
+
+	private EBPFInstruction[] mCode;
+	private byte[] mPacket;
+	private EBPFInterpreter mInterpreter;
+	private EBPFCompiledProgram mCompiled;
+	private int[] mFrame;
+
+	@Setup
+	public void setup() {
+		mCode = Programs.luhn();
+		mPacket = Programs.luhnPacket(input);
+		mInterpreter = new EBPFInterpreter(mCode);
+		mCompiled = EBPFCompiledProgram.compile(mCode);
+		mFrame = mCompiled.newFrame();
+	}
+
+	@Benchmark
+	public int luhn() throws EBPFProgramException {
+		return new EBPFInterpreter(mCode).run(mPacket);
+	}
+
+	@Benchmark
+	public int luhnReusedInterpreter() throws EBPFProgramException {
+		return mInterpreter.run(mPacket);
+	}
+
+	@Benchmark
+	public long luhnCompiled() {
+		return mCompiled.tryRun(mPacket, mFrame);
+	}
+}
@@ -0,0 +1,168 @@
+package jebpf.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.sobel.jebpf.EBPFInstruction;
+import com.sobel.jebpf.EBPFInstruction.InstructionCode;
+import com.sobel.jebpf.EBPFInstruction.InstructionSize;
+import com.sobel.jebpf.EBPFInstruction.Register;
+
+/**
+ * The programs the benchmarks run. Same shapes as the ALU / JMP / Luhn
+ * tests so numbers here line up with what the tests exercise.
+ */
+public class Programs {
+
+	public static final int LUHN_MAX_LENGTH = 40;
+
+	public static EBPFInstruction[] alu(InstructionCode op, int left, int right) {
+		return new EBPFInstruction[] {
+				EBPFInstruction.MOV_IMM(Register.R0, left),
+				EBPFInstruction.MOV_IMM(Register.R1, right),
+				EBPFInstruction.ALU_REG(op, Register.R0, Register.R1),
+
+				EBPFInstruction.MOV_IMM(Register.R3, left),
+				EBPFInstruction.ALU_IMM(op, Register.R3, right),
+				EBPFInstruction.JMP_REG(InstructionCode.JNE, Register.R0, Register.R3, (short)1),
+				EBPFInstruction.EXIT(),
+
+				EBPFInstruction.MOV_IMM(Register.R0, -1),
+				EBPFInstruction.EXIT()
+		};
+	}
+
+	public static EBPFInstruction[] jmp(InstructionCode op, int left, int right) {
+		return new EBPFInstruction[] {
+				EBPFInstruction.MOV_IMM(Register.R0, 0),
+				EBPFInstruction.MOV_IMM(Register.R1, left),
+				EBPFInstruction.MOV_IMM(Register.R2, right),
+				EBPFInstruction.JMP_REG(op, Register.R1, Register.R2, (short)1),
+				EBPFInstruction.EXIT(),
+
+				EBPFInstruction.MOV_IMM(Register.R0, 1),
+				EBPFInstruction.EXIT(),
+		};
+	}
+
+	/**
+	 * Luhn check over a length-prefixed string, loop unrolled LUHN_MAX_LENGTH times.
+	 * Returns 1 valid, 0 invalid, -1 too long.
+	 */
+	public static EBPFInstruction[] luhn() {
+		List<EBPFInstruction> prologue = Arrays.asList(new EBPFInstruction[] {
+			EBPFInstruction.LD_ABS(InstructionSize.W, 0),
+			EBPFInstruction.MOV_IMM(Register.R1, LUHN_MAX_LENGTH),
+			EBPFInstruction.JMP_REG(InstructionCode.JGE, Register.R1, Register.R0, (short)2),
+				EBPFInstruction.MOV_IMM(Register.R0, -1),
+				EBPFInstruction.EXIT(),
+			EBPFInstruction.MOV_REG(Register.R7, Register.R0),
+			EBPFInstruction.MOV_IMM(Register.R8, 0),
+			EBPFInstruction.MOV_IMM(Register.R9, 0),
+		});
+
+		List<EBPFInstruction> loop = Arrays.asList(new EBPFInstruction[] {
+			EBPFInstruction.JMP_IMM(InstructionCode.JEQ, Register.R7, 0, (short)12),
+			EBPFInstruction.LD_IND(InstructionSize.B, Register.R7, 3),
+			EBPFInstruction.ALU_IMM(InstructionCode.SUB, Register.R0, 0x30),
+			EBPFInstruction.JMP_IMM(InstructionCode.JGT, Register.R0, 9, (short)8),
+				EBPFInstruction.JMP_IMM(InstructionCode.JEQ, Register.R8, 0, (short)5),
+					EBPFInstruction.ALU_IMM(InstructionCode.MUL, Register.R0, 2),
+					EBPFInstruction.MOV_REG(Register.R1, Register.R0),
+					EBPFInstruction.ALU_IMM(InstructionCode.DIV, Register.R1, 10),
+					EBPFInstruction.ALU_IMM(InstructionCode.MOD, Register.R0, 10),
+					EBPFInstruction.ALU_REG(InstructionCode.ADD, Register.R0, Register.R1),
+				EBPFInstruction.ALU_IMM(InstructionCode.XOR, Register.R8, 1),
+				EBPFInstruction.ALU_REG(InstructionCode.ADD, Register.R9, Register.R0),
+			EBPFInstruction.ALU_IMM(InstructionCode.SUB, Register.R7, 1),
+		});
+
+		List<EBPFInstruction> epilogue = Arrays.asList(new EBPFInstruction[] {
+				EBPFInstruction.ALU_IMM(InstructionCode.MOD, Register.R9, 10),
+				EBPFInstruction.JMP_IMM(InstructionCode.JNE, Register.R9, 0, (short)2),
+					EBPFInstruction.ALU_IMM(InstructionCode.MOV, Register.R0, 1),
+					EBPFInstruction.JMP_JA((short)1),
+					EBPFInstruction.ALU_IMM(InstructionCode.MOV, Register.R0, 0),
+				EBPFInstruction.EXIT(),
+		});
+
+		ArrayList<EBPFInstruction> program = new ArrayList<EBPFInstruction>();
+		program.addAll(prologue);
+		int i;
+		for (i = 0; i < LUHN_MAX_LENGTH; i++) {
+			program.addAll(loop);
+		}
+		program.addAll(epilogue);
+		return program.toArray(new EBPFInstruction[program.size()]);
+	}
+
+	public static byte[] luhnPacket(String in) {
+		byte[] s = in.getBytes(Charset.forName("UTF-8"));
+		ByteBuffer b = ByteBuffer.allocate(4 + s.length);
+		b.putInt(s.length);
+		b.put(s);
+		return b.array();
+	}
+
+	/**
+	 * Returns k + 1 when the ethertype at 12 and the IP protocol at 23 match.
+	 */
+	public static EBPFInstruction[] filter(int ethertype, int proto, int k) {
+		return new EBPFInstruction[] {
+				EBPFInstruction.LD_ABS(InstructionSize.H, 12),
+				EBPFInstruction.JMP_IMM(InstructionCode.JNE, Register.R0, ethertype, (short)4),
+				EBPFInstruction.LD_ABS(InstructionSize.B, 23),
+				EBPFInstruction.JMP_IMM(InstructionCode.JNE, Register.R0, proto, (short)2),
+				EBPFInstruction.MOV_IMM(Register.R0, k + 1),
+				EBPFInstruction.JMP_JA((short)1),
+				EBPFInstruction.MOV_IMM(Register.R0, 0),
+				EBPFInstruction.EXIT()
+		};
+	}
+
+	/**
+	 * filter, with the ethertype and protocol read from a config header:
+	 * enabled (W) at 0, ethertype (W) at 4 and protocol (W) at 8, in front
+	 * of the packet at CONFIG_BYTES.
+	 */
+	public static final int CONFIG_BYTES = 12;
+
+	public static EBPFInstruction[] configFilter() {
+		return new EBPFInstruction[] {
+				EBPFInstruction.LD_ABS(InstructionSize.W, 0),
+				EBPFInstruction.JMP_IMM(InstructionCode.JEQ, Register.R0, 0, (short)10),
+				EBPFInstruction.LD_ABS(InstructionSize.W, 4),
+				EBPFInstruction.MOV_REG(Register.R6, Register.R0),
+				EBPFInstruction.LD_ABS(InstructionSize.H, CONFIG_BYTES + 12),
+				EBPFInstruction.JMP_REG(InstructionCode.JNE, Register.R0, Register.R6, (short)6),
+				EBPFInstruction.LD_ABS(InstructionSize.W, 8),
+				EBPFInstruction.MOV_REG(Register.R6, Register.R0),
+				EBPFInstruction.LD_ABS(InstructionSize.B, CONFIG_BYTES + 23),
+				EBPFInstruction.JMP_REG(InstructionCode.JNE, Register.R0, Register.R6, (short)2),
+				EBPFInstruction.MOV_IMM(Register.R0, 1),
+				EBPFInstruction.EXIT(),
+				EBPFInstruction.MOV_IMM(Register.R0, 0),
+				EBPFInstruction.EXIT()
+		};
+	}
+
+	/**
+	 * The config header for configFilter.
+	 */
+	public static byte[] config(int ethertype, int proto) {
+		return ByteBuffer.allocate(CONFIG_BYTES).putInt(1).putInt(ethertype).putInt(proto).array();
+	}
+
+	/**
+	 * An IPv4 TCP packet's worth of headers.
+	 */
+	public static byte[] tcpPacket() {
+		byte[] p = new byte[54];
+		p[12] = 0x08;
+		p[23] = 6;
+		return p;
+	}
+}
@@ -0,0 +1,76 @@
+package jebpf.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.sobel.jebpf.EBPFDifferential;
+import com.sobel.jebpf.EBPFDifferential.Engine;
+import com.sobel.jebpf.EBPFInstruction;
+import com.sobel.jebpf.EBPFProgramGenerator;
+
+/**
+ * The differential tests' corpus as a workload: 64 generated programs,
+ * fixed seed, over a rotating set of packets, per engine. One op is every
+ * program over one packet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RandomProgramBenchmark {
+
+	private static final int PROGRAMS = 64;
+	private static final int PACKETS = 256;
+
+	@Param({"interpreter", "compiled", "arena", "segmented", "filterSet", "lanes"})
+	public String engine;
+
+	private Engine mEngine;
+	private byte[][] mPackets;
+	private long[] mResults;
+	private int mNext;
+
+	@Setup
+	public void setup() {
+		EBPFProgramGenerator g = new EBPFProgramGenerator(0x5EED).setLength(8, 64);
+		EBPFInstruction[][] programs = new EBPFInstruction[PROGRAMS][];
+		int i;
+		for (i = 0; i < PROGRAMS; i++) {
+			programs[i] = g.nextProgram();
+		}
+		mPackets = new byte[PACKETS][];
+		for (i = 0; i < PACKETS; i++) {
+			mPackets[i] = g.nextPacket();
+		}
+
+		if (engine.equals("interpreter")) {
+			mEngine = EBPFDifferential.interpreter();
+		} else if (engine.equals("compiled")) {
+			mEngine = EBPFDifferential.compiled();
+		} else if (engine.equals("arena")) {
+			mEngine = EBPFDifferential.arena();
+		} else if (engine.equals("segmented")) {
+			mEngine = EBPFDifferential.segmented();
+		} else if (engine.equals("lanes")) {
+			mEngine = EBPFDifferential.lanes();
+		} else {
+			mEngine = EBPFDifferential.filterSet();
+		}
+		mEngine.load(programs);
+		mResults = new long[PROGRAMS];
+	}
+
+	@Benchmark
+	public long[] corpus() {
+		mEngine.run(mPackets[mNext], null, mResults);
+		mNext = (mNext + 1) & (PACKETS - 1);
+		return mResults;
+	}
+}
@@ -0,0 +1,53 @@
+package jebpf.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.sobel.jebpf.EBPFCompiledProgram;
+import com.sobel.jebpf.EBPFInstruction;
+import com.sobel.jebpf.EBPFSpecializer;
+
+/**
+ * A filter that reads its settings out of a config header on every
+ * packet, compiled as is vs specialized for the config.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SpecializerBenchmark {
+
+	@Param({"false", "true"})
+	public boolean specialized;
+
+	private EBPFCompiledProgram mProgram;
+	private int[] mFrame;
+	private byte[] mPacket;
+
+	@Setup
+	public void setup() throws Exception {
+		byte[] config = Programs.config(0x0800, 6);
+		EBPFInstruction[] code = Programs.configFilter();
+		if (specialized) {
+			code = EBPFSpecializer.specialize(code, 0, config);
+		}
+		mProgram = EBPFCompiledProgram.compile(code);
+		mFrame = mProgram.newFrame();
+		byte[] tcp = Programs.tcpPacket();
+		mPacket = new byte[Programs.CONFIG_BYTES + tcp.length];
+		System.arraycopy(config, 0, mPacket, 0, config.length);
+		System.arraycopy(tcp, 0, mPacket, Programs.CONFIG_BYTES, tcp.length);
+	}
+
+	@Benchmark
+	public long filter() {
+		return mProgram.tryRun(mPacket, mFrame);
+	}
+}
@@ -0,0 +1,398 @@
+package com.sobel.jebpf;
+
+import com.sobel.jebpf.EBPFInstruction.InstructionClass;
+import com.sobel.jebpf.EBPFInstruction.InstructionCode;
+import com.sobel.jebpf.EBPFInstruction.InstructionMode;
+import com.sobel.jebpf.EBPFInstruction.InstructionSource;
+import com.sobel.jebpf.EBPFInstruction.Register;
+
+/**
+ * Basic blocks, edges, dominators and register liveness for a program.
+ *
+ * Everything lives in flat int arrays indexed by block number. Jumps
+ * are forward only, so block order is already a topological order and
+ * dominators and liveness each fall out of a single pass - no worklists.
+ *
+ * Register sets are bitmasks of Register ordinals (see registerMask).
+ */
+public class ControlFlowGraph {
+
+	public static final int NO_BLOCK = -1;
+
+	/**
+	 * Block flags
+	 */
+	// Block ends with EXIT.
+	public static final int FLAG_EXIT = 1;
+	// Some path out of the block leaves the instruction stream
+	// (jump past the end, or falling off the last instruction).
+	public static final int FLAG_FALLS_OFF = 2;
+	// Block ends with a jump the interpreter always aborts on
+	// (negative offset, or a JMP code it can't evaluate).
+	public static final int FLAG_BAD_JUMP = 4;
+
+	public static final int ALL_REGISTERS = (1 << Register.values().length) - 1;
+	// What LD_ABS/LD_IND clobber: R0 gets the value, R1-R5 are scratched.
+	public static final int LD_CLOBBERS = 0x3F;
+	// What a tail call that falls through scratches: R1-R5.
+	public static final int TAIL_CALL_CLOBBERS = 0x3E;
+
+	private final int mInstructionCount;
+	private final int mBlockCount;
+
+	// mBlockStart[b] is the first instruction of b, mBlockStart[b + 1] is one past the last.
+	private final int[] mBlockStart;
+	private final int[] mBlockOf;
+
+	// Two slots per block, NO_BLOCK if unused. Fallthrough (if any) comes first.
+	private final int[] mSuccessors;
+
+	// Predecessors in CSR form: mPreds[mPredStart[b] .. mPredStart[b + 1]]
+	private final int[] mPredStart;
+	private final int[] mPreds;
+
+	private final int[] mIdom;
+	private final int[] mFlags;
+	private final int[] mLiveIn;
+	private final int[] mLiveOut;
+
+	private ControlFlowGraph(EBPFInstruction[] insns) {
+		int n = insns.length;
+		mInstructionCount = n;
+
+		// Pass 1: mark leaders. Reuse mBlockOf as the mark array.
+		int[] blockOf = new int[n];
+		if (n > 0) {
+			blockOf[0] = 1;
+		}
+		int i;
+		for (i = 0; i < n; i++) {
+			EBPFInstruction insn = insns[i];
+			if (insn.mClass != InstructionClass.JMP || isTailCall(insn)) {
+				continue;
+			}
+			if (i + 1 < n) {
+				blockOf[i + 1] = 1;
+			}
+			int target = jumpTarget(insn, i);
+			if (target >= 0 && target < n) {
+				blockOf[target] = 1;
+			}
+		}
+
+		// Pass 2: number the blocks.
+		int blocks = 0;
+		for (i = 0; i < n; i++) {
+			blocks += blockOf[i];
+		}
+		mBlockCount = blocks;
+		mBlockStart = new int[blocks + 1];
+		int b = -1;
+		for (i = 0; i < n; i++) {
+			if (blockOf[i] != 0) {
+				b++;
+				mBlockStart[b] = i;
+			}
+			blockOf[i] = b;
+		}
+		mBlockStart[blocks] = n;
+		mBlockOf = blockOf;
+
+		// Pass 3: edges.
+		mSuccessors = new int[blocks * 2];
+		mFlags = new int[blocks];
+		int[] predCount = new int[blocks + 1];
+		for (b = 0; b < blocks; b++) {
+			int last = mBlockStart[b + 1] - 1;
+			EBPFInstruction insn = insns[last];
+			int fallthrough = NO_BLOCK;
+			int taken = NO_BLOCK;
+			int flags = 0;
+
+			if (insn.mClass != InstructionClass.JMP || isTailCall(insn)) {
+				if (last + 1 < n) {
+					fallthrough = b + 1;
+				} else {
+					flags |= FLAG_FALLS_OFF;
+				}
+			} else if (insn.mCode == InstructionCode.EXIT) {
+				flags |= FLAG_EXIT;
+			} else {
+				int target = jumpTarget(insn, last);
+				if (target < 0) {
+					flags |= FLAG_BAD_JUMP;
+				} else {
+					if (target < n) {
+						taken = mBlockOf[target];
+					} else {
+						flags |= FLAG_FALLS_OFF;
+					}
+					if (insn.mCode != InstructionCode.JA) {
+						if (last + 1 < n) {
+							fallthrough = b + 1;
+						} else {
+							flags |= FLAG_FALLS_OFF;
+						}
+					}
+					if (taken == fallthrough) {
+						taken = NO_BLOCK;
+					}
+				}
+			}
+			if (fallthrough == NO_BLOCK) {
+				fallthrough = taken;
+				taken = NO_BLOCK;
+			}
+			mSuccessors[2 * b] = fallthrough;
+			mSuccessors[2 * b + 1] = taken;
+			mFlags[b] = flags;
+			if (fallthrough != NO_BLOCK) {
+				predCount[fallthrough + 1]++;
+			}
+			if (taken != NO_BLOCK) {
+				predCount[taken + 1]++;
+			}
+		}
+
+		// Pass 4: predecessors, CSR.
+		for (b = 0; b < blocks; b++) {
+			predCount[b + 1] += predCount[b];
+		}
+		mPredStart = predCount;
+		mPreds = new int[mPredStart[blocks]];
+		int[] fill = new int[blocks];
+		for (b = 0; b < blocks; b++) {
+			int s;
+			for (s = 0; s < 2; s++) {
+				int succ = mSuccessors[2 * b + s];
+				if (succ != NO_BLOCK) {
+					mPreds[mPredStart[succ] + fill[succ]++] = b;
+				}
+			}
+		}
+
+		// Pass 5: dominators. Every edge goes to a higher block number,
+		// so all predecessors of b are final by the time we get to b.
+		mIdom = new int[blocks];
+		for (b = 0; b < blocks; b++) {
+			if (b == 0) {
+				mIdom[b] = 0;
+				continue;
+			}
+			int idom = NO_BLOCK;
+			int p;
+			for (p = mPredStart[b]; p < mPredStart[b + 1]; p++) {
+				int pred = mPreds[p];
+				if (mIdom[pred] == NO_BLOCK) {
+					continue; // unreachable predecessor
+				}
+				idom = (idom == NO_BLOCK) ? pred : intersect(idom, pred);
+			}
+			mIdom[b] = idom;
+		}
+
+		// Pass 6: liveness, backwards.
+		mLiveIn = new int[blocks];
+		mLiveOut = new int[blocks];
+		for (b = blocks - 1; b >= 0; b--) {
+			int out = 0;
+			int s;
+			for (s = 0; s < 2; s++) {
+				int succ = mSuccessors[2 * b + s];
+				if (succ != NO_BLOCK) {
+					out |= mLiveIn[succ];
+				}
+			}
+			mLiveOut[b] = out;
+			int live = out;
+			for (i = mBlockStart[b + 1] - 1; i >= mBlockStart[b]; i--) {
+				live = (live & ~defs(insns[i])) | uses(insns[i]);
+			}
+			mLiveIn[b] = live;
+		}
+	}
+
+	public static ControlFlowGraph build(EBPFInstruction[] insns) {
+		return new ControlFlowGraph(insns);
+	}
+
+	private int intersect(int a, int b) {
+		while (a != b) {
+			while (a > b) {
+				a = mIdom[a];
+			}
+			while (b > a) {
+				b = mIdom[b];
+			}
+		}
+		return a;
+	}
+
+	/**
+	 * Where a (non-EXIT) jump at index i goes when taken,
+	 * or -1 if the interpreter would abort on it instead.
+	 */
+	private static int jumpTarget(EBPFInstruction insn, int i) {
+		if (insn.mCode == InstructionCode.EXIT || insn.mOff < 0) {
+			return -1;
+		}
+		if (insn.mCode.ordinal() > InstructionCode.JSGE.ordinal()) {
+			return -1; // CALL, always aborts.
+		}
+		return i + insn.mOff + 1;
+	}
+
+	/**
+	 * A tail call, as far as the graph goes, is a straight-line
+	 * instruction: the program it might go to is another graph.
+	 */
+	private static boolean isTailCall(EBPFInstruction insn) {
+		return insn.isTailCall() && insn.mOff >= 0;
+	}
+
+	public static int registerMask(Register r) {
+		if (r == null) {
+			return 0;
+		}
+		return 1 << r.ordinal();
+	}
+
+	/**
+	 * Registers the instruction reads, matching what the interpreter checks.
+	 */
+	public static int uses(EBPFInstruction insn) {
+		switch (insn.mClass) {
+		case ALU:
+			int u = 0;
+			if (insn.mCode != InstructionCode.MOV) {
+				u |= registerMask(insn.mDstReg);
+			}
+			if (insn.mCode != InstructionCode.NEG && insn.mSource == InstructionSource.X) {
+				u |= registerMask(insn.mSrcReg);
+			}
+			return u;
+		case JMP:
+			if (insn.mCode == InstructionCode.EXIT) {
+				return registerMask(Register.R0);
+			}
+			if (insn.mCode == InstructionCode.JA) {
+				return 0;
+			}
+			if (isTailCall(insn)) {
+				return registerMask(Register.R3);
+			}
+			if (insn.mSource == InstructionSource.X) {
+				return registerMask(insn.mDstReg) | registerMask(insn.mSrcReg);
+			}
+			return registerMask(insn.mDstReg);
+		case LD:
+			if (insn.mMode == InstructionMode.IND) {
+				return registerMask(insn.mSrcReg);
+			}
+			return 0;
+		case LDX:
+			return registerMask(insn.mSrcReg);
+		case STX:
+			return registerMask(insn.mDstReg) | registerMask(insn.mSrcReg);
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Registers the instruction overwrites (or scratches).
+	 */
+	public static int defs(EBPFInstruction insn) {
+		switch (insn.mClass) {
+		case ALU:
+			return registerMask(insn.mDstReg);
+		case LD:
+			return LD_CLOBBERS;
+		case LDX:
+			return registerMask(insn.mDstReg);
+		case JMP:
+			return isTailCall(insn) ? TAIL_CALL_CLOBBERS : 0;
+		default:
+			return 0;
+		}
+	}
+
+	public int getInstructionCount() {
+		return mInstructionCount;
+	}
+
+	public int getBlockCount() {
+		return mBlockCount;
+	}
+
+	public int getBlockStart(int block) {
+		return mBlockStart[block];
+	}
+
+	/**
+	 * One past the last instruction of the block.
+	 */
+	public int getBlockEnd(int block) {
+		return mBlockStart[block + 1];
+	}
+
+	public int getBlockOf(int instruction) {
+		return mBlockOf[instruction];
+	}
+
+	public int getFlags(int block) {
+		return mFlags[block];
+	}
+
+	public int getSuccessorCount(int block) {
+		if (mSuccessors[2 * block] == NO_BLOCK) {
+			return 0;
+		}
+		return mSuccessors[2 * block + 1] == NO_BLOCK ? 1 : 2;
+	}
+
+	/**
+	 * Successor 0 is the fallthrough when the block has one.
+	 */
+	public int getSuccessor(int block, int i) {
+		return mSuccessors[2 * block + i];
+	}
+
+	public int getPredecessorCount(int block) {
+		return mPredStart[block + 1] - mPredStart[block];
+	}
+
+	public int getPredecessor(int block, int i) {
+		return mPreds[mPredStart[block] + i];
+	}
+
+	public boolean isReachable(int block) {
+		return mIdom[block] != NO_BLOCK;
+	}
+
+	/**
+	 * The entry block is its own immediate dominator.
+	 * NO_BLOCK for unreachable blocks.
+	 */
+	public int getImmediateDominator(int block) {
+		return mIdom[block];
+	}
+
+	public boolean dominates(int a, int b) {
+		if (!isReachable(a) || !isReachable(b)) {
+			return false;
+		}
+		while (b > a) {
+			b = mIdom[b];
+		}
+		return a == b;
+	}
+
+	public int getLiveIn(int block) {
+		return mLiveIn[block];
+	}
+
+	public int getLiveOut(int block) {
+		return mLiveOut[block];
+	}
+}
@@ -0,0 +1,165 @@
+package com.sobel.jebpf;
+
+import com.sobel.jebpf.EBPFCostModel.Cost;
+import com.sobel.jebpf.EBPFVerifier.EBPFVerifyException;
+
+/**
+ * Load-time gate for programs from elsewhere (tenant filters, say):
+ * verifies them, rejects any whose worst case cost is over a per-packet
+ * budget, and sorts the rest into classes by cost so the expensive ones
+ * can be run on their own workers.
+ *
+ * Classes are given as ascending cost bounds: a program is in class i if
+ * its cost is at most bounds[i], and in class bounds.length if it's more
+ * than all of them.
+ *
+ * A run can tail call through up to EBPFProgramArray.MAX_TAIL_CALLS more
+ * programs, so a program with a TAIL_CALL costs its own worst case plus
+ * that many times the tail call budget, what each program in the array
+ * may cost (see admitTailCallTarget, and the EBPFProgramArray constructor
+ * that takes a policy). With a budget but no tail call budget, tail calls
+ * aren't admitted at all.
+ */
+public class EBPFAdmissionPolicy {
+
+	/**
+	 * Why a program was turned away.
+	 */
+	public static class EBPFAdmissionException extends EBPFVerifyException {
+		public final Cost cost;
+
+		public EBPFAdmissionException(String s, Cost c) {
+			super(s, -1);
+			cost = c;
+		}
+	}
+
+	/**
+	 * What an admitted program gets.
+	 */
+	public static class Admission {
+		public final Cost cost;
+		// cost, plus what tail calls from it can add.
+		public final long worstCost;
+		// See the class bounds; by worstCost.
+		public final int costClass;
+		public final ControlFlowGraph cfg;
+
+		private Admission(Cost c, long worst, int k, ControlFlowGraph g) {
+			cost = c;
+			worstCost = worst;
+			costClass = k;
+			cfg = g;
+		}
+	}
+
+	private final EBPFCostModel mModel;
+	private final long mBudget;
+	private final long[] mBounds;
+	private long mTailCallBudget = -1;
+
+	/**
+	 * budget: most a program may cost, negative for no limit.
+	 */
+	public EBPFAdmissionPolicy(EBPFCostModel model, long budget, long... bounds) {
+		int i;
+		for (i = 1; i < bounds.length; i++) {
+			if (bounds[i] <= bounds[i - 1]) {
+				throw new IllegalArgumentException("Class bounds must go up");
+			}
+		}
+		mModel = model;
+		mBudget = budget;
+		mBounds = bounds.clone();
+	}
+
+	public EBPFCostModel getModel() {
+		return mModel;
+	}
+
+	public long getBudget() {
+		return mBudget;
+	}
+
+	/**
+	 * Most each program a tail call goes to may cost, negative for no
+	 * limit.
+	 */
+	public EBPFAdmissionPolicy setTailCallBudget(long budget) {
+		mTailCallBudget = budget;
+		return this;
+	}
+
+	public long getTailCallBudget() {
+		return mTailCallBudget;
+	}
+
+	public int getClassCount() {
+		return mBounds.length + 1;
+	}
+
+	public Admission admit(EBPFInstruction[] insns) throws EBPFVerifyException {
+		return admit(insns, false);
+	}
+
+	/**
+	 * withContext: see EBPFVerifier.verify.
+	 */
+	public Admission admit(EBPFInstruction[] insns, boolean withContext) throws EBPFVerifyException {
+		ControlFlowGraph cfg = EBPFVerifier.verify(insns, withContext);
+		Cost cost = mModel.analyze(insns, cfg);
+		long worst = cost.maxCost;
+		if (hasTailCall(insns)) {
+			if (mTailCallBudget < 0) {
+				if (mBudget >= 0) {
+					throw new EBPFAdmissionException("Tail calls with no tail call budget", cost);
+				}
+				worst = Long.MAX_VALUE;
+			} else {
+				long calls = mTailCallBudget > Long.MAX_VALUE / EBPFProgramArray.MAX_TAIL_CALLS ? Long.MAX_VALUE
+					: EBPFProgramArray.MAX_TAIL_CALLS * mTailCallBudget;
+				worst = calls > Long.MAX_VALUE - worst ? Long.MAX_VALUE : worst + calls;
+			}
+		}
+		if (mBudget >= 0 && worst > mBudget) {
+			throw new EBPFAdmissionException("Worst case " + cost + " plus tail calls, " + worst
+					+ ", is over budget " + mBudget, cost);
+		}
+		return new Admission(cost, worst, classOf(worst), cfg);
+	}
+
+	/**
+	 * For a program to go in an EBPFProgramArray: its own worst case has
+	 * to be within the tail call budget. Any tail calls it makes count
+	 * against the run's MAX_TAIL_CALLS, which the program that started
+	 * the run has already paid for.
+	 */
+	public Admission admitTailCallTarget(EBPFInstruction[] insns) throws EBPFVerifyException {
+		ControlFlowGraph cfg = EBPFVerifier.verify(insns, true);
+		Cost cost = mModel.analyze(insns, cfg);
+		if (mTailCallBudget >= 0 && cost.maxCost > mTailCallBudget) {
+			throw new EBPFAdmissionException("Worst case " + cost + " is over tail call budget "
+					+ mTailCallBudget, cost);
+		}
+		return new Admission(cost, cost.maxCost, classOf(cost.maxCost), cfg);
+	}
+
+	private static boolean hasTailCall(EBPFInstruction[] insns) {
+		for (EBPFInstruction insn : insns) {
+			if (insn.isTailCall()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public int classOf(long cost) {
+		int i;
+		for (i = 0; i < mBounds.length; i++) {
+			if (cost <= mBounds[i]) {
+				return i;
+			}
+		}
+		return mBounds.length;
+	}
+}
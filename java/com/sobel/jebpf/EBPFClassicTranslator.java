@@ -0,0 +1,509 @@
+package com.sobel.jebpf;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sobel.jebpf.EBPFInstruction.InstructionCode;
+import com.sobel.jebpf.EBPFInstruction.InstructionSize;
+import com.sobel.jebpf.EBPFInstruction.Register;
+import com.sobel.jebpf.EBPFInterpreter.Status;
+
+/**
+ * Translates classic BPF (struct sock_filter, as tcpdump -dd / -ddd print
+ * it) into EBPFInstructions, so existing filters get the verifier, the
+ * compiled engine, filter sets and the rest instead of an interpreter of
+ * their own.
+ *
+ * A is R0 and X is R7, both zeroed up front like the kernel does. The 16
+ * scratch words M[] are the bottom of the stack, M[i] at R10 - 64 + 4 * i.
+ * R1-R6 are temporaries. cBPF jumps only go forward too, so each becomes
+ * one eBPF jump, plus a JA when the false branch isn't the next
+ * instruction.
+ *
+ * Where it differs from the kernel:
+ *  - A load past the end of the packet fails the run with OUT_OF_BOUNDS,
+ *    where cBPF returns 0. verdict() maps a result back.
+ *  - LEN needs the packet length from an EBPFContext: translate with
+ *    withContext, and run with EBPFContext.PACKET_LENGTH set.
+ *  - No ancillary loads (negative offsets, SKF_AD_OFF and up).
+ *
+ * Division and modulo are unsigned as in cBPF, which takes a handful of
+ * instructions since ours are signed, and by an X of 0 returns 0.
+ */
+public class EBPFClassicTranslator {
+
+	public static class EBPFTranslateException extends Exception {
+		// Offending cBPF instruction, -1 if it's about the whole program.
+		public final int instruction;
+
+		public EBPFTranslateException(String s, int i) {
+			super(i < 0 ? s : s + " at " + i);
+			instruction = i;
+		}
+	}
+
+	/**
+	 * One struct sock_filter.
+	 */
+	public static class SockFilter {
+		public final int mCode;
+		public final int mJt;
+		public final int mJf;
+		public final int mK;
+
+		public SockFilter(int code, int jt, int jf, int k) {
+			mCode = code & 0xFFFF;
+			mJt = jt & 0xFF;
+			mJf = jf & 0xFF;
+			mK = k;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("{ 0x%02x, %d, %d, 0x%08x }", mCode, mJt, mJf, mK);
+		}
+	}
+
+	public static final int MAX_INSTRUCTIONS = 4096;
+	public static final int SCRATCH_WORDS = 16;
+
+	// Classes
+	private static final int LD = 0x00;
+	private static final int LDX = 0x01;
+	private static final int ST = 0x02;
+	private static final int STX = 0x03;
+	private static final int ALU = 0x04;
+	private static final int JMP = 0x05;
+	private static final int RET = 0x06;
+	private static final int MISC = 0x07;
+
+	// Sizes
+	private static final int W = 0x00;
+	private static final int H = 0x08;
+	private static final int B = 0x10;
+
+	// Modes
+	private static final int IMM = 0x00;
+	private static final int ABS = 0x20;
+	private static final int IND = 0x40;
+	private static final int MEM = 0x60;
+	private static final int LEN = 0x80;
+	private static final int MSH = 0xa0;
+
+	// ALU and JMP source, RET value
+	private static final int K = 0x00;
+	private static final int X = 0x08;
+	private static final int RET_A = 0x10;
+
+	// MISC
+	private static final int TAX = 0x00;
+	private static final int TXA = 0x80;
+
+	private static final Register A_REG = Register.R0;
+	private static final Register X_REG = Register.R7;
+	// Holds the packet length when translated withContext.
+	private static final Register LEN_REG = Register.R9;
+
+	private static final InstructionCode[] CODES = InstructionCode.values();
+
+	/**
+	 * Parses tcpdump -dd ("{ 0x28, 0, 0, 0x0000000c },") or -ddd
+	 * ("40 0 0 12", after a line with the count) output.
+	 */
+	public static SockFilter[] parse(String text) throws EBPFTranslateException {
+		List<SockFilter> out = new ArrayList<SockFilter>();
+		int count = -1;
+		for (String line : text.split("\n")) {
+			String[] f = line.replaceAll("[{},]", " ").trim().split("\\s+");
+			if (f.length == 1 && f[0].length() == 0) {
+				continue;
+			}
+			try {
+				if (f.length == 1 && count < 0 && out.isEmpty()) {
+					count = Integer.parseInt(f[0]);
+					continue;
+				}
+				if (f.length != 4) {
+					throw new EBPFTranslateException("Bad line \"" + line + "\"", out.size());
+				}
+				out.add(new SockFilter(Long.decode(f[0]).intValue(), Long.decode(f[1]).intValue(),
+						Long.decode(f[2]).intValue(), Long.decode(f[3]).intValue()));
+			} catch (NumberFormatException e) {
+				throw new EBPFTranslateException("Bad line \"" + line + "\"", out.size());
+			}
+		}
+		if (count >= 0 && count != out.size()) {
+			throw new EBPFTranslateException("Expected " + count + " instructions, got " + out.size(), -1);
+		}
+		return out.toArray(new SockFilter[out.size()]);
+	}
+
+	/**
+	 * Raw struct sock_filter array, 8 bytes each, in order's byte order
+	 * (the machine's own, for one straight from a socket option).
+	 */
+	public static SockFilter[] decode(byte[] b, ByteOrder order) throws EBPFTranslateException {
+		if (b.length % 8 != 0) {
+			throw new EBPFTranslateException("Bytes to decode not multiple of 8", -1);
+		}
+		ByteBuffer bb = ByteBuffer.wrap(b).order(order);
+		SockFilter[] out = new SockFilter[b.length / 8];
+		int i;
+		for (i = 0; i < out.length; i++) {
+			int code = bb.getShort() & 0xFFFF;
+			int jt = bb.get() & 0xFF;
+			int jf = bb.get() & 0xFF;
+			out[i] = new SockFilter(code, jt, jf, bb.getInt());
+		}
+		return out;
+	}
+
+	/**
+	 * What the cBPF filter returns, from a run of its translation: OK is
+	 * R0, OUT_OF_BOUNDS is 0. A translation can't fail any other way.
+	 */
+	public static int verdict(long result) {
+		Status s = EBPFProgram.statusOf(result);
+		if (s == Status.OK) {
+			return EBPFProgram.valueOf(result);
+		}
+		if (s == Status.OUT_OF_BOUNDS) {
+			return 0;
+		}
+		throw new IllegalArgumentException("Not a classic filter result: " + s);
+	}
+
+	public static EBPFInstruction[] translate(SockFilter[] filter) throws EBPFTranslateException {
+		return translate(filter, false);
+	}
+
+	/**
+	 * withContext allows LEN; the result must be run with an EBPFContext
+	 * (and verified withContext).
+	 */
+	public static EBPFInstruction[] translate(SockFilter[] filter, boolean withContext) throws EBPFTranslateException {
+		check(filter, withContext);
+		// Where each cBPF instruction starts. Sizes don't depend on jump
+		// offsets, so a first pass with made up ones finds them.
+		int[] starts = new int[filter.length];
+		List<EBPFInstruction> out = new ArrayList<EBPFInstruction>();
+		emit(filter, withContext, starts, out);
+		out.clear();
+		emit(filter, withContext, starts, out);
+		return out.toArray(new EBPFInstruction[out.size()]);
+	}
+
+	/**
+	 * The kernel's checks (bpf_check_classic), more or less.
+	 */
+	private static void check(SockFilter[] filter, boolean withContext) throws EBPFTranslateException {
+		int n = filter.length;
+		if (n == 0 || n > MAX_INSTRUCTIONS) {
+			throw new EBPFTranslateException("Bad program length " + n, -1);
+		}
+		int i;
+		for (i = 0; i < n; i++) {
+			SockFilter f = filter[i];
+			int cls = f.mCode & 0x07;
+			switch (cls) {
+			case LD:
+			case LDX:
+				checkLoad(f, i, withContext);
+				break;
+			case ST:
+			case STX:
+				if (f.mCode != cls) {
+					throw new EBPFTranslateException("Bad code " + f, i);
+				}
+				checkScratch(f, i);
+				break;
+			case ALU: {
+				int op = f.mCode & 0xf0;
+				if ((f.mCode & ~0xf8) != ALU || op > 0xa0) {
+					throw new EBPFTranslateException("Bad code " + f, i);
+				}
+				if ((f.mCode & X) == K) {
+					if ((op == 0x30 || op == 0x90) && f.mK == 0) {
+						throw new EBPFTranslateException("Division by zero", i);
+					}
+					if ((op == 0x60 || op == 0x70) && (f.mK < 0 || f.mK >= 32)) {
+						throw new EBPFTranslateException("Bad shift " + f.mK, i);
+					}
+				}
+				break;
+			}
+			case JMP: {
+				int op = f.mCode & 0xf0;
+				if ((f.mCode & ~0xf8) != JMP || op > 0x40 || (op == 0 && f.mCode != JMP)) {
+					throw new EBPFTranslateException("Bad code " + f, i);
+				}
+				if (op == 0) {
+					if (f.mK < 0 || f.mK >= n - i - 1) {
+						throw new EBPFTranslateException("Jump out of range", i);
+					}
+				} else if (i + 1 + Math.max(f.mJt, f.mJf) >= n) {
+					throw new EBPFTranslateException("Jump out of range", i);
+				}
+				break;
+			}
+			case RET:
+				if (f.mCode != (RET | K) && f.mCode != (RET | X) && f.mCode != (RET | RET_A)) {
+					throw new EBPFTranslateException("Bad code " + f, i);
+				}
+				break;
+			default:
+				if (f.mCode != (MISC | TAX) && f.mCode != (MISC | TXA)) {
+					throw new EBPFTranslateException("Bad code " + f, i);
+				}
+				break;
+			}
+		}
+		if ((filter[n - 1].mCode & 0x07) != RET) {
+			throw new EBPFTranslateException("Program doesn't end with RET", n - 1);
+		}
+	}
+
+	private static void checkLoad(SockFilter f, int i, boolean withContext) throws EBPFTranslateException {
+		boolean x = (f.mCode & 0x07) == LDX;
+		int size = f.mCode & 0x18;
+		int mode = f.mCode & 0xe0;
+		if ((f.mCode & ~0xff) != 0 || size == 0x18) {
+			throw new EBPFTranslateException("Bad code " + f, i);
+		}
+		switch (mode) {
+		case ABS:
+		case IND:
+			if (x) {
+				throw new EBPFTranslateException("Bad code " + f, i);
+			}
+			if (f.mK < 0) {
+				throw new EBPFTranslateException("Ancillary loads not supported", i);
+			}
+			return;
+		case MSH:
+			if (!x || size != B) {
+				throw new EBPFTranslateException("Bad code " + f, i);
+			}
+			if (f.mK < 0) {
+				throw new EBPFTranslateException("Ancillary loads not supported", i);
+			}
+			return;
+		case IMM:
+		case MEM:
+		case LEN:
+			if (size != W) {
+				throw new EBPFTranslateException("Bad code " + f, i);
+			}
+			if (mode == MEM) {
+				checkScratch(f, i);
+			}
+			if (mode == LEN && !withContext) {
+				throw new EBPFTranslateException("LEN needs a context", i);
+			}
+			return;
+		default:
+			throw new EBPFTranslateException("Bad code " + f, i);
+		}
+	}
+
+	private static void checkScratch(SockFilter f, int i) throws EBPFTranslateException {
+		if (f.mK < 0 || f.mK >= SCRATCH_WORDS) {
+			throw new EBPFTranslateException("Bad scratch index " + f.mK, i);
+		}
+	}
+
+	private static short scratch(int k) {
+		return (short)(-SCRATCH_WORDS * 4 + k * 4);
+	}
+
+	private static InstructionSize size(int code) {
+		switch (code & 0x18) {
+		case H:
+			return InstructionSize.H;
+		case B:
+			return InstructionSize.B;
+		default:
+			return InstructionSize.W;
+		}
+	}
+
+	private static short offset(int from, int to) throws EBPFTranslateException {
+		int off = to - (from + 1);
+		if (off > Short.MAX_VALUE) {
+			throw new EBPFTranslateException("Translation too long", -1);
+		}
+		return (short)off;
+	}
+
+	private static void emit(SockFilter[] filter, boolean withContext, int[] starts, List<EBPFInstruction> out)
+			throws EBPFTranslateException {
+		out.add(EBPFInstruction.MOV_IMM(A_REG, 0));
+		out.add(EBPFInstruction.MOV_IMM(X_REG, 0));
+		if (withContext) {
+			out.add(EBPFInstruction.LDX_MEM(InstructionSize.W, LEN_REG, Register.R1, (short)EBPFContext.PACKET_LENGTH));
+		}
+		int i;
+		for (i = 0; i < filter.length; i++) {
+			starts[i] = out.size();
+			emitOne(filter[i], i, starts, out);
+		}
+	}
+
+	private static void emitOne(SockFilter f, int i, int[] starts, List<EBPFInstruction> out)
+			throws EBPFTranslateException {
+		int code = f.mCode;
+		int k = f.mK;
+		switch (code & 0x07) {
+		case LD:
+			switch (code & 0xe0) {
+			case ABS:
+				out.add(EBPFInstruction.LD_ABS(size(code), k));
+				return;
+			case IND:
+				out.add(EBPFInstruction.LD_IND(size(code), X_REG, k));
+				return;
+			case MEM:
+				out.add(EBPFInstruction.LDX_MEM(InstructionSize.W, A_REG, Register.R10, scratch(k)));
+				return;
+			case LEN:
+				out.add(EBPFInstruction.MOV_REG(A_REG, LEN_REG));
+				return;
+			default:
+				out.add(EBPFInstruction.MOV_IMM(A_REG, k));
+				return;
+			}
+		case LDX:
+			switch (code & 0xe0) {
+			case MEM:
+				out.add(EBPFInstruction.LDX_MEM(InstructionSize.W, X_REG, Register.R10, scratch(k)));
+				return;
+			case LEN:
+				out.add(EBPFInstruction.MOV_REG(X_REG, LEN_REG));
+				return;
+			case MSH:
+				// X = 4 * (P[k] & 0xf), keeping A out of the way of the load.
+				out.add(EBPFInstruction.MOV_REG(Register.R6, A_REG));
+				out.add(EBPFInstruction.LD_ABS(InstructionSize.B, k));
+				out.add(EBPFInstruction.ALU_IMM(InstructionCode.AND, A_REG, 0xf));
+				out.add(EBPFInstruction.ALU_IMM(InstructionCode.LSH, A_REG, 2));
+				out.add(EBPFInstruction.MOV_REG(X_REG, A_REG));
+				out.add(EBPFInstruction.MOV_REG(A_REG, Register.R6));
+				return;
+			default:
+				out.add(EBPFInstruction.MOV_IMM(X_REG, k));
+				return;
+			}
+		case ST:
+			out.add(EBPFInstruction.STX_MEM(InstructionSize.W, Register.R10, A_REG, scratch(k)));
+			return;
+		case STX:
+			out.add(EBPFInstruction.STX_MEM(InstructionSize.W, Register.R10, X_REG, scratch(k)));
+			return;
+		case ALU: {
+			InstructionCode op = CODES[(code & 0xf0) >> 4];
+			boolean x = (code & X) == X;
+			if (op == InstructionCode.DIV || op == InstructionCode.MOD) {
+				emitDivide(op == InstructionCode.MOD, x, k, out);
+			} else if (op == InstructionCode.NEG) {
+				out.add(EBPFInstruction.ALU_IMM(InstructionCode.NEG, A_REG, 0));
+			} else if (x) {
+				out.add(EBPFInstruction.ALU_REG(op, A_REG, X_REG));
+			} else {
+				out.add(EBPFInstruction.ALU_IMM(op, A_REG, k));
+			}
+			return;
+		}
+		case JMP: {
+			int op = (code & 0xf0) >> 4;
+			if (op == 0) {
+				out.add(EBPFInstruction.JMP_JA(offset(out.size(), starts[i + 1 + k])));
+				return;
+			}
+			InstructionCode c = CODES[InstructionCode.JA.ordinal() + op];
+			boolean x = (code & X) == X;
+			int t = starts[i + 1 + f.mJt];
+			int e = starts[i + 1 + f.mJf];
+			if (f.mJt == 0 && c == InstructionCode.JEQ) {
+				// Only JEQ has an opposite here, JNE.
+				c = InstructionCode.JNE;
+				t = e;
+				e = -1;
+			} else if (f.mJf == 0) {
+				e = -1;
+			}
+			short off = offset(out.size(), t);
+			out.add(x ? EBPFInstruction.JMP_REG(c, A_REG, X_REG, off) : EBPFInstruction.JMP_IMM(c, A_REG, k, off));
+			if (e >= 0) {
+				out.add(EBPFInstruction.JMP_JA(offset(out.size(), e)));
+			}
+			return;
+		}
+		case RET:
+			if ((code & 0x18) == K) {
+				out.add(EBPFInstruction.MOV_IMM(A_REG, k));
+			} else if ((code & 0x18) == X) {
+				out.add(EBPFInstruction.MOV_REG(A_REG, X_REG));
+			}
+			out.add(EBPFInstruction.EXIT());
+			return;
+		default:
+			if (code == (MISC | TAX)) {
+				out.add(EBPFInstruction.MOV_REG(X_REG, A_REG));
+			} else {
+				out.add(EBPFInstruction.MOV_REG(A_REG, X_REG));
+			}
+			return;
+		}
+	}
+
+	/**
+	 * A = A / d or A % d, unsigned, for d X or k. Quotient in R3, divisor
+	 * in R2; the long way round (halve, divide, fix up) when A doesn't
+	 * fit in a signed int.
+	 */
+	private static void emitDivide(boolean mod, boolean x, int k, List<EBPFInstruction> out) {
+		Register d = Register.R2;
+		Register q = Register.R3;
+		if (x) {
+			out.add(EBPFInstruction.MOV_REG(d, X_REG));
+			out.add(EBPFInstruction.JMP_IMM(InstructionCode.JNE, d, 0, (short)2));
+			out.add(EBPFInstruction.MOV_IMM(A_REG, 0));
+			out.add(EBPFInstruction.EXIT());
+		} else {
+			out.add(EBPFInstruction.MOV_IMM(d, k));
+		}
+		if (x || k < 0) {
+			// d >= 2^31: the quotient is 0 or 1.
+			out.add(EBPFInstruction.JMP_IMM(InstructionCode.JSGE, d, 0, (short)4));
+			out.add(EBPFInstruction.MOV_IMM(q, 0));
+			out.add(EBPFInstruction.JMP_REG(InstructionCode.JGT, d, A_REG, (short)16));
+			out.add(EBPFInstruction.MOV_IMM(q, 1));
+			out.add(EBPFInstruction.JMP_JA((short)14));
+		}
+		out.add(EBPFInstruction.JMP_IMM(InstructionCode.JSGE, A_REG, 0, (short)11));
+		// A >= 2^31: q = ((A >>> 1) / d) << 1, then one more if A - q * d >= d.
+		out.add(EBPFInstruction.MOV_REG(q, A_REG));
+		out.add(EBPFInstruction.ALU_IMM(InstructionCode.RSH, q, 1));
+		out.add(EBPFInstruction.ALU_REG(InstructionCode.DIV, q, d));
+		out.add(EBPFInstruction.ALU_IMM(InstructionCode.LSH, q, 1));
+		out.add(EBPFInstruction.MOV_REG(Register.R4, q));
+		out.add(EBPFInstruction.ALU_REG(InstructionCode.MUL, Register.R4, d));
+		out.add(EBPFInstruction.MOV_REG(Register.R5, A_REG));
+		out.add(EBPFInstruction.ALU_REG(InstructionCode.SUB, Register.R5, Register.R4));
+		out.add(EBPFInstruction.JMP_REG(InstructionCode.JGT, d, Register.R5, (short)4));
+		out.add(EBPFInstruction.ALU_IMM(InstructionCode.ADD, q, 1));
+		out.add(EBPFInstruction.JMP_JA((short)2));
+		// Both fit, signed is the same.
+		out.add(EBPFInstruction.MOV_REG(q, A_REG));
+		out.add(EBPFInstruction.ALU_REG(InstructionCode.DIV, q, d));
+
+		if (mod) {
+			out.add(EBPFInstruction.ALU_REG(InstructionCode.MUL, q, d));
+			out.add(EBPFInstruction.ALU_REG(InstructionCode.SUB, A_REG, q));
+		} else {
+			out.add(EBPFInstruction.MOV_REG(A_REG, q));
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package com.sobel.jebpf;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import com.sobel.jebpf.EBPFCompiledProgram.Image;
+
+/**
+ * Compiles many programs into one shared code array instead of one
+ * array (plus header, plus program object) each. Thousands of small
+ * filters end up as a handful of large allocations.
+ *
+ * The arena only holds programs weakly. Once a program is garbage its
+ * code is reclaimed on the next compile, purge() or compact(); release()
+ * does it right away. Space is handed out bump-pointer style and holes
+ * are squeezed out by compaction, which copies the live programs into a
+ * fresh array and repoints them. Runs already under way keep using the
+ * old array, so nothing has to stop.
+ *
+ * Compiling and housekeeping are synchronized; running is lock free.
+ */
+public class EBPFCodeArena {
+
+	private static final int DEFAULT_CAPACITY = 16 * 1024;
+
+	private static class Entry extends WeakReference<EBPFCompiledProgram> {
+		int base;
+		final int length;
+
+		Entry(EBPFCompiledProgram p, ReferenceQueue<EBPFCompiledProgram> q, int b, int l) {
+			super(p, q);
+			base = b;
+			length = l;
+		}
+	}
+
+	private final ReferenceQueue<EBPFCompiledProgram> mCollected = new ReferenceQueue<EBPFCompiledProgram>();
+	private final HashSet<Entry> mEntries = new HashSet<Entry>();
+
+	private int[] mCode;
+	// Next free int.
+	private int mTop;
+	// Ints below mTop belonging to nobody.
+	private int mGarbage;
+	private int mCompactions;
+
+	public EBPFCodeArena() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * capacity in ints; the arena grows as needed.
+	 */
+	public EBPFCodeArena(int capacity) {
+		mCode = new int[Math.max(capacity, EBPFCompiledProgram.STRIDE)];
+	}
+
+	public synchronized EBPFCompiledProgram compile(EBPFInstruction[] insns) {
+		int base = allocate(EBPFCompiledProgram.codeLength(insns));
+		EBPFCompiledProgram.emit(insns, mCode, base);
+		return add(base, insns);
+	}
+
+	/**
+	 * Like compile, but with code emitted earlier (EBPFProgramCache keeps it).
+	 */
+	synchronized EBPFCompiledProgram install(int[] code, EBPFInstruction[] insns) {
+		int base = allocate(code.length);
+		System.arraycopy(code, 0, mCode, base, code.length);
+		return add(base, insns);
+	}
+
+	private int allocate(int length) {
+		purge();
+		if (mTop + length > mCode.length) {
+			compact(length);
+		}
+		int base = mTop;
+		mTop += length;
+		return base;
+	}
+
+	private EBPFCompiledProgram add(int base, EBPFInstruction[] insns) {
+		EBPFCompiledProgram p = new EBPFCompiledProgram(new Image(mCode, base), insns);
+		mEntries.add(new Entry(p, mCollected, base, EBPFCompiledProgram.codeLength(insns)));
+		return p;
+	}
+
+	/**
+	 * Drop a program now instead of waiting for the GC. It must not be run again.
+	 */
+	public synchronized void release(EBPFCompiledProgram p) {
+		Entry found = null;
+		for (Entry e : mEntries) {
+			if (e.get() == p) {
+				found = e;
+				break;
+			}
+		}
+		if (found != null) {
+			found.clear();
+			free(found);
+		}
+	}
+
+	/**
+	 * Reclaims code of programs the GC has collected. Returns how many.
+	 */
+	public synchronized int purge() {
+		int n = 0;
+		Reference<? extends EBPFCompiledProgram> r;
+		while ((r = mCollected.poll()) != null) {
+			if (mEntries.contains(r)) {
+				free((Entry)r);
+				n++;
+			}
+		}
+		return n;
+	}
+
+	private void free(Entry e) {
+		mEntries.remove(e);
+		mGarbage += e.length;
+	}
+
+	public synchronized void compact() {
+		purge();
+		compact(0);
+	}
+
+	/**
+	 * Copy live programs into a new array with room for extra more ints.
+	 */
+	private void compact(int extra) {
+		int live = mTop - mGarbage;
+		int capacity = mCode.length;
+		while (capacity < live + extra) {
+			capacity *= 2;
+		}
+		int[] code = new int[capacity];
+		int top = 0;
+		List<Entry> dead = new ArrayList<Entry>();
+		for (Entry e : mEntries) {
+			EBPFCompiledProgram p = e.get();
+			if (p == null) {
+				dead.add(e); // collected, not queued yet
+				continue;
+			}
+			System.arraycopy(mCode, e.base, code, top, e.length);
+			e.base = top;
+			p.setImage(new Image(code, top));
+			top += e.length;
+		}
+		for (Entry e : dead) {
+			mEntries.remove(e);
+		}
+		mCode = code;
+		mTop = top;
+		mGarbage = 0;
+		mCompactions++;
+	}
+
+	public synchronized int getProgramCount() {
+		return mEntries.size();
+	}
+
+	/**
+	 * Bytes of code belonging to live programs.
+	 */
+	public synchronized long getUsedBytes() {
+		return (long)(mTop - mGarbage) * 4;
+	}
+
+	/**
+	 * Bytes of code released but not yet compacted away.
+	 */
+	public synchronized long getGarbageBytes() {
+		return (long)mGarbage * 4;
+	}
+
+	/**
+	 * Total size of the arena's code array.
+	 */
+	public synchronized long getCapacityBytes() {
+		return (long)mCode.length * 4;
+	}
+
+	public synchronized int getCompactionCount() {
+		return mCompactions;
+	}
+}
@@ -0,0 +1,744 @@
+package com.sobel.jebpf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import com.sobel.jebpf.EBPFInstruction.InstructionCode;
+import com.sobel.jebpf.EBPFInstruction.InstructionMode;
+import com.sobel.jebpf.EBPFInstruction.InstructionSize;
+import com.sobel.jebpf.EBPFInstruction.InstructionSource;
+import com.sobel.jebpf.EBPFInstruction.Register;
+import com.sobel.jebpf.EBPFInterpreter.EBPFProgramException;
+import com.sobel.jebpf.EBPFInterpreter.Status;
+
+/**
+ * A program compiled to a flat dispatch form: every instruction becomes
+ * four ints with its operation, registers, immediate and absolute jump
+ * target already resolved, and runs against an int[] register file.
+ * (We can't load generated bytecode on Dalvik, so this is as far as
+ * "compiled" goes.)
+ *
+ * Results, including which Status a bad program fails with, match
+ * EBPFInterpreter exactly. Instructions the interpreter would always
+ * abort on compile to a FAIL op that does the same register reads first.
+ *
+ * Immutable and thread safe. Callers that want zero allocation per run
+ * pass their own frame (newFrame()) to tryRun.
+ */
+public class EBPFCompiledProgram {
+
+	/**
+	 * Ops. ALU ops are the InstructionCode ordinal (+ ALU_X for register source),
+	 * JMP ops are JA + (ordinal - JA ordinal) (+ JMP_X).
+	 */
+	static final int ADD_K = 0;
+	static final int SUB_K = 1;
+	static final int MUL_K = 2;
+	static final int DIV_K = 3;
+	static final int OR_K = 4;
+	static final int AND_K = 5;
+	static final int LSH_K = 6;
+	static final int RSH_K = 7;
+	static final int NEG = 8;
+	static final int MOD_K = 9;
+	static final int XOR_K = 10;
+	static final int MOV_K = 11;
+	static final int ARSH_K = 12;
+
+	static final int ALU_X = 16;
+	static final int ADD_X = ALU_X + ADD_K;
+	static final int SUB_X = ALU_X + SUB_K;
+	static final int MUL_X = ALU_X + MUL_K;
+	static final int DIV_X = ALU_X + DIV_K;
+	static final int OR_X = ALU_X + OR_K;
+	static final int AND_X = ALU_X + AND_K;
+	static final int LSH_X = ALU_X + LSH_K;
+	static final int RSH_X = ALU_X + RSH_K;
+	static final int MOD_X = ALU_X + MOD_K;
+	static final int XOR_X = ALU_X + XOR_K;
+	static final int MOV_X = ALU_X + MOV_K;
+	static final int ARSH_X = ALU_X + ARSH_K;
+
+	static final int JA = 32;
+	static final int JEQ_K = 33;
+	static final int JGT_K = 34;
+	static final int JGE_K = 35;
+	static final int JSET_K = 36;
+	static final int JNE_K = 37;
+	static final int JSGT_K = 38;
+	static final int JSGE_K = 39;
+
+	static final int JMP_X = 8;
+	static final int JEQ_X = JEQ_K + JMP_X;
+	static final int JGT_X = JGT_K + JMP_X;
+	static final int JGE_X = JGE_K + JMP_X;
+	static final int JSET_X = JSET_K + JMP_X;
+	static final int JNE_X = JNE_K + JMP_X;
+	static final int JSGT_X = JSGT_K + JMP_X;
+	static final int JSGE_X = JSGE_K + JMP_X;
+
+	static final int EXIT = 48;
+	static final int LDABS_B = 49;
+	static final int LDABS_H = 50;
+	static final int LDABS_W = 51;
+	static final int LDIND_B = 52;
+	static final int LDIND_H = 53;
+	static final int LDIND_W = 54;
+	// [FAIL, read a, read b, status]: check a then b like the interpreter
+	// would have, then abort with status.
+	static final int FAIL = 55;
+	// Sits one past the last instruction; anything that gets here fell off.
+	static final int END = 56;
+	static final int LDX_B = 57;
+	static final int LDX_H = 58;
+	static final int LDX_W = 59;
+	static final int STX_B = 60;
+	static final int STX_H = 61;
+	static final int STX_W = 62;
+	static final int XADD_W = 63;
+	static final int XADD_DW = 64;
+	// Goes to the EBPFProgramArray slot in R3, or falls through.
+	static final int TAIL_CALL = 65;
+
+	// Operand values for FAIL reads.
+	static final int NO_READ = -1;
+	static final int NULL_READ = -2;
+
+	/**
+	 * Layout of one instruction: [op, a, b, c]
+	 *   ALU:  a = dst, c = imm (K) or src (X)
+	 *   JMP:  a = dst, b = target, c = imm (K) or src (X)
+	 *   LD:   a = src (IND), c = imm
+	 *   LDX:  a = dst, b = src, c = off
+	 *   STX:  a = dst, b = src, c = off
+	 */
+	static final int STRIDE = 4;
+
+	/**
+	 * Bump whenever the ops or layout change, so EBPFProgramCache files
+	 * from older code are turned away.
+	 */
+	static final int CODE_VERSION = 2;
+
+	/**
+	 * Frame layout: registers, then bookkeeping the caller can look at
+	 * after a run, then (for programs with stores) the stack.
+	 */
+	public static final int REGISTERS = Register.values().length;
+	static final int F_INIT = REGISTERS;
+	static final int F_PC = REGISTERS + 1;
+	static final int F_STEPS = REGISTERS + 2;
+	public static final int FRAME_SIZE = REGISTERS + 3;
+
+	private static final Status[] STATUSES = Status.values();
+	private static final Register[] REGS = Register.values();
+
+	/**
+	 * Where the program's code lives: its own array, or a window into an
+	 * EBPFCodeArena shared with other programs. Replaced as a whole when the
+	 * arena moves it, so a run always sees a consistent pair.
+	 */
+	static final class Image {
+		final int[] code;
+		final int base;
+
+		Image(int[] c, int b) {
+			code = c;
+			base = b;
+		}
+	}
+
+	private volatile Image mImage;
+	private final int mLength;
+	// See EBPFMemory.hasStores; frames carry a stack if so.
+	private final boolean mHasStores;
+	// Frames carry a stack for these too, in case the target needs it.
+	private final boolean mHasTailCalls;
+
+	EBPFCompiledProgram(Image image, EBPFInstruction[] insns) {
+		mImage = image;
+		mLength = insns.length;
+		mHasStores = EBPFMemory.hasStores(insns);
+		boolean tailCalls = false;
+		for (EBPFInstruction insn : insns) {
+			tailCalls |= insn.isTailCall();
+		}
+		mHasTailCalls = tailCalls;
+	}
+
+	public static EBPFCompiledProgram compile(EBPFInstruction[] insns) {
+		int[] code = new int[codeLength(insns)];
+		emit(insns, code, 0);
+		return new EBPFCompiledProgram(new Image(code, 0), insns);
+	}
+
+	/**
+	 * Ints of code needed for insns, including the trailing END.
+	 */
+	static int codeLength(EBPFInstruction[] insns) {
+		return (insns.length + 1) * STRIDE;
+	}
+
+	static void emit(EBPFInstruction[] insns, int[] code, int base) {
+		int n = insns.length;
+		int i;
+		for (i = 0; i < n; i++) {
+			compileOne(insns[i], i, n, code, base + i * STRIDE);
+		}
+		code[base + n * STRIDE] = END;
+	}
+
+	Image getImage() {
+		return mImage;
+	}
+
+	void setImage(Image image) {
+		mImage = image;
+	}
+
+	private static int reg(Register r) {
+		return r == null ? NULL_READ : r.ordinal();
+	}
+
+	private static void fail(int[] code, int at, int a, int b, Status s) {
+		code[at] = FAIL;
+		code[at + 1] = a;
+		code[at + 2] = b;
+		code[at + 3] = s.ordinal();
+	}
+
+	private static void compileOne(EBPFInstruction insn, int i, int n, int[] code, int at) {
+		switch (insn.mClass) {
+		case ALU:
+			compileALU(insn, code, at);
+			return;
+		case JMP:
+			compileJMP(insn, i, n, code, at);
+			return;
+		case LD:
+			compileLD(insn, code, at);
+			return;
+		case LDX:
+			compileLDX(insn, code, at);
+			return;
+		case STX:
+			compileSTX(insn, code, at);
+			return;
+		default:
+			fail(code, at, NO_READ, NO_READ, Status.UNHANDLED_CLASS);
+			return;
+		}
+	}
+
+	private static void compileALU(EBPFInstruction insn, int[] code, int at) {
+		InstructionCode c = insn.mCode;
+		boolean x = insn.mSource == InstructionSource.X;
+		int left = c == InstructionCode.MOV ? NO_READ : reg(insn.mDstReg);
+		int right = (c == InstructionCode.NEG || !x) ? NO_READ : reg(insn.mSrcReg);
+
+		Status bad = null;
+		if (c == InstructionCode.END_NOT_IMPLEMENTED) {
+			bad = Status.BAD_ALU_CODE;
+		} else if (insn.mDstReg == null) {
+			bad = Status.NULL_REGISTER;
+		} else if (insn.mDstReg == Register.R10) {
+			bad = Status.READ_ONLY_REGISTER;
+		} else if (left == NULL_READ || right == NULL_READ) {
+			bad = Status.NULL_REGISTER; // the read fails first anyway
+		}
+		if (bad != null) {
+			fail(code, at, left, right, bad);
+			return;
+		}
+
+		code[at + 1] = insn.mDstReg.ordinal();
+		if (c == InstructionCode.NEG) {
+			code[at] = NEG;
+		} else {
+			code[at] = (x ? ALU_X : 0) + c.ordinal();
+			code[at + 3] = x ? insn.mSrcReg.ordinal() : insn.mImm;
+		}
+	}
+
+	private static void compileJMP(EBPFInstruction insn, int i, int n, int[] code, int at) {
+		InstructionCode c = insn.mCode;
+		if (insn.mOff < 0) {
+			fail(code, at, NO_READ, NO_READ, Status.NEGATIVE_JUMP);
+			return;
+		}
+		if (c == InstructionCode.EXIT) {
+			code[at] = EXIT;
+			return;
+		}
+		if (insn.isTailCall()) {
+			code[at] = TAIL_CALL;
+			code[at + 1] = Register.R3.ordinal();
+			return;
+		}
+		int target = i + insn.mOff + 1;
+		if (target > n) {
+			target = n; // END
+		}
+		if (c == InstructionCode.JA) {
+			code[at] = JA;
+			code[at + 2] = target;
+			return;
+		}
+		boolean x = insn.mSource == InstructionSource.X;
+		int left = reg(insn.mDstReg);
+		int right = x ? reg(insn.mSrcReg) : NO_READ;
+		if (c.ordinal() > InstructionCode.JSGE.ordinal()) {
+			fail(code, at, left, right, Status.BAD_JMP_CODE);
+			return;
+		}
+		if (left == NULL_READ || right == NULL_READ) {
+			fail(code, at, left, right, Status.NULL_REGISTER);
+			return;
+		}
+		code[at] = JA + (c.ordinal() - InstructionCode.JA.ordinal()) + (x ? JMP_X : 0);
+		code[at + 1] = left;
+		code[at + 2] = target;
+		code[at + 3] = x ? right : insn.mImm;
+	}
+
+	private static void compileLD(EBPFInstruction insn, int[] code, int at) {
+		int base;
+		if (insn.mMode == InstructionMode.ABS) {
+			base = LDABS_B;
+		} else if (insn.mMode == InstructionMode.IND) {
+			if (insn.mSrcReg == null) {
+				fail(code, at, NULL_READ, NO_READ, Status.NULL_REGISTER);
+				return;
+			}
+			base = LDIND_B;
+			code[at + 1] = insn.mSrcReg.ordinal();
+		} else {
+			fail(code, at, NO_READ, NO_READ, Status.BAD_LD_MODE);
+			return;
+		}
+		if (insn.mSize == InstructionSize.DW) {
+			fail(code, at, base == LDIND_B ? code[at + 1] : NO_READ, NO_READ, Status.BAD_LD_SIZE);
+			return;
+		}
+		code[at] = base + insn.mSize.ordinal();
+		code[at + 3] = insn.mImm;
+	}
+
+	private static void compileLDX(EBPFInstruction insn, int[] code, int at) {
+		if (insn.mMode != InstructionMode.MEM) {
+			fail(code, at, NO_READ, NO_READ, Status.BAD_LD_MODE);
+			return;
+		}
+		int src = reg(insn.mSrcReg);
+		Status bad = null;
+		if (src == NULL_READ || insn.mDstReg == null) {
+			bad = Status.NULL_REGISTER;
+		} else if (insn.mDstReg == Register.R10) {
+			bad = Status.READ_ONLY_REGISTER;
+		} else if (insn.mSize == null || insn.mSize == InstructionSize.DW) {
+			bad = Status.BAD_LD_SIZE;
+		}
+		if (bad != null) {
+			fail(code, at, src, NO_READ, bad);
+			return;
+		}
+		code[at] = LDX_B + insn.mSize.ordinal();
+		code[at + 1] = insn.mDstReg.ordinal();
+		code[at + 2] = src;
+		code[at + 3] = insn.mOff;
+	}
+
+	private static void compileSTX(EBPFInstruction insn, int[] code, int at) {
+		boolean xadd = insn.mMode == InstructionMode.XADD;
+		if (insn.mMode != InstructionMode.MEM && !xadd) {
+			fail(code, at, NO_READ, NO_READ, Status.BAD_ST_MODE);
+			return;
+		}
+		int dst = reg(insn.mDstReg);
+		int src = reg(insn.mSrcReg);
+		InstructionSize size = insn.mSize;
+		Status bad = null;
+		if (dst == NULL_READ || src == NULL_READ) {
+			bad = Status.NULL_REGISTER;
+		} else if (size == null || (xadd ? size.ordinal() < InstructionSize.W.ordinal() : size == InstructionSize.DW)) {
+			bad = Status.BAD_ST_SIZE;
+		}
+		if (bad != null) {
+			fail(code, at, dst, src, bad);
+			return;
+		}
+		if (xadd) {
+			code[at] = size == InstructionSize.W ? XADD_W : XADD_DW;
+		} else {
+			code[at] = STX_B + size.ordinal();
+		}
+		code[at + 1] = dst;
+		code[at + 2] = src;
+		code[at + 3] = insn.mOff;
+	}
+
+	public int getInstructionCount() {
+		return mLength;
+	}
+
+	/**
+	 * Size of the compiled form, in bytes.
+	 */
+	public int getCodeSize() {
+		return (mLength + 1) * STRIDE * 4;
+	}
+
+	public int[] newFrame() {
+		return new int[FRAME_SIZE + (hasStack() ? EBPFMemory.STACK_WORDS : 0)];
+	}
+
+	private boolean hasStack() {
+		return mHasStores || mHasTailCalls;
+	}
+
+	/**
+	 * Sets up frame for a fresh run, returning the init bits.
+	 */
+	private int begin(int[] frame, EBPFContext ctx) {
+		if (hasStack()) {
+			if (frame.length < FRAME_SIZE + EBPFMemory.STACK_WORDS) {
+				throw new IllegalArgumentException("Frame too small for the stack, use newFrame()");
+			}
+			Arrays.fill(frame, FRAME_SIZE, FRAME_SIZE + EBPFMemory.STACK_WORDS, 0);
+		}
+		return EBPFMemory.enter(frame, ctx != null);
+	}
+
+	public int run(byte[] packet) throws EBPFProgramException {
+		return run(packet, null);
+	}
+
+	public int run(byte[] packet, EBPFContext ctx) throws EBPFProgramException {
+		int[] frame = newFrame();
+		return check(tryRun(packet, ctx, frame), frame);
+	}
+
+	public int run(EBPFPacketView packet, EBPFContext ctx) throws EBPFProgramException {
+		int[] frame = newFrame();
+		return check(tryRun(packet, ctx, frame), frame);
+	}
+
+	private int check(long r, int[] frame) throws EBPFProgramException {
+		if (EBPFProgram.statusOf(r) != Status.OK) {
+			throw diagnose(r, frame, false);
+		}
+		return EBPFProgram.valueOf(r);
+	}
+
+	public long tryRun(byte[] packet) {
+		return tryRun(packet, newFrame());
+	}
+
+	/**
+	 * Runs the program. Returns the Status and R0 packed into a long
+	 * (see EBPFProgram.statusOf / valueOf). Afterwards the frame holds the
+	 * final registers, the IP it stopped at and the number of instructions
+	 * executed.
+	 */
+	public long tryRun(byte[] packet, int[] frame) {
+		return execute(packet, 0, packet.length, null, null, frame, begin(frame, null), 0, 0, -1);
+	}
+
+	/**
+	 * tryRun with an EBPFContext, see EBPFInterpreter.run(byte[], EBPFContext).
+	 */
+	public long tryRun(byte[] packet, EBPFContext ctx, int[] frame) {
+		if (ctx == null) {
+			return tryRun(packet, frame);
+		}
+		return execute(packet, 0, packet.length, null, ctx, frame, begin(frame, ctx), 0, 0, -1);
+	}
+
+	/**
+	 * tryRun over a segmented packet, read in place. ctx may be null.
+	 */
+	public long tryRun(EBPFPacketView packet, EBPFContext ctx, int[] frame) {
+		return execute(packet.mFirst, packet.mFirstOffset, packet.mFirstLength, packet, ctx, frame, begin(frame, ctx),
+				0, 0, -1);
+	}
+
+	/**
+	 * Carries on from the registers, init bits, IP and step count left in
+	 * frame, for at most limit more instructions (negative for no limit).
+	 * Returns SUSPENDED if it ran out before finishing.
+	 */
+	long resume(byte[] packet, EBPFContext ctx, int[] frame, int limit) {
+		int steps = frame[F_STEPS];
+		return execute(packet, 0, packet.length, null, ctx, frame, frame[F_INIT], frame[F_PC], steps, limit < 0 ? -1 : steps + limit);
+	}
+
+	// Never a real result: no Status has ordinal 0xFFFFFFFF.
+	static final long SUSPENDED = -1L;
+
+	/**
+	 * packet[first, first + firstLength) is the start of the packet. The
+	 * rest, if any, is only reachable through view.
+	 */
+	private long execute(byte[] packet, int first, int firstLength, EBPFPacketView view, EBPFContext context,
+			int[] frame, int init, int pc, int steps, int stopAt) {
+		final byte[] ctx = context == null ? null : context.getData();
+		final EBPFSharedMemory[] regions = context == null ? null : context.getRegions();
+		int[] stack = mHasStores ? frame : null;
+		Image image = mImage;
+		int[] code = image.code;
+		int base = image.base;
+		int tails = 0;
+		final int len = view == null ? firstLength : view.length();
+		Status status = Status.OK;
+
+		run:
+		for (;;) {
+			if (steps == stopAt) {
+				frame[F_INIT] = init;
+				frame[F_PC] = pc;
+				frame[F_STEPS] = steps;
+				return SUSPENDED;
+			}
+			int at = base + pc * STRIDE;
+			steps++;
+			int op = code[at];
+			int a = code[at + 1];
+			int c = code[at + 3];
+			switch (op) {
+			case MOV_K:
+				frame[a] = c;
+				init |= 1 << a;
+				pc++;
+				continue;
+			case MOV_X:
+				if ((init & (1 << c)) == 0) { status = Status.UNINITIALIZED_REGISTER; break run; }
+				frame[a] = frame[c];
+				init |= 1 << a;
+				pc++;
+				continue;
+			case NEG:
+				if ((init & (1 << a)) == 0) { status = Status.UNINITIALIZED_REGISTER; break run; }
+				frame[a] = -frame[a];
+				pc++;
+				continue;
+			case ADD_K: case SUB_K: case MUL_K: case DIV_K: case OR_K: case AND_K:
+			case LSH_K: case RSH_K: case MOD_K: case XOR_K: case ARSH_K:
+				if ((init & (1 << a)) == 0) { status = Status.UNINITIALIZED_REGISTER; break run; }
+				frame[a] = alu(op, frame[a], c);
+				pc++;
+				continue;
+			case ADD_X: case SUB_X: case MUL_X: case DIV_X: case OR_X: case AND_X:
+			case LSH_X: case RSH_X: case MOD_X: case XOR_X: case ARSH_X:
+				if ((init & (1 << a)) == 0 || (init & (1 << c)) == 0) { status = Status.UNINITIALIZED_REGISTER; break run; }
+				frame[a] = alu(op - ALU_X, frame[a], frame[c]);
+				pc++;
+				continue;
+
+			case JA:
+				pc = code[at + 2];
+				continue;
+			case JEQ_K: case JGT_K: case JGE_K: case JSET_K: case JNE_K: case JSGT_K: case JSGE_K:
+				if ((init & (1 << a)) == 0) { status = Status.UNINITIALIZED_REGISTER; break run; }
+				pc = cond(op, frame[a], c) ? code[at + 2] : pc + 1;
+				continue;
+			case JEQ_X: case JGT_X: case JGE_X: case JSET_X: case JNE_X: case JSGT_X: case JSGE_X:
+				if ((init & (1 << a)) == 0 || (init & (1 << c)) == 0) { status = Status.UNINITIALIZED_REGISTER; break run; }
+				pc = cond(op - JMP_X, frame[a], frame[c]) ? code[at + 2] : pc + 1;
+				continue;
+			case EXIT:
+				if ((init & 1) == 0) { status = Status.R0_UNINITIALIZED; }
+				break run;
+			case TAIL_CALL: {
+				if ((init & (1 << a)) == 0) { status = Status.UNINITIALIZED_REGISTER; break run; }
+				EBPFProgramArray programs = context == null ? null : context.getProgramArray();
+				EBPFProgramArray.Target t = null;
+				if (programs != null && tails < EBPFProgramArray.MAX_TAIL_CALLS) {
+					t = programs.target(frame[a]);
+				}
+				if (t == null) {
+					init &= ~ControlFlowGraph.TAIL_CALL_CLOBBERS;
+					pc++;
+					continue;
+				}
+				// Start the target like a fresh run over the same frame.
+				tails++;
+				image = t.compiled.mImage;
+				code = image.code;
+				base = image.base;
+				stack = t.compiled.mHasStores ? frame : null;
+				Arrays.fill(frame, FRAME_SIZE, FRAME_SIZE + EBPFMemory.STACK_WORDS, 0);
+				init = EBPFMemory.enter(frame, true);
+				pc = 0;
+				continue;
+			}
+
+			case LDABS_B: case LDABS_H: case LDABS_W:
+			case LDIND_B: case LDIND_H: case LDIND_W: {
+				int off = c;
+				int size = op - LDABS_B;
+				if (op >= LDIND_B) {
+					if ((init & (1 << a)) == 0) { status = Status.UNINITIALIZED_REGISTER; break run; }
+					off += frame[a];
+					size = op - LDIND_B;
+				}
+				int width = 1 << size;
+				if (off < 0 || off > len - width) { status = Status.OUT_OF_BOUNDS; break run; }
+				int v;
+				if (off > firstLength - width) {
+					v = view.loadSlow(off, size);
+				} else if (size == 0) {
+					v = packet[first + off] & 0xFF;
+				} else if (size == 1) {
+					int p = first + off;
+					v = ((packet[p] & 0xFF) << 8) | (packet[p + 1] & 0xFF);
+				} else {
+					int p = first + off;
+					v = (packet[p] << 24) | ((packet[p + 1] & 0xFF) << 16)
+						| ((packet[p + 2] & 0xFF) << 8) | (packet[p + 3] & 0xFF);
+				}
+				frame[0] = v;
+				init = (init & ~ControlFlowGraph.LD_CLOBBERS) | 1;
+				pc++;
+				continue;
+			}
+
+			case LDX_B: case LDX_H: case LDX_W: {
+				int src = code[at + 2];
+				if ((init & (1 << src)) == 0) { status = Status.UNINITIALIZED_REGISTER; break run; }
+				int size = op - LDX_B;
+				int addr = frame[src] + c;
+				if ((addr >>> 24) == (EBPFContext.POINTER >>> 24)) {
+					int off = addr - EBPFContext.POINTER;
+					if (ctx == null || off > ctx.length - (1 << size)) { status = Status.OUT_OF_BOUNDS; break run; }
+					frame[a] = EBPFContext.read(ctx, off, size);
+				} else {
+					long r = EBPFMemory.load(regions, stack, FRAME_SIZE, addr, size);
+					status = EBPFProgram.statusOf(r);
+					if (status != Status.OK) { break run; }
+					frame[a] = EBPFProgram.valueOf(r);
+				}
+				init |= 1 << a;
+				pc++;
+				continue;
+			}
+
+			case STX_B: case STX_H: case STX_W: case XADD_W: case XADD_DW: {
+				int src = code[at + 2];
+				if ((init & (1 << a)) == 0 || (init & (1 << src)) == 0) { status = Status.UNINITIALIZED_REGISTER; break run; }
+				int addr = frame[a] + c;
+				if (op >= XADD_W) {
+					status = EBPFMemory.add(regions, stack, FRAME_SIZE, addr, op - XADD_W + 2, frame[src]);
+				} else {
+					status = EBPFMemory.store(regions, stack, FRAME_SIZE, addr, op - STX_B, frame[src]);
+				}
+				if (status != null) { break run; }
+				status = Status.OK;
+				pc++;
+				continue;
+			}
+
+			case FAIL:
+				status = checkReads(init, a, code[at + 2]);
+				if (status == null) {
+					status = STATUSES[c];
+				}
+				break run;
+			case END:
+			default:
+				status = Status.END_OF_INSTRUCTIONS;
+				break run;
+			}
+		}
+
+		frame[F_INIT] = init;
+		frame[F_PC] = pc;
+		frame[F_STEPS] = steps;
+		return EBPFProgram.pack(status, frame[0]);
+	}
+
+	private static Status checkRead(int init, int r) {
+		if (r == NO_READ) {
+			return null;
+		}
+		if (r == NULL_READ) {
+			return Status.NULL_REGISTER;
+		}
+		if ((init & (1 << r)) == 0) {
+			return Status.UNINITIALIZED_REGISTER;
+		}
+		return null;
+	}
+
+	private static Status checkReads(int init, int a, int b) {
+		Status s = checkRead(init, a);
+		if (s != null) {
+			return s;
+		}
+		return checkRead(init, b);
+	}
+
+	static int alu(int op, int left, int right) {
+		switch (op) {
+		case ADD_K: return left + right;
+		case SUB_K: return left - right;
+		case MUL_K: return left * right;
+		case DIV_K: return (right == 0 ? 0 : left / right);
+		case OR_K: return left | right;
+		case AND_K: return left & right;
+		case LSH_K: return left << right;
+		case RSH_K: return left >>> right;
+		case MOD_K: return (right == 0 ? 0 : left % right);
+		case XOR_K: return left ^ right;
+		case ARSH_K: return left >> right;
+		default: throw new IllegalStateException("Bad ALU op " + op);
+		}
+	}
+
+	static boolean cond(int op, int left, int right) {
+		switch (op) {
+		case JEQ_K: return left == right;
+		case JGT_K: return (left ^ Integer.MIN_VALUE) > (right ^ Integer.MIN_VALUE);
+		case JGE_K: return (left ^ Integer.MIN_VALUE) >= (right ^ Integer.MIN_VALUE);
+		case JSET_K: return (left & right) != 0;
+		case JNE_K: return left != right;
+		case JSGT_K: return left > right;
+		case JSGE_K: return left >= right;
+		default: throw new IllegalStateException("Bad JMP op " + op);
+		}
+	}
+
+	/**
+	 * Instructions executed by the run that filled frame.
+	 */
+	public static int getSteps(int[] frame) {
+		return frame[F_STEPS];
+	}
+
+	/**
+	 * Index of the instruction the run that filled frame stopped at.
+	 */
+	public static int getFinalPC(int[] frame) {
+		return frame[F_PC];
+	}
+
+	/**
+	 * Exception for a failed tryRun, from what it left in the frame.
+	 * The trace is just the failing IP.
+	 */
+	public EBPFProgramException diagnose(long result, int[] frame, boolean stackless) {
+		Status status = EBPFProgram.statusOf(result);
+		HashMap<Register, Integer> regs = new HashMap<Register, Integer>();
+		int init = frame[F_INIT];
+		int i;
+		for (i = 0; i < REGISTERS; i++) {
+			if ((init & (1 << i)) != 0) {
+				regs.put(REGS[i], frame[i]);
+			}
+		}
+		List<Integer> trace = new ArrayList<Integer>(1);
+		trace.add(frame[F_PC]);
+		return EBPFInterpreter.newProgramException(status, status.description, trace, regs, stackless);
+	}
+}
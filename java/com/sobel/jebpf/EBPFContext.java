@@ -0,0 +1,172 @@
+package com.sobel.jebpf;
+
+/**
+ * Per-packet metadata handed to programs alongside the packet, the eBPF
+ * ctx convention: R1 starts out pointing at it and programs read fields
+ * with LDX_MEM, e.g. LDX_MEM(W, R2, R1, EBPFContext.L4_OFFSET).
+ *
+ * The host fills it once per packet (parseEthernet() does the usual
+ * headers) and every program in the pipeline reads the same one, instead
+ * of each re-deriving offsets with LD chains.
+ *
+ * Fields are 32 bit words, big-endian like packet loads. Offsets from
+ * USER_FIELDS up are free for the host's own use.
+ *
+ * Shared memory hung off a context (setSharedMemory) is visible to
+ * programs too, see EBPFMemory; give every worker's context the same
+ * EBPFSharedMemory to share counters between them. Likewise the
+ * EBPFProgramArray that tail calls go to.
+ *
+ * Not thread safe; don't refill it while programs are reading it.
+ */
+public class EBPFContext {
+
+	/**
+	 * Where contexts live in the program's address space: R1 is set to
+	 * POINTER, and LDX addresses from there up to POINTER + size() read the
+	 * context. Anything else is out of bounds.
+	 */
+	public static final int POINTER = 1 << 24;
+
+	public static final int PACKET_LENGTH = 0;
+	// Of the network header; -1 if not found.
+	public static final int L3_OFFSET = 4;
+	// Of the transport header; -1 if not found.
+	public static final int L4_OFFSET = 8;
+	public static final int ETHERTYPE = 12;
+	// IPv4 protocol / IPv6 next header; -1 if not IP.
+	public static final int IP_PROTOCOL = 16;
+	public static final int TIMESTAMP_SECONDS = 20;
+	public static final int TIMESTAMP_NANOS = 24;
+	public static final int USER_FIELDS = 28;
+
+	public static final int DEFAULT_SIZE = 64;
+
+	private static final int ETH_HEADER = 14;
+	private static final int VLAN_HEADER = 4;
+	private static final int IPV6_HEADER = 40;
+
+	private final byte[] mData;
+	private final EBPFSharedMemory[] mRegions = new EBPFSharedMemory[EBPFMemory.MAX_REGIONS];
+	private EBPFProgramArray mPrograms;
+
+	public EBPFContext() {
+		this(DEFAULT_SIZE);
+	}
+
+	/**
+	 * size in bytes, at least USER_FIELDS.
+	 */
+	public EBPFContext(int size) {
+		if (size < USER_FIELDS) {
+			throw new IllegalArgumentException("Context must be at least " + USER_FIELDS + " bytes");
+		}
+		mData = new byte[size];
+	}
+
+	public int size() {
+		return mData.length;
+	}
+
+	byte[] getData() {
+		return mData;
+	}
+
+	EBPFSharedMemory[] getRegions() {
+		return mRegions;
+	}
+
+	/**
+	 * Map m at EBPFMemory.region(slot) for programs run with this context.
+	 * null unmaps.
+	 */
+	public void setSharedMemory(int slot, EBPFSharedMemory m) {
+		if (slot < 0 || slot >= mRegions.length) {
+			throw new IllegalArgumentException("Bad slot " + slot);
+		}
+		mRegions[slot] = m;
+	}
+
+	public EBPFSharedMemory getSharedMemory(int slot) {
+		return mRegions[slot];
+	}
+
+	/**
+	 * Where programs run with this context tail call to. null for none,
+	 * when every tail call falls through.
+	 */
+	public void setProgramArray(EBPFProgramArray programs) {
+		mPrograms = programs;
+	}
+
+	public EBPFProgramArray getProgramArray() {
+		return mPrograms;
+	}
+
+	public void clear() {
+		int i;
+		for (i = 0; i < mData.length; i++) {
+			mData[i] = 0;
+		}
+	}
+
+	public void setInt(int offset, int v) {
+		mData[offset] = (byte)(v >>> 24);
+		mData[offset + 1] = (byte)(v >>> 16);
+		mData[offset + 2] = (byte)(v >>> 8);
+		mData[offset + 3] = (byte)v;
+	}
+
+	public int getInt(int offset) {
+		return read(mData, offset, 2);
+	}
+
+	/**
+	 * Big-endian read of 1, 2 or 4 bytes (size is the InstructionSize
+	 * ordinal), zero extended. No bounds checks.
+	 */
+	static int read(byte[] b, int off, int size) {
+		if (size == 0) {
+			return b[off] & 0xFF;
+		} else if (size == 1) {
+			return ((b[off] & 0xFF) << 8) | (b[off + 1] & 0xFF);
+		}
+		return (b[off] << 24) | ((b[off + 1] & 0xFF) << 16)
+			| ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+	}
+
+	/**
+	 * Fills the standard fields from an Ethernet frame: one VLAN tag is
+	 * skipped, IPv4 options are accounted for, IPv6 extension headers
+	 * aren't. User fields are left alone.
+	 */
+	public void parseEthernet(byte[] packet, long timestampNanos) {
+		setInt(PACKET_LENGTH, packet.length);
+		setInt(TIMESTAMP_SECONDS, (int)(timestampNanos / 1000000000L));
+		setInt(TIMESTAMP_NANOS, (int)(timestampNanos % 1000000000L));
+
+		int l3 = -1;
+		int l4 = -1;
+		int ethertype = -1;
+		int proto = -1;
+		if (packet.length >= ETH_HEADER) {
+			l3 = ETH_HEADER;
+			ethertype = read(packet, 12, 1);
+			if (ethertype == 0x8100 && packet.length >= ETH_HEADER + VLAN_HEADER) {
+				ethertype = read(packet, 16, 1);
+				l3 += VLAN_HEADER;
+			}
+			if (ethertype == 0x0800 && packet.length >= l3 + 20) {
+				proto = packet[l3 + 9] & 0xFF;
+				l4 = l3 + (packet[l3] & 0x0F) * 4;
+			} else if (ethertype == 0x86DD && packet.length >= l3 + IPV6_HEADER) {
+				proto = packet[l3 + 6] & 0xFF;
+				l4 = l3 + IPV6_HEADER;
+			}
+		}
+		setInt(L3_OFFSET, l3);
+		setInt(L4_OFFSET, l4);
+		setInt(ETHERTYPE, ethertype);
+		setInt(IP_PROTOCOL, proto);
+	}
+}
@@ -0,0 +1,201 @@
+package com.sobel.jebpf;
+
+import com.sobel.jebpf.EBPFInstruction.InstructionCode;
+import com.sobel.jebpf.EBPFInstruction.InstructionMode;
+
+/**
+ * Static worst case cost of a program: the most expensive path through
+ * its ControlFlowGraph, each instruction weighted by what it costs to run.
+ *
+ * Jumps only go forward, so every program finishes in a bounded number of
+ * steps, and the longest path falls out of one backwards pass over the
+ * blocks.
+ *
+ * The default weights are rough relative costs on the compiled tier
+ * (DIV and MOD are far dearer than a MOV, loads pay for bounds checks).
+ * Change them with the setters, or override cost() for anything finer.
+ */
+public class EBPFCostModel {
+
+	/**
+	 * What analyze() found.
+	 */
+	public static class Cost {
+		// Weighted cost of the worst path.
+		public final long maxCost;
+		// Instructions on that path.
+		public final int maxInstructions;
+		private final int[] mPath;
+
+		private Cost(long cost, int instructions, int[] path) {
+			maxCost = cost;
+			maxInstructions = instructions;
+			mPath = path;
+		}
+
+		/**
+		 * Blocks (ControlFlowGraph numbering) on the worst path, in order.
+		 */
+		public int[] getPath() {
+			return mPath.clone();
+		}
+
+		@Override
+		public String toString() {
+			return "cost " + maxCost + " over " + maxInstructions + " instructions";
+		}
+	}
+
+	private final int[] mAlu = new int[InstructionCode.values().length];
+	private int mJump = 1;
+	private int mExit = 1;
+	private int mLoadAbsolute = 4;
+	private int mLoadIndirect = 5;
+	private int mLoadMemory = 3;
+	private int mStore = 3;
+	// Atomic, when it's to shared memory.
+	private int mAtomicAdd = 10;
+	// Just the call; the program it goes to has its own cost.
+	private int mTailCall = 5;
+
+	public EBPFCostModel() {
+		int i;
+		for (i = 0; i < mAlu.length; i++) {
+			mAlu[i] = 1;
+		}
+		mAlu[InstructionCode.MUL.ordinal()] = 3;
+		mAlu[InstructionCode.DIV.ordinal()] = 20;
+		mAlu[InstructionCode.MOD.ordinal()] = 20;
+	}
+
+	public EBPFCostModel setAluCost(InstructionCode code, int cost) {
+		mAlu[code.ordinal()] = cost;
+		return this;
+	}
+
+	/**
+	 * Conditional and unconditional jumps alike.
+	 */
+	public EBPFCostModel setJumpCost(int cost) {
+		mJump = cost;
+		return this;
+	}
+
+	public EBPFCostModel setExitCost(int cost) {
+		mExit = cost;
+		return this;
+	}
+
+	/**
+	 * LD_ABS and LD_IND.
+	 */
+	public EBPFCostModel setLoadCost(int absolute, int indirect) {
+		mLoadAbsolute = absolute;
+		mLoadIndirect = indirect;
+		return this;
+	}
+
+	/**
+	 * LDX_MEM.
+	 */
+	public EBPFCostModel setMemoryLoadCost(int cost) {
+		mLoadMemory = cost;
+		return this;
+	}
+
+	/**
+	 * STX_MEM and STX_XADD.
+	 */
+	public EBPFCostModel setStoreCost(int store, int atomicAdd) {
+		mStore = store;
+		mAtomicAdd = atomicAdd;
+		return this;
+	}
+
+	/**
+	 * TAIL_CALL, whether it goes or falls through. What the program it
+	 * goes to costs isn't counted: analyze that one separately, or see
+	 * EBPFAdmissionPolicy.setTailCallBudget.
+	 */
+	public EBPFCostModel setTailCallCost(int cost) {
+		mTailCall = cost;
+		return this;
+	}
+
+	/**
+	 * What one run of insn costs.
+	 */
+	public int cost(EBPFInstruction insn) {
+		switch (insn.mClass) {
+		case ALU:
+			return mAlu[insn.mCode.ordinal()];
+		case JMP:
+			if (insn.isTailCall()) {
+				return mTailCall;
+			}
+			return insn.mCode == InstructionCode.EXIT ? mExit : mJump;
+		case LD:
+			return insn.mMode == InstructionMode.IND ? mLoadIndirect : mLoadAbsolute;
+		case LDX:
+			return mLoadMemory;
+		case STX:
+			return insn.mMode == InstructionMode.XADD ? mAtomicAdd : mStore;
+		default:
+			return 0;
+		}
+	}
+
+	public Cost analyze(EBPFInstruction[] insns) {
+		return analyze(insns, ControlFlowGraph.build(insns));
+	}
+
+	/**
+	 * With a graph already built, say the one EBPFVerifier.verify returns.
+	 * Paths end at EXIT, or wherever the program would abort.
+	 */
+	public Cost analyze(EBPFInstruction[] insns, ControlFlowGraph cfg) {
+		int blocks = cfg.getBlockCount();
+		if (blocks == 0) {
+			return new Cost(0, 0, new int[0]);
+		}
+		// Worst cost and length from the start of each block to the end.
+		long[] worst = new long[blocks];
+		int[] length = new int[blocks];
+		int[] next = new int[blocks];
+		int b;
+		for (b = blocks - 1; b >= 0; b--) {
+			long cost = 0;
+			int i;
+			for (i = cfg.getBlockStart(b); i < cfg.getBlockEnd(b); i++) {
+				cost += cost(insns[i]);
+			}
+			int best = ControlFlowGraph.NO_BLOCK;
+			int s;
+			for (s = 0; s < cfg.getSuccessorCount(b); s++) {
+				int succ = cfg.getSuccessor(b, s);
+				if (best == ControlFlowGraph.NO_BLOCK || worst[succ] > worst[best]
+						|| (worst[succ] == worst[best] && length[succ] > length[best])) {
+					best = succ;
+				}
+			}
+			worst[b] = cost;
+			length[b] = cfg.getBlockEnd(b) - cfg.getBlockStart(b);
+			if (best != ControlFlowGraph.NO_BLOCK) {
+				worst[b] += worst[best];
+				length[b] += length[best];
+			}
+			next[b] = best;
+		}
+
+		int n = 0;
+		for (b = 0; b != ControlFlowGraph.NO_BLOCK; b = next[b]) {
+			n++;
+		}
+		int[] path = new int[n];
+		n = 0;
+		for (b = 0; b != ControlFlowGraph.NO_BLOCK; b = next[b]) {
+			path[n++] = b;
+		}
+		return new Cost(worst[0], length[0], path);
+	}
+}
@@ -0,0 +1,341 @@
+package com.sobel.jebpf;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sobel.jebpf.EBPFInterpreter.Status;
+
+/**
+ * Runs programs through EBPFInterpreter and every other engine side by
+ * side, and reports wherever an engine's Status or R0 differs. Only OK
+ * runs have their R0 compared; a failed run's R0 means nothing.
+ *
+ * The interpreter is the reference. Engines see the whole corpus at once
+ * (so an EBPFFilterSet can fuse it) and run all of it over each packet,
+ * which makes a corpus of generated programs a benchmark workload too.
+ * A fresh engine is wanted per corpus.
+ */
+public class EBPFDifferential {
+
+	public interface Engine {
+		public String getName();
+
+		/**
+		 * Called once, before any run.
+		 */
+		public void load(EBPFInstruction[][] programs);
+
+		/**
+		 * Every loaded program over packet, results packed as
+		 * EBPFProgram.tryRun returns them. ctx may be null.
+		 */
+		public void run(byte[] packet, EBPFContext ctx, long[] results);
+	}
+
+	/**
+	 * One engine disagreeing with the interpreter.
+	 */
+	public static class Divergence {
+		public final String engine;
+		public final EBPFInstruction[] program;
+		public final byte[] packet;
+		public final long expected;
+		public final long actual;
+
+		private Divergence(String e, EBPFInstruction[] p, byte[] b, long x, long a) {
+			engine = e;
+			program = p;
+			packet = b;
+			expected = x;
+			actual = a;
+		}
+
+		private static String result(long r) {
+			Status s = EBPFProgram.statusOf(r);
+			return s == Status.OK ? "OK " + EBPFProgram.valueOf(r) : s.toString();
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder b = new StringBuilder();
+			b.append(engine).append(": expected ").append(result(expected)).append(", got ").append(result(actual));
+			b.append("\npacket:");
+			for (byte x : packet) {
+				b.append(String.format(" %02x", x & 0xFF));
+			}
+			int i;
+			for (i = 0; i < program.length; i++) {
+				b.append("\n  ").append(i).append(": ").append(program[i]);
+			}
+			return b.toString();
+		}
+	}
+
+	/**
+	 * The interpreter, for reference and for benchmarking against.
+	 */
+	public static Engine interpreter() {
+		return new Engine() {
+			private EBPFInterpreter[] mInterpreters;
+
+			@Override
+			public String getName() {
+				return "interpreter";
+			}
+
+			@Override
+			public void load(EBPFInstruction[][] programs) {
+				mInterpreters = new EBPFInterpreter[programs.length];
+				int i;
+				for (i = 0; i < programs.length; i++) {
+					mInterpreters[i] = new EBPFInterpreter(programs[i]);
+				}
+			}
+
+			@Override
+			public void run(byte[] packet, EBPFContext ctx, long[] results) {
+				int i;
+				for (i = 0; i < mInterpreters.length; i++) {
+					Status s = mInterpreters[i].tryRun(packet, ctx);
+					results[i] = EBPFProgram.pack(s, mInterpreters[i].getReturnValue());
+				}
+			}
+		};
+	}
+
+	private static class Compiled implements Engine {
+		private final EBPFCodeArena mArena;
+		private final boolean mSegmented;
+		private EBPFCompiledProgram[] mPrograms;
+		private int[] mFrame;
+		private final EBPFPacketView mView = new EBPFPacketView(2);
+
+		Compiled(EBPFCodeArena arena, boolean segmented) {
+			mArena = arena;
+			mSegmented = segmented;
+		}
+
+		@Override
+		public String getName() {
+			return mSegmented ? "compiled, segmented" : mArena != null ? "compiled, arena" : "compiled";
+		}
+
+		@Override
+		public void load(EBPFInstruction[][] programs) {
+			mPrograms = new EBPFCompiledProgram[programs.length];
+			int frame = EBPFCompiledProgram.FRAME_SIZE;
+			int i;
+			for (i = 0; i < programs.length; i++) {
+				mPrograms[i] = mArena != null ? mArena.compile(programs[i]) : EBPFCompiledProgram.compile(programs[i]);
+				frame = Math.max(frame, mPrograms[i].newFrame().length);
+			}
+			mFrame = new int[frame];
+		}
+
+		@Override
+		public void run(byte[] packet, EBPFContext ctx, long[] results) {
+			int i;
+			if (mSegmented) {
+				// Split in the middle, so loads straddle the two halves.
+				mView.clear();
+				mView.add(packet, 0, packet.length / 2);
+				mView.add(packet, packet.length / 2, packet.length - packet.length / 2);
+				for (i = 0; i < mPrograms.length; i++) {
+					results[i] = mPrograms[i].tryRun(mView, ctx, mFrame);
+				}
+				return;
+			}
+			for (i = 0; i < mPrograms.length; i++) {
+				results[i] = mPrograms[i].tryRun(packet, ctx, mFrame);
+			}
+		}
+	}
+
+	/**
+	 * Each program compiled on its own, sharing one frame.
+	 */
+	public static Engine compiled() {
+		return new Compiled(null, false);
+	}
+
+	/**
+	 * Compiled into one EBPFCodeArena.
+	 */
+	public static Engine arena() {
+		return new Compiled(new EBPFCodeArena(), false);
+	}
+
+	/**
+	 * Compiled, over the packet split into two EBPFPacketView segments.
+	 */
+	public static Engine segmented() {
+		return new Compiled(null, true);
+	}
+
+	/**
+	 * The whole corpus fused into one EBPFFilterSet.
+	 */
+	public static Engine filterSet() {
+		return new Engine() {
+			private EBPFFilterSet mSet;
+
+			@Override
+			public String getName() {
+				return "filter set";
+			}
+
+			@Override
+			public void load(EBPFInstruction[][] programs) {
+				mSet = new EBPFFilterSet(programs);
+			}
+
+			@Override
+			public void run(byte[] packet, EBPFContext ctx, long[] results) {
+				mSet.evaluate(packet, ctx, results);
+			}
+		};
+	}
+
+	/**
+	 * Each program as an EBPFLaneProgram, over this packet and the ones
+	 * before it, one per lane. The packet's lane moves round with every
+	 * run so they all get checked. Programs that aren't vectorized run
+	 * scalar, with ctx.
+	 */
+	public static Engine lanes() {
+		return new Engine() {
+			private EBPFLaneProgram[] mPrograms;
+			private int[] mFrame;
+			private final byte[][] mPackets = new byte[EBPFLaneProgram.LANES][];
+			private final long[] mLanes = new long[EBPFLaneProgram.LANES];
+			private int mRuns;
+
+			@Override
+			public String getName() {
+				return "lanes";
+			}
+
+			@Override
+			public void load(EBPFInstruction[][] programs) {
+				mPrograms = new EBPFLaneProgram[programs.length];
+				int frame = 0;
+				int i;
+				for (i = 0; i < programs.length; i++) {
+					mPrograms[i] = EBPFLaneProgram.compile(programs[i]);
+					frame = Math.max(frame, mPrograms[i].newFrame().length);
+				}
+				mFrame = new int[frame];
+			}
+
+			@Override
+			public void run(byte[] packet, EBPFContext ctx, long[] results) {
+				int lane = mRuns % EBPFLaneProgram.LANES;
+				mPackets[lane] = packet;
+				mRuns++;
+				int n = Math.min(mRuns, EBPFLaneProgram.LANES);
+				int i;
+				for (i = 0; i < mPrograms.length; i++) {
+					EBPFLaneProgram p = mPrograms[i];
+					if (!p.isVectorized()) {
+						results[i] = p.getScalar().tryRun(packet, ctx, mFrame);
+						continue;
+					}
+					p.tryRun(mPackets, 0, n, mLanes, mFrame);
+					results[i] = mLanes[lane];
+				}
+			}
+		};
+	}
+
+	/**
+	 * Every engine there is but the interpreter, fresh.
+	 */
+	public static List<Engine> allEngines() {
+		List<Engine> out = new ArrayList<Engine>();
+		out.add(compiled());
+		out.add(arena());
+		out.add(segmented());
+		out.add(filterSet());
+		out.add(lanes());
+		return out;
+	}
+
+	private final List<Engine> mEngines;
+	private final int mMaxDivergences;
+	private long mRuns;
+
+	/**
+	 * Gives up collecting after maxDivergences; one bug tends to show up
+	 * everywhere.
+	 */
+	public EBPFDifferential(List<Engine> engines, int maxDivergences) {
+		mEngines = new ArrayList<Engine>(engines);
+		mMaxDivergences = maxDivergences;
+	}
+
+	/**
+	 * Runs from every engine, the interpreter's included.
+	 */
+	public long getRunCount() {
+		return mRuns;
+	}
+
+	/**
+	 * Every program over every packet. With withContext each packet gets
+	 * an EBPFContext filled in by EBPFContext.parseEthernet.
+	 */
+	public List<Divergence> check(EBPFInstruction[][] programs, byte[][] packets, boolean withContext) {
+		List<Divergence> out = new ArrayList<Divergence>();
+		Engine reference = interpreter();
+		reference.load(programs);
+		for (Engine e : mEngines) {
+			e.load(programs);
+		}
+		long[] expected = new long[programs.length];
+		long[] actual = new long[programs.length];
+		EBPFContext ctx = withContext ? new EBPFContext() : null;
+		for (byte[] packet : packets) {
+			if (ctx != null) {
+				ctx.clear();
+				ctx.parseEthernet(packet, 0);
+			}
+			reference.run(packet, ctx, expected);
+			mRuns += programs.length;
+			for (Engine e : mEngines) {
+				e.run(packet, ctx, actual);
+				mRuns += programs.length;
+				int i;
+				for (i = 0; i < programs.length; i++) {
+					if (!same(expected[i], actual[i]) && out.size() < mMaxDivergences) {
+						out.add(new Divergence(e.getName(), programs[i], packet, expected[i], actual[i]));
+					}
+				}
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * A corpus from generator, checked. Programs are generated first, then
+	 * packets.
+	 */
+	public List<Divergence> check(EBPFProgramGenerator generator, int programs, int packets) {
+		EBPFInstruction[][] code = new EBPFInstruction[programs][];
+		int i;
+		for (i = 0; i < programs; i++) {
+			code[i] = generator.nextProgram();
+		}
+		byte[][] data = new byte[packets][];
+		for (i = 0; i < packets; i++) {
+			data[i] = generator.nextPacket();
+		}
+		return check(code, data, generator.isWithContext());
+	}
+
+	private static boolean same(long expected, long actual) {
+		if (EBPFProgram.statusOf(expected) != EBPFProgram.statusOf(actual)) {
+			return false;
+		}
+		return EBPFProgram.statusOf(expected) != Status.OK || expected == actual;
+	}
+}
@@ -0,0 +1,113 @@
+package com.sobel.jebpf;
+
+import com.sobel.jebpf.EBPFInterpreter.Status;
+
+/**
+ * Process-wide hooks into a program's life: decode, verify, compile,
+ * publish and retire (see EBPFProgramHandle), and runs. For wiring jebpf
+ * into a tracer or profiler; on the JVM, EBPFJfr turns these into Java
+ * Flight Recorder events.
+ *
+ * Without a listener every hook is one volatile read. Load-time hooks are
+ * timed only while there's a listener. Runs of an EBPFProgram are only
+ * timed while run reporting is on as well (setRunReporting), and reported
+ * if slow or sampled, so the listener doesn't see every packet.
+ *
+ * Listeners are called on whatever thread did the work, and mustn't throw.
+ */
+public class EBPFEvents {
+
+	public interface Listener {
+		/**
+		 * error is null if it decoded.
+		 */
+		public void onDecoded(int bytes, String error, long nanos);
+
+		/**
+		 * error is null if it passed.
+		 */
+		public void onVerified(int instructions, boolean withContext, String error, long nanos);
+
+		/**
+		 * codeBytes: EBPFCompiledProgram.getCodeSize. cached if the code came
+		 * from an EBPFProgramCache.
+		 */
+		public void onCompiled(String program, int instructions, int codeBytes, boolean cached, long nanos);
+
+		public void onPublished(String program, long version, int instructions, long prepareNanos);
+
+		public void onRetired(String program, long version, long drainNanos);
+
+		/**
+		 * A slow or sampled run. steps is instructions executed.
+		 */
+		public void onRun(String program, int instructions, Status status, int steps, long nanos);
+	}
+
+	private static volatile Listener sListener;
+	private static long sRunThreshold = -1;
+	private static int sRunSampling;
+	// Whether runs need timing; the one field run paths read.
+	private static volatile boolean sTimingRuns;
+	// Racy on purpose: sampling doesn't need to be exact.
+	private static int sRuns;
+
+	private EBPFEvents() {
+	}
+
+	/**
+	 * null removes it.
+	 */
+	public static synchronized void setListener(Listener l) {
+		sListener = l;
+		update();
+	}
+
+	public static Listener getListener() {
+		return sListener;
+	}
+
+	/**
+	 * Report runs that take at least thresholdNanos (negative for none), and
+	 * one in every sampleEvery besides (0 for none). Off by default.
+	 */
+	public static synchronized void setRunReporting(long thresholdNanos, int sampleEvery) {
+		if (sampleEvery < 0) {
+			throw new IllegalArgumentException("Bad sampling " + sampleEvery);
+		}
+		sRunThreshold = thresholdNanos;
+		sRunSampling = sampleEvery;
+		update();
+	}
+
+	private static void update() {
+		sTimingRuns = sListener != null && (sRunThreshold >= 0 || sRunSampling > 0);
+	}
+
+	static Listener listener() {
+		return sListener;
+	}
+
+	static boolean isTimingRuns() {
+		return sTimingRuns;
+	}
+
+	/**
+	 * A run of p that ended in result, if it's slow or sampled.
+	 */
+	static void run(EBPFProgram p, long result, int steps, long nanos) {
+		Listener l = sListener;
+		if (l == null) {
+			return;
+		}
+		long threshold = sRunThreshold;
+		int sampling = sRunSampling;
+		boolean report = threshold >= 0 && nanos >= threshold;
+		if (!report && sampling > 0) {
+			report = ++sRuns % sampling == 0;
+		}
+		if (report) {
+			l.onRun(p.getName(), p.getInstructionCount(), EBPFProgram.statusOf(result), steps, nanos);
+		}
+	}
+}
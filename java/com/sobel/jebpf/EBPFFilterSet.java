@@ -0,0 +1,321 @@
+package com.sobel.jebpf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import com.sobel.jebpf.EBPFCompiledProgram.Image;
+import com.sobel.jebpf.EBPFInterpreter.Status;
+
+/**
+ * Runs a set of filters over a packet together, doing the work they have
+ * in common once.
+ *
+ * Filters tend to start the same way (load the ethertype, compare it,
+ * load the protocol...). At build time the compiled programs are merged
+ * into a decision tree: a node stands for a group of programs that are at
+ * the same IP, about to run the same instruction, with the same register
+ * state behind them. That instruction runs once for the whole group, and
+ * the group only splits where the programs' next instructions differ.
+ * Once a program is on its own it just runs to the end from the node's
+ * state. So shared loads and compares cost once per packet, not once per
+ * filter. Identical programs are folded together up front.
+ *
+ * The tree is capped at MAX_NODES; past that programs carry on alone.
+ *
+ * Thread safe once built.
+ */
+public class EBPFFilterSet {
+
+	public static final int MAX_NODES = 1 << 14;
+
+	private static class Node {
+		// Some member; its code up to pc is what every member runs.
+		EBPFCompiledProgram program;
+		// Instructions to run, ending with the one at pc. Straight-line
+		// stretches nobody splits on are run as one.
+		int steps;
+		int pc;
+		// Distinct programs in this group (indexes into mDistinct).
+		int[] members;
+		// Leaf: a lone program that runs to completion from here.
+		boolean leaf;
+		// Groups to carry on with at pc + 1 and at the jump target.
+		Node[] next;
+		Node[] taken;
+	}
+
+	private final int mSize;
+	private final EBPFCompiledProgram[] mDistinct;
+	// For each distinct program, the filters (by index) it stands for.
+	private final int[][] mOwners;
+	private final Node[] mRoots;
+	private final int mDepth;
+	// Big enough for every program's, stack included.
+	private final int mFrameSize;
+	private int mNodeCount;
+
+	private final ThreadLocal<int[][]> mFrames = new ThreadLocal<int[][]>() {
+		@Override
+		protected int[][] initialValue() {
+			return new int[mDepth + 1][mFrameSize];
+		}
+	};
+
+	public EBPFFilterSet(EBPFInstruction[][] programs) {
+		mSize = programs.length;
+
+		LinkedHashMap<String, List<Integer>> distinct = new LinkedHashMap<String, List<Integer>>();
+		List<EBPFCompiledProgram> compiled = new ArrayList<EBPFCompiledProgram>();
+		int i;
+		for (i = 0; i < programs.length; i++) {
+			EBPFCompiledProgram p = EBPFCompiledProgram.compile(programs[i]);
+			String key = Arrays.toString(p.getImage().code);
+			List<Integer> owners = distinct.get(key);
+			if (owners == null) {
+				owners = new ArrayList<Integer>();
+				distinct.put(key, owners);
+				compiled.add(p);
+			}
+			owners.add(i);
+		}
+		mDistinct = compiled.toArray(new EBPFCompiledProgram[compiled.size()]);
+		int frameSize = EBPFCompiledProgram.FRAME_SIZE;
+		for (EBPFCompiledProgram p : mDistinct) {
+			frameSize = Math.max(frameSize, p.newFrame().length);
+		}
+		mFrameSize = frameSize;
+		mOwners = new int[mDistinct.length][];
+		i = 0;
+		for (List<Integer> owners : distinct.values()) {
+			mOwners[i] = new int[owners.size()];
+			int j;
+			for (j = 0; j < owners.size(); j++) {
+				mOwners[i][j] = owners.get(j);
+			}
+			i++;
+		}
+
+		int[] all = new int[mDistinct.length];
+		for (i = 0; i < all.length; i++) {
+			all[i] = i;
+		}
+		mRoots = group(all, 0);
+		mDepth = depth(mRoots);
+	}
+
+	/**
+	 * Splits members (all at pc with the same state) by the instruction
+	 * they're about to run.
+	 */
+	private Node[] group(int[] members, int pc) {
+		LinkedHashMap<String, List<Integer>> groups = new LinkedHashMap<String, List<Integer>>();
+		for (int m : members) {
+			String key = Arrays.toString(instructionAt(mDistinct[m], pc));
+			List<Integer> g = groups.get(key);
+			if (g == null) {
+				g = new ArrayList<Integer>();
+				groups.put(key, g);
+			}
+			g.add(m);
+		}
+		if (mNodeCount + groups.size() >= MAX_NODES) {
+			// Out of room, everyone's on their own from here.
+			Node[] nodes = new Node[members.length];
+			int i;
+			for (i = 0; i < members.length; i++) {
+				nodes[i] = leaf(members[i], pc);
+			}
+			return nodes;
+		}
+		List<Node> nodes = new ArrayList<Node>();
+		for (List<Integer> g : groups.values()) {
+			if (instructionAt(mDistinct[g.get(0)], pc)[0] == EBPFCompiledProgram.TAIL_CALL) {
+				// Where a tail call goes is only known at run time, so
+				// from here each carries on alone.
+				for (int m : g) {
+					nodes.add(leaf(m, pc));
+				}
+			} else {
+				nodes.add(node(g, pc));
+			}
+		}
+		return nodes.toArray(new Node[nodes.size()]);
+	}
+
+	private Node leaf(int member, int pc) {
+		Node n = new Node();
+		n.pc = pc;
+		n.members = new int[] {member};
+		n.program = mDistinct[member];
+		n.leaf = true;
+		mNodeCount++;
+		return n;
+	}
+
+	private Node node(List<Integer> g, int pc) {
+		if (g.size() == 1) {
+			return leaf(g.get(0), pc);
+		}
+		Node n = new Node();
+		n.pc = pc;
+		n.members = new int[g.size()];
+		int i;
+		for (i = 0; i < n.members.length; i++) {
+			n.members[i] = g.get(i);
+		}
+		n.program = mDistinct[n.members[0]];
+		mNodeCount++;
+
+		int start = pc;
+		int[] insn = instructionAt(n.program, pc);
+		while (isStraight(insn[0]) && allSame(n.members, pc + 1)
+				&& instructionAt(n.program, pc + 1)[0] != EBPFCompiledProgram.TAIL_CALL) {
+			pc++;
+			insn = instructionAt(n.program, pc);
+		}
+		n.pc = pc;
+		n.steps = pc - start + 1;
+		int op = insn[0];
+		if (op == EBPFCompiledProgram.JA) {
+			n.taken = group(n.members, insn[2]);
+			n.next = n.taken; // for ja +0
+		} else if (op > EBPFCompiledProgram.JA && op < EBPFCompiledProgram.EXIT) {
+			n.next = group(n.members, pc + 1);
+			n.taken = insn[2] == pc + 1 ? n.next : group(n.members, insn[2]);
+		} else if (isStraight(op)) {
+			n.next = group(n.members, pc + 1);
+		}
+		// else EXIT, FAIL or END: the run ends here for everyone.
+		return n;
+	}
+
+	private static boolean isStraight(int op) {
+		return op < EBPFCompiledProgram.JA || (op >= EBPFCompiledProgram.LDABS_B && op <= EBPFCompiledProgram.LDIND_W)
+			|| (op >= EBPFCompiledProgram.LDX_B && op <= EBPFCompiledProgram.XADD_DW);
+	}
+
+	private boolean allSame(int[] members, int pc) {
+		int[] first = instructionAt(mDistinct[members[0]], pc);
+		int i;
+		for (i = 1; i < members.length; i++) {
+			if (!Arrays.equals(first, instructionAt(mDistinct[members[i]], pc))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int[] instructionAt(EBPFCompiledProgram p, int pc) {
+		Image image = p.getImage();
+		int[] insn = new int[EBPFCompiledProgram.STRIDE];
+		System.arraycopy(image.code, image.base + pc * EBPFCompiledProgram.STRIDE, insn, 0, insn.length);
+		return insn;
+	}
+
+	private static int depth(Node[] nodes) {
+		int d = 0;
+		if (nodes == null) {
+			return d;
+		}
+		for (Node n : nodes) {
+			d = Math.max(d, 1 + Math.max(depth(n.next), n.taken == n.next ? 0 : depth(n.taken)));
+		}
+		return d;
+	}
+
+	/**
+	 * Number of filters in the set.
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * Number of filters left after folding identical ones together.
+	 */
+	public int getDistinctCount() {
+		return mDistinct.length;
+	}
+
+	/**
+	 * Size of the merged decision tree.
+	 */
+	public int getNodeCount() {
+		return mNodeCount;
+	}
+
+	/**
+	 * Runs every filter over packet. results[i] gets filter i's Status and
+	 * R0 packed, as EBPFProgram.tryRun would return them.
+	 */
+	public void evaluate(byte[] packet, long[] results) {
+		evaluate(packet, null, results);
+	}
+
+	/**
+	 * evaluate with one EBPFContext shared by every filter.
+	 */
+	public void evaluate(byte[] packet, EBPFContext ctx, long[] results) {
+		if (results.length < mSize) {
+			throw new IllegalArgumentException("Need room for " + mSize + " results");
+		}
+		int[][] frames = mFrames.get();
+		int[] root = frames[0];
+		Arrays.fill(root, 0);
+		root[EBPFCompiledProgram.F_INIT] = EBPFMemory.enter(root, ctx != null);
+		for (Node n : mRoots) {
+			evaluate(n, packet, ctx, frames, 1, results);
+		}
+	}
+
+	private void evaluate(Node n, byte[] packet, EBPFContext ctx, int[][] frames, int depth, long[] results) {
+		int[] f = frames[depth];
+		System.arraycopy(frames[depth - 1], 0, f, 0, f.length);
+		long r = n.program.resume(packet, ctx, f, n.leaf ? -1 : n.steps);
+		if (r != EBPFCompiledProgram.SUSPENDED) {
+			for (int m : n.members) {
+				for (int owner : mOwners[m]) {
+					results[owner] = r;
+				}
+			}
+			return;
+		}
+		Node[] next = f[EBPFCompiledProgram.F_PC] == n.pc + 1 ? n.next : n.taken;
+		for (Node c : next) {
+			evaluate(c, packet, ctx, frames, depth + 1, results);
+		}
+	}
+
+	/**
+	 * Runs every filter over packet and returns the verdicts: R0 of each,
+	 * or 0 for a filter that failed.
+	 */
+	public int[] verdicts(byte[] packet) {
+		long[] results = new long[mSize];
+		evaluate(packet, results);
+		int[] verdicts = new int[mSize];
+		int i;
+		for (i = 0; i < mSize; i++) {
+			verdicts[i] = EBPFProgram.statusOf(results[i]) == Status.OK ? EBPFProgram.valueOf(results[i]) : 0;
+		}
+		return verdicts;
+	}
+
+	/**
+	 * Runs every filter over packet and sets bit i of the mask (bit i % 64
+	 * of word i / 64) when filter i accepted it, meaning it finished with a
+	 * nonzero R0. results is scratch space of at least size().
+	 */
+	public void match(byte[] packet, long[] results, long[] mask) {
+		evaluate(packet, results);
+		Arrays.fill(mask, 0);
+		int i;
+		for (i = 0; i < mSize; i++) {
+			if (EBPFProgram.statusOf(results[i]) == Status.OK && EBPFProgram.valueOf(results[i]) != 0) {
+				mask[i >>> 6] |= 1L << i;
+			}
+		}
+	}
+}
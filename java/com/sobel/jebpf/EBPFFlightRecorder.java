@@ -0,0 +1,553 @@
+package com.sobel.jebpf;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.sobel.jebpf.EBPFInstruction.EBPFDecodeException;
+import com.sobel.jebpf.EBPFInterpreter.Status;
+
+/**
+ * Keeps the last few runs that failed or were slow, with enough of each
+ * to replay it offline: the program, the first bytes of the packet, the
+ * context, the final IP and registers, and how long it took.
+ *
+ * Attach one to programs with EBPFProgram.setFlightRecorder (or
+ * EBPFProgramHandle's). Runs are only recorded if they fail, or take
+ * longer than the slow threshold when one is set, and then go into a ring
+ * allocated up front: recording never allocates, takes no locks, and
+ * writes over the oldest record once the ring is full. Runs are only
+ * timed while there's a slow threshold (reading the clock costs more than
+ * a short filter), so with just failures recorded, a program with a
+ * recorder attached pays a compare per run; one without, a null check.
+ *
+ * dump() writes the ring to a file; load() reads it back as Records,
+ * each of which replays through a tracing EBPFInterpreter.
+ *
+ * The recorder keeps each program's encoded bytes, not the program. It
+ * lets go of them once the program is detached (setFlightRecorder(null),
+ * which handles do as versions retire) or collected, and no record in
+ * the ring is from it. So it holds on to at most the attached programs
+ * plus one per record.
+ *
+ * Thread safe. A record being overwritten while dump() copies it is left
+ * out; two threads writing the same slot at once (only when the ring laps
+ * itself mid-write) can leave it torn.
+ */
+public class EBPFFlightRecorder {
+
+	public static final int MAGIC = 0x4A454246; // "JEBF"
+	public static final int FORMAT_VERSION = 1;
+
+	// Context bytes kept per record; the rest, if any, is dropped.
+	public static final int CONTEXT_BYTES = EBPFContext.DEFAULT_SIZE;
+
+	private static final Status[] STATUSES = Status.values();
+	private static final int REGISTERS = EBPFCompiledProgram.REGISTERS;
+	private static final int NO_CONTEXT = -1;
+	// Sanity limit on lengths read back.
+	private static final int MAX_BYTES = 256 * 1024 * 1024;
+
+	/**
+	 * One recorded run, as read back by load().
+	 */
+	public static class Record {
+		public final String programName;
+		public final EBPFInstruction[] instructions;
+		public final Status status;
+		// R0, if status is OK.
+		public final int value;
+		public final int finalPC;
+		public final int steps;
+		// -1 if the run wasn't timed.
+		public final long nanos;
+		// System.currentTimeMillis() when it was recorded.
+		public final long timestamp;
+		// Of the whole packet; packet is only the first bytes of it.
+		public final int packetLength;
+		public final byte[] packet;
+		// null if the run had no context.
+		public final byte[] context;
+		private final int[] mRegisters;
+		private final int mInit;
+
+		private Record(String name, EBPFInstruction[] insns, Status s, int v, int pc, int st, long n, long ts,
+				int length, byte[] p, byte[] ctx, int[] regs, int init) {
+			programName = name;
+			instructions = insns;
+			status = s;
+			value = v;
+			finalPC = pc;
+			steps = st;
+			nanos = n;
+			timestamp = ts;
+			packetLength = length;
+			packet = p;
+			context = ctx;
+			mRegisters = regs;
+			mInit = init;
+		}
+
+		/**
+		 * Whether r was initialized when the run stopped.
+		 */
+		public boolean isInitialized(EBPFInstruction.Register r) {
+			return (mInit & (1 << r.ordinal())) != 0;
+		}
+
+		public int getRegister(EBPFInstruction.Register r) {
+			return mRegisters[r.ordinal()];
+		}
+
+		/**
+		 * Whether only part of the packet was kept, in which case a replay
+		 * that reads past it fails where the real run didn't.
+		 */
+		public boolean isTruncated() {
+			return packet.length < packetLength;
+		}
+
+		/**
+		 * Runs the program again over the packet (and context, if it had
+		 * one), tracing every instruction. Shared memory and program arrays
+		 * aren't recorded, so a replay goes without them. Look at the
+		 * interpreter's getStatus() and getDiagnostics() afterwards.
+		 */
+		public EBPFInterpreter replay() {
+			EBPFContext ctx = null;
+			if (context != null) {
+				ctx = new EBPFContext(Math.max(context.length, EBPFContext.USER_FIELDS));
+				System.arraycopy(context, 0, ctx.getData(), 0, context.length);
+			}
+			EBPFInterpreter t = new EBPFInterpreter(instructions);
+			t.setTraceOnTryRun(true);
+			t.tryRun(packet, ctx);
+			return t;
+		}
+
+		@Override
+		public String toString() {
+			return programName + ": " + status + (status == Status.OK ? " " + value : "") + " at " + finalPC
+					+ " after " + steps + " steps in " + nanos + "ns, packet " + packet.length + "/" + packetLength;
+		}
+	}
+
+	private final int mCapacity;
+	private final int mSnapLength;
+	private volatile long mSlowNanos = -1;
+
+	/**
+	 * A registered program: what dump() writes for it. Weak, so it doesn't
+	 * keep the program alive.
+	 */
+	private static class Program extends WeakReference<EBPFProgram> {
+		final String name;
+		final byte[] code;
+		// Won't record again: detached, or collected.
+		boolean done;
+
+		Program(EBPFProgram p, ReferenceQueue<EBPFProgram> q) {
+			super(p, q);
+			name = p.getName() == null ? "" : p.getName();
+			code = p.getPackedProgram().encode();
+		}
+	}
+
+	// By id. All under the lock.
+	private final Map<Integer, Program> mPrograms = new LinkedHashMap<Integer, Program>();
+	private final ReferenceQueue<EBPFProgram> mCollected = new ReferenceQueue<EBPFProgram>();
+	private int mDone;
+	// Shared by all recorders, so a record a racing run files under a
+	// recorder the program just left can't pass for another program's.
+	private static final AtomicInteger sNextProgram = new AtomicInteger();
+
+	private final AtomicLong mNext = new AtomicLong();
+	// Per slot: 1 + the sequence number of the record it holds, 0 while
+	// empty or being written.
+	private final AtomicLongArray mSequences;
+	private final int[] mProgram;
+	private final int[] mStatus;
+	private final int[] mValue;
+	private final int[] mPC;
+	private final int[] mSteps;
+	private final int[] mInit;
+	private final int[] mRegisters;
+	private final long[] mNanos;
+	private final long[] mTimestamp;
+	private final int[] mPacketLength;
+	private final int[] mCaptured;
+	private final byte[] mPackets;
+	private final int[] mContextLength;
+	private final byte[] mContexts;
+
+	/**
+	 * capacity records, each keeping up to snapLength bytes of packet.
+	 */
+	public EBPFFlightRecorder(int capacity, int snapLength) {
+		if (capacity <= 0 || snapLength < 0) {
+			throw new IllegalArgumentException("Bad capacity " + capacity + " or snap length " + snapLength);
+		}
+		mCapacity = capacity;
+		mSnapLength = snapLength;
+		mSequences = new AtomicLongArray(capacity);
+		mProgram = new int[capacity];
+		mStatus = new int[capacity];
+		mValue = new int[capacity];
+		mPC = new int[capacity];
+		mSteps = new int[capacity];
+		mInit = new int[capacity];
+		mRegisters = new int[capacity * REGISTERS];
+		mNanos = new long[capacity];
+		mTimestamp = new long[capacity];
+		mPacketLength = new int[capacity];
+		mCaptured = new int[capacity];
+		mPackets = new byte[capacity * snapLength];
+		mContextLength = new int[capacity];
+		mContexts = new byte[capacity * CONTEXT_BYTES];
+	}
+
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	public int getSnapLength() {
+		return mSnapLength;
+	}
+
+	/**
+	 * Also record runs that succeed but take longer than nanos. Negative
+	 * (the default) records failures only.
+	 */
+	public void setSlowThreshold(long nanos) {
+		mSlowNanos = nanos;
+	}
+
+	public long getSlowThreshold() {
+		return mSlowNanos;
+	}
+
+	/**
+	 * Whether runs need timing.
+	 */
+	boolean isTiming() {
+		return mSlowNanos >= 0;
+	}
+
+	/**
+	 * Runs recorded since this was made, including ones since written over.
+	 */
+	public long getRecordedCount() {
+		return mNext.get();
+	}
+
+	/**
+	 * Id records from p are filed under, until it's unregistered.
+	 */
+	synchronized int register(EBPFProgram p) {
+		purge();
+		int id = sNextProgram.getAndIncrement();
+		mPrograms.put(id, new Program(p, mCollected));
+		return id;
+	}
+
+	/**
+	 * The program filed under id won't record again. Its bytes stay until
+	 * no record in the ring is from it.
+	 */
+	synchronized void unregister(int id) {
+		Program e = mPrograms.get(id);
+		if (e != null && !e.done) {
+			e.done = true;
+			e.clear();
+			mDone++;
+		}
+		purge();
+	}
+
+	/**
+	 * Programs the recorder is holding the bytes of.
+	 */
+	public synchronized int getProgramCount() {
+		return mPrograms.size();
+	}
+
+	/**
+	 * Drops programs that are done with and have nothing in the ring.
+	 */
+	private void purge() {
+		Object ref;
+		while ((ref = mCollected.poll()) != null) {
+			Program e = (Program)ref;
+			if (!e.done) {
+				e.done = true;
+				mDone++;
+			}
+		}
+		if (mDone == 0) {
+			return;
+		}
+		HashSet<Integer> used = new HashSet<Integer>();
+		int slot;
+		for (slot = 0; slot < mCapacity; slot++) {
+			if (mSequences.get(slot) != 0) {
+				used.add(mProgram[slot]);
+			}
+		}
+		mDone = 0;
+		Integer[] ids = mPrograms.keySet().toArray(new Integer[0]);
+		for (Integer id : ids) {
+			Program e = mPrograms.get(id);
+			if (!e.done) {
+				continue;
+			}
+			if (used.contains(id)) {
+				mDone++;
+			} else {
+				mPrograms.remove(id);
+			}
+		}
+	}
+
+	/**
+	 * Whether a run that ended in result after nanos (-1 if not timed)
+	 * gets recorded.
+	 */
+	boolean wants(long result, long nanos) {
+		if (EBPFProgram.statusOf(result) != Status.OK) {
+			return true;
+		}
+		long slow = mSlowNanos;
+		return slow >= 0 && nanos > slow;
+	}
+
+	/**
+	 * Records a run by program (see register). The packet is packet, or
+	 * view if that's null; frame is laid out like an EBPFCompiledProgram
+	 * frame.
+	 */
+	void record(int program, long result, long nanos, byte[] packet, EBPFPacketView view, EBPFContext ctx,
+			int[] frame) {
+		long seq = mNext.getAndIncrement();
+		int slot = (int)(seq % mCapacity);
+		mSequences.set(slot, 0);
+
+		mProgram[slot] = program;
+		mStatus[slot] = EBPFProgram.statusOf(result).ordinal();
+		mValue[slot] = EBPFProgram.valueOf(result);
+		mPC[slot] = frame[EBPFCompiledProgram.F_PC];
+		mSteps[slot] = frame[EBPFCompiledProgram.F_STEPS];
+		mInit[slot] = frame[EBPFCompiledProgram.F_INIT];
+		System.arraycopy(frame, 0, mRegisters, slot * REGISTERS, REGISTERS);
+		mNanos[slot] = nanos;
+		mTimestamp[slot] = System.currentTimeMillis();
+
+		int length = view != null ? view.length() : packet.length;
+		int captured = Math.min(length, mSnapLength);
+		mPacketLength[slot] = length;
+		mCaptured[slot] = captured;
+		if (view != null) {
+			view.copyTo(mPackets, slot * mSnapLength, captured);
+		} else {
+			System.arraycopy(packet, 0, mPackets, slot * mSnapLength, captured);
+		}
+		if (ctx == null) {
+			mContextLength[slot] = NO_CONTEXT;
+		} else {
+			int n = Math.min(ctx.size(), CONTEXT_BYTES);
+			System.arraycopy(ctx.getData(), 0, mContexts, slot * CONTEXT_BYTES, n);
+			mContextLength[slot] = n;
+		}
+
+		mSequences.set(slot, seq + 1);
+	}
+
+	/**
+	 * Writes every record in the ring to f, oldest first.
+	 *
+	 * Layout, big-endian:
+	 *
+	 *   header:  magic, FORMAT_VERSION, program count
+	 *   program: name (UTF), encoded length, EBPFPackedProgram.encode bytes
+	 *   record count, then per record:
+	 *            program, status, value, final IP, steps, init bits,
+	 *            registers, nanos, timestamp, packet length, captured
+	 *            length, packet bytes, context length (-1 for none),
+	 *            context bytes
+	 */
+	public void dump(File f) throws IOException {
+		List<Program> programs;
+		// Ids are renumbered from 0 in the file.
+		HashMap<Integer, Integer> index = new HashMap<Integer, Integer>();
+		synchronized (this) {
+			programs = new ArrayList<Program>(mPrograms.values());
+			for (Integer id : mPrograms.keySet()) {
+				index.put(id, index.size());
+			}
+		}
+		List<byte[]> records = snapshot(index);
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(programs.size());
+			for (Program p : programs) {
+				out.writeUTF(p.name);
+				out.writeInt(p.code.length);
+				out.write(p.code);
+			}
+			out.writeInt(records.size());
+			for (byte[] r : records) {
+				out.write(r);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Each record in the ring, serialized, oldest first, with program ids
+	 * mapped through index. Records from programs not in it (unregistered
+	 * while the record was being written) are left out.
+	 */
+	private List<byte[]> snapshot(Map<Integer, Integer> index) throws IOException {
+		List<byte[]> out = new ArrayList<byte[]>();
+		long next = mNext.get();
+		long seq;
+		for (seq = Math.max(0, next - mCapacity); seq < next; seq++) {
+			int slot = (int)(seq % mCapacity);
+			if (mSequences.get(slot) != seq + 1) {
+				continue;
+			}
+			Integer program = index.get(mProgram[slot]);
+			if (program == null) {
+				continue;
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream r = new DataOutputStream(bytes);
+			r.writeInt(program);
+			r.writeInt(mStatus[slot]);
+			r.writeInt(mValue[slot]);
+			r.writeInt(mPC[slot]);
+			r.writeInt(mSteps[slot]);
+			r.writeInt(mInit[slot]);
+			int i;
+			for (i = 0; i < REGISTERS; i++) {
+				r.writeInt(mRegisters[slot * REGISTERS + i]);
+			}
+			r.writeLong(mNanos[slot]);
+			r.writeLong(mTimestamp[slot]);
+			r.writeInt(mPacketLength[slot]);
+			int captured = mCaptured[slot];
+			r.writeInt(captured);
+			r.write(mPackets, slot * mSnapLength, captured);
+			int context = mContextLength[slot];
+			r.writeInt(context);
+			if (context > 0) {
+				r.write(mContexts, slot * CONTEXT_BYTES, context);
+			}
+			// Written over while we were copying: drop it.
+			if (mSequences.get(slot) == seq + 1) {
+				out.add(bytes.toByteArray());
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Reads back a file dump() wrote.
+	 */
+	public static List<Record> load(File f) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a flight recorder dump: bad magic");
+			}
+			int version = in.readInt();
+			if (version != FORMAT_VERSION) {
+				throw new IOException("Unknown flight recorder version " + version);
+			}
+			int count = in.readInt();
+			if (count < 0) {
+				throw new IOException("Bad program count " + count);
+			}
+			String[] names = new String[count];
+			EBPFInstruction[][] programs = new EBPFInstruction[count][];
+			int i;
+			for (i = 0; i < count; i++) {
+				names[i] = in.readUTF();
+				try {
+					programs[i] = EBPFPackedProgram.decode(readBytes(in, in.readInt())).toArray();
+				} catch (EBPFDecodeException e) {
+					throw new IOException("Bad program " + i + ": " + e.getMessage());
+				}
+			}
+
+			count = in.readInt();
+			if (count < 0) {
+				throw new IOException("Bad record count " + count);
+			}
+			List<Record> records = new ArrayList<Record>(Math.min(count, 1024));
+			for (i = 0; i < count; i++) {
+				int program = in.readInt();
+				if (program < 0 || program >= programs.length) {
+					throw new IOException("Record " + i + " has no program " + program);
+				}
+				int status = in.readInt();
+				if (status < 0 || status >= STATUSES.length) {
+					throw new IOException("Record " + i + " has bad status " + status);
+				}
+				int value = in.readInt();
+				int pc = in.readInt();
+				int steps = in.readInt();
+				int init = in.readInt();
+				int[] regs = new int[REGISTERS];
+				int j;
+				for (j = 0; j < REGISTERS; j++) {
+					regs[j] = in.readInt();
+				}
+				long nanos = in.readLong();
+				long timestamp = in.readLong();
+				int length = in.readInt();
+				byte[] packet = readBytes(in, in.readInt());
+				int context = in.readInt();
+				byte[] ctx = context == NO_CONTEXT ? null : readBytes(in, context);
+				records.add(new Record(names[program], programs[program], STATUSES[status], value, pc, steps,
+						nanos, timestamp, length, packet, ctx, regs, init));
+			}
+			return Collections.unmodifiableList(records);
+		} catch (EOFException e) {
+			throw new IOException("Truncated flight recorder dump");
+		} finally {
+			in.close();
+		}
+	}
+
+	private static byte[] readBytes(DataInputStream in, int n) throws IOException {
+		if (n < 0 || n > MAX_BYTES) {
+			throw new IOException("Bad length " + n);
+		}
+		byte[] b = new byte[n];
+		in.readFully(b);
+		return b;
+	}
+}
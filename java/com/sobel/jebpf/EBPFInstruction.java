@@ -76,6 +76,7 @@ public class EBPFInstruction {
 		JNE,
 		JSGT,
 		JSGE,
+		// Only the tail call helper (imm TAIL_CALL_HELPER) is, see TAIL_CALL().
 		CALL_NOT_IMPLEMENTED,
 		EXIT,
 		
@@ -102,7 +103,7 @@ public class EBPFInstruction {
 		} catch (ArrayIndexOutOfBoundsException e) {
 			throw new EBPFDecodeException("No code: " + code + "how did this slip through?");
 		}
-		if (o == InstructionCode.CALL_NOT_IMPLEMENTED || o == InstructionCode.END_NOT_IMPLEMENTED) {
+		if (o == InstructionCode.END_NOT_IMPLEMENTED) {
 			throw new EBPFDecodeException("Code " + o.toString() + " is not implemented");
 		}
 		return o;
@@ -141,20 +142,31 @@ public class EBPFInstruction {
 		ABS,
 		IND,
 		MEM,
+		LEN_NOT_IMPLEMENTED,
+		MSH_NOT_IMPLEMENTED,
+		// STX only: atomic add to memory.
+		XADD,
 	}
 	public final InstructionMode mMode;
 	private InstructionMode DecodeMode(byte c) throws EBPFDecodeException {
+		InstructionMode m;
 		try {
-			return InstructionMode.values()[c];
+			m = InstructionMode.values()[c];
 		} catch (ArrayIndexOutOfBoundsException e) {
 			throw new EBPFDecodeException("No mode: " + c);
 		}
+		if (m == InstructionMode.LEN_NOT_IMPLEMENTED || m == InstructionMode.MSH_NOT_IMPLEMENTED) {
+			throw new EBPFDecodeException("Mode " + m.toString() + " is not implemented");
+		}
+		return m;
 	}
 
 	public enum InstructionSize {
 		B,
 		H,
 		W,
+		// Registers are 32 bits, so only for XADD.
+		DW,
 	}
 	public final InstructionSize mSize;
 	private InstructionSize DecodeSize(byte c) throws EBPFDecodeException {
@@ -216,6 +228,22 @@ public class EBPFInstruction {
 	}
 	
 	public static EBPFInstruction[] decodeMany(byte[] b) throws EBPFDecodeException {
+		EBPFEvents.Listener l = EBPFEvents.listener();
+		if (l == null) {
+			return doDecodeMany(b);
+		}
+		long start = System.nanoTime();
+		try {
+			EBPFInstruction[] out = doDecodeMany(b);
+			l.onDecoded(b.length, null, System.nanoTime() - start);
+			return out;
+		} catch (EBPFDecodeException e) {
+			l.onDecoded(b.length, e.getMessage(), System.nanoTime() - start);
+			throw e;
+		}
+	}
+
+	private static EBPFInstruction[] doDecodeMany(byte[] b) throws EBPFDecodeException {
 		if (b.length % 8 != 0) {
 			throw new EBPFDecodeException("Bytes to decode not multiple of 8");
 		}
@@ -260,9 +288,13 @@ public class EBPFInstruction {
 		mSrcReg = DecodeRegister(srcReg);
 		mOff = off;
 		mImm = imm;
+
+		if (mCode == InstructionCode.CALL_NOT_IMPLEMENTED && imm != TAIL_CALL_HELPER) {
+			throw new EBPFDecodeException("Code " + mCode.toString() + " is not implemented");
+		}
 	}
 
-	private EBPFInstruction(InstructionClass cl, InstructionSource source,
+	EBPFInstruction(InstructionClass cl, InstructionSource source,
 			InstructionCode code, InstructionSize size, InstructionMode mode,
 			Register dstReg, Register srcReg, short off, int imm) {
 		mClass = cl;
@@ -332,6 +364,82 @@ public class EBPFInstruction {
 		return (byte)(((getMaybeNullOrdinal(mDstReg) & 0xF) << 4) | (getMaybeNullOrdinal(mSrcReg) & 0xF));
 	}
 
+	private static String regName(Register r) {
+		if (r == null) {
+			return "r?";
+		}
+		return r.toString().toLowerCase();
+	}
+
+	/**
+	 * Disassembly, roughly in the kernel's style:
+	 *   add r0, r1
+	 *   jeq r0, 5, +2
+	 *   ldw [12]
+	 *   ldb [r7+3]
+	 *   ldxw r2, [r1+8]
+	 *   stxh [r10-4], r2
+	 *   xadddw [r2+0], r3
+	 *   tail_call
+	 */
+	@Override
+	public String toString() {
+		switch (mClass) {
+		case ALU:
+			String op = mCode.toString().toLowerCase();
+			if (mCode == InstructionCode.NEG) {
+				return op + " " + regName(mDstReg);
+			}
+			if (mSource == InstructionSource.X) {
+				return op + " " + regName(mDstReg) + ", " + regName(mSrcReg);
+			}
+			return op + " " + regName(mDstReg) + ", " + mImm;
+		case JMP:
+			String j = mCode.toString().toLowerCase();
+			String off = (mOff < 0 ? "" : "+") + mOff;
+			if (mCode == InstructionCode.EXIT) {
+				return j;
+			}
+			if (isTailCall()) {
+				return "tail_call";
+			}
+			if (mCode == InstructionCode.JA) {
+				return j + " " + off;
+			}
+			if (mSource == InstructionSource.X) {
+				return j + " " + regName(mDstReg) + ", " + regName(mSrcReg) + ", " + off;
+			}
+			return j + " " + regName(mDstReg) + ", " + mImm + ", " + off;
+		case LD:
+			String ld = "ld" + String.valueOf(mSize).toLowerCase();
+			if (mMode == InstructionMode.ABS) {
+				return ld + " [" + mImm + "]";
+			}
+			if (mMode == InstructionMode.IND) {
+				return ld + " [" + regName(mSrcReg) + (mImm < 0 ? "" : "+") + mImm + "]";
+			}
+			return ld + " " + mMode + " " + mImm;
+		case LDX:
+			if (mMode == InstructionMode.MEM) {
+				return "ldx" + String.valueOf(mSize).toLowerCase() + " " + regName(mDstReg)
+					+ ", [" + regName(mSrcReg) + (mOff < 0 ? "" : "+") + mOff + "]";
+			}
+			return "ldx " + mMode + " " + mSize + " " + regName(mDstReg) + ", " + regName(mSrcReg) + ", " + mOff;
+		case STX:
+			String at = "[" + regName(mDstReg) + (mOff < 0 ? "" : "+") + mOff + "], " + regName(mSrcReg);
+			if (mMode == InstructionMode.MEM) {
+				return "stx" + String.valueOf(mSize).toLowerCase() + " " + at;
+			}
+			if (mMode == InstructionMode.XADD) {
+				return "xadd" + String.valueOf(mSize).toLowerCase() + " " + at;
+			}
+			return "stx " + mMode + " " + mSize + " " + at;
+		default:
+			return mClass.toString().toLowerCase() + " " + mMode + " " + mSize + " "
+				+ regName(mDstReg) + ", " + regName(mSrcReg) + ", " + mOff + ", " + mImm;
+		}
+	}
+
 	public static EBPFInstruction ALU_REG(InstructionCode code, Register dstReg, Register srcReg) {
 		return new EBPFInstruction(InstructionClass.ALU, InstructionSource.X, code, null, null, dstReg, srcReg, (short)0, 0);
 	}
@@ -360,10 +468,51 @@ public class EBPFInstruction {
 		return JMP_IMM(InstructionCode.EXIT, null, 0, (short)0);
 	}
 
+	/**
+	 * Helper number of the tail call, as in Linux (BPF_FUNC_tail_call).
+	 */
+	public static final int TAIL_CALL_HELPER = 12;
+
+	/**
+	 * Carry on in the program at index R3 of the run's EBPFProgramArray,
+	 * never to come back. If there's no such program (or no array, or the
+	 * chain is already EBPFProgramArray.MAX_TAIL_CALLS long) this falls
+	 * through instead, with R1-R5 scratched.
+	 */
+	public static EBPFInstruction TAIL_CALL() {
+		return JMP_IMM(InstructionCode.CALL_NOT_IMPLEMENTED, null, TAIL_CALL_HELPER, (short)0);
+	}
+
+	boolean isTailCall() {
+		return mClass == InstructionClass.JMP && mCode == InstructionCode.CALL_NOT_IMPLEMENTED && mImm == TAIL_CALL_HELPER;
+	}
+
 	public static EBPFInstruction LD_ABS(InstructionSize size, int imm) {
 		return new EBPFInstruction(InstructionClass.LD, null, null, size, InstructionMode.ABS, null, null, (short)0, imm);
 	}
 	public static EBPFInstruction LD_IND(InstructionSize size, Register srcReg, int imm) {
 		return new EBPFInstruction(InstructionClass.LD, null, null, size, InstructionMode.IND, null, srcReg, (short)0, imm);
 	}
+
+	/**
+	 * dstReg = *(size *)(srcReg + off), e.g. a field of the EBPFContext.
+	 */
+	public static EBPFInstruction LDX_MEM(InstructionSize size, Register dstReg, Register srcReg, short off) {
+		return new EBPFInstruction(InstructionClass.LDX, null, null, size, InstructionMode.MEM, dstReg, srcReg, off, 0);
+	}
+
+	/**
+	 * *(size *)(dstReg + off) = srcReg, to the stack or shared memory
+	 * (see EBPFMemory).
+	 */
+	public static EBPFInstruction STX_MEM(InstructionSize size, Register dstReg, Register srcReg, short off) {
+		return new EBPFInstruction(InstructionClass.STX, null, null, size, InstructionMode.MEM, dstReg, srcReg, off, 0);
+	}
+
+	/**
+	 * *(size *)(dstReg + off) += srcReg, atomically. size is W or DW.
+	 */
+	public static EBPFInstruction STX_XADD(InstructionSize size, Register dstReg, Register srcReg, short off) {
+		return new EBPFInstruction(InstructionClass.STX, null, null, size, InstructionMode.XADD, dstReg, srcReg, off, 0);
+	}
 }
@@ -1,7 +1,7 @@
 package com.sobel.jebpf;
 
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 
@@ -9,110 +9,435 @@ import com.sobel.jebpf.EBPFInstruction.InstructionCode;
 
 public class EBPFInterpreter {
 
+	/**
+	 * Why a run ended. Everything but OK is an abort.
+	 */
+	public enum Status {
+		OK("OK"),
+		NULL_REGISTER("Attempt to access null register"),
+		UNINITIALIZED_REGISTER("Attempt to read uninitialized register"),
+		READ_ONLY_REGISTER("Attempt to write to read-only register"),
+		OUT_OF_BOUNDS("Out of bounds memory access"),
+		NEGATIVE_JUMP("Negative Jump Offset"),
+		IP_OVERFLOW("Instruction Pointer Overflow"),
+		END_OF_INSTRUCTIONS("Unexpected end of instruction stream - must end with EXIT"),
+		R0_UNINITIALIZED("R0 must be initalized before exit"),
+		BAD_ALU_CODE("Bad code to ALU"),
+		BAD_JMP_CODE("Bad code to JMP"),
+		BAD_LD_MODE("Invalid Mode for LD class"),
+		BAD_LD_SIZE("Unknown LD size"),
+		UNHANDLED_CLASS("Unhandled Instruction Class"),
+		BAD_ST_MODE("Invalid Mode for STX class"),
+		BAD_ST_SIZE("Unknown ST size"),
+		MISALIGNED_ACCESS("Misaligned memory access"),
+		// Not from the program: its EBPFTenant turned the run away.
+		QUOTA_EXCEEDED("Tenant over quota");
+
+		// Generic message, for engines that don't know the specifics.
+		public final String description;
+
+		private Status(String d) {
+			description = d;
+		}
+	}
+
 	public static class EBPFProgramException extends Exception {
+		public final Status status;
 		public final List<Integer> trace;
 		public final HashMap<EBPFInstruction.Register, Integer> registers;
 		
-		public EBPFProgramException(String s, List<Integer> t, HashMap<EBPFInstruction.Register, Integer> r) {
+		public EBPFProgramException(Status st, String s, List<Integer> t, HashMap<EBPFInstruction.Register, Integer> r) {
 			super(s);
+			status = st;
 			trace = t;
 			registers = r;
 		}
 	}
 	
-	private EBPFInstruction[] mInstructions;
-	private HashMap<EBPFInstruction.Register, Integer> mRegisters;
+	/**
+	 * Stackless versions for the status-code path, where the failure is
+	 * the expected outcome and a stack walk is most of the cost.
+	 */
+	private static class StacklessProgramException extends EBPFProgramException {
+		public StacklessProgramException(Status st, String s, List<Integer> t, HashMap<EBPFInstruction.Register, Integer> r) {
+			super(st, s, t, r);
+		}
+
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+
+	/**
+	 * Only used to unwind out of step(). Carries nothing - the reason is
+	 * left in mStatus - so one shared instance does.
+	 */
+	private static class Abort extends Exception {
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+	private static final Abort ABORT = new Abort();
+	private static final EBPFInstruction.Register[] REGISTERS = EBPFInstruction.Register.values();
+
+	// Shared with the EBPFPackedProgram; never written. mCode is the
+	// program being run, which a tail call moves off mEntryCode.
+	private final long[] mEntryCode;
+	private long[] mCode;
+	private HashMap<EBPFInstruction.Register, Integer> mRegisters = new HashMap<EBPFInstruction.Register, Integer>();
 	private int mInstructionPointer;
-	private List<Integer> mTrace;
+	private List<Integer> mTrace = new ArrayList<Integer>();
+	private boolean mTracing = true;
+	private boolean mTraceOnTryRun = false;
+	private int mSteps;
 
 	private boolean mRunning = false;
-	private boolean mReady = false;
 	
-	private ByteBuffer mPacket;
+	private EBPFPacketView mPacket;
+	// Wraps byte[] packets, so they aren't copied either.
+	private final EBPFPacketView mWrapper = new EBPFPacketView(1);
+	// Backing bytes of the run's EBPFContext, null if it has none.
+	private byte[] mContext;
+	private EBPFSharedMemory[] mRegions;
+	// Only for programs that can write to it; see EBPFMemory.hasStores.
+	private int[] mStack;
+	// Where tail calls go, and how many this run has made.
+	private EBPFProgramArray mPrograms;
+	private int mTailCalls;
+
+	// Outcome of the last run
+	private Status mStatus = Status.OK;
+	private String mStatusMessage;
+	private int mReturnValue;
+	private EBPFProgramException mDiagnostics;
+
+	// Opt-in, null when not profiling.
+	private EBPFProfile mProfile;
+	// Opt-in, null when not collecting.
+	private EBPFMetrics mMetrics;
+	// For saveFrame, made on first use.
+	private int[] mSavedFrame;
 
 	public EBPFInterpreter(EBPFInstruction[] instructions) {
-		mInstructions = instructions.clone(); // Duper wasteful I think
+		this(new EBPFPackedProgram(instructions));
+	}
+
+	/**
+	 * Runs straight from program, without a copy.
+	 */
+	public EBPFInterpreter(EBPFPackedProgram program) {
+		mEntryCode = program.getPacked();
+		mCode = mEntryCode;
+		mStack = program.hasStores() ? new int[EBPFMemory.STACK_WORDS] : null;
 		reset();
 	}
+
+	/**
+	 * Count executions and branch outcomes into p on every run from now on.
+	 * Pass null to stop profiling.
+	 */
+	public void setProfile(EBPFProfile p) {
+		if (p != null && p.getInstructionCount() != mEntryCode.length) {
+			throw new IllegalArgumentException("Profile is for a different program");
+		}
+		mProfile = p;
+	}
+
+	public EBPFProfile getProfile() {
+		return mProfile;
+	}
+
+	/**
+	 * Publish run counts, verdicts, failures and latency into m.
+	 * The same EBPFMetrics can be shared by every interpreter for a program.
+	 */
+	public void setMetrics(EBPFMetrics m) {
+		mMetrics = m;
+	}
+
+	public EBPFMetrics getMetrics() {
+		return mMetrics;
+	}
+
+	/**
+	 * Whether tryRun records the full instruction trace for getDiagnostics.
+	 * Off by default; run() always traces.
+	 */
+	public void setTraceOnTryRun(boolean trace) {
+		mTraceOnTryRun = trace;
+	}
 	
 	private void reset() {
-		mRegisters = new HashMap<EBPFInstruction.Register, Integer>();
-		mTrace = new ArrayList<Integer>();
+		mRegisters.clear();
+		mTrace.clear();
+		mCode = mEntryCode;
+		mTailCalls = 0;
 		mInstructionPointer = 0;
-		mReady = true;
+		mSteps = 0;
+		mStatus = Status.OK;
+		mStatusMessage = null;
+		mDiagnostics = null;
 	}
 
-	private void abortInterpreter(String msg) throws EBPFProgramException {
-		throw new EBPFProgramException(msg, new ArrayList<Integer>(mTrace),
-				new HashMap<EBPFInstruction.Register, Integer>(mRegisters));
+	static EBPFProgramException newProgramException(Status status, String msg, List<Integer> trace,
+			HashMap<EBPFInstruction.Register, Integer> registers, boolean stackless) {
+		if (stackless) {
+			return new StacklessProgramException(status, msg, trace, registers);
+		}
+		return new EBPFProgramException(status, msg, trace, registers);
+	}
+
+	private void abortInterpreter(Status status, String msg) throws Abort {
+		mStatus = status;
+		mStatusMessage = msg;
+		throw ABORT;
 	}
 	
 	public int run(byte[] packet) throws EBPFProgramException {
-		if (!mReady || mRunning) {
-			throw new RuntimeException("Cannot run while running or not reset");
+		return run(packet, null);
+	}
+
+	/**
+	 * Run with a context: R1 starts out as EBPFContext.POINTER and LDX_MEM
+	 * through it reads ctx. With a null ctx R1 starts uninitialized.
+	 * R10 always starts as EBPFMemory.FRAME_POINTER.
+	 */
+	public int run(byte[] packet, EBPFContext ctx) throws EBPFProgramException {
+		return run(wrap(packet), ctx);
+	}
+
+	/**
+	 * Run over a packet split across several buffers, without copying it.
+	 */
+	public int run(EBPFPacketView packet, EBPFContext ctx) throws EBPFProgramException {
+		mTracing = true;
+		if (execute(packet, ctx) != Status.OK) {
+			throw new EBPFProgramException(mStatus, mStatusMessage, new ArrayList<Integer>(mTrace),
+					new HashMap<EBPFInstruction.Register, Integer>(mRegisters));
+		}
+		return mReturnValue;
+	}
+
+	/**
+	 * Same as run, but never throws for a failing program: returns the
+	 * Status instead, with R0 in getReturnValue() on OK. Nothing is
+	 * copied on failure; getDiagnostics() builds the details on request.
+	 */
+	public Status tryRun(byte[] packet) {
+		return tryRun(packet, null);
+	}
+
+	public Status tryRun(byte[] packet, EBPFContext ctx) {
+		return tryRun(wrap(packet), ctx);
+	}
+
+	public Status tryRun(EBPFPacketView packet, EBPFContext ctx) {
+		mTracing = mTraceOnTryRun;
+		return execute(packet, ctx);
+	}
+
+	private EBPFPacketView wrap(byte[] packet) {
+		if (mRunning) {
+			throw new RuntimeException("Cannot run while running");
+		}
+		mWrapper.clear();
+		return mWrapper.add(packet, 0, packet.length);
+	}
+
+	/**
+	 * Status of the last run.
+	 */
+	public Status getStatus() {
+		return mStatus;
+	}
+
+	/**
+	 * R0 from the last run, if it was OK.
+	 */
+	public int getReturnValue() {
+		return mReturnValue;
+	}
+
+	/**
+	 * Details of the last run's failure, or null if it succeeded. Valid until
+	 * the next run. The trace is only the failing IP unless the run was traced
+	 * (see setTraceOnTryRun). The exception has no stack trace.
+	 */
+	public EBPFProgramException getDiagnostics() {
+		if (mStatus == Status.OK) {
+			return null;
+		}
+		if (mDiagnostics == null) {
+			List<Integer> trace;
+			if (mTracing) {
+				trace = new ArrayList<Integer>(mTrace);
+			} else {
+				trace = new ArrayList<Integer>(1);
+				trace.add(mInstructionPointer);
+			}
+			mDiagnostics = new StacklessProgramException(mStatus, mStatusMessage, trace,
+					new HashMap<EBPFInstruction.Register, Integer>(mRegisters));
+		}
+		return mDiagnostics;
+	}
+
+	/**
+	 * Instructions executed by the last run.
+	 */
+	int getSteps() {
+		return mSteps;
+	}
+
+	/**
+	 * The last run's registers, final IP and step count, laid out like an
+	 * EBPFCompiledProgram frame. The array is reused by the next call.
+	 */
+	int[] saveFrame() {
+		if (mSavedFrame == null) {
+			mSavedFrame = new int[EBPFCompiledProgram.FRAME_SIZE];
+		}
+		int[] frame = mSavedFrame;
+		int init = 0;
+		int i;
+		for (i = 0; i < EBPFCompiledProgram.REGISTERS; i++) {
+			Integer v = mRegisters.get(REGISTERS[i]);
+			if (v != null) {
+				frame[i] = v.intValue();
+				init |= 1 << i;
+			} else {
+				frame[i] = 0;
+			}
+		}
+		frame[EBPFCompiledProgram.F_INIT] = init;
+		frame[EBPFCompiledProgram.F_PC] = mInstructionPointer;
+		frame[EBPFCompiledProgram.F_STEPS] = mSteps;
+		return frame;
+	}
+
+	private Status execute(EBPFPacketView packet, EBPFContext ctx) {
+		if (mRunning) {
+			throw new RuntimeException("Cannot run while running");
+		}
+		EBPFMetrics metrics = mMetrics;
+		long start = metrics == null ? 0 : System.nanoTime();
+
+		reset();
+		mPacket = packet;
+		mContext = ctx == null ? null : ctx.getData();
+		mRegions = ctx == null ? null : ctx.getRegions();
+		mPrograms = ctx == null ? null : ctx.getProgramArray();
+		mRegisters.put(EBPFInstruction.Register.R10, EBPFMemory.FRAME_POINTER);
+		if (ctx != null) {
+			mRegisters.put(EBPFInstruction.Register.R1, EBPFContext.POINTER);
+		}
+		if (mStack != null) {
+			Arrays.fill(mStack, 0);
+		}
+		if (mProfile != null) {
+			mProfile.countRun();
 		}
-		mPacket = ByteBuffer.wrap(packet.clone());
 
 		mRunning = true;
-		while (mRunning) {
-			step();
+		try {
+			while (mRunning) {
+				step();
+			}
+			Integer r = mRegisters.get(EBPFInstruction.Register.R0);
+			if (r == null) {
+				abortInterpreter(Status.R0_UNINITIALIZED, "R0 must be initalized before exit");
+			}
+			mReturnValue = r.intValue();
+		} catch (Abort a) {
+			// mStatus says why.
+		} finally {
+			mRunning = false;
 		}
-		Integer r = mRegisters.get(EBPFInstruction.Register.R0);
-		if (r == null) {
-			abortInterpreter("R0 must be initalized before exit");
+
+		if (metrics != null) {
+			long nanos = System.nanoTime() - start;
+			if (mStatus == Status.OK) {
+				metrics.recordSuccess(mReturnValue, mSteps, nanos);
+			} else {
+				metrics.recordFailure(mStatus, mSteps, nanos);
+			}
 		}
-		return r.intValue();
+		return mStatus;
 	}
 
-	private void step() throws EBPFProgramException {
-		mTrace.add(mInstructionPointer);
-		if (mInstructionPointer >= mInstructions.length) {
-			abortInterpreter("Unexpected end of instruction stream - must end with EXIT");
+	private void step() throws Abort {
+		mSteps++;
+		if (mTracing) {
+			mTrace.add(mInstructionPointer);
+		}
+		if (mInstructionPointer >= mCode.length) {
+			abortInterpreter(Status.END_OF_INSTRUCTIONS, "Unexpected end of instruction stream - must end with EXIT");
 		}
-		EBPFInstruction insn = mInstructions[mInstructionPointer];
+		// The profile is of the entry program only.
+		boolean profiling = mProfile != null && mCode == mEntryCode;
+		if (profiling) {
+			mProfile.countExecuted(mInstructionPointer);
+		}
+		long insn = mCode[mInstructionPointer];
+		EBPFInstruction.InstructionCode code = EBPFPackedProgram.codeOf(insn);
+		EBPFInstruction.InstructionMode mode = EBPFPackedProgram.modeOf(insn);
+		EBPFInstruction.InstructionSize size = EBPFPackedProgram.sizeOf(insn);
+		EBPFInstruction.Register dst = EBPFPackedProgram.dstOf(insn);
+		EBPFInstruction.Register src = EBPFPackedProgram.srcOf(insn);
+		short off = EBPFPackedProgram.offOf(insn);
+		int imm = EBPFPackedProgram.immOf(insn);
 		int left;
 		int right;
 		
-		switch (insn.mClass) {
+		switch (EBPFPackedProgram.classOf(insn)) {
 		case ALU:
 			// For MOV we don't need left...
-			if (insn.mCode == EBPFInstruction.InstructionCode.MOV) {
+			if (code == EBPFInstruction.InstructionCode.MOV) {
 				left = 0;
 			} else {
-				left = checkedRegisterRead(insn.mDstReg);
+				left = checkedRegisterRead(dst);
 			}
 			// For NEG we don't need right...
-			if (insn.mCode == EBPFInstruction.InstructionCode.NEG) {
+			if (code == EBPFInstruction.InstructionCode.NEG) {
 				right = 0;
 			} else {
 				right = doGetRight(insn);
 			}
-			checkedRegisterWrite(insn.mDstReg, doALUOp(insn.mCode, left, right));
+			checkedRegisterWrite(dst, doALUOp(code, left, right));
 			mInstructionPointer += 1;
 			break;
 		case JMP:
-			if (insn.mOff < 0) {
-				abortInterpreter("Negative Jump Offset");
+			if (off < 0) {
+				abortInterpreter(Status.NEGATIVE_JUMP, "Negative Jump Offset");
 			}
-			if (insn.mCode == EBPFInstruction.InstructionCode.EXIT) {
+			if (code == EBPFInstruction.InstructionCode.EXIT) {
 				mRunning = false;
 				break;
 			}
+			if (code == EBPFInstruction.InstructionCode.CALL_NOT_IMPLEMENTED && imm == EBPFInstruction.TAIL_CALL_HELPER) {
+				doTailCall();
+				break;
+			}
 
 			// JA doesn't need left and right
-			if (insn.mCode == EBPFInstruction.InstructionCode.JA) {
+			if (code == EBPFInstruction.InstructionCode.JA) {
 				left = 0;
 				right = 0;
 			} else {
-				left = checkedRegisterRead(insn.mDstReg);
+				left = checkedRegisterRead(dst);
 				right = doGetRight(insn);
 			}
-			if (doJMPCond(insn.mCode, left, right)) {
+			boolean taken = doJMPCond(code, left, right);
+			if (profiling && code != EBPFInstruction.InstructionCode.JA) {
+				mProfile.countBranch(mInstructionPointer, taken);
+			}
+			if (taken) {
 				int oldInstructionPointer = mInstructionPointer;
-				mInstructionPointer += (insn.mOff + 1);
+				mInstructionPointer += (off + 1);
 				// Check for overflow
 				if (mInstructionPointer < oldInstructionPointer) {
-					abortInterpreter("Instruction Pointer Overflow");
+					abortInterpreter(Status.IP_OVERFLOW, "Instruction Pointer Overflow");
 				}
 			} else {
 				mInstructionPointer += 1;
@@ -122,46 +447,42 @@ public class EBPFInterpreter {
 			int ldOffset = 0;
 			boolean quitOnOutOfBounds = false;
 
-			switch (insn.mMode) {
+			switch (mode) {
 			case ABS:
-				ldOffset = insn.mImm;
+				ldOffset = imm;
 				break;
 			case IND:
-				right = checkedRegisterRead(insn.mSrcReg);
-				ldOffset = insn.mImm + right;
+				right = checkedRegisterRead(src);
+				ldOffset = imm + right;
 				break;
 			default:
-				abortInterpreter("Invalid Mode for LD class: " + insn.mMode.toString());
+				abortInterpreter(Status.BAD_LD_MODE, "Invalid Mode for LD class: " + mode.toString());
 			}
 			
-			// Just try and use the byte buffer for access,
-			// Catching Index out of bounds error if we need to
-			// TODO: this isn't idiomatic java, AFAIK..
-			int value = 0;
-			try {
-				switch (insn.mSize) {
-				case B:
-					value = mPacket.get(ldOffset) & 0x000000FF;
-					break;
-				case H:
-					value = mPacket.getShort(ldOffset) & 0x0000FFFF;
-					break;
-				case W:
-					value = mPacket.getInt(ldOffset);
-					break;
-				default:
-					abortInterpreter("Unknown LD size");
-				}
-			} catch (IndexOutOfBoundsException e) {
+			int width = 0;
+			switch (size) {
+			case B:
+				width = 1;
+				break;
+			case H:
+				width = 2;
+				break;
+			case W:
+				width = 4;
+				break;
+			default:
+				abortInterpreter(Status.BAD_LD_SIZE, "Unknown LD size");
+			}
+			if (ldOffset < 0 || ldOffset > mPacket.length() - width) {
 				if (quitOnOutOfBounds) {
 					mRegisters.put(EBPFInstruction.Register.R0, 0);
 					mRunning = false;
 					break;
 				} else {
-					abortInterpreter("Out of bounds memory access");
+					abortInterpreter(Status.OUT_OF_BOUNDS, "Out of bounds memory access");
 				}
 			}
-			mRegisters.put(EBPFInstruction.Register.R0, value);
+			mRegisters.put(EBPFInstruction.Register.R0, mPacket.load(ldOffset, size.ordinal()));
 
 			// Scratch the caller saved registers
 			mRegisters.remove(EBPFInstruction.Register.R1);
@@ -174,44 +495,134 @@ public class EBPFInterpreter {
 			break;
 			
 		case LDX:
-		case ST:
+			if (mode != EBPFInstruction.InstructionMode.MEM) {
+				abortInterpreter(Status.BAD_LD_MODE, "Invalid Mode for LDX class: " + mode);
+			}
+			int address = checkedRegisterRead(src) + off;
+			checkWritable(dst);
+			checkedRegisterWrite(dst, loadMemory(address, size));
+			mInstructionPointer += 1;
+			break;
+
 		case STX:
+			if (mode != EBPFInstruction.InstructionMode.MEM && mode != EBPFInstruction.InstructionMode.XADD) {
+				abortInterpreter(Status.BAD_ST_MODE, "Invalid Mode for STX class: " + mode);
+			}
+			int target = checkedRegisterRead(dst) + off;
+			int value = checkedRegisterRead(src);
+			storeMemory(mode, target, size, value);
+			mInstructionPointer += 1;
+			break;
+
+		case ST:
 		default:
-			abortInterpreter("Unhandled Instruction Class");
+			abortInterpreter(Status.UNHANDLED_CLASS, "Unhandled Instruction Class");
 		}
 		
 	}
 		
-	private int checkedRegisterRead(EBPFInstruction.Register reg) throws EBPFProgramException {
+	private void doTailCall() throws Abort {
+		int index = checkedRegisterRead(EBPFInstruction.Register.R3);
+		EBPFProgramArray.Target target = null;
+		if (mPrograms != null && mTailCalls < EBPFProgramArray.MAX_TAIL_CALLS) {
+			target = mPrograms.target(index);
+		}
+		if (target == null) {
+			// Falls through, as if the helper had returned.
+			mRegisters.remove(EBPFInstruction.Register.R1);
+			mRegisters.remove(EBPFInstruction.Register.R2);
+			mRegisters.remove(EBPFInstruction.Register.R3);
+			mRegisters.remove(EBPFInstruction.Register.R4);
+			mRegisters.remove(EBPFInstruction.Register.R5);
+			mInstructionPointer += 1;
+			return;
+		}
+		mTailCalls++;
+		mCode = target.code;
+		if (target.hasStores && mStack == null) {
+			mStack = new int[EBPFMemory.STACK_WORDS];
+		}
+		if (mStack != null) {
+			Arrays.fill(mStack, 0);
+		}
+		// Starts over like a run: only R1 and R10.
+		mRegisters.clear();
+		mRegisters.put(EBPFInstruction.Register.R10, EBPFMemory.FRAME_POINTER);
+		mRegisters.put(EBPFInstruction.Register.R1, EBPFContext.POINTER);
+		mInstructionPointer = 0;
+	}
+
+	private int checkedRegisterRead(EBPFInstruction.Register reg) throws Abort {
 		if (reg == null) {
-			abortInterpreter("Attempt to read null register");
+			abortInterpreter(Status.NULL_REGISTER, "Attempt to read null register");
 		}
 		Integer i = mRegisters.get(reg);
 		if (i == null) {
-			abortInterpreter("Attempt to read uninitialized register");
+			abortInterpreter(Status.UNINITIALIZED_REGISTER, "Attempt to read uninitialized register");
 		}
 		return i.intValue();
 	}
 	
-	private void checkedRegisterWrite(EBPFInstruction.Register reg, int v) throws EBPFProgramException {
+	private void checkedRegisterWrite(EBPFInstruction.Register reg, int v) throws Abort {
+		checkWritable(reg);
+		mRegisters.put(reg, v);
+	}
+
+	private void checkWritable(EBPFInstruction.Register reg) throws Abort {
 		if (reg == null) {
-			abortInterpreter("Attempt to write null register");
+			abortInterpreter(Status.NULL_REGISTER, "Attempt to write null register");
 		}
 		if (reg == EBPFInstruction.Register.R10) {
-			abortInterpreter("Attempt to write to read-only register");
+			abortInterpreter(Status.READ_ONLY_REGISTER, "Attempt to write to read-only register");
+		}
+	}
+
+	private int loadMemory(int address, EBPFInstruction.InstructionSize size) throws Abort {
+		if (size == null || size == EBPFInstruction.InstructionSize.DW) {
+			abortInterpreter(Status.BAD_LD_SIZE, "Unknown LD size");
+		}
+		int width = 1 << size.ordinal();
+		int off = address - EBPFContext.POINTER;
+		if ((address >>> 24) != (EBPFContext.POINTER >>> 24)) {
+			long r = EBPFMemory.load(mRegions, mStack, 0, address, size.ordinal());
+			Status s = EBPFProgram.statusOf(r);
+			if (s != Status.OK) {
+				abortInterpreter(s, s.description);
+			}
+			return EBPFProgram.valueOf(r);
+		}
+		if (mContext == null || off > mContext.length - width) {
+			abortInterpreter(Status.OUT_OF_BOUNDS, "Out of bounds memory access");
+		}
+		return EBPFContext.read(mContext, off, size.ordinal());
+	}
+
+	private void storeMemory(EBPFInstruction.InstructionMode mode, int address, EBPFInstruction.InstructionSize size,
+			int value) throws Abort {
+		boolean xadd = mode == EBPFInstruction.InstructionMode.XADD;
+		if (size == null || (xadd ? size.ordinal() < 2 : size == EBPFInstruction.InstructionSize.DW)) {
+			abortInterpreter(Status.BAD_ST_SIZE, "Unknown ST size");
+		}
+		Status s;
+		if (xadd) {
+			s = EBPFMemory.add(mRegions, mStack, 0, address, size.ordinal(), value);
+		} else {
+			s = EBPFMemory.store(mRegions, mStack, 0, address, size.ordinal(), value);
+		}
+		if (s != null) {
+			abortInterpreter(s, s.description);
 		}
-		mRegisters.put(reg, v);
 	}
 	
-	private int doGetRight(EBPFInstruction insn) throws EBPFProgramException {
-		if (insn.mSource == EBPFInstruction.InstructionSource.K) {
-			return insn.mImm;
+	private int doGetRight(long insn) throws Abort {
+		if (EBPFPackedProgram.sourceOf(insn) == EBPFInstruction.InstructionSource.K) {
+			return EBPFPackedProgram.immOf(insn);
 		} else {
-			return checkedRegisterRead(insn.mSrcReg);
+			return checkedRegisterRead(EBPFPackedProgram.srcOf(insn));
 		}
 	}
 
-	private int doALUOp(InstructionCode mCode, int left, int right) throws EBPFProgramException {
+	private int doALUOp(InstructionCode mCode, int left, int right) throws Abort {
 		// Returns 0 rather tha divide by 0.
 		switch (mCode) {
 		case ADD: return left + right;
@@ -228,12 +639,12 @@ public class EBPFInterpreter {
 		case MOV: return right;
 		case ARSH: return left >> right;
 		default:
-			abortInterpreter("Bad code to ALU");
+			abortInterpreter(Status.BAD_ALU_CODE, "Bad code to ALU");
 			return 0; // Unreachable.
 		}
 	}
 	
-	private boolean doJMPCond(InstructionCode mCode, int left, int right) throws EBPFProgramException {
+	private boolean doJMPCond(InstructionCode mCode, int left, int right) throws Abort {
 		switch (mCode) {
 		case JA: return true;
 		case JEQ: return left == right;
@@ -244,7 +655,7 @@ public class EBPFInterpreter {
 		case JSGT: return left > right;
 		case JSGE: return left >= right;
 		default:
-			abortInterpreter("Bad code to JMP");
+			abortInterpreter(Status.BAD_JMP_CODE, "Bad code to JMP");
 			return false;
 		}
 	}
@@ -0,0 +1,345 @@
+package com.sobel.jebpf;
+
+import java.util.Arrays;
+
+import com.sobel.jebpf.EBPFInstruction.Register;
+import com.sobel.jebpf.EBPFInterpreter.Status;
+import com.sobel.jebpf.EBPFVerifier.EBPFVerifyException;
+
+/**
+ * One program over up to LANES packets at once. Each register is a row of
+ * LANES ints, one per packet, and each instruction is done for every lane
+ * at it before moving on: loads gather across the packets, ALU ops are
+ * lane-wise loops over the rows, and jumps split the lanes with a mask.
+ *
+ * Jumps only go forward, so one pass over the code in order runs every
+ * lane to its EXIT; a lane waits at an instruction until the pass gets
+ * there. An instruction no lane is at is skipped. When every lane still
+ * running is at an instruction, ALU ops are plain loops over the whole
+ * row, which the JIT can turn into SIMD; otherwise only the lanes there
+ * are touched.
+ *
+ * That only works for verified programs made of ALU ops, jumps, EXIT and
+ * packet loads (LD_ABS / LD_IND), run without a context; the kind of
+ * short header check that wants it. Anything else isn't vectorized
+ * (isVectorized()) and runs packet by packet on an EBPFCompiledProgram.
+ *
+ * Results match EBPFCompiledProgram. Immutable and thread safe, with a
+ * frame per thread (newFrame()).
+ */
+public class EBPFLaneProgram {
+
+	public static final int LANES = 16;
+	private static final int ALL = (1 << LANES) - 1;
+
+	// Frame: the register rows, then two scratch rows, then a mask per
+	// instruction of the lanes waiting there.
+	private static final int TMP = EBPFCompiledProgram.REGISTERS * LANES;
+	private static final int RES = TMP + LANES;
+	private static final int WAITING = RES + LANES;
+	private static final int FP = Register.R10.ordinal() * LANES;
+
+	private static final int STRIDE = EBPFCompiledProgram.STRIDE;
+
+	private final EBPFCompiledProgram mScalar;
+	// Null if not vectorized.
+	private final int[] mCode;
+	private final int mLength;
+
+	private EBPFLaneProgram(EBPFCompiledProgram scalar, int[] code, int length) {
+		mScalar = scalar;
+		mCode = code;
+		mLength = length;
+	}
+
+	public static EBPFLaneProgram compile(EBPFInstruction[] insns) {
+		EBPFCompiledProgram scalar = EBPFCompiledProgram.compile(insns);
+		int[] code = new int[EBPFCompiledProgram.codeLength(insns)];
+		EBPFCompiledProgram.emit(insns, code, 0);
+		return new EBPFLaneProgram(scalar, vectorizable(insns, code) ? code : null, insns.length);
+	}
+
+	private static boolean vectorizable(EBPFInstruction[] insns, int[] code) {
+		try {
+			EBPFVerifier.verify(insns);
+		} catch (EBPFVerifyException e) {
+			return false;
+		}
+		int i;
+		for (i = 0; i < insns.length; i++) {
+			int op = code[i * STRIDE];
+			if (op > EBPFCompiledProgram.LDIND_W || (op > EBPFCompiledProgram.ARSH_X && op < EBPFCompiledProgram.JA)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public boolean isVectorized() {
+		return mCode != null;
+	}
+
+	/**
+	 * What runs packets one at a time, and what non-vectorized programs
+	 * fall back to.
+	 */
+	public EBPFCompiledProgram getScalar() {
+		return mScalar;
+	}
+
+	public int getInstructionCount() {
+		return mLength;
+	}
+
+	public int[] newFrame() {
+		return new int[Math.max(WAITING + mLength + 1, mScalar.newFrame().length)];
+	}
+
+	public void tryRun(byte[][] packets, long[] results) {
+		tryRun(packets, 0, packets.length, results, newFrame());
+	}
+
+	/**
+	 * Runs the program over packets[from, from + n), results packed as
+	 * EBPFCompiledProgram.tryRun returns them into results[from, from + n).
+	 * Afterwards the frame holds nothing useful.
+	 */
+	public void tryRun(byte[][] packets, int from, int n, long[] results, int[] frame) {
+		int end = from + n;
+		int i;
+		if (mCode == null) {
+			for (i = from; i < end; i++) {
+				results[i] = mScalar.tryRun(packets[i], frame);
+			}
+			return;
+		}
+		for (i = from; i < end; i += LANES) {
+			execute(packets, i, Math.min(LANES, end - i), results, frame);
+		}
+	}
+
+	/**
+	 * Lanes 0 to n - 1 over packets[from, from + n).
+	 */
+	private void execute(byte[][] packets, int from, int n, long[] results, int[] f) {
+		final int[] code = mCode;
+		final int length = mLength;
+		Arrays.fill(f, FP, FP + LANES, EBPFMemory.FRAME_POINTER);
+		// Lanes still running.
+		int live = n == LANES ? ALL : (1 << n) - 1;
+		Arrays.fill(f, WAITING, WAITING + length + 1, 0);
+		f[WAITING] = live;
+
+		int pc;
+		for (pc = 0; pc <= length && live != 0; pc++) {
+			int m = f[WAITING + pc];
+			if (m == 0) {
+				continue;
+			}
+			f[WAITING + pc] = 0;
+			int at = pc * STRIDE;
+			int op = code[at];
+			int a = code[at + 1] * LANES;
+			int c = code[at + 3];
+			int next = m;
+
+			if (op <= EBPFCompiledProgram.ARSH_X) {
+				alu(f, op, a, c, m == live ? -1 : m);
+			} else if (op < EBPFCompiledProgram.EXIT) {
+				int taken = m;
+				if (op != EBPFCompiledProgram.JA) {
+					taken = op >= EBPFCompiledProgram.JEQ_X
+							? cond(f, op - EBPFCompiledProgram.JMP_X, a, c * LANES, m)
+							: cond(f, op, a, fill(f, c), m);
+				}
+				f[WAITING + code[at + 2]] |= taken;
+				next = m & ~taken;
+			} else if (op == EBPFCompiledProgram.EXIT) {
+				finish(f, m, Status.OK, from, results);
+				live &= ~m;
+				next = 0;
+			} else if (op != EBPFCompiledProgram.END) {
+				int bad = load(packets, from, f, op, a, c, m);
+				if (bad != 0) {
+					finish(f, bad, Status.OUT_OF_BOUNDS, from, results);
+					live &= ~bad;
+					next &= ~bad;
+				}
+			} else {
+				// Only reachable if the verifier let something fall off.
+				finish(f, m, Status.END_OF_INSTRUCTIONS, from, results);
+				live &= ~m;
+				next = 0;
+			}
+			if (next != 0) {
+				f[WAITING + pc + 1] |= next;
+			}
+		}
+	}
+
+	private static void finish(int[] f, int m, Status s, int from, long[] results) {
+		while (m != 0) {
+			int l = Integer.numberOfTrailingZeros(m);
+			m &= m - 1;
+			results[from + l] = EBPFProgram.pack(s, f[l]);
+		}
+	}
+
+	// The TMP row, all k.
+	private static int fill(int[] f, int k) {
+		Arrays.fill(f, TMP, TMP + LANES, k);
+		return TMP;
+	}
+
+	/**
+	 * dst (a row) op= the c operand, for the lanes in m, or every lane if
+	 * m is -1. Same semantics as EBPFCompiledProgram.
+	 */
+	private static void alu(int[] f, int op, int d, int c, int m) {
+		if (op == EBPFCompiledProgram.MOV_K) {
+			if (m == -1) {
+				Arrays.fill(f, d, d + LANES, c);
+				return;
+			}
+			fill(f, c);
+			blend(f, TMP, d, m);
+			return;
+		}
+		int s;
+		if (op >= EBPFCompiledProgram.ALU_X) {
+			op -= EBPFCompiledProgram.ALU_X;
+			s = c * LANES;
+		} else {
+			s = op == EBPFCompiledProgram.NEG ? d : fill(f, c);
+		}
+		// Straight into dst when every lane that matters is here, else to
+		// RES and then just the lanes in m.
+		int o = m == -1 ? d : RES;
+		int l;
+		switch (op) {
+		case EBPFCompiledProgram.MOV_K:
+			System.arraycopy(f, s, f, o, LANES);
+			break;
+		case EBPFCompiledProgram.NEG:
+			for (l = 0; l < LANES; l++) { f[o + l] = -f[d + l]; }
+			break;
+		case EBPFCompiledProgram.ADD_K:
+			for (l = 0; l < LANES; l++) { f[o + l] = f[d + l] + f[s + l]; }
+			break;
+		case EBPFCompiledProgram.SUB_K:
+			for (l = 0; l < LANES; l++) { f[o + l] = f[d + l] - f[s + l]; }
+			break;
+		case EBPFCompiledProgram.MUL_K:
+			for (l = 0; l < LANES; l++) { f[o + l] = f[d + l] * f[s + l]; }
+			break;
+		case EBPFCompiledProgram.DIV_K:
+			for (l = 0; l < LANES; l++) { f[o + l] = f[s + l] == 0 ? 0 : f[d + l] / f[s + l]; }
+			break;
+		case EBPFCompiledProgram.OR_K:
+			for (l = 0; l < LANES; l++) { f[o + l] = f[d + l] | f[s + l]; }
+			break;
+		case EBPFCompiledProgram.AND_K:
+			for (l = 0; l < LANES; l++) { f[o + l] = f[d + l] & f[s + l]; }
+			break;
+		case EBPFCompiledProgram.LSH_K:
+			for (l = 0; l < LANES; l++) { f[o + l] = f[d + l] << f[s + l]; }
+			break;
+		case EBPFCompiledProgram.RSH_K:
+			for (l = 0; l < LANES; l++) { f[o + l] = f[d + l] >>> f[s + l]; }
+			break;
+		case EBPFCompiledProgram.MOD_K:
+			for (l = 0; l < LANES; l++) { f[o + l] = f[s + l] == 0 ? 0 : f[d + l] % f[s + l]; }
+			break;
+		case EBPFCompiledProgram.XOR_K:
+			for (l = 0; l < LANES; l++) { f[o + l] = f[d + l] ^ f[s + l]; }
+			break;
+		case EBPFCompiledProgram.ARSH_K:
+			for (l = 0; l < LANES; l++) { f[o + l] = f[d + l] >> f[s + l]; }
+			break;
+		default:
+			throw new IllegalStateException("Bad ALU op " + op);
+		}
+		if (m != -1) {
+			blend(f, RES, d, m);
+		}
+	}
+
+	// Row from into row to, only the lanes in m.
+	private static void blend(int[] f, int from, int to, int m) {
+		while (m != 0) {
+			int l = Integer.numberOfTrailingZeros(m);
+			m &= m - 1;
+			f[to + l] = f[from + l];
+		}
+	}
+
+	/**
+	 * Mask of the lanes in m where row a op row b holds.
+	 */
+	private static int cond(int[] f, int op, int a, int b, int m) {
+		int t = 0;
+		int l;
+		switch (op) {
+		case EBPFCompiledProgram.JEQ_K:
+			for (l = 0; l < LANES; l++) { t |= (f[a + l] == f[b + l] ? 1 : 0) << l; }
+			break;
+		case EBPFCompiledProgram.JGT_K:
+			for (l = 0; l < LANES; l++) {
+				t |= ((f[a + l] ^ Integer.MIN_VALUE) > (f[b + l] ^ Integer.MIN_VALUE) ? 1 : 0) << l;
+			}
+			break;
+		case EBPFCompiledProgram.JGE_K:
+			for (l = 0; l < LANES; l++) {
+				t |= ((f[a + l] ^ Integer.MIN_VALUE) >= (f[b + l] ^ Integer.MIN_VALUE) ? 1 : 0) << l;
+			}
+			break;
+		case EBPFCompiledProgram.JSET_K:
+			for (l = 0; l < LANES; l++) { t |= ((f[a + l] & f[b + l]) != 0 ? 1 : 0) << l; }
+			break;
+		case EBPFCompiledProgram.JNE_K:
+			for (l = 0; l < LANES; l++) { t |= (f[a + l] != f[b + l] ? 1 : 0) << l; }
+			break;
+		case EBPFCompiledProgram.JSGT_K:
+			for (l = 0; l < LANES; l++) { t |= (f[a + l] > f[b + l] ? 1 : 0) << l; }
+			break;
+		case EBPFCompiledProgram.JSGE_K:
+			for (l = 0; l < LANES; l++) { t |= (f[a + l] >= f[b + l] ? 1 : 0) << l; }
+			break;
+		default:
+			throw new IllegalStateException("Bad JMP op " + op);
+		}
+		return t & m;
+	}
+
+	/**
+	 * Gathers into R0 for the lanes in m, returning the lanes whose load
+	 * was out of bounds.
+	 */
+	private static int load(byte[][] packets, int from, int[] f, int op, int a, int c, int m) {
+		boolean ind = op >= EBPFCompiledProgram.LDIND_B;
+		int size = op - (ind ? EBPFCompiledProgram.LDIND_B : EBPFCompiledProgram.LDABS_B);
+		int width = 1 << size;
+		int bad = 0;
+		while (m != 0) {
+			int l = Integer.numberOfTrailingZeros(m);
+			m &= m - 1;
+			byte[] packet = packets[from + l];
+			int off = ind ? c + f[a + l] : c;
+			if (off < 0 || off > packet.length - width) {
+				bad |= 1 << l;
+				continue;
+			}
+			int v;
+			if (size == 0) {
+				v = packet[off] & 0xFF;
+			} else if (size == 1) {
+				v = ((packet[off] & 0xFF) << 8) | (packet[off + 1] & 0xFF);
+			} else {
+				v = (packet[off] << 24) | ((packet[off + 1] & 0xFF) << 16)
+					| ((packet[off + 2] & 0xFF) << 8) | (packet[off + 3] & 0xFF);
+			}
+			f[l] = v;
+		}
+		return bad;
+	}
+}
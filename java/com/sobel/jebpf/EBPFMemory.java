@@ -0,0 +1,219 @@
+package com.sobel.jebpf;
+
+import com.sobel.jebpf.EBPFInstruction.InstructionClass;
+import com.sobel.jebpf.EBPFInstruction.Register;
+import com.sobel.jebpf.EBPFInterpreter.Status;
+
+/**
+ * The address space LDX and STX see. It's cut into 16MB regions by the
+ * top byte of the address:
+ *
+ *   1 << 24          the EBPFContext (R1 points here), read only
+ *   STACK            the run's stack; R10 holds FRAME_POINTER, its top
+ *   region(slot)     shared memory the host hung off the context
+ *
+ * Anything else is out of bounds. The stack starts zeroed on every run.
+ * Stack and shared memory accesses have to be aligned to their width.
+ * Everything is big-endian, like packet loads.
+ *
+ * The engines share the code for everything but context loads here, so
+ * they agree on every address.
+ */
+public class EBPFMemory {
+
+	public static final int STACK = 2 << 24;
+	public static final int STACK_SIZE = 512;
+	public static final int FRAME_POINTER = STACK + STACK_SIZE;
+	public static final int MAX_REGIONS = 8;
+
+	// The stack as ints.
+	static final int STACK_WORDS = STACK_SIZE / 4;
+
+	private static final int REGION_SHIFT = 24;
+	private static final int OFFSET_MASK = (1 << REGION_SHIFT) - 1;
+	private static final int STACK_REGION = STACK >>> REGION_SHIFT;
+	private static final int FIRST_SHARED_REGION = STACK_REGION + 1;
+
+	private EBPFMemory() {
+	}
+
+	/**
+	 * Where the shared memory in slot starts.
+	 */
+	public static int region(int slot) {
+		if (slot < 0 || slot >= MAX_REGIONS) {
+			throw new IllegalArgumentException("Bad slot " + slot);
+		}
+		return (FIRST_SHARED_REGION + slot) << REGION_SHIFT;
+	}
+
+	/**
+	 * Whether insns can write memory, and so need a stack of their own.
+	 * The stack of a program that can't is all zeros forever.
+	 */
+	static boolean hasStores(EBPFInstruction[] insns) {
+		for (EBPFInstruction insn : insns) {
+			if (insn.mClass == InstructionClass.STX) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * What R10 and the init bits start out as. Every run starts with R10
+	 * set; R1 too if there's a context.
+	 */
+	static int enter(int[] registers, boolean withContext) {
+		registers[Register.R10.ordinal()] = FRAME_POINTER;
+		int init = 1 << Register.R10.ordinal();
+		if (withContext) {
+			registers[Register.R1.ordinal()] = EBPFContext.POINTER;
+			init |= 1 << Register.R1.ordinal();
+		}
+		return init;
+	}
+
+	private static Status check(int off, int width, int limit) {
+		if (off > limit - width) {
+			return Status.OUT_OF_BOUNDS;
+		}
+		if ((off & (width - 1)) != 0) {
+			return Status.MISALIGNED_ACCESS;
+		}
+		return null;
+	}
+
+	private static EBPFSharedMemory shared(EBPFSharedMemory[] regions, int region) {
+		int slot = region - FIRST_SHARED_REGION;
+		if (regions == null || slot < 0 || slot >= regions.length) {
+			return null;
+		}
+		return regions[slot];
+	}
+
+	/**
+	 * A 1, 2 or 4 byte load (size is the InstructionSize ordinal), packed
+	 * like a run result: Status in the high word, value in the low. stack
+	 * may be null for programs without stores. Context loads aren't
+	 * handled here.
+	 */
+	static long load(EBPFSharedMemory[] regions, int[] stack, int stackAt, int addr, int size) {
+		int region = addr >>> REGION_SHIFT;
+		int off = addr & OFFSET_MASK;
+		int width = 1 << size;
+		if (region == STACK_REGION) {
+			Status s = check(off, width, STACK_SIZE);
+			if (s != null) {
+				return EBPFProgram.pack(s, 0);
+			}
+			if (stack == null) {
+				return EBPFProgram.pack(Status.OK, 0);
+			}
+			int word = stack[stackAt + (off >>> 2)];
+			return EBPFProgram.pack(Status.OK, narrow(word, off, width));
+		}
+		EBPFSharedMemory m = shared(regions, region);
+		if (m == null) {
+			return EBPFProgram.pack(Status.OUT_OF_BOUNDS, 0);
+		}
+		Status s = check(off, width, m.size());
+		if (s != null) {
+			return EBPFProgram.pack(s, 0);
+		}
+		return EBPFProgram.pack(Status.OK, narrow(m.getInt(off & ~3), off, width));
+	}
+
+	// The width bytes at off out of the (big-endian) word holding them.
+	private static int narrow(int word, int off, int width) {
+		if (width == 4) {
+			return word;
+		}
+		int shift = (4 - width - (off & 3)) * 8;
+		return (word >>> shift) & ((1 << (width * 8)) - 1);
+	}
+
+	/**
+	 * STX_MEM: a 1, 2 or 4 byte store. Null if it went OK. Context and
+	 * anything not mapped are out of bounds.
+	 */
+	static Status store(EBPFSharedMemory[] regions, int[] stack, int stackAt, int addr, int size, int v) {
+		int region = addr >>> REGION_SHIFT;
+		int off = addr & OFFSET_MASK;
+		int width = 1 << size;
+		if (region == STACK_REGION) {
+			Status s = check(off, width, STACK_SIZE);
+			if (s != null) {
+				return s;
+			}
+			int at = stackAt + (off >>> 2);
+			stack[at] = widen(stack[at], off, width, v);
+			return null;
+		}
+		EBPFSharedMemory m = shared(regions, region);
+		if (m == null) {
+			return Status.OUT_OF_BOUNDS;
+		}
+		Status s = check(off, width, m.size());
+		if (s != null) {
+			return s;
+		}
+		if (width == 4) {
+			m.setInt(off, v);
+		} else {
+			m.storeNarrow(off, width, v);
+		}
+		return null;
+	}
+
+	// word with the width bytes at off replaced by v.
+	static int widen(int word, int off, int width, int v) {
+		if (width == 4) {
+			return v;
+		}
+		int shift = (4 - width - (off & 3)) * 8;
+		int mask = ((1 << (width * 8)) - 1) << shift;
+		return (word & ~mask) | ((v << shift) & mask);
+	}
+
+	/**
+	 * STX_XADD: atomically add v to the 4 byte (size W) or 8 byte (size DW)
+	 * word at addr. v is sign extended for DW, so negative adds count down.
+	 */
+	static Status add(EBPFSharedMemory[] regions, int[] stack, int stackAt, int addr, int size, int v) {
+		int region = addr >>> REGION_SHIFT;
+		int off = addr & OFFSET_MASK;
+		int width = 1 << size;
+		if (region == STACK_REGION) {
+			Status s = check(off, width, STACK_SIZE);
+			if (s != null) {
+				return s;
+			}
+			// The stack is the run's own, nothing to be atomic against.
+			int at = stackAt + (off >>> 2);
+			if (width == 4) {
+				stack[at] += v;
+			} else {
+				long old = ((long)stack[at] << 32) | (stack[at + 1] & 0xFFFFFFFFL);
+				long sum = old + v;
+				stack[at] = (int)(sum >>> 32);
+				stack[at + 1] = (int)sum;
+			}
+			return null;
+		}
+		EBPFSharedMemory m = shared(regions, region);
+		if (m == null) {
+			return Status.OUT_OF_BOUNDS;
+		}
+		Status s = check(off, width, m.size());
+		if (s != null) {
+			return s;
+		}
+		if (width == 4) {
+			m.addInt(off, v);
+		} else {
+			m.addLong(off, v);
+		}
+		return null;
+	}
+}
@@ -0,0 +1,148 @@
+package com.sobel.jebpf;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.sobel.jebpf.EBPFInterpreter.Status;
+
+/**
+ * Per-program run metrics: runs, instructions retired, verdict
+ * distribution, failures by Status and a run latency histogram.
+ *
+ * Thread safe and cheap to update, so one instance is shared by every
+ * interpreter running the program. Interpreters without metrics attached
+ * pay a single null check per run.
+ */
+public class EBPFMetrics implements EBPFMetricsMBean {
+
+	// Verdicts 0 .. VERDICT_BUCKETS - 1 are counted individually,
+	// anything else lands in "other".
+	public static final int VERDICT_BUCKETS = 16;
+
+	private static final Status[] STATUSES = Status.values();
+
+	private static final int RUNS = 0;
+	private static final int INSTRUCTIONS = 1;
+	private static final int OTHER_VERDICT = 2;
+	private static final int VERDICTS = 3;
+	private static final int FAILURES = VERDICTS + VERDICT_BUCKETS;
+	private static final int COUNTERS = FAILURES + STATUSES.length;
+
+	private final String mProgramName;
+	private final StripedCounters mCounters = new StripedCounters(COUNTERS);
+	private final LatencyHistogram mLatency = new LatencyHistogram();
+
+	public EBPFMetrics(String programName) {
+		mProgramName = programName;
+	}
+
+	public void recordSuccess(int verdict, int instructions, long nanos) {
+		mCounters.increment(RUNS);
+		mCounters.add(INSTRUCTIONS, instructions);
+		if (verdict >= 0 && verdict < VERDICT_BUCKETS) {
+			mCounters.increment(VERDICTS + verdict);
+		} else {
+			mCounters.increment(OTHER_VERDICT);
+		}
+		mLatency.record(nanos);
+	}
+
+	public void recordFailure(Status status, int instructions, long nanos) {
+		mCounters.increment(RUNS);
+		mCounters.add(INSTRUCTIONS, instructions);
+		mCounters.increment(FAILURES + status.ordinal());
+		mLatency.record(nanos);
+	}
+
+	@Override
+	public String getProgramName() {
+		return mProgramName;
+	}
+
+	@Override
+	public long getRuns() {
+		return mCounters.sum(RUNS);
+	}
+
+	@Override
+	public long getInstructionsRetired() {
+		return mCounters.sum(INSTRUCTIONS);
+	}
+
+	public long getVerdictCount(int verdict) {
+		return mCounters.sum(VERDICTS + verdict);
+	}
+
+	@Override
+	public long[] getVerdictCounts() {
+		long[] out = new long[VERDICT_BUCKETS];
+		int i;
+		for (i = 0; i < VERDICT_BUCKETS; i++) {
+			out[i] = getVerdictCount(i);
+		}
+		return out;
+	}
+
+	@Override
+	public long getOtherVerdictCount() {
+		return mCounters.sum(OTHER_VERDICT);
+	}
+
+	public long getFailureCount(Status status) {
+		return mCounters.sum(FAILURES + status.ordinal());
+	}
+
+	@Override
+	public long getFailures() {
+		long total = 0;
+		for (Status s : STATUSES) {
+			total += getFailureCount(s);
+		}
+		return total;
+	}
+
+	/**
+	 * Non-zero failure counts, keyed by Status name.
+	 */
+	@Override
+	public Map<String, Long> getFailureCounts() {
+		Map<String, Long> out = new LinkedHashMap<String, Long>();
+		for (Status s : STATUSES) {
+			long c = getFailureCount(s);
+			if (c != 0) {
+				out.put(s.toString(), c);
+			}
+		}
+		return out;
+	}
+
+	public LatencyHistogram getLatency() {
+		return mLatency;
+	}
+
+	@Override
+	public long getLatencyP50Nanos() {
+		return mLatency.getValueAtPercentile(50);
+	}
+
+	@Override
+	public long getLatencyP99Nanos() {
+		return mLatency.getValueAtPercentile(99);
+	}
+
+	@Override
+	public long getLatencyP999Nanos() {
+		return mLatency.getValueAtPercentile(99.9);
+	}
+
+	@Override
+	public long getLatencyMaxNanos() {
+		return mLatency.getMax();
+	}
+
+	@Override
+	public void reset() {
+		mCounters.reset();
+		mLatency.reset();
+	}
+}
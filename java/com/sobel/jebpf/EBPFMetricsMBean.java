@@ -0,0 +1,23 @@
+package com.sobel.jebpf;
+
+import java.util.Map;
+
+/**
+ * Standard MBean view of EBPFMetrics. The library doesn't touch
+ * javax.management itself (it isn't on Android), but on a JVM host an
+ * EBPFMetrics can be handed straight to MBeanServer.registerMBean.
+ */
+public interface EBPFMetricsMBean {
+	public String getProgramName();
+	public long getRuns();
+	public long getFailures();
+	public long getInstructionsRetired();
+	public long[] getVerdictCounts();
+	public long getOtherVerdictCount();
+	public Map<String, Long> getFailureCounts();
+	public long getLatencyP50Nanos();
+	public long getLatencyP99Nanos();
+	public long getLatencyP999Nanos();
+	public long getLatencyMaxNanos();
+	public void reset();
+}
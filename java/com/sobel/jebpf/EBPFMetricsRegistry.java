@@ -0,0 +1,64 @@
+package com.sobel.jebpf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Metrics for every loaded program, by name.
+ *
+ * When disabled, forProgram returns null, which interpreters treat as
+ * "don't collect" - so turning metrics off costs one null check per run.
+ *
+ * To expose over JMX on a JVM host:
+ *   server.registerMBean(m, new ObjectName("com.sobel.jebpf:type=Program,name=" + m.getProgramName()));
+ */
+public class EBPFMetricsRegistry {
+
+	private final ConcurrentHashMap<String, EBPFMetrics> mMetrics =
+			new ConcurrentHashMap<String, EBPFMetrics>();
+	private volatile boolean mEnabled;
+
+	public EBPFMetricsRegistry(boolean enabled) {
+		mEnabled = enabled;
+	}
+
+	public boolean isEnabled() {
+		return mEnabled;
+	}
+
+	/**
+	 * Only affects programs looked up afterwards; interpreters already
+	 * holding an EBPFMetrics keep it.
+	 */
+	public void setEnabled(boolean enabled) {
+		mEnabled = enabled;
+	}
+
+	public EBPFMetrics forProgram(String name) {
+		if (!mEnabled) {
+			return null;
+		}
+		EBPFMetrics m = mMetrics.get(name);
+		if (m == null) {
+			EBPFMetrics fresh = new EBPFMetrics(name);
+			m = mMetrics.putIfAbsent(name, fresh);
+			if (m == null) {
+				m = fresh;
+			}
+		}
+		return m;
+	}
+
+	public EBPFMetrics get(String name) {
+		return mMetrics.get(name);
+	}
+
+	public EBPFMetrics remove(String name) {
+		return mMetrics.remove(name);
+	}
+
+	public List<EBPFMetrics> getAll() {
+		return new ArrayList<EBPFMetrics>(mMetrics.values());
+	}
+}
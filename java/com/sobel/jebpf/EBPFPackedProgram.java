@@ -0,0 +1,277 @@
+package com.sobel.jebpf;
+
+import java.nio.ByteBuffer;
+
+import com.sobel.jebpf.EBPFInstruction.EBPFDecodeException;
+import com.sobel.jebpf.EBPFInstruction.InstructionClass;
+import com.sobel.jebpf.EBPFInstruction.InstructionCode;
+import com.sobel.jebpf.EBPFInstruction.InstructionMode;
+import com.sobel.jebpf.EBPFInstruction.InstructionSize;
+import com.sobel.jebpf.EBPFInstruction.InstructionSource;
+import com.sobel.jebpf.EBPFInstruction.Register;
+
+/**
+ * A program stored as one long per instruction rather than an
+ * EBPFInstruction object each, for devices holding lots of filters:
+ * 8 bytes an instruction instead of ~50. EBPFInterpreter runs straight
+ * from it, and it's immutable, so any number of interpreters can share
+ * one.
+ *
+ * Each long is the instruction's encode() bytes read big-endian, except
+ * for what encode() can't hold: a null register is 0xF, and a null size
+ * is class NO_SIZE with the real class in the size bits. The getters
+ * pick out one field at a time from cached enum arrays, so they don't
+ * allocate.
+ */
+public final class EBPFPackedProgram {
+
+	private static final InstructionClass[] CLASSES = InstructionClass.values();
+	private static final InstructionCode[] CODES = InstructionCode.values();
+	private static final InstructionSource[] SOURCES = InstructionSource.values();
+	private static final InstructionMode[] MODES = InstructionMode.values();
+	private static final InstructionSize[] SIZES = InstructionSize.values();
+	private static final Register[] REGISTERS = Register.values();
+
+	private static final int NULL_REGISTER = 0xF;
+	// No instruction class has this value.
+	private static final int NO_SIZE = 7;
+	private static final int ALU = InstructionClass.ALU.ordinal();
+	private static final int JMP = InstructionClass.JMP.ordinal();
+	private static final int JMP_BASE = InstructionCode.JA.ordinal();
+
+	private final long[] mCode;
+
+	public EBPFPackedProgram(EBPFInstruction[] insns) {
+		mCode = new long[insns.length];
+		int i;
+		for (i = 0; i < insns.length; i++) {
+			mCode[i] = pack(insns[i]);
+		}
+	}
+
+	private EBPFPackedProgram(long[] code) {
+		mCode = code;
+	}
+
+	/**
+	 * Straight from encodeMany bytes, with the same checks as
+	 * EBPFInstruction.decodeMany.
+	 */
+	public static EBPFPackedProgram decode(byte[] b) throws EBPFDecodeException {
+		EBPFEvents.Listener l = EBPFEvents.listener();
+		if (l == null) {
+			return doDecode(b);
+		}
+		long start = System.nanoTime();
+		try {
+			EBPFPackedProgram p = doDecode(b);
+			l.onDecoded(b.length, null, System.nanoTime() - start);
+			return p;
+		} catch (EBPFDecodeException e) {
+			l.onDecoded(b.length, e.getMessage(), System.nanoTime() - start);
+			throw e;
+		}
+	}
+
+	private static EBPFPackedProgram doDecode(byte[] b) throws EBPFDecodeException {
+		if (b.length % 8 != 0) {
+			throw new EBPFDecodeException("Bytes to decode not multiple of 8");
+		}
+		long[] code = new long[b.length / 8];
+		ByteBuffer bb = ByteBuffer.wrap(b);
+		byte[] temp = new byte[8];
+		int i;
+		for (i = 0; i < code.length; i++) {
+			bb.get(temp);
+			// Decoded only for the checks; valid encodings are already packed.
+			EBPFInstruction.decode(temp);
+			code[i] = bb.getLong(i * 8);
+		}
+		return new EBPFPackedProgram(code);
+	}
+
+	static long pack(EBPFInstruction insn) {
+		int op = insn.mClass.ordinal();
+		switch (insn.mClass) {
+		case ALU:
+			op |= insn.mSource.ordinal() << 3 | insn.mCode.ordinal() << 4;
+			break;
+		case JMP:
+			op |= insn.mSource.ordinal() << 3 | (insn.mCode.ordinal() - JMP_BASE) << 4;
+			break;
+		default:
+			if (insn.mSize == null) {
+				op = NO_SIZE | op << 3;
+			} else {
+				op |= insn.mSize.ordinal() << 3;
+			}
+			op |= insn.mMode.ordinal() << 5;
+			break;
+		}
+		int dst = insn.mDstReg == null ? NULL_REGISTER : insn.mDstReg.ordinal();
+		int src = insn.mSrcReg == null ? NULL_REGISTER : insn.mSrcReg.ordinal();
+		return (long)op << 56 | (long)dst << 52 | (long)src << 48
+				| (insn.mOff & 0xFFFFL) << 32 | (insn.mImm & 0xFFFFFFFFL);
+	}
+
+	private static int op(long insn) {
+		return (int)(insn >>> 56) & 0xFF;
+	}
+
+	static InstructionClass classOf(long insn) {
+		int op = op(insn);
+		int c = op & 7;
+		return CLASSES[c == NO_SIZE ? (op >>> 3) & 3 : c];
+	}
+
+	static InstructionCode codeOf(long insn) {
+		int op = op(insn);
+		int c = op & 7;
+		if (c == ALU) {
+			return CODES[op >>> 4];
+		}
+		if (c == JMP) {
+			return CODES[JMP_BASE + (op >>> 4)];
+		}
+		return null;
+	}
+
+	static InstructionSource sourceOf(long insn) {
+		int op = op(insn);
+		int c = op & 7;
+		return c == ALU || c == JMP ? SOURCES[(op >>> 3) & 1] : null;
+	}
+
+	static InstructionSize sizeOf(long insn) {
+		int op = op(insn);
+		int c = op & 7;
+		return c == ALU || c == JMP || c == NO_SIZE ? null : SIZES[(op >>> 3) & 3];
+	}
+
+	static InstructionMode modeOf(long insn) {
+		int op = op(insn);
+		int c = op & 7;
+		return c == ALU || c == JMP ? null : MODES[op >>> 5];
+	}
+
+	private static Register register(int r) {
+		return r == NULL_REGISTER ? null : REGISTERS[r];
+	}
+
+	static Register dstOf(long insn) {
+		return register((int)(insn >>> 52) & 0xF);
+	}
+
+	static Register srcOf(long insn) {
+		return register((int)(insn >>> 48) & 0xF);
+	}
+
+	static short offOf(long insn) {
+		return (short)(insn >>> 32);
+	}
+
+	static int immOf(long insn) {
+		return (int)insn;
+	}
+
+	long[] getPacked() {
+		return mCode;
+	}
+
+	/**
+	 * See EBPFMemory.hasStores.
+	 */
+	boolean hasStores() {
+		for (long insn : mCode) {
+			if (classOf(insn) == InstructionClass.STX) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public int getInstructionCount() {
+		return mCode.length;
+	}
+
+	public InstructionClass getInstructionClass(int i) {
+		return classOf(mCode[i]);
+	}
+
+	/**
+	 * ALU and JMP only, null otherwise. Same goes for getSource.
+	 */
+	public InstructionCode getCode(int i) {
+		return codeOf(mCode[i]);
+	}
+
+	public InstructionSource getSource(int i) {
+		return sourceOf(mCode[i]);
+	}
+
+	/**
+	 * LD, LDX, ST and STX only, null otherwise. Same goes for getMode.
+	 */
+	public InstructionSize getSize(int i) {
+		return sizeOf(mCode[i]);
+	}
+
+	public InstructionMode getMode(int i) {
+		return modeOf(mCode[i]);
+	}
+
+	public Register getDstReg(int i) {
+		return dstOf(mCode[i]);
+	}
+
+	public Register getSrcReg(int i) {
+		return srcOf(mCode[i]);
+	}
+
+	public short getOff(int i) {
+		return offOf(mCode[i]);
+	}
+
+	public int getImm(int i) {
+		return immOf(mCode[i]);
+	}
+
+	/**
+	 * Instruction i as an object. Allocates; for tools, not hot paths.
+	 */
+	public EBPFInstruction get(int i) {
+		long insn = mCode[i];
+		return new EBPFInstruction(classOf(insn), sourceOf(insn), codeOf(insn), sizeOf(insn), modeOf(insn),
+				dstOf(insn), srcOf(insn), offOf(insn), immOf(insn));
+	}
+
+	public EBPFInstruction[] toArray() {
+		EBPFInstruction[] out = new EBPFInstruction[mCode.length];
+		int i;
+		for (i = 0; i < out.length; i++) {
+			out[i] = get(i);
+		}
+		return out;
+	}
+
+	/**
+	 * Same bytes as EBPFInstruction.encodeMany(toArray()).
+	 */
+	public byte[] encode() {
+		ByteBuffer o = ByteBuffer.allocate(mCode.length * 8);
+		for (long insn : mCode) {
+			int op = op(insn);
+			if ((op & 7) == NO_SIZE) {
+				// encode() writes a null size as B.
+				op = (op >>> 3) & 3 | (op & 0xE0);
+			}
+			int dst = (int)(insn >>> 52) & 0xF;
+			int src = (int)(insn >>> 48) & 0xF;
+			o.put((byte)op);
+			o.put((byte)((dst == NULL_REGISTER ? 0 : dst) << 4 | (src == NULL_REGISTER ? 0 : src)));
+			o.putShort(offOf(insn));
+			o.putInt(immOf(insn));
+		}
+		return o.array();
+	}
+}
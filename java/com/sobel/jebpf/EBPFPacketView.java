@@ -0,0 +1,212 @@
+package com.sobel.jebpf;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A packet made of several buffer slices (say a header buffer and some
+ * payload fragments from a pool), read in place instead of coalesced
+ * into one array first.
+ *
+ * Loads that fall inside the first segment, which is most of them since
+ * filters mostly look at headers, are a plain array read. Loads past it
+ * walk the segments, including loads that straddle two.
+ *
+ * Segments can also be ByteBuffers (a slice of a mapped file, say).
+ * Heap buffers are read through their array; direct ones always take the
+ * slow path.
+ *
+ * Reusable: clear() and add() the next packet's segments. Nothing is
+ * copied, so don't touch the buffers while a program is reading them.
+ */
+public class EBPFPacketView {
+
+	private static final byte[] EMPTY = new byte[0];
+
+	private byte[][] mArrays;
+	// Set instead of mArrays[i] for direct buffer segments.
+	private ByteBuffer[] mBuffers;
+	private int[] mOffsets;
+	private int[] mLengths;
+	private int mCount;
+	private int mLength;
+
+	// First segment, pulled out for the fast path.
+	byte[] mFirst;
+	int mFirstOffset;
+	int mFirstLength;
+
+	public EBPFPacketView() {
+		this(4);
+	}
+
+	/**
+	 * segments is just a sizing hint.
+	 */
+	public EBPFPacketView(int segments) {
+		int n = Math.max(segments, 1);
+		mArrays = new byte[n][];
+		mBuffers = new ByteBuffer[n];
+		mOffsets = new int[n];
+		mLengths = new int[n];
+		clear();
+	}
+
+	public static EBPFPacketView of(byte[]... segments) {
+		EBPFPacketView v = new EBPFPacketView(segments.length);
+		for (byte[] s : segments) {
+			v.add(s, 0, s.length);
+		}
+		return v;
+	}
+
+	public void clear() {
+		int i;
+		for (i = 0; i < mCount; i++) {
+			mArrays[i] = null;
+			mBuffers[i] = null;
+		}
+		mCount = 0;
+		mLength = 0;
+		mFirst = EMPTY;
+		mFirstOffset = 0;
+		mFirstLength = 0;
+	}
+
+	/**
+	 * Appends len bytes of buf starting at off.
+	 */
+	public EBPFPacketView add(byte[] buf, int off, int len) {
+		if (off < 0 || len < 0 || off > buf.length - len) {
+			throw new IndexOutOfBoundsException("Bad segment " + off + "+" + len + " of " + buf.length);
+		}
+		if (mCount == mArrays.length) {
+			grow();
+		}
+		mArrays[mCount] = buf;
+		mOffsets[mCount] = off;
+		mLengths[mCount] = len;
+		if (mCount == 0) {
+			mFirst = buf;
+			mFirstOffset = off;
+			mFirstLength = len;
+		}
+		mCount++;
+		mLength += len;
+		return this;
+	}
+
+	/**
+	 * Appends len bytes of buf starting at absolute index off, which have
+	 * to be below its limit. buf's position and byte order don't matter.
+	 */
+	public EBPFPacketView add(ByteBuffer buf, int off, int len) {
+		if (off < 0 || len < 0 || off > buf.limit() - len) {
+			throw new IndexOutOfBoundsException("Bad segment " + off + "+" + len + " of " + buf.limit());
+		}
+		if (buf.hasArray()) {
+			return add(buf.array(), buf.arrayOffset() + off, len);
+		}
+		if (mCount == mArrays.length) {
+			grow();
+		}
+		mBuffers[mCount] = buf;
+		mOffsets[mCount] = off;
+		mLengths[mCount] = len;
+		// No fast path: mFirst stays empty if this is the first segment.
+		mCount++;
+		mLength += len;
+		return this;
+	}
+
+	private void grow() {
+		int n = mArrays.length * 2;
+		byte[][] arrays = new byte[n][];
+		ByteBuffer[] buffers = new ByteBuffer[n];
+		int[] offsets = new int[n];
+		int[] lengths = new int[n];
+		System.arraycopy(mArrays, 0, arrays, 0, mCount);
+		System.arraycopy(mBuffers, 0, buffers, 0, mCount);
+		System.arraycopy(mOffsets, 0, offsets, 0, mCount);
+		System.arraycopy(mLengths, 0, lengths, 0, mCount);
+		mArrays = arrays;
+		mBuffers = buffers;
+		mOffsets = offsets;
+		mLengths = lengths;
+	}
+
+	/**
+	 * Total bytes over all segments.
+	 */
+	public int length() {
+		return mLength;
+	}
+
+	public int getSegmentCount() {
+		return mCount;
+	}
+
+	/**
+	 * Big-endian load of 1 << size bytes at off, like LD_ABS. The caller
+	 * checks off is within length().
+	 */
+	int load(int off, int size) {
+		if (off <= mFirstLength - (1 << size)) {
+			return EBPFContext.read(mFirst, mFirstOffset + off, size);
+		}
+		return loadSlow(off, size);
+	}
+
+	int loadSlow(int off, int size) {
+		int seg = 0;
+		int pos = off;
+		int v = 0;
+		int i;
+		for (i = 0; i < (1 << size); i++) {
+			// Also steps over empty segments.
+			while (pos >= mLengths[seg]) {
+				pos -= mLengths[seg];
+				seg++;
+			}
+			v = (v << 8) | (byteAt(seg, pos) & 0xFF);
+			pos++;
+		}
+		return v;
+	}
+
+	private byte byteAt(int seg, int pos) {
+		ByteBuffer b = mBuffers[seg];
+		if (b != null) {
+			return b.get(mOffsets[seg] + pos);
+		}
+		return mArrays[seg][mOffsets[seg] + pos];
+	}
+
+	/**
+	 * Copies the whole packet out. For debugging; runs never need this.
+	 */
+	public byte[] toByteArray() {
+		byte[] out = new byte[mLength];
+		copyTo(out, 0, mLength);
+		return out;
+	}
+
+	/**
+	 * Copies the first n bytes (n at most length()) to out at off.
+	 */
+	void copyTo(byte[] out, int off, int n) {
+		int at = 0;
+		int i;
+		for (i = 0; i < mCount && at < n; i++) {
+			int len = Math.min(mLengths[i], n - at);
+			if (mBuffers[i] != null) {
+				int j;
+				for (j = 0; j < len; j++) {
+					out[off + at + j] = byteAt(i, j);
+				}
+			} else {
+				System.arraycopy(mArrays[i], mOffsets[i], out, off + at, len);
+			}
+			at += len;
+		}
+	}
+}
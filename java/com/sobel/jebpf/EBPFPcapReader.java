@@ -0,0 +1,406 @@
+package com.sobel.jebpf;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Walks the records of a pcap or pcapng file through a memory map,
+ * without copying packet data: Record.addTo() hands an EBPFPacketView a
+ * slice of the mapping.
+ *
+ * Files over 2GB are mapped a window at a time (DEFAULT_WINDOW), moving
+ * the window along when a record runs off the end of it. A truncated last
+ * record ends the file quietly, the way capture tools do; a record header
+ * that makes no sense is an IOException.
+ *
+ * pcapng: section headers (either byte order), interface descriptions
+ * (link type and if_tsresol), enhanced and simple packet blocks. Other
+ * blocks are skipped.
+ *
+ * Not thread safe; see fork() for reading in parallel.
+ */
+public class EBPFPcapReader implements Closeable {
+
+	public enum Format {
+		PCAP,
+		PCAPNG,
+	}
+
+	public static final long DEFAULT_WINDOW = 1L << 30;
+
+	private static final int PCAP_MAGIC_MICROS = 0xA1B2C3D4;
+	private static final int PCAP_MAGIC_NANOS = 0xA1B23C4D;
+	private static final int PCAP_HEADER = 24;
+	private static final int PCAP_RECORD_HEADER = 16;
+
+	private static final int NG_SECTION_HEADER = 0x0A0D0D0A;
+	private static final int NG_BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+	private static final int NG_INTERFACE = 1;
+	private static final int NG_SIMPLE_PACKET = 3;
+	private static final int NG_ENHANCED_PACKET = 6;
+	private static final int NG_OPTION_TSRESOL = 9;
+
+	// Sanity limit on a single record.
+	private static final int MAX_RECORD = 256 * 1024 * 1024;
+
+	/**
+	 * Where a record is. Filled in by next(); reuse one per reader.
+	 */
+	public static class Record {
+		// File offset of the record (its header, or pcapng block).
+		public long offset;
+		public long timestampNanos;
+		public int capturedLength;
+		public int originalLength;
+		public int linkType;
+
+		ByteBuffer mBuffer;
+		int mDataIndex;
+
+		/**
+		 * Appends this record's packet bytes to v, in place. Only valid
+		 * until the reader's next call to next().
+		 */
+		public void addTo(EBPFPacketView v) {
+			v.add(mBuffer, mDataIndex, capturedLength);
+		}
+
+		/**
+		 * Copies the packet bytes out.
+		 */
+		public byte[] getData() {
+			byte[] out = new byte[capturedLength];
+			int i;
+			for (i = 0; i < out.length; i++) {
+				out[i] = mBuffer.get(mDataIndex + i);
+			}
+			return out;
+		}
+	}
+
+	/**
+	 * What records need to be understood: byte order and interfaces.
+	 * pcap files have one, pcapng files one per section.
+	 */
+	static class Section {
+		final ByteOrder order;
+		// Per interface; pcap has just the one.
+		final ArrayList<Integer> linkTypes = new ArrayList<Integer>();
+		// Timestamp units per second, per interface.
+		final ArrayList<Long> tsUnits = new ArrayList<Long>();
+
+		Section(ByteOrder o) {
+			order = o;
+		}
+
+		Section copy() {
+			Section s = new Section(order);
+			s.linkTypes.addAll(linkTypes);
+			s.tsUnits.addAll(tsUnits);
+			return s;
+		}
+	}
+
+	private final File mFile;
+	private final FileInputStream mStream;
+	private final FileChannel mChannel;
+	private final long mSize;
+	private final long mWindow;
+	private final Format mFormat;
+
+	private MappedByteBuffer mMap;
+	private long mMapStart;
+	private Section mSection;
+	private long mPosition;
+	private long mDataStart;
+
+	public EBPFPcapReader(File f) throws IOException {
+		this(f, DEFAULT_WINDOW);
+	}
+
+	EBPFPcapReader(File f, long window) throws IOException {
+		mFile = f;
+		mWindow = window;
+		mStream = new FileInputStream(f);
+		mChannel = mStream.getChannel();
+		mSize = mChannel.size();
+		try {
+			if (!ensure(0, 4)) {
+				throw new IOException("Not a pcap file: too short");
+			}
+			int magic = mMap.order(ByteOrder.BIG_ENDIAN).getInt(0);
+			if (magic == NG_SECTION_HEADER) {
+				mFormat = Format.PCAPNG;
+				mPosition = 0;
+			} else {
+				mFormat = Format.PCAP;
+				readPcapHeader();
+				mPosition = PCAP_HEADER;
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		mDataStart = mPosition;
+	}
+
+	/**
+	 * Another reader over the same file, positioned at offset (a record
+	 * boundary) as if it had read everything before it. For splitting a
+	 * file between threads. section must not be shared with another reader.
+	 */
+	EBPFPcapReader fork(long offset, Section section) throws IOException {
+		EBPFPcapReader r = new EBPFPcapReader(mFile, mWindow);
+		r.mPosition = offset;
+		if (section != null) {
+			r.mSection = section;
+		}
+		return r;
+	}
+
+	Section getSection() {
+		return mSection;
+	}
+
+	private void readPcapHeader() throws IOException {
+		if (!ensure(0, PCAP_HEADER)) {
+			throw new IOException("Truncated pcap header");
+		}
+		long nanosPerTick;
+		ByteOrder order = null;
+		for (ByteOrder o : new ByteOrder[] {ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+			int magic = mMap.order(o).getInt(0);
+			if (magic == PCAP_MAGIC_MICROS || magic == PCAP_MAGIC_NANOS) {
+				order = o;
+			}
+		}
+		if (order == null) {
+			throw new IOException("Not a pcap file: bad magic");
+		}
+		mSection = new Section(order);
+		mMap.order(order);
+		nanosPerTick = mMap.getInt(0) == PCAP_MAGIC_NANOS ? 1 : 1000;
+		mSection.linkTypes.add(mMap.getInt(20));
+		mSection.tsUnits.add(1000000000L / nanosPerTick);
+	}
+
+	public Format getFormat() {
+		return mFormat;
+	}
+
+	/**
+	 * Link type of the first interface, -1 if none seen yet.
+	 */
+	public int getLinkType() {
+		if (mSection == null || mSection.linkTypes.isEmpty()) {
+			return -1;
+		}
+		return mSection.linkTypes.get(0);
+	}
+
+	public long getSize() {
+		return mSize;
+	}
+
+	/**
+	 * Offset of the next record.
+	 */
+	public long getPosition() {
+		return mPosition;
+	}
+
+	/**
+	 * Offset of the first record.
+	 */
+	public long getDataStart() {
+		return mDataStart;
+	}
+
+	/**
+	 * Make [pos, pos + len) addressable in mMap. False if the file ends first.
+	 */
+	private boolean ensure(long pos, int len) throws IOException {
+		if (pos + len > mSize) {
+			return false;
+		}
+		if (mMap != null && pos >= mMapStart && pos + len <= mMapStart + mMap.limit()) {
+			return true;
+		}
+		long size = Math.min(Math.max(mWindow, len), mSize - pos);
+		ByteOrder order = mMap == null ? ByteOrder.BIG_ENDIAN : mMap.order();
+		mMap = mChannel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+		mMap.order(order);
+		mMapStart = pos;
+		return true;
+	}
+
+	private int index(long pos) {
+		return (int)(pos - mMapStart);
+	}
+
+	/**
+	 * Reads the next packet record into r. False at the end of the file.
+	 */
+	public boolean next(Record r) throws IOException {
+		if (mFormat == Format.PCAP) {
+			return nextPcap(r);
+		}
+		return nextPcapng(r);
+	}
+
+	private boolean nextPcap(Record r) throws IOException {
+		long pos = mPosition;
+		if (!ensure(pos, PCAP_RECORD_HEADER)) {
+			return false;
+		}
+		int at = index(pos);
+		long seconds = mMap.getInt(at) & 0xFFFFFFFFL;
+		long fraction = mMap.getInt(at + 4) & 0xFFFFFFFFL;
+		int captured = mMap.getInt(at + 8);
+		int original = mMap.getInt(at + 12);
+		if (captured < 0 || captured > MAX_RECORD) {
+			throw new IOException("Bad record length " + captured + " at " + pos);
+		}
+		if (!ensure(pos, PCAP_RECORD_HEADER + captured)) {
+			return false;
+		}
+		long units = mSection.tsUnits.get(0);
+		r.offset = pos;
+		r.timestampNanos = seconds * 1000000000L + fraction * (1000000000L / units);
+		r.capturedLength = captured;
+		r.originalLength = original;
+		r.linkType = mSection.linkTypes.get(0);
+		r.mBuffer = mMap;
+		r.mDataIndex = index(pos) + PCAP_RECORD_HEADER;
+		mPosition = pos + PCAP_RECORD_HEADER + captured;
+		return true;
+	}
+
+	private boolean nextPcapng(Record r) throws IOException {
+		for (;;) {
+			long pos = mPosition;
+			if (!ensure(pos, 12)) {
+				return false;
+			}
+			int at = index(pos);
+			int type = mMap.order(ByteOrder.BIG_ENDIAN).getInt(at);
+			if (type == NG_SECTION_HEADER) {
+				// Byte order comes from the magic that follows.
+				int magic = mMap.getInt(at + 8);
+				ByteOrder order;
+				if (magic == NG_BYTE_ORDER_MAGIC) {
+					order = ByteOrder.BIG_ENDIAN;
+				} else if (Integer.reverseBytes(magic) == NG_BYTE_ORDER_MAGIC) {
+					order = ByteOrder.LITTLE_ENDIAN;
+				} else {
+					throw new IOException("Bad pcapng byte order magic at " + pos);
+				}
+				mSection = new Section(order);
+			} else if (mSection == null) {
+				throw new IOException("pcapng block before any section header at " + pos);
+			}
+			mMap.order(mSection.order);
+			type = mMap.getInt(at);
+			int length = mMap.getInt(at + 4);
+			if (length < 12 || length % 4 != 0 || length > MAX_RECORD) {
+				throw new IOException("Bad block length " + length + " at " + pos);
+			}
+			if (!ensure(pos, length)) {
+				return false;
+			}
+			at = index(pos);
+			mPosition = pos + length;
+
+			if (type == NG_INTERFACE) {
+				readInterface(at, length);
+			} else if (type == NG_ENHANCED_PACKET) {
+				int iface = mMap.getInt(at + 8);
+				if (iface < 0 || iface >= mSection.linkTypes.size()) {
+					throw new IOException("Unknown interface " + iface + " at " + pos);
+				}
+				long ts = ((mMap.getInt(at + 12) & 0xFFFFFFFFL) << 32) | (mMap.getInt(at + 16) & 0xFFFFFFFFL);
+				int captured = mMap.getInt(at + 20);
+				if (captured < 0 || captured > length - 32) {
+					throw new IOException("Bad captured length " + captured + " at " + pos);
+				}
+				r.offset = pos;
+				r.timestampNanos = toNanos(ts, mSection.tsUnits.get(iface));
+				r.capturedLength = captured;
+				r.originalLength = mMap.getInt(at + 24);
+				r.linkType = mSection.linkTypes.get(iface);
+				r.mBuffer = mMap;
+				r.mDataIndex = at + 28;
+				return true;
+			} else if (type == NG_SIMPLE_PACKET) {
+				if (mSection.linkTypes.isEmpty()) {
+					throw new IOException("Simple packet block without an interface at " + pos);
+				}
+				int original = mMap.getInt(at + 8);
+				r.offset = pos;
+				r.timestampNanos = 0;
+				r.capturedLength = Math.min(original, length - 16);
+				r.originalLength = original;
+				r.linkType = mSection.linkTypes.get(0);
+				r.mBuffer = mMap;
+				r.mDataIndex = at + 12;
+				return true;
+			}
+			// Anything else: skip.
+		}
+	}
+
+	private void readInterface(int at, int length) {
+		mSection.linkTypes.add(mMap.getShort(at + 8) & 0xFFFF);
+		long units = 1000000;
+		// Options start after linktype, reserved and snaplen.
+		int opt = at + 16;
+		int end = at + length - 4;
+		while (opt + 4 <= end) {
+			int code = mMap.getShort(opt) & 0xFFFF;
+			int len = mMap.getShort(opt + 2) & 0xFFFF;
+			if (code == 0) {
+				break;
+			}
+			if (code == NG_OPTION_TSRESOL && len >= 1) {
+				int v = mMap.get(opt + 4) & 0xFF;
+				int exp = v & 0x7F;
+				if ((v & 0x80) != 0) {
+					units = exp < 63 ? 1L << exp : Long.MAX_VALUE;
+				} else {
+					units = 1;
+					int i;
+					for (i = 0; i < exp && units < Long.MAX_VALUE / 10; i++) {
+						units *= 10;
+					}
+				}
+			}
+			opt += 4 + ((len + 3) & ~3);
+		}
+		mSection.tsUnits.add(units);
+	}
+
+	private static long toNanos(long ts, long units) {
+		if (units == 1000000000L) {
+			return ts;
+		}
+		if (units < 1000000000L && 1000000000L % units == 0) {
+			return ts * (1000000000L / units);
+		}
+		long seconds = ts / units;
+		long rest = ts % units;
+		return seconds * 1000000000L + (long)(rest * (1e9 / units));
+	}
+
+	@Override
+	public void close() throws IOException {
+		mMap = null;
+		mStream.close();
+	}
+}
@@ -0,0 +1,267 @@
+package com.sobel.jebpf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.sobel.jebpf.EBPFInterpreter.Status;
+import com.sobel.jebpf.EBPFPcapReader.Record;
+import com.sobel.jebpf.EBPFPcapReader.Section;
+
+/**
+ * Replays a capture file through a loaded program, for going over an
+ * incident with the same filters production runs.
+ *
+ * Packets go straight from the file mapping into the program (see
+ * EBPFPcapReader). With more than one thread, a first pass over just the
+ * record headers cuts the file into chunks, and the chunks are run in
+ * parallel; results come out the same either way.
+ */
+public class EBPFPcapReplay {
+
+	// Records per chunk when running in parallel.
+	static final int CHUNK_RECORDS = 64 * 1024;
+
+	/**
+	 * What a replay saw. A packet is accepted when the program finishes OK
+	 * with a nonzero R0.
+	 */
+	public static class Result {
+		private long mPackets;
+		private long mAccepted;
+		private long mFailed;
+		private final HashMap<Integer, Long> mVerdicts = new HashMap<Integer, Long>();
+		private final EnumMap<Status, Long> mFailures = new EnumMap<Status, Long>(Status.class);
+		// Null unless asked for.
+		private long[] mMatches;
+		private int mMatchCount;
+
+		Result(boolean keepMatches) {
+			mMatches = keepMatches ? new long[64] : null;
+		}
+
+		void record(long offset, long r) {
+			mPackets++;
+			Status s = EBPFProgram.statusOf(r);
+			if (s != Status.OK) {
+				mFailed++;
+				Long n = mFailures.get(s);
+				mFailures.put(s, n == null ? 1 : n + 1);
+				return;
+			}
+			int verdict = EBPFProgram.valueOf(r);
+			Long n = mVerdicts.get(verdict);
+			mVerdicts.put(verdict, n == null ? 1 : n + 1);
+			if (verdict != 0) {
+				mAccepted++;
+				if (mMatches != null) {
+					addMatch(offset);
+				}
+			}
+		}
+
+		private void addMatch(long offset) {
+			if (mMatchCount == mMatches.length) {
+				long[] bigger = new long[mMatches.length * 2];
+				System.arraycopy(mMatches, 0, bigger, 0, mMatchCount);
+				mMatches = bigger;
+			}
+			mMatches[mMatchCount++] = offset;
+		}
+
+		/**
+		 * Adds other, which covers the records after this one's.
+		 */
+		void append(Result other) {
+			mPackets += other.mPackets;
+			mAccepted += other.mAccepted;
+			mFailed += other.mFailed;
+			for (Map.Entry<Integer, Long> e : other.mVerdicts.entrySet()) {
+				Long n = mVerdicts.get(e.getKey());
+				mVerdicts.put(e.getKey(), n == null ? e.getValue() : n + e.getValue());
+			}
+			for (Map.Entry<Status, Long> e : other.mFailures.entrySet()) {
+				Long n = mFailures.get(e.getKey());
+				mFailures.put(e.getKey(), n == null ? e.getValue() : n + e.getValue());
+			}
+			if (mMatches != null) {
+				int i;
+				for (i = 0; i < other.mMatchCount; i++) {
+					addMatch(other.mMatches[i]);
+				}
+			}
+		}
+
+		public long getPackets() {
+			return mPackets;
+		}
+
+		public long getAccepted() {
+			return mAccepted;
+		}
+
+		public long getFailed() {
+			return mFailed;
+		}
+
+		/**
+		 * Verdict (R0) to count, for packets the program finished on.
+		 */
+		public Map<Integer, Long> getVerdictCounts() {
+			return Collections.unmodifiableMap(mVerdicts);
+		}
+
+		public Map<Status, Long> getFailureCounts() {
+			return Collections.unmodifiableMap(mFailures);
+		}
+
+		/**
+		 * File offsets of accepted records, in file order. Null if matches
+		 * weren't kept.
+		 */
+		public long[] getMatchOffsets() {
+			if (mMatches == null) {
+				return null;
+			}
+			long[] out = new long[mMatchCount];
+			System.arraycopy(mMatches, 0, out, 0, mMatchCount);
+			return out;
+		}
+
+		/**
+		 * One "verdict count" line per verdict, then one "status count"
+		 * line per failure.
+		 */
+		public void writeCounts(Writer w) throws IOException {
+			for (Map.Entry<Integer, Long> e : new TreeMap<Integer, Long>(mVerdicts).entrySet()) {
+				w.write(e.getKey() + " " + e.getValue() + "\n");
+			}
+			for (Map.Entry<Status, Long> e : mFailures.entrySet()) {
+				w.write(e.getKey() + " " + e.getValue() + "\n");
+			}
+		}
+
+		/**
+		 * One accepted record offset per line.
+		 */
+		public void writeMatches(Writer w) throws IOException {
+			int i;
+			for (i = 0; i < mMatchCount; i++) {
+				w.write(Long.toString(mMatches[i]));
+				w.write('\n');
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "packets: " + mPackets + " accepted: " + mAccepted + " failed: " + mFailed;
+		}
+	}
+
+	private EBPFPcapReplay() {
+	}
+
+	/**
+	 * Runs every packet in f through program, on threads threads.
+	 * keepMatches: also collect the offsets of accepted records.
+	 */
+	public static Result replay(File f, EBPFProgram program, int threads, boolean keepMatches) throws IOException {
+		return replay(f, EBPFPcapReader.DEFAULT_WINDOW, program, threads, keepMatches);
+	}
+
+	static Result replay(File f, long window, final EBPFProgram program, int threads, final boolean keepMatches)
+			throws IOException {
+		EBPFPcapReader reader = new EBPFPcapReader(f, window);
+		try {
+			if (threads <= 1) {
+				return run(reader, Long.MAX_VALUE, program, keepMatches);
+			}
+
+			// Cut at record boundaries, noting the section each chunk starts in.
+			final List<Long> starts = new ArrayList<Long>();
+			final List<Section> sections = new ArrayList<Section>();
+			Record r = new Record();
+			long n = 0;
+			long at = reader.getPosition();
+			while (reader.next(r)) {
+				if (n++ % CHUNK_RECORDS == 0) {
+					starts.add(r.offset);
+					sections.add(reader.getSection().copy());
+				}
+				at = reader.getPosition();
+			}
+			starts.add(at);
+
+			List<Callable<Result>> chunks = new ArrayList<Callable<Result>>();
+			final EBPFPcapReader parent = reader;
+			int i;
+			for (i = 0; i + 1 < starts.size(); i++) {
+				final long start = starts.get(i);
+				final long end = starts.get(i + 1);
+				final Section section = sections.get(i);
+				chunks.add(new Callable<Result>() {
+					@Override
+					public Result call() throws IOException {
+						EBPFPcapReader chunk = parent.fork(start, section);
+						try {
+							return run(chunk, end, program, keepMatches);
+						} finally {
+							chunk.close();
+						}
+					}
+				});
+			}
+
+			ExecutorService pool = Executors.newFixedThreadPool(threads);
+			try {
+				Result total = new Result(keepMatches);
+				for (Future<Result> done : pool.invokeAll(chunks)) {
+					total.append(done.get());
+				}
+				return total;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted");
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException)e.getCause();
+				}
+				throw new RuntimeException(e.getCause());
+			} finally {
+				pool.shutdown();
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static Result run(EBPFPcapReader reader, long end, EBPFProgram program, boolean keepMatches)
+			throws IOException {
+		Result result = new Result(keepMatches);
+		Record r = new Record();
+		EBPFPacketView view = new EBPFPacketView(1);
+		while (reader.getPosition() < end && reader.next(r)) {
+			// next() may have skipped other blocks onto the next chunk's
+			// first record.
+			if (r.offset >= end) {
+				break;
+			}
+			view.clear();
+			r.addTo(view);
+			result.record(r.offset, program.tryRun(view, null));
+		}
+		return result;
+	}
+}
@@ -0,0 +1,168 @@
+package com.sobel.jebpf;
+
+import java.util.Locale;
+
+import com.sobel.jebpf.EBPFInstruction.InstructionClass;
+import com.sobel.jebpf.EBPFInstruction.InstructionCode;
+
+/**
+ * Per-instruction execution counts and branch outcomes for one program.
+ *
+ * Attach to an interpreter with EBPFInterpreter.setProfile and the counts
+ * accumulate across every run until reset(). Not thread safe: give each
+ * thread's interpreter its own profile and merge() them for reporting.
+ */
+public class EBPFProfile {
+
+	private final long[] mExecuted;
+	private final long[] mTaken;
+	private final long[] mNotTaken;
+	private long mRuns;
+
+	public EBPFProfile(int instructionCount) {
+		mExecuted = new long[instructionCount];
+		mTaken = new long[instructionCount];
+		mNotTaken = new long[instructionCount];
+	}
+
+	public int getInstructionCount() {
+		return mExecuted.length;
+	}
+
+	/**
+	 * Called by the interpreter
+	 */
+	void countRun() {
+		mRuns++;
+	}
+
+	void countExecuted(int ip) {
+		mExecuted[ip]++;
+	}
+
+	void countBranch(int ip, boolean taken) {
+		if (taken) {
+			mTaken[ip]++;
+		} else {
+			mNotTaken[ip]++;
+		}
+	}
+
+	public long getRuns() {
+		return mRuns;
+	}
+
+	public long getExecutionCount(int ip) {
+		return mExecuted[ip];
+	}
+
+	public long getTakenCount(int ip) {
+		return mTaken[ip];
+	}
+
+	public long getNotTakenCount(int ip) {
+		return mNotTaken[ip];
+	}
+
+	/**
+	 * Fraction of evaluations of the branch at ip that were taken,
+	 * or -1 if it never ran.
+	 */
+	public double getTakenProbability(int ip) {
+		long total = mTaken[ip] + mNotTaken[ip];
+		if (total == 0) {
+			return -1;
+		}
+		return (double)mTaken[ip] / total;
+	}
+
+	public long getTotalExecuted() {
+		long total = 0;
+		int i;
+		for (i = 0; i < mExecuted.length; i++) {
+			total += mExecuted[i];
+		}
+		return total;
+	}
+
+	/**
+	 * Instruction indexes by execution count, hottest first.
+	 */
+	public int[] getHotSpots(int n) {
+		n = Math.min(n, mExecuted.length);
+		int[] out = new int[n];
+		boolean[] used = new boolean[mExecuted.length];
+		int k;
+		// n is small and programs are short, selection is fine.
+		for (k = 0; k < n; k++) {
+			int best = -1;
+			int i;
+			for (i = 0; i < mExecuted.length; i++) {
+				if (!used[i] && (best == -1 || mExecuted[i] > mExecuted[best])) {
+					best = i;
+				}
+			}
+			used[best] = true;
+			out[k] = best;
+		}
+		return out;
+	}
+
+	public void merge(EBPFProfile other) {
+		if (other.mExecuted.length != mExecuted.length) {
+			throw new IllegalArgumentException("Profiles are for different programs");
+		}
+		int i;
+		for (i = 0; i < mExecuted.length; i++) {
+			mExecuted[i] += other.mExecuted[i];
+			mTaken[i] += other.mTaken[i];
+			mNotTaken[i] += other.mNotTaken[i];
+		}
+		mRuns += other.mRuns;
+	}
+
+	public void reset() {
+		int i;
+		for (i = 0; i < mExecuted.length; i++) {
+			mExecuted[i] = 0;
+			mTaken[i] = 0;
+			mNotTaken[i] = 0;
+		}
+		mRuns = 0;
+	}
+
+	/**
+	 * Annotated disassembly, one line per instruction:
+	 *
+	 *   idx      count  share  branch            insn
+	 *     3       1000  12.5%  T 980 / N 20 98%  jge r1, r0, +2
+	 */
+	public String report(EBPFInstruction[] instructions) {
+		if (instructions.length != mExecuted.length) {
+			throw new IllegalArgumentException("Profile is for a different program");
+		}
+		long total = getTotalExecuted();
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.US, "runs: %d, instructions executed: %d%n", mRuns, total));
+		sb.append(String.format(Locale.US, "%5s %10s %6s  %-24s %s%n", "idx", "count", "share", "branch", "insn"));
+		int i;
+		for (i = 0; i < instructions.length; i++) {
+			EBPFInstruction insn = instructions[i];
+			double share = total == 0 ? 0 : 100.0 * mExecuted[i] / total;
+			String branch = "";
+			if (insn.mClass == InstructionClass.JMP
+					&& insn.mCode != InstructionCode.JA
+					&& insn.mCode != InstructionCode.EXIT
+					&& !insn.isTailCall()) {
+				double p = getTakenProbability(i);
+				branch = String.format(Locale.US, "T %d / N %d", mTaken[i], mNotTaken[i]);
+				if (p >= 0) {
+					branch += String.format(Locale.US, " %.0f%%", 100 * p);
+				}
+			}
+			sb.append(String.format(Locale.US, "%5d %10d %5.1f%%  %-24s %s%n",
+					i, mExecuted[i], share, branch, insn));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,488 @@
+package com.sobel.jebpf;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.sobel.jebpf.EBPFInstruction.Register;
+import com.sobel.jebpf.EBPFInterpreter.EBPFProgramException;
+import com.sobel.jebpf.EBPFInterpreter.Status;
+
+/**
+ * A loaded program with tiered execution.
+ *
+ * Runs start out in EBPFInterpreter. Each run bumps a cheap (racy, plain
+ * int) counter; the run that crosses the compile threshold queues an
+ * EBPFCompiledProgram build on the compile executor, and once that's
+ * done it's swapped in with a single volatile write. Runs in flight on
+ * the interpreter just finish there.
+ *
+ * Safe to run from many threads; each thread gets its own interpreter.
+ */
+public class EBPFProgram {
+
+	public enum Tier {
+		INTERPRETED,
+		COMPILED,
+	}
+
+	public static final int DEFAULT_COMPILE_THRESHOLD = 1000;
+
+	private static ExecutorService sDefaultCompiler;
+
+	private final String mName;
+	// Packed, so the program and all its interpreters share 8 bytes an instruction.
+	private final EBPFPackedProgram mProgram;
+	private final int mCompileThreshold;
+	private final Executor mCompiler;
+	private final EBPFCodeArena mArena;
+
+	private final ThreadLocal<EBPFInterpreter> mInterpreters = new ThreadLocal<EBPFInterpreter>() {
+		@Override
+		protected EBPFInterpreter initialValue() {
+			EBPFInterpreter t = new EBPFInterpreter(mProgram);
+			t.setMetrics(mMetrics);
+			return t;
+		}
+	};
+
+	// Compiled runs' frames; see frame().
+	private final ThreadLocal<int[]> mFrames = new ThreadLocal<int[]>();
+
+	// Not volatile on purpose: losing the odd increment doesn't matter.
+	private int mInvocations;
+	private final AtomicBoolean mCompileQueued = new AtomicBoolean();
+	private volatile EBPFCompiledProgram mCompiled;
+
+	private volatile EBPFMetrics mMetrics;
+	// mRecorderId is written before mRecorder, so it's good for whoever
+	// sees the recorder.
+	private volatile EBPFFlightRecorder mRecorder;
+	private int mRecorderId;
+	private volatile EBPFTenant mTenant;
+
+	public EBPFProgram(String name, EBPFInstruction[] instructions) {
+		this(name, instructions, DEFAULT_COMPILE_THRESHOLD, null);
+	}
+
+	public EBPFProgram(String name, EBPFInstruction[] instructions, int compileThreshold, Executor compiler) {
+		this(name, instructions, compileThreshold, compiler, null);
+	}
+
+	/**
+	 * compileThreshold of 0 compiles on the first run; negative never compiles.
+	 * A null compiler uses a shared background thread. With an arena, the
+	 * compiled code is packed in there alongside other programs'.
+	 */
+	public EBPFProgram(String name, EBPFInstruction[] instructions, int compileThreshold, Executor compiler,
+			EBPFCodeArena arena) {
+		this(name, new EBPFPackedProgram(instructions), compileThreshold, compiler, arena);
+	}
+
+	public EBPFProgram(String name, EBPFPackedProgram program, int compileThreshold, Executor compiler,
+			EBPFCodeArena arena) {
+		mName = name;
+		mProgram = program;
+		mCompileThreshold = compileThreshold;
+		mCompiler = compiler != null ? compiler : defaultCompiler();
+		mArena = arena;
+	}
+
+	private static synchronized Executor defaultCompiler() {
+		if (sDefaultCompiler == null) {
+			sDefaultCompiler = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "jebpf-compiler");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return sDefaultCompiler;
+	}
+
+	/**
+	 * Status and R0 of a run, packed so tryRun doesn't allocate.
+	 */
+	static long pack(Status status, int value) {
+		return ((long)status.ordinal() << 32) | (value & 0xFFFFFFFFL);
+	}
+
+	private static final Status[] STATUSES = Status.values();
+
+	public static Status statusOf(long result) {
+		return STATUSES[(int)(result >>> 32)];
+	}
+
+	public static int valueOf(long result) {
+		return (int)result;
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	/**
+	 * Unpacked afresh on every call; the program's own instructions never change.
+	 */
+	public EBPFInstruction[] getInstructions() {
+		return mProgram.toArray();
+	}
+
+	public EBPFPackedProgram getPackedProgram() {
+		return mProgram;
+	}
+
+	public int getInstructionCount() {
+		return mProgram.getInstructionCount();
+	}
+
+	public Tier getTier() {
+		return mCompiled != null ? Tier.COMPILED : Tier.INTERPRETED;
+	}
+
+	public int getInvocationCount() {
+		return mInvocations;
+	}
+
+	/**
+	 * The compiled form, or null while still interpreted.
+	 */
+	public EBPFCompiledProgram getCompiled() {
+		return mCompiled;
+	}
+
+	/**
+	 * Only picked up by threads that haven't run this program yet,
+	 * so set it before putting the program to work.
+	 */
+	public void setMetrics(EBPFMetrics m) {
+		mMetrics = m;
+	}
+
+	public EBPFMetrics getMetrics() {
+		return mMetrics;
+	}
+
+	/**
+	 * Record failing (and slow, if it's set up for that) runs into r from
+	 * now on, on either tier. null stops recording.
+	 */
+	public synchronized void setFlightRecorder(EBPFFlightRecorder r) {
+		EBPFFlightRecorder old = mRecorder;
+		if (old == r) {
+			return;
+		}
+		int oldId = mRecorderId;
+		if (r != null) {
+			mRecorderId = r.register(this);
+		}
+		mRecorder = r;
+		if (old != null) {
+			old.unregister(oldId);
+		}
+	}
+
+	public EBPFFlightRecorder getFlightRecorder() {
+		return mRecorder;
+	}
+
+	/**
+	 * Charge runs to t from now on, and have them turned away while it's
+	 * over quota (see EBPFTenant). null for nobody.
+	 */
+	public void setTenant(EBPFTenant t) {
+		mTenant = t;
+	}
+
+	public EBPFTenant getTenant() {
+		return mTenant;
+	}
+
+	/**
+	 * Compile on the calling thread and swap in, skipping the threshold.
+	 */
+	public EBPFCompiledProgram compileNow() {
+		EBPFCompiledProgram c = mCompiled;
+		if (c == null) {
+			c = doCompile();
+			mCompiled = c;
+		}
+		mCompileQueued.set(true);
+		return c;
+	}
+
+	/**
+	 * compileNow, taking the code from cache if it has it.
+	 */
+	public EBPFCompiledProgram compileNow(EBPFProgramCache cache) {
+		return compileNow(cache.find(mProgram.toArray()));
+	}
+
+	EBPFCompiledProgram compileNow(EBPFProgramCache.Entry cached) {
+		if (cached == null) {
+			return compileNow();
+		}
+		EBPFCompiledProgram c = mCompiled;
+		if (c == null) {
+			EBPFEvents.Listener l = EBPFEvents.listener();
+			long start = l == null ? 0 : System.nanoTime();
+			c = cached.compile(mArena);
+			if (l != null) {
+				l.onCompiled(mName, c.getInstructionCount(), c.getCodeSize(), true, System.nanoTime() - start);
+			}
+			mCompiled = c;
+		}
+		mCompileQueued.set(true);
+		return c;
+	}
+
+	private EBPFCompiledProgram doCompile() {
+		EBPFEvents.Listener l = EBPFEvents.listener();
+		long start = l == null ? 0 : System.nanoTime();
+		EBPFInstruction[] insns = mProgram.toArray();
+		EBPFCompiledProgram c;
+		if (mArena != null) {
+			c = mArena.compile(insns);
+		} else {
+			c = EBPFCompiledProgram.compile(insns);
+		}
+		if (l != null) {
+			l.onCompiled(mName, insns.length, c.getCodeSize(), false, System.nanoTime() - start);
+		}
+		return c;
+	}
+
+	private void countInvocation() {
+		int n = ++mInvocations;
+		if (mCompileThreshold >= 0 && n > mCompileThreshold && mCompileQueued.compareAndSet(false, true)) {
+			mCompiler.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (mCompiled == null) {
+						mCompiled = doCompile();
+					}
+				}
+			});
+		}
+	}
+
+	public int run(byte[] packet) throws EBPFProgramException {
+		return run(packet, null);
+	}
+
+	/**
+	 * ctx may be null; see EBPFInterpreter.run(byte[], EBPFContext).
+	 */
+	public int run(byte[] packet, EBPFContext ctx) throws EBPFProgramException {
+		EBPFCompiledProgram c = mCompiled;
+		if (c == null) {
+			countInvocation();
+			EBPFInterpreter t = mInterpreters.get();
+			EBPFFlightRecorder recorder = mRecorder;
+			EBPFTenant tenant = mTenant;
+			if (!isWatched(null, recorder, tenant)) {
+				return t.run(packet, ctx);
+			}
+			long start = start(null, recorder, tenant);
+			if (tenant != null && !tenant.admit(start)) {
+				throw rejected();
+			}
+			try {
+				return t.run(packet, ctx);
+			} finally {
+				finish(recorder, tenant, t, start, packet, null, ctx);
+			}
+		}
+		int[] frame = frame(c);
+		long r = runCompiled(c, frame, packet, null, ctx);
+		if (r == REJECTED) {
+			throw rejected();
+		}
+		if (statusOf(r) != Status.OK) {
+			throw c.diagnose(r, frame, false);
+		}
+		return valueOf(r);
+	}
+
+	/**
+	 * Never throws for a failing program. Returns the Status and R0
+	 * packed together; see statusOf and valueOf.
+	 */
+	public long tryRun(byte[] packet) {
+		return tryRun(packet, null);
+	}
+
+	public long tryRun(byte[] packet, EBPFContext ctx) {
+		EBPFCompiledProgram c = mCompiled;
+		if (c == null) {
+			return tryInterpret(packet, null, ctx);
+		}
+		return runCompiled(c, frame(c), packet, null, ctx);
+	}
+
+	/**
+	 * tryRun over a segmented packet, without copying it. ctx may be null.
+	 */
+	public long tryRun(EBPFPacketView packet, EBPFContext ctx) {
+		EBPFCompiledProgram c = mCompiled;
+		if (c == null) {
+			return tryInterpret(null, packet, ctx);
+		}
+		return runCompiled(c, frame(c), null, packet, ctx);
+	}
+
+	/**
+	 * tryRun over packets[0] to packets[n - 1], into results.
+	 */
+	public void tryRun(EBPFPacketView[] packets, int n, EBPFContext ctx, long[] results) {
+		EBPFCompiledProgram c = mCompiled;
+		int i;
+		if (c == null) {
+			for (i = 0; i < n; i++) {
+				results[i] = tryInterpret(null, packets[i], ctx);
+			}
+			return;
+		}
+		int[] frame = frame(c);
+		for (i = 0; i < n; i++) {
+			results[i] = runCompiled(c, frame, null, packets[i], ctx);
+		}
+	}
+
+	/**
+	 * This thread's frame for c, so compiled runs don't allocate either.
+	 * mCompiled never changes once it's set, so neither does the size.
+	 */
+	private int[] frame(EBPFCompiledProgram c) {
+		int[] frame = mFrames.get();
+		if (frame == null) {
+			frame = c.newFrame();
+			mFrames.set(frame);
+		}
+		return frame;
+	}
+
+	/**
+	 * Whether a run needs anything more than running.
+	 */
+	private static boolean isWatched(EBPFMetrics metrics, EBPFFlightRecorder recorder, EBPFTenant tenant) {
+		return metrics != null || recorder != null || tenant != null || EBPFEvents.isTimingRuns();
+	}
+
+	/**
+	 * An interpreted tryRun. The packet is packet, or view if that's null.
+	 */
+	private long tryInterpret(byte[] packet, EBPFPacketView view, EBPFContext ctx) {
+		countInvocation();
+		EBPFInterpreter t = mInterpreters.get();
+		EBPFFlightRecorder recorder = mRecorder;
+		EBPFTenant tenant = mTenant;
+		if (!isWatched(null, recorder, tenant)) {
+			Status s = view == null ? t.tryRun(packet, ctx) : t.tryRun(view, ctx);
+			return pack(s, t.getReturnValue());
+		}
+		long start = start(null, recorder, tenant);
+		if (tenant != null && !tenant.admit(start)) {
+			return REJECTED;
+		}
+		Status s = view == null ? t.tryRun(packet, ctx) : t.tryRun(view, ctx);
+		finish(recorder, tenant, t, start, packet, view, ctx);
+		return pack(s, t.getReturnValue());
+	}
+
+	/**
+	 * A compiled run into frame, with whatever bookkeeping is switched on.
+	 */
+	private long runCompiled(EBPFCompiledProgram c, int[] frame, byte[] packet, EBPFPacketView view,
+			EBPFContext ctx) {
+		EBPFMetrics metrics = mMetrics;
+		EBPFFlightRecorder recorder = mRecorder;
+		EBPFTenant tenant = mTenant;
+		if (!isWatched(metrics, recorder, tenant)) {
+			return view == null ? c.tryRun(packet, ctx, frame) : c.tryRun(view, ctx, frame);
+		}
+		long start = start(metrics, recorder, tenant);
+		if (tenant != null && !tenant.admit(start)) {
+			return REJECTED;
+		}
+		long r = view == null ? c.tryRun(packet, ctx, frame) : c.tryRun(view, ctx, frame);
+		finish(metrics, recorder, tenant, r, frame, start, packet, view, ctx);
+		return r;
+	}
+
+	// What a run the tenant turned away returns; it never started.
+	private static final long REJECTED = pack(Status.QUOTA_EXCEEDED, 0);
+
+	private static EBPFProgramException rejected() {
+		return EBPFInterpreter.newProgramException(Status.QUOTA_EXCEEDED, Status.QUOTA_EXCEEDED.description,
+				new ArrayList<Integer>(), new HashMap<Register, Integer>(), false);
+	}
+
+	// start() of a run nobody needs timed. nanoTime won't ever return it.
+	private static final long NOT_TIMED = Long.MIN_VALUE;
+
+	/**
+	 * When a run starts, if anything needs it timed: the clock isn't free.
+	 */
+	private static long start(EBPFMetrics metrics, EBPFFlightRecorder recorder, EBPFTenant tenant) {
+		if (metrics != null || tenant != null || (recorder != null && recorder.isTiming())
+				|| EBPFEvents.isTimingRuns()) {
+			return System.nanoTime();
+		}
+		return NOT_TIMED;
+	}
+
+	/**
+	 * Bookkeeping after a compiled run. The packet is packet, or view if
+	 * that's null.
+	 */
+	private void finish(EBPFMetrics metrics, EBPFFlightRecorder recorder, EBPFTenant tenant, long r, int[] frame,
+			long start, byte[] packet, EBPFPacketView view, EBPFContext ctx) {
+		long nanos = start == NOT_TIMED ? -1 : System.nanoTime() - start;
+		if (metrics != null) {
+			record(metrics, r, frame, nanos);
+		}
+		if (tenant != null) {
+			tenant.charge(EBPFCompiledProgram.getSteps(frame), nanos);
+		}
+		if (recorder != null && recorder.wants(r, nanos)) {
+			recorder.record(mRecorderId, r, nanos, packet, view, ctx, frame);
+		}
+		if (nanos >= 0 && EBPFEvents.isTimingRuns()) {
+			EBPFEvents.run(this, r, EBPFCompiledProgram.getSteps(frame), nanos);
+		}
+	}
+
+	/**
+	 * Same after an interpreted run; the interpreter does its own metrics.
+	 */
+	private void finish(EBPFFlightRecorder recorder, EBPFTenant tenant, EBPFInterpreter t, long start, byte[] packet,
+			EBPFPacketView view, EBPFContext ctx) {
+		long nanos = start == NOT_TIMED ? -1 : System.nanoTime() - start;
+		long r = pack(t.getStatus(), t.getReturnValue());
+		if (tenant != null) {
+			tenant.charge(t.getSteps(), nanos);
+		}
+		if (recorder != null && recorder.wants(r, nanos)) {
+			recorder.record(mRecorderId, r, nanos, packet, view, ctx, t.saveFrame());
+		}
+		if (nanos >= 0 && EBPFEvents.isTimingRuns()) {
+			EBPFEvents.run(this, r, t.getSteps(), nanos);
+		}
+	}
+
+	private static void record(EBPFMetrics metrics, long r, int[] frame, long nanos) {
+		Status s = statusOf(r);
+		if (s == Status.OK) {
+			metrics.recordSuccess(valueOf(r), EBPFCompiledProgram.getSteps(frame), nanos);
+		} else {
+			metrics.recordFailure(s, EBPFCompiledProgram.getSteps(frame), nanos);
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package com.sobel.jebpf;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.sobel.jebpf.EBPFVerifier.EBPFVerifyException;
+
+/**
+ * The programs a tail call (EBPFInstruction.TAIL_CALL) can go to, by
+ * index. Hang it off the EBPFContext (setProgramArray) and a classifier
+ * can hand the packet to the right downstream program in one jump,
+ * instead of returning to the host to be dispatched again.
+ *
+ * The program tail called into starts from scratch like any run - R1 the
+ * context, R10 the frame pointer, a zeroed stack, nothing else set - over
+ * the same packet and context. Its R0 is the run's result. A run follows
+ * at most MAX_TAIL_CALLS of them; past that the call falls through, as
+ * does a call to an empty slot or an index out of range.
+ *
+ * Slots can be changed at any time, by any thread; a run sees each one
+ * as it was when it called it.
+ *
+ * With an EBPFAdmissionPolicy, every program put in is admitted against
+ * its tail call budget, so programs admitted by the same policy can't
+ * tail call past their budget.
+ */
+public class EBPFProgramArray {
+
+	/**
+	 * Tail calls per run, like the kernel's.
+	 */
+	public static final int MAX_TAIL_CALLS = 32;
+
+	/**
+	 * What a slot holds: the program, in the forms the engines run.
+	 */
+	static final class Target {
+		final EBPFProgram program;
+		final long[] code;
+		final boolean hasStores;
+		final EBPFCompiledProgram compiled;
+
+		Target(EBPFProgram p) {
+			program = p;
+			code = p.getPackedProgram().getPacked();
+			hasStores = p.getPackedProgram().hasStores();
+			compiled = p.compileNow();
+		}
+	}
+
+	private final AtomicReferenceArray<Target> mSlots;
+	private final EBPFAdmissionPolicy mPolicy;
+
+	public EBPFProgramArray(int size) {
+		this(size, null);
+	}
+
+	/**
+	 * policy may be null, for verifying only.
+	 */
+	public EBPFProgramArray(int size, EBPFAdmissionPolicy policy) {
+		mSlots = new AtomicReferenceArray<Target>(size);
+		mPolicy = policy;
+	}
+
+	public EBPFAdmissionPolicy getAdmissionPolicy() {
+		return mPolicy;
+	}
+
+	public int size() {
+		return mSlots.length();
+	}
+
+	/**
+	 * Puts program at index, verifying it first (with a context: tail
+	 * calls only happen in runs that have one), and admitting it if
+	 * there's a policy. It's compiled now, so calls to it never wait on a
+	 * compiler.
+	 */
+	public void set(int index, EBPFProgram program) throws EBPFVerifyException {
+		checkIndex(index);
+		if (mPolicy != null) {
+			mPolicy.admitTailCallTarget(program.getInstructions());
+		} else {
+			EBPFVerifier.verify(program.getInstructions(), true);
+		}
+		mSlots.set(index, new Target(program));
+	}
+
+	public void clear(int index) {
+		checkIndex(index);
+		mSlots.set(index, null);
+	}
+
+	public EBPFProgram get(int index) {
+		checkIndex(index);
+		Target t = mSlots.get(index);
+		return t == null ? null : t.program;
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= mSlots.length()) {
+			throw new IllegalArgumentException("Bad index " + index);
+		}
+	}
+
+	/**
+	 * For a tail call to index: null if there's nothing to go to.
+	 */
+	Target target(int index) {
+		if (index < 0 || index >= mSlots.length()) {
+			return null;
+		}
+		return mSlots.get(index);
+	}
+}
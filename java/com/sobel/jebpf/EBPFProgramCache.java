@@ -0,0 +1,337 @@
+package com.sobel.jebpf;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32;
+
+import com.sobel.jebpf.EBPFCompiledProgram.Image;
+import com.sobel.jebpf.EBPFVerifier.EBPFVerifyException;
+
+/**
+ * Verified and compiled programs saved to disk, so a restart with
+ * thousands of filters doesn't verify and compile them all again.
+ *
+ * Programs are keyed by their encodeMany bytes. The file is memory
+ * mapped; open() only reads the fixed size entry headers to build its
+ * index. Lookups compare the key in place. An entry's code is copied out
+ * and checked against its CRC32 the first time it's found, and the outcome
+ * is kept, so later lookups of it copy and checksum nothing; a damaged
+ * entry is just a miss. A file written by another format or code version (see
+ * EBPFCompiledProgram.CODE_VERSION) won't open at all.
+ *
+ * Layout, big-endian:
+ *
+ *   header: magic, FORMAT_VERSION, CODE_VERSION, entry count
+ *   entry:  key hash, flags, key bytes, code ints, CRC32 of key and code,
+ *           then the key (padded to 4 bytes) and the code
+ *
+ * Write one with a Builder. Lookups are thread safe.
+ */
+public class EBPFProgramCache {
+
+	public static final int MAGIC = 0x4A454243; // "JEBC"
+	public static final int FORMAT_VERSION = 1;
+
+	private static final int HEADER = 16;
+	private static final int ENTRY_HEADER = 20;
+
+	// Flags: verified (by EBPFVerifier) without and with a context.
+	private static final int VERIFIED = 1;
+	private static final int VERIFIED_WITH_CONTEXT = 2;
+
+	/**
+	 * A program found in the cache.
+	 */
+	public static class Entry {
+		private final EBPFInstruction[] mInstructions;
+		private final int mFlags;
+		private final int[] mCode;
+
+		private Entry(EBPFInstruction[] insns, int flags, int[] code) {
+			mInstructions = insns;
+			mFlags = flags;
+			mCode = code;
+		}
+
+		/**
+		 * Whether it passed EBPFVerifier.verify(insns, withContext) when the
+		 * cache was built.
+		 */
+		public boolean isVerified(boolean withContext) {
+			return (mFlags & (withContext ? VERIFIED_WITH_CONTEXT : VERIFIED)) != 0;
+		}
+
+		/**
+		 * The saved code as a program, in arena if it's not null. Each call
+		 * makes a new one.
+		 */
+		public EBPFCompiledProgram compile(EBPFCodeArena arena) {
+			if (arena != null) {
+				return arena.install(mCode, mInstructions);
+			}
+			return new EBPFCompiledProgram(new Image(mCode.clone(), 0), mInstructions);
+		}
+	}
+
+	/**
+	 * Verifies and compiles programs, then writes them out as a cache.
+	 */
+	public static class Builder {
+		private final Map<ByteBuffer, Integer> mFlags = new LinkedHashMap<ByteBuffer, Integer>();
+		private final Map<ByteBuffer, EBPFInstruction[]> mInstructions = new LinkedHashMap<ByteBuffer, EBPFInstruction[]>();
+
+		/**
+		 * Verifies insns (withContext: see EBPFVerifier.verify) and adds it.
+		 * A program verified without a context is good with one too. Adding
+		 * the same program again just records the extra verification.
+		 */
+		public Builder add(EBPFInstruction[] insns, boolean withContext) throws EBPFVerifyException {
+			EBPFVerifier.verify(insns, withContext);
+			ByteBuffer key = ByteBuffer.wrap(EBPFInstruction.encodeMany(insns));
+			int flags = withContext ? VERIFIED_WITH_CONTEXT : VERIFIED | VERIFIED_WITH_CONTEXT;
+			Integer old = mFlags.get(key);
+			if (old != null) {
+				flags |= old;
+			}
+			mFlags.put(key, flags);
+			mInstructions.put(key, insns.clone());
+			return this;
+		}
+
+		public int size() {
+			return mFlags.size();
+		}
+
+		/**
+		 * Writes the cache to f, replacing whatever was there. It goes to a
+		 * temporary file first and is renamed over f, so readers never see
+		 * half a cache.
+		 */
+		public void write(File f) throws IOException {
+			int length = HEADER;
+			for (Map.Entry<ByteBuffer, EBPFInstruction[]> e : mInstructions.entrySet()) {
+				length += ENTRY_HEADER + padded(e.getKey().capacity())
+						+ EBPFCompiledProgram.codeLength(e.getValue()) * 4;
+			}
+			ByteBuffer out = ByteBuffer.allocate(length);
+			out.putInt(MAGIC);
+			out.putInt(FORMAT_VERSION);
+			out.putInt(EBPFCompiledProgram.CODE_VERSION);
+			out.putInt(mInstructions.size());
+			for (Map.Entry<ByteBuffer, EBPFInstruction[]> e : mInstructions.entrySet()) {
+				byte[] key = e.getKey().array();
+				EBPFInstruction[] insns = e.getValue();
+				int[] code = new int[EBPFCompiledProgram.codeLength(insns)];
+				EBPFCompiledProgram.emit(insns, code, 0);
+				byte[] codeBytes = new byte[code.length * 4];
+				ByteBuffer.wrap(codeBytes).asIntBuffer().put(code);
+
+				out.putInt(Arrays.hashCode(key));
+				out.putInt(mFlags.get(e.getKey()));
+				out.putInt(key.length);
+				out.putInt(code.length);
+				out.putInt(checksum(key, codeBytes));
+				out.put(key);
+				out.position(out.position() + padded(key.length) - key.length);
+				out.put(codeBytes);
+			}
+
+			File tmp = new File(f.getPath() + ".tmp");
+			FileOutputStream stream = new FileOutputStream(tmp);
+			try {
+				stream.write(out.array());
+				stream.getFD().sync();
+			} finally {
+				stream.close();
+			}
+			if (!tmp.renameTo(f)) {
+				tmp.delete();
+				throw new IOException("Couldn't rename " + tmp + " to " + f);
+			}
+		}
+	}
+
+	private static int padded(int n) {
+		return (n + 3) & ~3;
+	}
+
+	private static int checksum(byte[] key, byte[] code) {
+		CRC32 crc = new CRC32();
+		crc.update(key, 0, key.length);
+		crc.update(code, 0, code.length);
+		return (int)crc.getValue();
+	}
+
+	private final MappedByteBuffer mMap;
+	// Open addressing, entry offset + 1 in each used slot.
+	private final int[] mSlots;
+	// Per slot: null until the entry's been checked, then its code, or BAD.
+	private final AtomicReferenceArray<int[]> mChecked;
+	private final int mCount;
+	private final AtomicInteger mHits = new AtomicInteger();
+	private final AtomicInteger mMisses = new AtomicInteger();
+
+	private EBPFProgramCache(MappedByteBuffer map, int count) throws IOException {
+		mMap = map;
+		mCount = count;
+		int slots = 2;
+		while (slots < count * 2) {
+			slots *= 2;
+		}
+		mSlots = new int[slots];
+		mChecked = new AtomicReferenceArray<int[]>(slots);
+
+		int pos = HEADER;
+		int i;
+		for (i = 0; i < count; i++) {
+			if (pos > map.limit() - ENTRY_HEADER) {
+				throw new IOException("Truncated cache: entry " + i + " at " + pos);
+			}
+			int keyLength = map.getInt(pos + 8);
+			int codeLength = map.getInt(pos + 12);
+			if (keyLength < 0 || keyLength > map.limit() - pos
+					|| codeLength < 0 || codeLength > (map.limit() - pos) / 4) {
+				throw new IOException("Bad entry " + i + " at " + pos);
+			}
+			long end = (long)pos + ENTRY_HEADER + padded(keyLength) + (long)codeLength * 4;
+			if (end > map.limit()) {
+				throw new IOException("Truncated cache: entry " + i + " at " + pos);
+			}
+			int slot = map.getInt(pos) & (slots - 1);
+			while (mSlots[slot] != 0) {
+				slot = (slot + 1) & (slots - 1);
+			}
+			mSlots[slot] = pos + 1;
+			pos = (int)end;
+		}
+	}
+
+	/**
+	 * Maps f. Anything but a whole cache of this FORMAT_VERSION and
+	 * CODE_VERSION is an IOException; carry on without it.
+	 */
+	public static EBPFProgramCache open(File f) throws IOException {
+		FileInputStream stream = new FileInputStream(f);
+		try {
+			FileChannel channel = stream.getChannel();
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("Cache too big: " + size);
+			}
+			if (size < HEADER) {
+				throw new IOException("Not a program cache: too short");
+			}
+			// The mapping outlives the channel.
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			if (map.getInt(0) != MAGIC) {
+				throw new IOException("Not a program cache: bad magic");
+			}
+			if (map.getInt(4) != FORMAT_VERSION || map.getInt(8) != EBPFCompiledProgram.CODE_VERSION) {
+				throw new IOException("Stale program cache: version " + map.getInt(4) + "/" + map.getInt(8));
+			}
+			int count = map.getInt(12);
+			if (count < 0 || count > (size - HEADER) / ENTRY_HEADER) {
+				throw new IOException("Bad entry count " + count);
+			}
+			return new EBPFProgramCache(map, count);
+		} finally {
+			stream.close();
+		}
+	}
+
+	public int size() {
+		return mCount;
+	}
+
+	/**
+	 * insns's entry, or null if there isn't a good one.
+	 */
+	public Entry find(EBPFInstruction[] insns) {
+		byte[] key = EBPFInstruction.encodeMany(insns);
+		int hash = Arrays.hashCode(key);
+		// Relative gets move the position, so each lookup gets its own.
+		ByteBuffer map = mMap.duplicate();
+		int slot = hash & (mSlots.length - 1);
+		for (; mSlots[slot] != 0; slot = (slot + 1) & (mSlots.length - 1)) {
+			int pos = mSlots[slot] - 1;
+			if (map.getInt(pos) != hash || map.getInt(pos + 8) != key.length) {
+				continue;
+			}
+			if (!keyMatches(map, pos + ENTRY_HEADER, key)) {
+				continue;
+			}
+			int[] code = mChecked.get(slot);
+			if (code == null) {
+				code = check(map, pos, key, EBPFCompiledProgram.codeLength(insns));
+				// Two threads checking at once get the same answer.
+				mChecked.set(slot, code);
+			}
+			if (code == BAD) {
+				break;
+			}
+			mHits.incrementAndGet();
+			return new Entry(insns.clone(), map.getInt(pos + 4), code);
+		}
+		mMisses.incrementAndGet();
+		return null;
+	}
+
+	// What mChecked holds for an entry that failed its checks.
+	private static final int[] BAD = new int[0];
+
+	private static boolean keyMatches(ByteBuffer map, int at, byte[] key) {
+		int i;
+		for (i = 0; i < key.length; i++) {
+			if (map.get(at + i) != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The code of the entry at pos, whose key is key, if it's codeLength
+	 * ints, matches its CRC32 and ends in END. BAD if not.
+	 */
+	private static int[] check(ByteBuffer map, int pos, byte[] key, int codeLength) {
+		if (map.getInt(pos + 12) != codeLength) {
+			return BAD;
+		}
+		byte[] codeBytes = new byte[codeLength * 4];
+		map.position(pos + ENTRY_HEADER + padded(key.length));
+		map.get(codeBytes);
+		if (checksum(key, codeBytes) != map.getInt(pos + 16)) {
+			return BAD;
+		}
+		int[] code = new int[codeLength];
+		ByteBuffer.wrap(codeBytes).asIntBuffer().get(code);
+		if (code[codeLength - EBPFCompiledProgram.STRIDE] != EBPFCompiledProgram.END) {
+			return BAD;
+		}
+		return code;
+	}
+
+	/**
+	 * Lookups that found a good entry.
+	 */
+	public int getHits() {
+		return mHits.get();
+	}
+
+	/**
+	 * Lookups that didn't; worth writing a new cache if this isn't 0.
+	 */
+	public int getMisses() {
+		return mMisses.get();
+	}
+}
@@ -0,0 +1,233 @@
+package com.sobel.jebpf;
+
+import java.util.Random;
+
+import com.sobel.jebpf.EBPFInstruction.InstructionCode;
+import com.sobel.jebpf.EBPFInstruction.InstructionSize;
+import com.sobel.jebpf.EBPFInstruction.Register;
+
+/**
+ * Random programs that pass EBPFVerifier, and random packets to run them
+ * on, for checking engines against each other (EBPFDifferential) and for
+ * benchmark corpora.
+ *
+ * Programs only jump forward and only read registers that are set on
+ * every path there, but the values are random, so runs still fail plenty:
+ * loads off the end of the packet, stack accesses that are out of bounds
+ * or misaligned. Immediates lean towards small numbers and edge cases
+ * (0, -1, MIN_VALUE, ...) so loads land in the packet often enough.
+ *
+ * The same seed gives the same programs and packets.
+ */
+public class EBPFProgramGenerator {
+
+	private static final Register[] REGISTERS = Register.values();
+	private static final int[] EDGES = {0, 1, -1, 2, 31, 32, Integer.MIN_VALUE, Integer.MAX_VALUE, 0x80, 0xFFFF};
+	// R0-R9, everything but R10.
+	private static final int WRITABLE = Register.R10.ordinal();
+
+	private final long mSeed;
+	private final Random mRandom;
+	private int mMinLength = 2;
+	private int mMaxLength = 64;
+	private int mMaxPacket = 64;
+	private boolean mWithContext;
+	private boolean mMemory = true;
+
+	public EBPFProgramGenerator(long seed) {
+		mSeed = seed;
+		mRandom = new Random(seed);
+	}
+
+	public long getSeed() {
+		return mSeed;
+	}
+
+	/**
+	 * Instructions per program, including the final EXIT. min is at least 2.
+	 */
+	public EBPFProgramGenerator setLength(int min, int max) {
+		if (min < 2 || max < min) {
+			throw new IllegalArgumentException("Bad length " + min + "-" + max);
+		}
+		mMinLength = min;
+		mMaxLength = max;
+		return this;
+	}
+
+	/**
+	 * Largest packet nextPacket makes; loads reach a little past it.
+	 */
+	public EBPFProgramGenerator setMaxPacket(int max) {
+		mMaxPacket = max;
+		return this;
+	}
+
+	/**
+	 * Whether programs will be run with an EBPFContext, and so can read it
+	 * through R1. Verify them with withContext to match.
+	 */
+	public EBPFProgramGenerator setWithContext(boolean withContext) {
+		mWithContext = withContext;
+		return this;
+	}
+
+	public boolean isWithContext() {
+		return mWithContext;
+	}
+
+	/**
+	 * Whether programs use the stack and context (LDX, STX, XADD). Without,
+	 * they're ALU ops, jumps and packet loads only, like a header filter.
+	 */
+	public EBPFProgramGenerator setMemory(boolean memory) {
+		mMemory = memory;
+		return this;
+	}
+
+	public byte[] nextPacket() {
+		byte[] p = new byte[mRandom.nextInt(mMaxPacket + 1)];
+		mRandom.nextBytes(p);
+		return p;
+	}
+
+	private int imm() {
+		switch (mRandom.nextInt(3)) {
+		case 0:
+			return EDGES[mRandom.nextInt(EDGES.length)];
+		case 1:
+			return mRandom.nextInt();
+		default:
+			return mRandom.nextInt(mMaxPacket + 8) - 4;
+		}
+	}
+
+	private InstructionSize size() {
+		return InstructionSize.values()[mRandom.nextInt(3)];
+	}
+
+	// A random register out of mask, which mustn't be empty.
+	private Register pick(int mask) {
+		int n = mRandom.nextInt(Integer.bitCount(mask));
+		while (n-- > 0) {
+			mask &= mask - 1;
+		}
+		return REGISTERS[Integer.numberOfTrailingZeros(mask)];
+	}
+
+	private Register writable() {
+		return REGISTERS[mRandom.nextInt(WRITABLE)];
+	}
+
+	// Off the stack, sometimes past either end or misaligned.
+	private short stackOffset(InstructionSize size) {
+		int width = 1 << size.ordinal();
+		int off = -width * (1 + mRandom.nextInt(EBPFMemory.STACK_SIZE / width));
+		switch (mRandom.nextInt(8)) {
+		case 0:
+			return (short)(off + 1);
+		case 1:
+			return (short)(mRandom.nextBoolean() ? 0 : -EBPFMemory.STACK_SIZE - width);
+		default:
+			return (short)off;
+		}
+	}
+
+	public EBPFInstruction[] nextProgram() {
+		int n = mMinLength + mRandom.nextInt(mMaxLength - mMinLength + 1);
+		EBPFInstruction[] out = new EBPFInstruction[n];
+		// Registers set on every path into each instruction, from jumps to it.
+		int[] incoming = new int[n];
+		boolean[] jumpedTo = new boolean[n];
+
+		int init = 1 << Register.R10.ordinal();
+		if (mWithContext) {
+			init |= 1 << Register.R1.ordinal();
+		}
+		// R0 first, so every EXIT is good.
+		out[0] = mRandom.nextBoolean()
+				? EBPFInstruction.MOV_IMM(Register.R0, imm())
+				: EBPFInstruction.LD_ABS(size(), mRandom.nextInt(mMaxPacket + 4));
+		init = EBPFVerifier.applyDefs(out[0], init);
+		boolean fallsThrough = true;
+
+		int i;
+		for (i = 1; i < n - 1; i++) {
+			if (jumpedTo[i]) {
+				init = fallsThrough ? init & incoming[i] : incoming[i];
+			}
+			// Neither means i is unreachable, and then init is only a guess.
+			fallsThrough = true;
+			EBPFInstruction insn = next(init, n - 2 - i);
+			if (insn.mClass == EBPFInstruction.InstructionClass.JMP) {
+				int target = i + insn.mOff + 1;
+				incoming[target] = jumpedTo[target] ? incoming[target] & init : init;
+				jumpedTo[target] = true;
+				fallsThrough = insn.mCode != InstructionCode.JA && insn.mCode != InstructionCode.EXIT;
+			}
+			out[i] = insn;
+			init = EBPFVerifier.applyDefs(insn, init);
+		}
+		out[n - 1] = EBPFInstruction.EXIT();
+		return out;
+	}
+
+	/**
+	 * One instruction that only reads registers in init, jumping at most
+	 * reach forward.
+	 */
+	private EBPFInstruction next(int init, int reach) {
+		Register dst = writable();
+		switch (mRandom.nextInt(mMemory ? 12 : 8)) {
+		case 0:
+		case 1:
+		case 2:
+			InstructionCode op = InstructionCode.values()[mRandom.nextInt(InstructionCode.ARSH.ordinal() + 1)];
+			if ((init & (1 << dst.ordinal())) == 0) {
+				op = InstructionCode.MOV;
+			}
+			if (mRandom.nextBoolean() && op != InstructionCode.NEG) {
+				return EBPFInstruction.ALU_REG(op, dst, pick(init));
+			}
+			return EBPFInstruction.ALU_IMM(op, dst, imm());
+		case 3:
+			return EBPFInstruction.MOV_IMM(dst, mRandom.nextInt(mMaxPacket + 8) - 4);
+		case 4:
+		case 5:
+			InstructionCode j = InstructionCode.values()[InstructionCode.JEQ.ordinal()
+					+ mRandom.nextInt(InstructionCode.JSGE.ordinal() - InstructionCode.JEQ.ordinal() + 1)];
+			short off = (short)mRandom.nextInt(reach + 1);
+			if (mRandom.nextBoolean()) {
+				return EBPFInstruction.JMP_REG(j, pick(init), pick(init), off);
+			}
+			return EBPFInstruction.JMP_IMM(j, pick(init), imm(), off);
+		case 6:
+			if (mRandom.nextInt(4) == 0) {
+				return mRandom.nextBoolean()
+						? EBPFInstruction.EXIT()
+						: EBPFInstruction.JMP_JA((short)mRandom.nextInt(reach + 1));
+			}
+			return EBPFInstruction.LD_ABS(size(), mRandom.nextInt(mMaxPacket + 8) - 4);
+		case 7:
+			return EBPFInstruction.LD_IND(size(), pick(init), mRandom.nextInt(16) - 4);
+		case 8:
+			if (mWithContext && (init & (1 << Register.R1.ordinal())) != 0 && mRandom.nextBoolean()) {
+				InstructionSize s = size();
+				// Mostly the well known fields, sometimes past the end.
+				short at = (short)(mRandom.nextInt(4) == 0
+						? EBPFContext.DEFAULT_SIZE - mRandom.nextInt(4)
+						: (mRandom.nextInt(EBPFContext.USER_FIELDS / 4) * 4));
+				return EBPFInstruction.LDX_MEM(s, dst, Register.R1, at);
+			}
+			InstructionSize s = size();
+			return EBPFInstruction.LDX_MEM(s, dst, Register.R10, stackOffset(s));
+		case 9:
+		case 10:
+			InstructionSize st = size();
+			return EBPFInstruction.STX_MEM(st, Register.R10, pick(init), stackOffset(st));
+		default:
+			InstructionSize w = mRandom.nextBoolean() ? InstructionSize.W : InstructionSize.DW;
+			return EBPFInstruction.STX_XADD(w, Register.R10, pick(init), stackOffset(w));
+		}
+	}
+}
@@ -0,0 +1,311 @@
+package com.sobel.jebpf;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sobel.jebpf.EBPFInterpreter.EBPFProgramException;
+import com.sobel.jebpf.EBPFVerifier.EBPFVerifyException;
+
+/**
+ * What workers hold instead of a program, so it can be replaced under
+ * them without stopping anything.
+ *
+ * publish() verifies and compiles the new program on the calling thread,
+ * then swaps it in with one volatile write. Each run reads the current
+ * version once, so runs already under way finish on the version they
+ * started with. A replaced version is retired once its last in-flight run
+ * exits; in-flight runs are counted with StripedCounters so workers don't
+ * all hammer one counter. With an arena, a retired version's code is
+ * released straight away rather than left for the GC.
+ */
+public class EBPFProgramHandle {
+
+	/**
+	 * Notified on the publishing thread (onPublished) and on whichever thread
+	 * drains the old version last (onRetired).
+	 */
+	public interface SwapListener {
+		public void onPublished(EBPFProgramHandle handle, Version version, long prepareNanos);
+		public void onRetired(EBPFProgramHandle handle, Version version, long drainNanos);
+	}
+
+	public static class Version {
+		public final long number;
+		public final EBPFProgram program;
+
+		private final StripedCounters mInFlight = new StripedCounters(1);
+		private volatile boolean mSuperseded;
+		private volatile long mSupersededAt;
+		private final AtomicBoolean mRetired = new AtomicBoolean();
+
+		private Version(long n, EBPFProgram p) {
+			number = n;
+			program = p;
+		}
+
+		public boolean isRetired() {
+			return mRetired.get();
+		}
+
+		public long getInFlight() {
+			return mInFlight.sum(0);
+		}
+	}
+
+	private final String mName;
+	private final EBPFCodeArena mArena;
+	private final boolean mWithContext;
+	private volatile Version mCurrent;
+	private long mNextVersion = 1;
+	private volatile SwapListener mListener;
+	private volatile EBPFAdmissionPolicy mPolicy;
+	private volatile EBPFProgramCache mCache;
+	private volatile EBPFFlightRecorder mRecorder;
+	private volatile EBPFTenant mTenant;
+
+	private volatile long mLastPrepareNanos;
+	private volatile long mLastDrainNanos;
+	private final AtomicLong mRetiredCount = new AtomicLong();
+	// Retired programs still attached to a recorder, for the next publish
+	// to detach: that takes locks a worker shouldn't wait on.
+	private final ConcurrentLinkedQueue<EBPFProgram> mDetach = new ConcurrentLinkedQueue<EBPFProgram>();
+
+	public EBPFProgramHandle(String name, EBPFInstruction[] initial, EBPFCodeArena arena) throws EBPFVerifyException {
+		this(name, initial, arena, false);
+	}
+
+	/**
+	 * arena may be null. withContext: programs are verified as being run
+	 * with an EBPFContext (see EBPFVerifier).
+	 */
+	public EBPFProgramHandle(String name, EBPFInstruction[] initial, EBPFCodeArena arena, boolean withContext)
+			throws EBPFVerifyException {
+		mName = name;
+		mArena = arena;
+		mWithContext = withContext;
+		publish(initial);
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	/**
+	 * Have later publishes go through policy too (null for just the
+	 * verifier). Doesn't recheck the current program.
+	 */
+	public void setAdmissionPolicy(EBPFAdmissionPolicy policy) {
+		mPolicy = policy;
+	}
+
+	/**
+	 * Have later publishes skip verifying and compiling programs cache has
+	 * (null for none). An admission policy still runs in full, since costs
+	 * depend on its model.
+	 */
+	public void setCache(EBPFProgramCache cache) {
+		mCache = cache;
+	}
+
+	public void setSwapListener(SwapListener l) {
+		mListener = l;
+	}
+
+	/**
+	 * Attach r (null to detach) to the current program and every one
+	 * published after it. Each version is recorded as its own program.
+	 */
+	public synchronized void setFlightRecorder(EBPFFlightRecorder r) {
+		mRecorder = r;
+		mCurrent.program.setFlightRecorder(r);
+		detachRetired();
+	}
+
+	/**
+	 * Charge the current program and every one published after it to t
+	 * (null for nobody).
+	 */
+	public synchronized void setTenant(EBPFTenant t) {
+		mTenant = t;
+		mCurrent.program.setTenant(t);
+	}
+
+	public EBPFTenant getTenant() {
+		return mTenant;
+	}
+
+	/**
+	 * Verify, compile and swap in a new program. Safe to call while workers
+	 * are running; concurrent publishes are serialized. Returns the new
+	 * version number. Nothing changes if verification fails.
+	 */
+	public synchronized long publish(EBPFInstruction[] instructions) throws EBPFVerifyException {
+		long start = System.nanoTime();
+		EBPFAdmissionPolicy policy = mPolicy;
+		EBPFProgramCache cache = mCache;
+		EBPFProgramCache.Entry cached = cache != null ? cache.find(instructions) : null;
+		if (policy != null) {
+			policy.admit(instructions, mWithContext);
+		} else if (cached == null || !cached.isVerified(mWithContext)) {
+			EBPFVerifier.verify(instructions, mWithContext);
+		}
+		EBPFProgram program = new EBPFProgram(mName, instructions, -1, null, mArena);
+		program.compileNow(cached);
+		EBPFFlightRecorder recorder = mRecorder;
+		if (recorder != null) {
+			program.setFlightRecorder(recorder);
+		}
+		program.setTenant(mTenant);
+		Version next = new Version(mNextVersion++, program);
+		long prepared = System.nanoTime();
+		mLastPrepareNanos = prepared - start;
+
+		Version old = mCurrent;
+		mCurrent = next;
+
+		SwapListener l = mListener;
+		if (l != null) {
+			l.onPublished(this, next, mLastPrepareNanos);
+		}
+		EBPFEvents.Listener events = EBPFEvents.listener();
+		if (events != null) {
+			events.onPublished(mName, next.number, instructions.length, mLastPrepareNanos);
+		}
+		if (old != null) {
+			old.mSupersededAt = System.nanoTime();
+			old.mSuperseded = true;
+			maybeRetire(old);
+		}
+		detachRetired();
+		return next.number;
+	}
+
+	private void detachRetired() {
+		EBPFProgram p;
+		while ((p = mDetach.poll()) != null) {
+			// Lets the recorder drop it once its records are gone.
+			p.setFlightRecorder(null);
+		}
+	}
+
+	public Version getCurrent() {
+		return mCurrent;
+	}
+
+	public long getVersion() {
+		return mCurrent.number;
+	}
+
+	/**
+	 * Time the last publish spent verifying and compiling.
+	 */
+	public long getLastPrepareNanos() {
+		return mLastPrepareNanos;
+	}
+
+	/**
+	 * Time between the last retired version being replaced and its last
+	 * run finishing.
+	 */
+	public long getLastDrainNanos() {
+		return mLastDrainNanos;
+	}
+
+	public long getRetiredCount() {
+		return mRetiredCount.get();
+	}
+
+	private Version enter() {
+		for (;;) {
+			Version v = mCurrent;
+			v.mInFlight.increment(0);
+			if (v == mCurrent) {
+				return v;
+			}
+			// Lost a race with publish, go again on the new one.
+			exit(v);
+		}
+	}
+
+	private void exit(Version v) {
+		v.mInFlight.add(0, -1);
+		if (v.mSuperseded) {
+			maybeRetire(v);
+		}
+	}
+
+	private void maybeRetire(Version v) {
+		if (v.mInFlight.sum(0) != 0 || !v.mRetired.compareAndSet(false, true)) {
+			return;
+		}
+		long drain = System.nanoTime() - v.mSupersededAt;
+		mLastDrainNanos = drain;
+		mRetiredCount.incrementAndGet();
+		if (mArena != null) {
+			// Nobody can reach it any more, give the code back now.
+			mArena.release(v.program.getCompiled());
+		}
+		if (v.program.getFlightRecorder() != null) {
+			mDetach.add(v.program);
+		}
+		SwapListener l = mListener;
+		if (l != null) {
+			l.onRetired(this, v, drain);
+		}
+		EBPFEvents.Listener events = EBPFEvents.listener();
+		if (events != null) {
+			events.onRetired(mName, v.number, drain);
+		}
+	}
+
+	public int run(byte[] packet) throws EBPFProgramException {
+		return run(packet, null);
+	}
+
+	public int run(byte[] packet, EBPFContext ctx) throws EBPFProgramException {
+		Version v = enter();
+		try {
+			return v.program.run(packet, ctx);
+		} finally {
+			exit(v);
+		}
+	}
+
+	/**
+	 * See EBPFProgram.tryRun.
+	 */
+	public long tryRun(byte[] packet) {
+		return tryRun(packet, null);
+	}
+
+	public long tryRun(EBPFPacketView packet, EBPFContext ctx) {
+		Version v = enter();
+		try {
+			return v.program.tryRun(packet, ctx);
+		} finally {
+			exit(v);
+		}
+	}
+
+	/**
+	 * A batch on one version; see EBPFProgram.tryRun(EBPFPacketView[], ...).
+	 */
+	public void tryRun(EBPFPacketView[] packets, int n, EBPFContext ctx, long[] results) {
+		Version v = enter();
+		try {
+			v.program.tryRun(packets, n, ctx, results);
+		} finally {
+			exit(v);
+		}
+	}
+
+	public long tryRun(byte[] packet, EBPFContext ctx) {
+		Version v = enter();
+		try {
+			return v.program.tryRun(packet, ctx);
+		} finally {
+			exit(v);
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package com.sobel.jebpf;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Memory programs and the host share, for counters and the like: hang it
+ * off each worker's EBPFContext (setSharedMemory) and programs see it at
+ * EBPFMemory.region(slot). Programs update it with XADD, which is atomic,
+ * so many threads can count into it without the host adding up results
+ * after every run.
+ *
+ * Big-endian, like the rest of program memory: a 4 byte word at offset 8
+ * is the high half of the 8 byte word there. Offsets are in bytes and
+ * have to be aligned to the access width.
+ */
+public class EBPFSharedMemory {
+
+	public static final int MAX_SIZE = 1 << 24;
+
+	private final AtomicLongArray mWords;
+
+	/**
+	 * size in bytes, a multiple of 8.
+	 */
+	public EBPFSharedMemory(int size) {
+		if (size <= 0 || size > MAX_SIZE || size % 8 != 0) {
+			throw new IllegalArgumentException("Bad size " + size);
+		}
+		mWords = new AtomicLongArray(size / 8);
+	}
+
+	public int size() {
+		return mWords.length() * 8;
+	}
+
+	public long getLong(int offset) {
+		return mWords.get(offset >>> 3);
+	}
+
+	public void setLong(int offset, long v) {
+		mWords.set(offset >>> 3, v);
+	}
+
+	public int getInt(int offset) {
+		long w = mWords.get(offset >>> 3);
+		return (offset & 4) == 0 ? (int)(w >>> 32) : (int)w;
+	}
+
+	public void setInt(int offset, int v) {
+		int i = offset >>> 3;
+		for (;;) {
+			long w = mWords.get(i);
+			if (mWords.compareAndSet(i, w, withInt(w, offset, v))) {
+				return;
+			}
+		}
+	}
+
+	public void clear() {
+		int i;
+		for (i = 0; i < mWords.length(); i++) {
+			mWords.set(i, 0);
+		}
+	}
+
+	private static long withInt(long w, int offset, int v) {
+		if ((offset & 4) == 0) {
+			return (w & 0xFFFFFFFFL) | ((long)v << 32);
+		}
+		return (w & 0xFFFFFFFF00000000L) | (v & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Atomically adds v to the 4 byte word at offset, returning the new value.
+	 */
+	public int addInt(int offset, int v) {
+		int i = offset >>> 3;
+		for (;;) {
+			long w = mWords.get(i);
+			int sum = ((offset & 4) == 0 ? (int)(w >>> 32) : (int)w) + v;
+			if (mWords.compareAndSet(i, w, withInt(w, offset, sum))) {
+				return sum;
+			}
+		}
+	}
+
+	public long addLong(int offset, long v) {
+		return mWords.addAndGet(offset >>> 3, v);
+	}
+
+	/**
+	 * A 1 or 2 byte store, without disturbing its neighbours.
+	 */
+	void storeNarrow(int offset, int width, int v) {
+		int i = offset >>> 3;
+		for (;;) {
+			long w = mWords.get(i);
+			int old = (offset & 4) == 0 ? (int)(w >>> 32) : (int)w;
+			int next = EBPFMemory.widen(old, offset, width, v);
+			if (mWords.compareAndSet(i, w, withInt(w, offset, next))) {
+				return;
+			}
+		}
+	}
+}
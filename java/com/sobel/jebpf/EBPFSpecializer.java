@@ -0,0 +1,361 @@
+package com.sobel.jebpf;
+
+import java.util.Arrays;
+
+import com.sobel.jebpf.EBPFInstruction.InstructionClass;
+import com.sobel.jebpf.EBPFInstruction.InstructionCode;
+import com.sobel.jebpf.EBPFInstruction.InstructionMode;
+import com.sobel.jebpf.EBPFInstruction.InstructionSize;
+import com.sobel.jebpf.EBPFInstruction.InstructionSource;
+import com.sobel.jebpf.EBPFInstruction.Register;
+import com.sobel.jebpf.EBPFVerifier.EBPFVerifyException;
+
+/**
+ * Partial evaluation of a program against inputs the host knows ahead of
+ * time: configuration (thresholds, enabled flags) that filters read out of
+ * a fixed header region with LD_ABS, and that only changes on a config push.
+ *
+ * specialize() takes LD_ABS loads from inside the region to be the values
+ * given for it, carries known register values forward (jumps only go
+ * forward, so that's one sweep), folds ALU ops and conditional jumps on
+ * them (or compares against the value rather than the register), drops
+ * whatever that leaves unreachable, and then drops ALU results nothing
+ * reads. What comes out is a plain, shorter EBPFInstruction[] for
+ * any tier.
+ *
+ * The specialized program assumes every packet carries those values. In
+ * particular, a packet too short to hold the region doesn't fail out of
+ * bounds at a folded load any more.
+ *
+ * An instance keeps a specialized program published on an
+ * EBPFProgramHandle, and re-specializes and publishes again whenever it's
+ * given different values.
+ */
+public class EBPFSpecializer {
+
+	private static final int REGISTERS = Register.values().length;
+
+	private final EBPFInstruction[] mGeneric;
+	private final int mOffset;
+	private final boolean mWithContext;
+	private final EBPFProgramHandle mHandle;
+	private byte[] mValues;
+
+	/**
+	 * A handle named name running generic specialized for values at offset.
+	 * arena may be null; withContext: see EBPFVerifier.
+	 */
+	public EBPFSpecializer(String name, EBPFInstruction[] generic, int offset, byte[] values, EBPFCodeArena arena,
+			boolean withContext) throws EBPFVerifyException {
+		mGeneric = generic.clone();
+		mOffset = offset;
+		mWithContext = withContext;
+		mValues = values.clone();
+		mHandle = new EBPFProgramHandle(name, specialize(mGeneric, offset, mValues, withContext), arena, withContext);
+	}
+
+	public EBPFProgramHandle getHandle() {
+		return mHandle;
+	}
+
+	public int getOffset() {
+		return mOffset;
+	}
+
+	public synchronized byte[] getValues() {
+		return mValues.clone();
+	}
+
+	/**
+	 * Re-specialize for values and publish, if they're any different.
+	 * Returns whether it did.
+	 */
+	public synchronized boolean update(byte[] values) throws EBPFVerifyException {
+		if (Arrays.equals(values, mValues)) {
+			return false;
+		}
+		byte[] v = values.clone();
+		mHandle.publish(specialize(mGeneric, mOffset, v, mWithContext));
+		mValues = v;
+		return true;
+	}
+
+	/**
+	 * update() with one value changed: the size bytes at packet offset at,
+	 * big-endian like LD_ABS reads them.
+	 */
+	public synchronized boolean update(int at, InstructionSize size, int value) throws EBPFVerifyException {
+		int width = width(size);
+		int off = at - mOffset;
+		if (off < 0 || off > mValues.length - width) {
+			throw new IllegalArgumentException("Offset " + at + " is outside the constant region");
+		}
+		byte[] v = mValues.clone();
+		int i;
+		for (i = 0; i < width; i++) {
+			v[off + i] = (byte)(value >>> (8 * (width - 1 - i)));
+		}
+		return update(v);
+	}
+
+	private static int width(InstructionSize size) {
+		switch (size) {
+		case B: return 1;
+		case H: return 2;
+		case W: return 4;
+		default: throw new IllegalArgumentException("Bad size " + size);
+		}
+	}
+
+	public static EBPFInstruction[] specialize(EBPFInstruction[] insns, int offset, byte[] values)
+			throws EBPFVerifyException {
+		return specialize(insns, offset, values, false);
+	}
+
+	/**
+	 * insns specialized for packets whose bytes from offset on are values.
+	 * insns has to verify (withContext: see EBPFVerifier).
+	 */
+	public static EBPFInstruction[] specialize(EBPFInstruction[] insns, int offset, byte[] values,
+			boolean withContext) throws EBPFVerifyException {
+		EBPFVerifier.verify(insns, withContext);
+		EBPFInstruction[] out = compact(fold(insns, offset, values));
+		// Dropping a dead result can leave the one it was computed from
+		// dead too, so go until nothing changes.
+		for (;;) {
+			EBPFInstruction[] live = dropDead(out);
+			if (live == null) {
+				return out;
+			}
+			out = compact(live);
+		}
+	}
+
+	/**
+	 * The constant folding sweep. Returns insns rewritten, with null for
+	 * instructions to drop; jump offsets still point into insns.
+	 */
+	private static EBPFInstruction[] fold(EBPFInstruction[] insns, int offset, byte[] values) {
+		int n = insns.length;
+		// Registers known coming into each instruction: a mask, and values.
+		int[] known = new int[n];
+		int[] vals = new int[n * REGISTERS];
+		boolean[] reached = new boolean[n];
+		EBPFInstruction[] out = new EBPFInstruction[n];
+		int[] v = new int[REGISTERS];
+		if (n > 0) {
+			reached[0] = true;
+		}
+		int i;
+		for (i = 0; i < n; i++) {
+			if (!reached[i]) {
+				continue;
+			}
+			EBPFInstruction insn = insns[i];
+			int k = known[i];
+			System.arraycopy(vals, i * REGISTERS, v, 0, REGISTERS);
+			out[i] = insn;
+
+			if (insn.mClass == InstructionClass.ALU) {
+				int d = insn.mDstReg.ordinal();
+				boolean x = insn.mSource == InstructionSource.X;
+				InstructionCode c = insn.mCode;
+				boolean left = c == InstructionCode.MOV || (k & (1 << d)) != 0;
+				boolean right = c == InstructionCode.NEG || !x || (k & (1 << insn.mSrcReg.ordinal())) != 0;
+				if (left && right) {
+					int r = x && c != InstructionCode.NEG ? v[insn.mSrcReg.ordinal()] : insn.mImm;
+					if (c == InstructionCode.MOV) {
+						v[d] = r;
+					} else if (c == InstructionCode.NEG) {
+						v[d] = -v[d];
+					} else {
+						v[d] = EBPFCompiledProgram.alu(c.ordinal(), v[d], r);
+					}
+					k |= 1 << d;
+					if (c != InstructionCode.MOV || x) {
+						out[i] = EBPFInstruction.MOV_IMM(insn.mDstReg, v[d]);
+					}
+				} else {
+					k &= ~(1 << d);
+				}
+				flow(i + 1, k, v, reached, known, vals);
+				continue;
+			}
+
+			if (insn.mClass == InstructionClass.LD) {
+				k &= ~ControlFlowGraph.LD_CLOBBERS;
+				if (insn.mMode == InstructionMode.ABS) {
+					int width = width(insn.mSize);
+					long off = (long)insn.mImm - offset;
+					if (off >= 0 && off <= values.length - width) {
+						v[0] = load(values, (int)off, width);
+						k |= 1;
+						out[i] = EBPFInstruction.MOV_IMM(Register.R0, v[0]);
+					}
+				}
+				flow(i + 1, k, v, reached, known, vals);
+				continue;
+			}
+
+			if (insn.mClass != InstructionClass.JMP) {
+				k &= ~ControlFlowGraph.defs(insn);
+				flow(i + 1, k, v, reached, known, vals);
+				continue;
+			}
+
+			if (insn.mCode == InstructionCode.EXIT) {
+				continue;
+			}
+			if (insn.isTailCall()) {
+				k &= ~ControlFlowGraph.TAIL_CALL_CLOBBERS;
+				flow(i + 1, k, v, reached, known, vals);
+				continue;
+			}
+			int target = i + insn.mOff + 1;
+			if (insn.mCode == InstructionCode.JA) {
+				flow(target, k, v, reached, known, vals);
+				continue;
+			}
+			int a = insn.mDstReg.ordinal();
+			boolean x = insn.mSource == InstructionSource.X;
+			int b = x ? insn.mSrcReg.ordinal() : -1;
+			if ((k & (1 << a)) != 0 && (!x || (k & (1 << b)) != 0)) {
+				int op = EBPFCompiledProgram.JA + insn.mCode.ordinal() - InstructionCode.JA.ordinal();
+				if (EBPFCompiledProgram.cond(op, v[a], x ? v[b] : insn.mImm)) {
+					out[i] = EBPFInstruction.JMP_JA(insn.mOff);
+					flow(target, k, v, reached, known, vals);
+				} else {
+					out[i] = null;
+					flow(i + 1, k, v, reached, known, vals);
+				}
+				continue;
+			}
+			if (x && (k & (1 << b)) != 0) {
+				// Compare against the value instead, which can leave the
+				// register dead.
+				out[i] = EBPFInstruction.JMP_IMM(insn.mCode, insn.mDstReg, v[b], insn.mOff);
+				x = false;
+			}
+			flow(i + 1, k, v, reached, known, vals);
+			// Taken, an equality test pins the register down.
+			if (insn.mCode == InstructionCode.JEQ && !x) {
+				int saved = v[a];
+				v[a] = out[i].mImm;
+				flow(target, k | (1 << a), v, reached, known, vals);
+				v[a] = saved;
+			} else {
+				flow(target, k, v, reached, known, vals);
+			}
+		}
+		return out;
+	}
+
+	private static void flow(int to, int k, int[] v, boolean[] reached, int[] known, int[] vals) {
+		int base = to * REGISTERS;
+		if (!reached[to]) {
+			reached[to] = true;
+			known[to] = k;
+			System.arraycopy(v, 0, vals, base, REGISTERS);
+			return;
+		}
+		// Only what every path agrees on.
+		int both = known[to] & k;
+		int r;
+		for (r = 0; r < REGISTERS; r++) {
+			if ((both & (1 << r)) != 0 && vals[base + r] != v[r]) {
+				both &= ~(1 << r);
+			}
+		}
+		known[to] = both;
+	}
+
+	private static int load(byte[] b, int off, int width) {
+		int v = 0;
+		int i;
+		for (i = 0; i < width; i++) {
+			v = (v << 8) | (b[off + i] & 0xFF);
+		}
+		return v;
+	}
+
+	/**
+	 * insns with ALU instructions whose result is never read nulled out,
+	 * or null if there aren't any. ALU ops can't fail in a verified program,
+	 * so they're safe to lose.
+	 */
+	private static EBPFInstruction[] dropDead(EBPFInstruction[] insns) {
+		ControlFlowGraph cfg = ControlFlowGraph.build(insns);
+		EBPFInstruction[] out = null;
+		int b;
+		for (b = 0; b < cfg.getBlockCount(); b++) {
+			int live = cfg.getLiveOut(b);
+			int i;
+			for (i = cfg.getBlockEnd(b) - 1; i >= cfg.getBlockStart(b); i--) {
+				EBPFInstruction insn = insns[i];
+				if (insn.mClass == InstructionClass.ALU && (live & ControlFlowGraph.defs(insn)) == 0) {
+					if (out == null) {
+						out = insns.clone();
+					}
+					out[i] = null;
+					continue;
+				}
+				live = (live & ~ControlFlowGraph.defs(insn)) | ControlFlowGraph.uses(insn);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * insns without the nulls, and without jumps to where they'd fall
+	 * through to anyway, with jump offsets fixed up to match.
+	 */
+	private static EBPFInstruction[] compact(EBPFInstruction[] insns) {
+		int n = insns.length;
+		// First instruction kept at or after each index.
+		int[] next = new int[n + 1];
+		next[n] = n;
+		int i;
+		for (i = n - 1; i >= 0; i--) {
+			EBPFInstruction insn = insns[i];
+			if (insn != null && insn.mClass == InstructionClass.JMP && insn.mCode == InstructionCode.JA
+					&& next[i + insn.mOff + 1] == next[i + 1]) {
+				insns[i] = null;
+			}
+			next[i] = insns[i] != null ? i : next[i + 1];
+		}
+		int[] index = new int[n + 1];
+		int count = 0;
+		for (i = 0; i < n; i++) {
+			if (insns[i] != null) {
+				index[i] = count++;
+			}
+		}
+		index[n] = count;
+		EBPFInstruction[] out = new EBPFInstruction[count];
+		for (i = 0; i < n; i++) {
+			EBPFInstruction insn = insns[i];
+			if (insn == null) {
+				continue;
+			}
+			if (insn.mClass == InstructionClass.JMP && insn.mCode != InstructionCode.EXIT && !insn.isTailCall()) {
+				int to = index[next[i + insn.mOff + 1]];
+				insn = withOffset(insn, (short)(to - index[i] - 1));
+			}
+			out[index[i]] = insn;
+		}
+		return out;
+	}
+
+	private static EBPFInstruction withOffset(EBPFInstruction insn, short off) {
+		if (insn.mOff == off) {
+			return insn;
+		}
+		if (insn.mCode == InstructionCode.JA) {
+			return EBPFInstruction.JMP_JA(off);
+		}
+		if (insn.mSource == InstructionSource.X) {
+			return EBPFInstruction.JMP_REG(insn.mCode, insn.mDstReg, insn.mSrcReg, off);
+		}
+		return EBPFInstruction.JMP_IMM(insn.mCode, insn.mDstReg, insn.mImm, off);
+	}
+}
@@ -0,0 +1,193 @@
+package com.sobel.jebpf;
+
+/**
+ * Who programs run on behalf of, for workers shared between tenants.
+ * Every run of a program tagged with a tenant (EBPFProgram.setTenant) is
+ * charged to it: runs, instructions retired and wall time. Quotas per
+ * window of time then hold back a tenant that's used up its share, so one
+ * heavy filter can't starve everyone else's.
+ *
+ * Over quota, a tenant's runs fail with Status.QUOTA_EXCEEDED until the
+ * window ends, without running. With a throttle, one run in every
+ * throttle (counted per stripe) still goes through, so its filters slow
+ * down rather than stop.
+ *
+ * Charges go to StripedCounters, so a tenant shared by many workers is
+ * cheap to update. Instructions are the count each tier keeps per run
+ * anyway, added once at the end; nothing is charged per instruction.
+ * Usage is only held up against the quotas every CHECK_INTERVAL runs on
+ * each stripe, so a tenant can go a little over (at most CHECK_INTERVAL
+ * runs per stripe) before it's cut off.
+ */
+public class EBPFTenant {
+
+	// Runs between quota checks; a power of two.
+	public static final int CHECK_INTERVAL = 16;
+
+	private static final int RUNS = 0;
+	private static final int INSTRUCTIONS = 1;
+	private static final int NANOS = 2;
+	private static final int REJECTED = 3;
+	// Runs made over quota with a throttle, let through or not.
+	private static final int THROTTLED = 4;
+	private static final int COUNTERS = 5;
+
+	private final String mName;
+	private final StripedCounters mCounters = new StripedCounters(COUNTERS);
+
+	// 0 for no quotas.
+	private volatile long mWindow;
+	private volatile long mInstructionQuota = -1;
+	private volatile long mTimeQuota = -1;
+	private volatile int mThrottle;
+
+	// When the current window ends, and the totals when it started.
+	private volatile long mWindowEnd;
+	private long mWindowInstructions;
+	private long mWindowNanos;
+	private volatile boolean mOverQuota;
+
+	public EBPFTenant(String name) {
+		mName = name;
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	/**
+	 * Per window of windowNanos, let the tenant retire at most
+	 * maxInstructions and run for at most maxNanos (negative for no limit).
+	 * Starts a fresh window.
+	 */
+	public synchronized void setQuota(long windowNanos, long maxInstructions, long maxNanos) {
+		if (windowNanos <= 0) {
+			throw new IllegalArgumentException("Bad window " + windowNanos);
+		}
+		mInstructionQuota = maxInstructions;
+		mTimeQuota = maxNanos;
+		mWindow = windowNanos;
+		startWindow(System.nanoTime());
+	}
+
+	public synchronized void clearQuota() {
+		mWindow = 0;
+		mInstructionQuota = -1;
+		mTimeQuota = -1;
+		mOverQuota = false;
+	}
+
+	/**
+	 * Over quota, still let one run in every oneIn through (0 for none).
+	 */
+	public void setThrottle(int oneIn) {
+		if (oneIn < 0) {
+			throw new IllegalArgumentException("Bad throttle " + oneIn);
+		}
+		mThrottle = oneIn;
+	}
+
+	public long getWindowLength() {
+		return mWindow;
+	}
+
+	public long getInstructionQuota() {
+		return mInstructionQuota;
+	}
+
+	public long getTimeQuota() {
+		return mTimeQuota;
+	}
+
+	public int getThrottle() {
+		return mThrottle;
+	}
+
+	/**
+	 * Whether runs are being held back, as of the last check.
+	 */
+	public boolean isOverQuota() {
+		return mOverQuota;
+	}
+
+	public long getRuns() {
+		return mCounters.sum(RUNS);
+	}
+
+	public long getInstructionsRetired() {
+		return mCounters.sum(INSTRUCTIONS);
+	}
+
+	public long getWallNanos() {
+		return mCounters.sum(NANOS);
+	}
+
+	/**
+	 * Runs turned away over quota. Not counted in getRuns.
+	 */
+	public long getRejectedRuns() {
+		return mCounters.sum(REJECTED);
+	}
+
+	public synchronized long getWindowInstructions() {
+		return mCounters.sum(INSTRUCTIONS) - mWindowInstructions;
+	}
+
+	public synchronized long getWindowNanos() {
+		return mCounters.sum(NANOS) - mWindowNanos;
+	}
+
+	/**
+	 * Whether a run starting at now may go ahead. Counts it as rejected if not.
+	 */
+	boolean admit(long now) {
+		if (mWindow != 0 && now - mWindowEnd >= 0) {
+			rollWindow(now);
+		}
+		if (!mOverQuota) {
+			return true;
+		}
+		int throttle = mThrottle;
+		if (throttle > 0 && mCounters.incrementStripe(THROTTLED) % throttle == 0) {
+			return true;
+		}
+		mCounters.increment(REJECTED);
+		return false;
+	}
+
+	/**
+	 * After an admitted run.
+	 */
+	void charge(int instructions, long nanos) {
+		long runs = mCounters.incrementStripe(RUNS);
+		mCounters.add(INSTRUCTIONS, instructions);
+		mCounters.add(NANOS, nanos);
+		if ((runs & (CHECK_INTERVAL - 1)) == 0 && mWindow != 0) {
+			check();
+		}
+	}
+
+	private synchronized void rollWindow(long now) {
+		// Another thread may have got here first.
+		if (mWindow != 0 && now - mWindowEnd >= 0) {
+			startWindow(now);
+		}
+	}
+
+	private void startWindow(long now) {
+		mWindowInstructions = mCounters.sum(INSTRUCTIONS);
+		mWindowNanos = mCounters.sum(NANOS);
+		mWindowEnd = now + mWindow;
+		mOverQuota = mInstructionQuota == 0 || mTimeQuota == 0;
+	}
+
+	private synchronized void check() {
+		if (mWindow == 0) {
+			return;
+		}
+		long insnQuota = mInstructionQuota;
+		long timeQuota = mTimeQuota;
+		mOverQuota = (insnQuota >= 0 && mCounters.sum(INSTRUCTIONS) - mWindowInstructions >= insnQuota)
+			|| (timeQuota >= 0 && mCounters.sum(NANOS) - mWindowNanos >= timeQuota);
+	}
+}
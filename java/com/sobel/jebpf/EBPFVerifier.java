@@ -0,0 +1,222 @@
+package com.sobel.jebpf;
+
+import com.sobel.jebpf.EBPFInstruction.InstructionCode;
+import com.sobel.jebpf.EBPFInstruction.InstructionMode;
+import com.sobel.jebpf.EBPFInstruction.InstructionSize;
+import com.sobel.jebpf.EBPFInstruction.InstructionSource;
+import com.sobel.jebpf.EBPFInstruction.Register;
+
+/**
+ * Load-time checks, so a program that passes can only fail at runtime
+ * on data (out of bounds loads), never on its own structure.
+ *
+ * Rejects: unsupported classes, modes, codes and sizes, null registers,
+ * writes to R10, negative or out of range jumps, paths that fall off the
+ * end, and reads of registers that aren't initialized on every path (R10
+ * always is). That last one is a forward must-init pass over the
+ * ControlFlowGraph; jumps only go forward, so it's one sweep.
+ *
+ * A tail call (EBPFInstruction.TAIL_CALL) is checked as if it falls
+ * through: it reads R3 and leaves R1-R5 uninitialized behind it. The
+ * program it might go to is verified when it goes in the array.
+ *
+ * Unreachable code is only checked for structure.
+ */
+public class EBPFVerifier {
+
+	public static class EBPFVerifyException extends Exception {
+		// Offending instruction, -1 if it's about the whole program.
+		public final int instruction;
+
+		public EBPFVerifyException(String s, int i) {
+			super(i < 0 ? s : s + " at " + i);
+			instruction = i;
+		}
+	}
+
+	/**
+	 * Verifies insns, returning its control flow graph for reuse.
+	 */
+	public static ControlFlowGraph verify(EBPFInstruction[] insns) throws EBPFVerifyException {
+		return verify(insns, false);
+	}
+
+	/**
+	 * withContext: the program will be run with an EBPFContext, so R1
+	 * starts out initialized.
+	 */
+	public static ControlFlowGraph verify(EBPFInstruction[] insns, boolean withContext) throws EBPFVerifyException {
+		EBPFEvents.Listener l = EBPFEvents.listener();
+		if (l == null) {
+			return doVerify(insns, withContext);
+		}
+		long start = System.nanoTime();
+		try {
+			ControlFlowGraph cfg = doVerify(insns, withContext);
+			l.onVerified(insns.length, withContext, null, System.nanoTime() - start);
+			return cfg;
+		} catch (EBPFVerifyException e) {
+			l.onVerified(insns.length, withContext, e.getMessage(), System.nanoTime() - start);
+			throw e;
+		}
+	}
+
+	private static ControlFlowGraph doVerify(EBPFInstruction[] insns, boolean withContext) throws EBPFVerifyException {
+		if (insns.length == 0) {
+			throw new EBPFVerifyException("Empty program", -1);
+		}
+		int i;
+		for (i = 0; i < insns.length; i++) {
+			checkStructure(insns[i], i, insns.length);
+		}
+
+		ControlFlowGraph cfg = ControlFlowGraph.build(insns);
+		int blocks = cfg.getBlockCount();
+		// Registers initialized on entry to each block, on every path.
+		int[] initIn = new int[blocks];
+		boolean[] seen = new boolean[blocks];
+		seen[0] = true;
+		initIn[0] = ControlFlowGraph.registerMask(Register.R10);
+		if (withContext) {
+			initIn[0] |= ControlFlowGraph.registerMask(Register.R1);
+		}
+
+		int b;
+		for (b = 0; b < blocks; b++) {
+			if (!cfg.isReachable(b)) {
+				continue;
+			}
+			if ((cfg.getFlags(b) & ControlFlowGraph.FLAG_FALLS_OFF) != 0) {
+				throw new EBPFVerifyException("Falls off the end of the program", cfg.getBlockEnd(b) - 1);
+			}
+			int init = initIn[b];
+			for (i = cfg.getBlockStart(b); i < cfg.getBlockEnd(b); i++) {
+				int missing = ControlFlowGraph.uses(insns[i]) & ~init;
+				if (missing != 0) {
+					Register r = Register.values()[Integer.numberOfTrailingZeros(missing)];
+					throw new EBPFVerifyException("Read of possibly uninitialized " + r, i);
+				}
+				init = applyDefs(insns[i], init);
+			}
+			int s;
+			for (s = 0; s < cfg.getSuccessorCount(b); s++) {
+				int succ = cfg.getSuccessor(b, s);
+				if (seen[succ]) {
+					initIn[succ] &= init;
+				} else {
+					seen[succ] = true;
+					initIn[succ] = init;
+				}
+			}
+		}
+		return cfg;
+	}
+
+	/**
+	 * Initialized set after insn runs.
+	 */
+	static int applyDefs(EBPFInstruction insn, int init) {
+		switch (insn.mClass) {
+		case ALU:
+			return init | ControlFlowGraph.registerMask(insn.mDstReg);
+		case LD:
+			// R0 gets the value, R1-R5 are scratched.
+			return (init & ~ControlFlowGraph.LD_CLOBBERS) | ControlFlowGraph.registerMask(Register.R0);
+		case LDX:
+			return init | ControlFlowGraph.registerMask(insn.mDstReg);
+		case JMP:
+			// Only a tail call that falls through gets past, with R1-R5 scratched.
+			return insn.isTailCall() ? init & ~ControlFlowGraph.TAIL_CALL_CLOBBERS : init;
+		default:
+			return init;
+		}
+	}
+
+	private static void checkStructure(EBPFInstruction insn, int i, int n) throws EBPFVerifyException {
+		switch (insn.mClass) {
+		case ALU:
+			if (insn.mCode == InstructionCode.END_NOT_IMPLEMENTED) {
+				throw new EBPFVerifyException("Unsupported ALU code " + insn.mCode, i);
+			}
+			if (insn.mDstReg == null) {
+				throw new EBPFVerifyException("Null destination register", i);
+			}
+			if (insn.mDstReg == Register.R10) {
+				throw new EBPFVerifyException("Write to read-only R10", i);
+			}
+			if (insn.mSource == InstructionSource.X && insn.mCode != InstructionCode.NEG && insn.mSrcReg == null) {
+				throw new EBPFVerifyException("Null source register", i);
+			}
+			return;
+		case JMP:
+			if (insn.mOff < 0) {
+				throw new EBPFVerifyException("Negative jump offset", i);
+			}
+			if (insn.mCode == InstructionCode.EXIT || insn.isTailCall()) {
+				return;
+			}
+			if (insn.mCode.ordinal() > InstructionCode.JSGE.ordinal()) {
+				throw new EBPFVerifyException("Unsupported JMP code " + insn.mCode, i);
+			}
+			if (i + insn.mOff + 1 >= n) {
+				throw new EBPFVerifyException("Jump out of range", i);
+			}
+			if (insn.mCode == InstructionCode.JA) {
+				return;
+			}
+			if (insn.mDstReg == null || (insn.mSource == InstructionSource.X && insn.mSrcReg == null)) {
+				throw new EBPFVerifyException("Null register in comparison", i);
+			}
+			return;
+		case LD:
+			if (insn.mSize == InstructionSize.DW) {
+				throw new EBPFVerifyException("Unsupported load size " + insn.mSize, i);
+			}
+			if (insn.mMode == InstructionMode.ABS) {
+				return;
+			}
+			if (insn.mMode == InstructionMode.IND) {
+				if (insn.mSrcReg == null) {
+					throw new EBPFVerifyException("Null source register", i);
+				}
+				return;
+			}
+			throw new EBPFVerifyException("Unsupported LD mode " + insn.mMode, i);
+		case LDX:
+			if (insn.mMode != InstructionMode.MEM) {
+				throw new EBPFVerifyException("Unsupported LDX mode " + insn.mMode, i);
+			}
+			if (insn.mSize == null) {
+				throw new EBPFVerifyException("Missing load size", i);
+			}
+			if (insn.mSize == InstructionSize.DW) {
+				throw new EBPFVerifyException("Unsupported load size " + insn.mSize, i);
+			}
+			if (insn.mSrcReg == null || insn.mDstReg == null) {
+				throw new EBPFVerifyException("Null register in load", i);
+			}
+			if (insn.mDstReg == Register.R10) {
+				throw new EBPFVerifyException("Write to read-only R10", i);
+			}
+			return;
+		case STX:
+			if (insn.mMode != InstructionMode.MEM && insn.mMode != InstructionMode.XADD) {
+				throw new EBPFVerifyException("Unsupported STX mode " + insn.mMode, i);
+			}
+			if (insn.mSrcReg == null || insn.mDstReg == null) {
+				throw new EBPFVerifyException("Null register in store", i);
+			}
+			if (insn.mSize == null) {
+				throw new EBPFVerifyException("Missing store size", i);
+			}
+			if (insn.mMode == InstructionMode.XADD
+					? insn.mSize != InstructionSize.W && insn.mSize != InstructionSize.DW
+					: insn.mSize == InstructionSize.DW) {
+				throw new EBPFVerifyException("Unsupported " + insn.mMode + " size " + insn.mSize, i);
+			}
+			return;
+		default:
+			throw new EBPFVerifyException("Unsupported instruction class " + insn.mClass, i);
+		}
+	}
+}
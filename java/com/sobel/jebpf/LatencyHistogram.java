@@ -0,0 +1,117 @@
+package com.sobel.jebpf;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of non-negative longs (nanoseconds, usually),
+ * in the style of HdrHistogram: each power of two is split into
+ * SUB_BUCKETS linear buckets, so any recorded value is reported to
+ * within 1/SUB_BUCKETS (about 6%) of what it was.
+ *
+ * Values above MAX_TRACKABLE are clamped into the last bucket.
+ * Recording is lock free and touches only its bucket (and the max, when
+ * it goes up); reads are a racy snapshot, and add up the buckets.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 4;
+	public static final int SUB_BUCKETS = 1 << SUB_BITS;
+	// About 68 seconds in nanos. Plenty for a packet filter.
+	public static final long MAX_TRACKABLE = (1L << 36) - 1;
+
+	private static final int BUCKETS = indexOf(MAX_TRACKABLE) + 1;
+
+	private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong mMax = new AtomicLong();
+
+	static int indexOf(long v) {
+		if (v < SUB_BUCKETS) {
+			return (int)v;
+		}
+		int msb = 63 - Long.numberOfLeadingZeros(v);
+		int magnitude = msb - SUB_BITS + 1;
+		int sub = (int)(v >>> (msb - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (magnitude << SUB_BITS) + sub;
+	}
+
+	/**
+	 * Smallest value that lands in bucket i.
+	 */
+	static long lowerBound(int i) {
+		int magnitude = i >>> SUB_BITS;
+		int sub = i & (SUB_BUCKETS - 1);
+		if (magnitude == 0) {
+			return sub;
+		}
+		return ((long)(SUB_BUCKETS + sub)) << (magnitude - 1);
+	}
+
+	/**
+	 * Largest value that lands in bucket i.
+	 */
+	static long upperBound(int i) {
+		if (i + 1 >= BUCKETS) {
+			return MAX_TRACKABLE;
+		}
+		return lowerBound(i + 1) - 1;
+	}
+
+	public void record(long v) {
+		if (v < 0) {
+			v = 0;
+		} else if (v > MAX_TRACKABLE) {
+			v = MAX_TRACKABLE;
+		}
+		mCounts.getAndIncrement(indexOf(v));
+		long max = mMax.get();
+		while (v > max && !mMax.compareAndSet(max, v)) {
+			max = mMax.get();
+		}
+	}
+
+	public long getCount() {
+		long total = 0;
+		int i;
+		for (i = 0; i < BUCKETS; i++) {
+			total += mCounts.get(i);
+		}
+		return total;
+	}
+
+	public long getMax() {
+		return mMax.get();
+	}
+
+	/**
+	 * Upper bound of the bucket holding the p-th percentile (0 < p <= 100),
+	 * capped at the max actually recorded. 0 if empty.
+	 */
+	public long getValueAtPercentile(double p) {
+		long total = getCount();
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long)Math.ceil(total * p / 100.0);
+		if (rank < 1) {
+			rank = 1;
+		}
+		long seen = 0;
+		int i;
+		for (i = 0; i < BUCKETS; i++) {
+			seen += mCounts.get(i);
+			if (seen >= rank) {
+				return Math.min(upperBound(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	public void reset() {
+		int i;
+		for (i = 0; i < BUCKETS; i++) {
+			mCounts.set(i, 0);
+		}
+		mMax.set(0);
+	}
+}
@@ -0,0 +1,82 @@
+package com.sobel.jebpf;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed set of long counters, striped across threads so concurrent
+ * writers don't fight over one cache line. Same idea as LongAdder (which
+ * we can't use at our SDK level), but all counters for a program share
+ * one array: each stripe holds every counter, padded to a cache line.
+ *
+ * Writes go to the calling thread's stripe; reads sum all stripes and
+ * are only as consistent as LongAdder.sum().
+ */
+public class StripedCounters {
+
+	// Longs per cache line.
+	private static final int PAD = 8;
+	private static final int STRIPES;
+	static {
+		int n = 1;
+		int cpus = Runtime.getRuntime().availableProcessors();
+		while (n < cpus && n < 64) {
+			n <<= 1;
+		}
+		STRIPES = n;
+	}
+
+	private final int mCounters;
+	private final int mStride;
+	private final AtomicLongArray mCells;
+
+	public StripedCounters(int counters) {
+		mCounters = counters;
+		// Round each stripe up to whole cache lines, plus one line between
+		// stripes so neighbours never share.
+		mStride = ((counters + PAD - 1) / PAD) * PAD + PAD;
+		mCells = new AtomicLongArray(mStride * STRIPES);
+	}
+
+	public int size() {
+		return mCounters;
+	}
+
+	private int base() {
+		// Thread ids are small and sequential, good enough as a hash.
+		return (int)(Thread.currentThread().getId() & (STRIPES - 1)) * mStride;
+	}
+
+	public void add(int counter, long delta) {
+		mCells.getAndAdd(base() + counter, delta);
+	}
+
+	public void increment(int counter) {
+		mCells.getAndIncrement(base() + counter);
+	}
+
+	/**
+	 * Increments counter and returns the calling thread's stripe of it:
+	 * a count only this thread (and the odd one hashed alongside it)
+	 * moves, for doing something every so many events without sharing a
+	 * counter to find out when.
+	 */
+	public long incrementStripe(int counter) {
+		return mCells.incrementAndGet(base() + counter);
+	}
+
+	public long sum(int counter) {
+		long s = 0;
+		int i;
+		for (i = 0; i < STRIPES; i++) {
+			s += mCells.get(i * mStride + counter);
+		}
+		return s;
+	}
+
+	public void reset() {
+		int i;
+		for (i = 0; i < mCells.length(); i++) {
+			mCells.set(i, 0);
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package com.sobel.jebpf;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Flow;
+
+import com.sobel.jebpf.EBPFInterpreter.Status;
+
+/**
+ * A Flow stage that passes on the packets a program accepts (finishes OK
+ * with a nonzero R0) and drops the rest, failures included. Packets are
+ * the bytes between each ByteBuffer's position and limit, and go on
+ * untouched.
+ *
+ * Backed by a handle, so the program can be swapped while the stream runs.
+ */
+public class EBPFFilterProcessor extends EBPFFlowStage<ByteBuffer> {
+
+	private volatile long mDropped;
+	private volatile long mFailed;
+
+	public EBPFFilterProcessor(EBPFProgramHandle handle) {
+		this(handle, null, DEFAULT_BATCH);
+	}
+
+	public EBPFFilterProcessor(EBPFProgramHandle handle, EBPFContext ctx, int batch) {
+		super(handle, ctx, batch);
+	}
+
+	/**
+	 * Packets dropped so far, failures included.
+	 */
+	public long getDropped() {
+		return mDropped;
+	}
+
+	/**
+	 * Packets the program failed on.
+	 */
+	public long getFailed() {
+		return mFailed;
+	}
+
+	@Override
+	boolean wants(long result) {
+		return EBPFProgram.statusOf(result) == Status.OK && EBPFProgram.valueOf(result) != 0;
+	}
+
+	@Override
+	boolean emit(Flow.Subscriber<? super ByteBuffer> s, ByteBuffer packet, long result) {
+		if (!wants(result)) {
+			// Only ever written by the one draining thread.
+			if (EBPFProgram.statusOf(result) != Status.OK) {
+				mFailed++;
+			}
+			mDropped++;
+			return false;
+		}
+		s.onNext(packet);
+		return true;
+	}
+}
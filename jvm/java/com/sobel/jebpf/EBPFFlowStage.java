@@ -0,0 +1,303 @@
+package com.sobel.jebpf;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The plumbing shared by the Flow processors: a ring of packets received
+ * from upstream, run through the program a batch at a time, and handed
+ * downstream as demand allows.
+ *
+ * Upstream is asked for at most as many packets as the ring holds, and
+ * topped up as packets leave it, so nothing is ever dropped for lack of
+ * room. Whoever is calling in (upstream's onNext or downstream's request)
+ * does the work; a work-in-progress counter keeps it to one thread at a
+ * time. Once running, nothing is allocated per packet.
+ */
+abstract class EBPFFlowStage<T> implements Flow.Processor<ByteBuffer, T>, Flow.Subscription {
+
+	public static final int DEFAULT_BATCH = 64;
+
+	private final EBPFProgramHandle mHandle;
+	private final EBPFContext mContext;
+
+	// The ring; mResults[i] is the result for mQueue[i] once evaluated.
+	private final ByteBuffer[] mQueue;
+	private final long[] mResults;
+	private final int mMask;
+	// Written by onNext, read by the drain.
+	private final AtomicLong mTail = new AtomicLong();
+	// Written by the drain, read by onNext.
+	private final AtomicLong mHead = new AtomicLong();
+	// Drain only.
+	private long mEvaluated;
+	private int mConsumed;
+	private final int mLimit;
+	private final EBPFPacketView[] mViews;
+	private final long[] mBatchResults;
+
+	private final AtomicInteger mWip = new AtomicInteger();
+	private final AtomicLong mRequested = new AtomicLong();
+	private final AtomicReference<Flow.Subscriber<? super T>> mDownstream =
+		new AtomicReference<Flow.Subscriber<? super T>>();
+	private volatile Flow.Subscription mUpstream;
+	private volatile boolean mDone;
+	private Throwable mError;
+	private volatile boolean mCancelled;
+	// A bad request(n), for the drain to turn into onError.
+	private volatile Throwable mBadRequest;
+
+	/**
+	 * batch is rounded up to a power of two. ctx may be null; if not, the
+	 * host has to keep it meaningful for every packet.
+	 */
+	EBPFFlowStage(EBPFProgramHandle handle, EBPFContext ctx, int batch) {
+		if (batch < 1) {
+			throw new IllegalArgumentException("Bad batch " + batch);
+		}
+		int n = Integer.highestOneBit(batch);
+		if (n < batch) {
+			n <<= 1;
+		}
+		mHandle = handle;
+		mContext = ctx;
+		mQueue = new ByteBuffer[n];
+		mResults = new long[n];
+		mMask = n - 1;
+		mLimit = Math.max(n / 2, 1);
+		mViews = new EBPFPacketView[n];
+		int i;
+		for (i = 0; i < n; i++) {
+			mViews[i] = new EBPFPacketView(1);
+		}
+		mBatchResults = new long[n];
+	}
+
+	public EBPFProgramHandle getHandle() {
+		return mHandle;
+	}
+
+	public int getBatchSize() {
+		return mQueue.length;
+	}
+
+	/**
+	 * Deliver packet, with its result (see EBPFProgram.statusOf / valueOf),
+	 * or drop it. Returns false if it was dropped: drops use no demand.
+	 */
+	abstract boolean emit(Flow.Subscriber<? super T> s, ByteBuffer packet, long result);
+
+	/**
+	 * Whether packet would be emitted, without emitting it.
+	 */
+	abstract boolean wants(long result);
+
+	// Upstream side.
+
+	@Override
+	public void onSubscribe(Flow.Subscription s) {
+		if (mUpstream != null) {
+			s.cancel();
+			return;
+		}
+		mUpstream = s;
+		if (mCancelled || mBadRequest != null) {
+			s.cancel();
+			return;
+		}
+		s.request(mQueue.length);
+	}
+
+	@Override
+	public void onNext(ByteBuffer packet) {
+		if (packet == null) {
+			throw new NullPointerException("packet");
+		}
+		long tail = mTail.get();
+		if (tail - mHead.get() == mQueue.length) {
+			mUpstream.cancel();
+			onError(new IllegalStateException("Sent more than requested"));
+			return;
+		}
+		mQueue[(int)tail & mMask] = packet;
+		mTail.lazySet(tail + 1);
+		drain();
+	}
+
+	@Override
+	public void onError(Throwable t) {
+		mError = t;
+		mDone = true;
+		drain();
+	}
+
+	@Override
+	public void onComplete() {
+		mDone = true;
+		drain();
+	}
+
+	// Downstream side.
+
+	/**
+	 * Only one subscriber; any more are told off with onError.
+	 */
+	@Override
+	public void subscribe(Flow.Subscriber<? super T> s) {
+		if (!mDownstream.compareAndSet(null, s)) {
+			s.onSubscribe(new Flow.Subscription() {
+				@Override
+				public void request(long n) {
+				}
+
+				@Override
+				public void cancel() {
+				}
+			});
+			s.onError(new IllegalStateException("Already subscribed"));
+			return;
+		}
+		s.onSubscribe(this);
+		drain();
+	}
+
+	@Override
+	public void request(long n) {
+		if (n <= 0) {
+			// The drain signals it, so it can't overlap an onNext (rule 1.3).
+			mBadRequest = new IllegalArgumentException("Requested " + n);
+			Flow.Subscription up = mUpstream;
+			if (up != null) {
+				up.cancel();
+			}
+			drain();
+			return;
+		}
+		for (;;) {
+			long r = mRequested.get();
+			long next = r + n < 0 ? Long.MAX_VALUE : r + n;
+			if (mRequested.compareAndSet(r, next)) {
+				break;
+			}
+		}
+		drain();
+	}
+
+	@Override
+	public void cancel() {
+		mCancelled = true;
+		Flow.Subscription up = mUpstream;
+		if (up != null) {
+			up.cancel();
+		}
+		drain();
+	}
+
+	private void drain() {
+		if (mWip.getAndIncrement() != 0) {
+			return;
+		}
+		int missed = 1;
+		for (;;) {
+			if (mCancelled) {
+				clear();
+			} else {
+				Flow.Subscriber<? super T> s = mDownstream.get();
+				if (s != null) {
+					drain(s);
+					Throwable bad = mBadRequest;
+					if (bad != null && !mCancelled) {
+						mCancelled = true;
+						clear();
+						s.onError(bad);
+					}
+				}
+			}
+			missed = mWip.addAndGet(-missed);
+			if (missed == 0) {
+				return;
+			}
+		}
+	}
+
+	private void drain(Flow.Subscriber<? super T> s) {
+		long requested = mRequested.get();
+		long emitted = 0;
+		for (;;) {
+			if (mCancelled) {
+				clear();
+				return;
+			}
+			if (mBadRequest != null) {
+				return;
+			}
+			boolean done = mDone;
+			long head = mHead.get();
+			long tail = mTail.get();
+			if (head == tail) {
+				if (done) {
+					mCancelled = true;
+					if (mError != null) {
+						s.onError(mError);
+					} else {
+						s.onComplete();
+					}
+				}
+				break;
+			}
+			if (head == mEvaluated) {
+				evaluate(head, tail);
+			}
+			int slot = (int)head & mMask;
+			long result = mResults[slot];
+			if (emitted == requested && wants(result)) {
+				break;
+			}
+			ByteBuffer packet = mQueue[slot];
+			mQueue[slot] = null;
+			mHead.lazySet(head + 1);
+			if (emit(s, packet, result)) {
+				emitted++;
+			}
+			if (++mConsumed == mLimit) {
+				mConsumed = 0;
+				mUpstream.request(mLimit);
+			}
+		}
+		if (emitted != 0 && requested != Long.MAX_VALUE) {
+			mRequested.addAndGet(-emitted);
+		}
+	}
+
+	/**
+	 * Runs everything queued from head to tail in one go.
+	 */
+	private void evaluate(long head, long tail) {
+		int n = (int)(tail - head);
+		int i;
+		for (i = 0; i < n; i++) {
+			ByteBuffer b = mQueue[(int)(head + i) & mMask];
+			mViews[i].add(b, b.position(), b.remaining());
+		}
+		mHandle.tryRun(mViews, n, mContext, mBatchResults);
+		for (i = 0; i < n; i++) {
+			mResults[(int)(head + i) & mMask] = mBatchResults[i];
+			mViews[i].clear();
+		}
+		mEvaluated = tail;
+	}
+
+	private void clear() {
+		long head = mHead.get();
+		long tail = mTail.get();
+		while (head != tail) {
+			mQueue[(int)head & mMask] = null;
+			head++;
+		}
+		mHead.lazySet(head);
+		mEvaluated = head;
+	}
+}
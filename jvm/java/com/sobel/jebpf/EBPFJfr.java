@@ -0,0 +1,287 @@
+package com.sobel.jebpf;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import com.sobel.jebpf.EBPFInterpreter.Status;
+
+/**
+ * Java Flight Recorder events for jebpf, from the EBPFEvents hooks:
+ * program decode, verify, compile, publish and retire, and runs that are
+ * slow (or sampled), all under the "jebpf" category. So filter cost shows
+ * up next to GC and CPU in the same recording.
+ *
+ * Call install() once at startup. Each hook bails out after one check
+ * while its event isn't enabled in a running recording. Runs are only
+ * timed at all while one has the run event enabled: a recorder listener
+ * turns EBPFEvents run reporting on and off as recordings come and go.
+ *
+ * Durations are the hooks' own measurements, in each event's time field;
+ * the events themselves are instants.
+ */
+public final class EBPFJfr {
+
+	// Runs at least this slow are reported, unless install says otherwise.
+	public static final long DEFAULT_RUN_THRESHOLD = 100_000;
+
+	@Name("com.sobel.jebpf.Decode")
+	@Label("Program Decode")
+	@Category("jebpf")
+	@StackTrace(false)
+	static final class DecodeEvent extends Event {
+		@Label("Bytes")
+		@DataAmount
+		int bytes;
+
+		@Label("Error")
+		String error;
+
+		@Label("Time")
+		@Timespan
+		long time;
+	}
+
+	@Name("com.sobel.jebpf.Verify")
+	@Label("Program Verify")
+	@Category("jebpf")
+	@StackTrace(false)
+	static final class VerifyEvent extends Event {
+		@Label("Instructions")
+		int instructions;
+
+		@Label("With Context")
+		boolean withContext;
+
+		@Label("Error")
+		String error;
+
+		@Label("Time")
+		@Timespan
+		long time;
+	}
+
+	@Name("com.sobel.jebpf.Compile")
+	@Label("Program Compile")
+	@Category("jebpf")
+	@StackTrace(false)
+	static final class CompileEvent extends Event {
+		@Label("Program")
+		String program;
+
+		@Label("Instructions")
+		int instructions;
+
+		@Label("Code Size")
+		@DataAmount
+		int codeBytes;
+
+		@Label("From Cache")
+		boolean cached;
+
+		@Label("Time")
+		@Timespan
+		long time;
+	}
+
+	@Name("com.sobel.jebpf.Publish")
+	@Label("Program Publish")
+	@Description("A new version of a program swapped in")
+	@Category("jebpf")
+	@StackTrace(false)
+	static final class PublishEvent extends Event {
+		@Label("Program")
+		String program;
+
+		@Label("Version")
+		long version;
+
+		@Label("Instructions")
+		int instructions;
+
+		@Label("Prepare Time")
+		@Timespan
+		long time;
+	}
+
+	@Name("com.sobel.jebpf.Retire")
+	@Label("Program Retire")
+	@Description("An old version's last run finished")
+	@Category("jebpf")
+	@StackTrace(false)
+	static final class RetireEvent extends Event {
+		@Label("Program")
+		String program;
+
+		@Label("Version")
+		long version;
+
+		@Label("Drain Time")
+		@Timespan
+		long time;
+	}
+
+	@Name("com.sobel.jebpf.Run")
+	@Label("Program Run")
+	@Description("A slow or sampled run")
+	@Category("jebpf")
+	@StackTrace(false)
+	static final class RunEvent extends Event {
+		@Label("Program")
+		String program;
+
+		@Label("Instructions")
+		int instructions;
+
+		@Label("Status")
+		String status;
+
+		@Label("Instructions Executed")
+		int steps;
+
+		@Label("Time")
+		@Timespan
+		long time;
+	}
+
+	private static final class Listener implements EBPFEvents.Listener {
+		@Override
+		public void onDecoded(int bytes, String error, long nanos) {
+			DecodeEvent e = new DecodeEvent();
+			if (e.isEnabled()) {
+				e.bytes = bytes;
+				e.error = error;
+				e.time = nanos;
+				e.commit();
+			}
+		}
+
+		@Override
+		public void onVerified(int instructions, boolean withContext, String error, long nanos) {
+			VerifyEvent e = new VerifyEvent();
+			if (e.isEnabled()) {
+				e.instructions = instructions;
+				e.withContext = withContext;
+				e.error = error;
+				e.time = nanos;
+				e.commit();
+			}
+		}
+
+		@Override
+		public void onCompiled(String program, int instructions, int codeBytes, boolean cached, long nanos) {
+			CompileEvent e = new CompileEvent();
+			if (e.isEnabled()) {
+				e.program = program;
+				e.instructions = instructions;
+				e.codeBytes = codeBytes;
+				e.cached = cached;
+				e.time = nanos;
+				e.commit();
+			}
+		}
+
+		@Override
+		public void onPublished(String program, long version, int instructions, long prepareNanos) {
+			PublishEvent e = new PublishEvent();
+			if (e.isEnabled()) {
+				e.program = program;
+				e.version = version;
+				e.instructions = instructions;
+				e.time = prepareNanos;
+				e.commit();
+			}
+		}
+
+		@Override
+		public void onRetired(String program, long version, long drainNanos) {
+			RetireEvent e = new RetireEvent();
+			if (e.isEnabled()) {
+				e.program = program;
+				e.version = version;
+				e.time = drainNanos;
+				e.commit();
+			}
+		}
+
+		@Override
+		public void onRun(String program, int instructions, Status status, int steps, long nanos) {
+			RunEvent e = new RunEvent();
+			if (e.isEnabled()) {
+				e.program = program;
+				e.instructions = instructions;
+				e.status = status.name();
+				e.steps = steps;
+				e.time = nanos;
+				e.commit();
+			}
+		}
+	}
+
+	private static Listener sListener;
+	private static FlightRecorderListener sRecordings;
+	private static long sRunThreshold;
+	private static int sRunSampling;
+
+	private EBPFJfr() {
+	}
+
+	public static void install() {
+		install(DEFAULT_RUN_THRESHOLD, 0);
+	}
+
+	/**
+	 * While the run event is enabled, report runs that take at least
+	 * runThresholdNanos (negative for none) and one in every sampleEvery
+	 * (0 for none). Replaces any other EBPFEvents listener.
+	 */
+	public static synchronized void install(long runThresholdNanos, int sampleEvery) {
+		sRunThreshold = runThresholdNanos;
+		sRunSampling = sampleEvery;
+		if (sListener == null) {
+			sListener = new Listener();
+			EBPFEvents.setListener(sListener);
+			sRecordings = new FlightRecorderListener() {
+				@Override
+				public void recordingStateChanged(Recording r) {
+					updateRunReporting();
+				}
+			};
+			FlightRecorder.addListener(sRecordings);
+		}
+		updateRunReporting();
+	}
+
+	public static synchronized void uninstall() {
+		if (sListener == null) {
+			return;
+		}
+		FlightRecorder.removeListener(sRecordings);
+		if (EBPFEvents.getListener() == sListener) {
+			EBPFEvents.setListener(null);
+		}
+		EBPFEvents.setRunReporting(-1, 0);
+		sListener = null;
+		sRecordings = null;
+	}
+
+	private static synchronized void updateRunReporting() {
+		if (sListener == null) {
+			return;
+		}
+		if (EventType.getEventType(RunEvent.class).isEnabled()) {
+			EBPFEvents.setRunReporting(sRunThreshold, sRunSampling);
+		} else {
+			EBPFEvents.setRunReporting(-1, 0);
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package com.sobel.jebpf;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Flow;
+
+import com.sobel.jebpf.EBPFInterpreter.Status;
+
+/**
+ * A Flow stage that passes on every packet, tagged with what the program
+ * said about it.
+ *
+ * To keep from allocating per packet, the Verdict handed to onNext is
+ * the same object every time: it is only good until onNext returns. A
+ * subscriber that hands packets off to another thread has to copy out
+ * what it needs first.
+ */
+public class EBPFVerdictProcessor extends EBPFFlowStage<EBPFVerdictProcessor.Verdict> {
+
+	public static class Verdict {
+		private ByteBuffer mPacket;
+		private long mResult;
+
+		public ByteBuffer getPacket() {
+			return mPacket;
+		}
+
+		/**
+		 * Status and R0 packed; see EBPFProgram.statusOf / valueOf.
+		 */
+		public long getResult() {
+			return mResult;
+		}
+
+		public Status getStatus() {
+			return EBPFProgram.statusOf(mResult);
+		}
+
+		/**
+		 * R0; only meaningful if getStatus() is OK.
+		 */
+		public int getValue() {
+			return EBPFProgram.valueOf(mResult);
+		}
+
+		/**
+		 * Finished OK with a nonzero R0.
+		 */
+		public boolean isAccepted() {
+			return getStatus() == Status.OK && getValue() != 0;
+		}
+
+		@Override
+		public String toString() {
+			return getStatus() + " " + getValue();
+		}
+	}
+
+	private final Verdict mVerdict = new Verdict();
+
+	public EBPFVerdictProcessor(EBPFProgramHandle handle) {
+		this(handle, null, DEFAULT_BATCH);
+	}
+
+	public EBPFVerdictProcessor(EBPFProgramHandle handle, EBPFContext ctx, int batch) {
+		super(handle, ctx, batch);
+	}
+
+	@Override
+	boolean wants(long result) {
+		return true;
+	}
+
+	@Override
+	boolean emit(Flow.Subscriber<? super Verdict> s, ByteBuffer packet, long result) {
+		Verdict v = mVerdict;
+		v.mPacket = packet;
+		v.mResult = result;
+		s.onNext(v);
+		v.mPacket = null;
+		return true;
+	}
+}
@@ -0,0 +1,307 @@
+package jebpf;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+
+import org.junit.Test;
+
+import com.sobel.jebpf.EBPFFilterProcessor;
+import com.sobel.jebpf.EBPFInstruction;
+import com.sobel.jebpf.EBPFInstruction.InstructionCode;
+import com.sobel.jebpf.EBPFInstruction.InstructionSize;
+import com.sobel.jebpf.EBPFInstruction.Register;
+import com.sobel.jebpf.EBPFInterpreter.Status;
+import com.sobel.jebpf.EBPFProgramHandle;
+import com.sobel.jebpf.EBPFVerdictProcessor;
+import com.sobel.jebpf.EBPFVerdictProcessor.Verdict;
+
+public class EBPFFlowTests {
+
+	// Accepts packets whose first byte is odd; fails on empty ones.
+	private static EBPFProgramHandle getHandle() throws Exception {
+		return new EBPFProgramHandle("odd", new EBPFInstruction[] {
+			EBPFInstruction.LD_ABS(InstructionSize.B, 0),
+			EBPFInstruction.ALU_IMM(InstructionCode.AND, Register.R0, 1),
+			EBPFInstruction.EXIT(),
+		}, null);
+	}
+
+	private static List<ByteBuffer> getPackets(int n) {
+		List<ByteBuffer> out = new ArrayList<ByteBuffer>();
+		int i;
+		for (i = 0; i < n; i++) {
+			if (i % 10 == 9) {
+				out.add(ByteBuffer.allocate(0));
+			} else if (i % 2 == 0) {
+				// Direct, with the packet not at the start.
+				ByteBuffer b = ByteBuffer.allocateDirect(4);
+				b.put(0, (byte)7).put(1, (byte)i);
+				b.position(1);
+				out.add(b);
+			} else {
+				out.add(ByteBuffer.wrap(new byte[] {(byte)i}));
+			}
+		}
+		return out;
+	}
+
+	private static boolean accepted(ByteBuffer b) {
+		return b.remaining() > 0 && (b.get(b.position()) & 1) != 0;
+	}
+
+	/**
+	 * Hands out packets strictly as requested, and checks nobody asks for
+	 * more than the stage can hold.
+	 */
+	private static class Source implements Flow.Subscription {
+		final List<ByteBuffer> packets;
+		final Flow.Subscriber<? super ByteBuffer> subscriber;
+		long requested;
+		int sent;
+		boolean sending;
+		boolean cancelled;
+		long maxOutstanding;
+
+		Source(List<ByteBuffer> p, Flow.Subscriber<? super ByteBuffer> s) {
+			packets = p;
+			subscriber = s;
+			s.onSubscribe(this);
+		}
+
+		@Override
+		public void request(long n) {
+			requested += n;
+			maxOutstanding = Math.max(maxOutstanding, requested);
+			if (sending) {
+				return;
+			}
+			sending = true;
+			while (requested > 0 && sent < packets.size() && !cancelled) {
+				requested--;
+				subscriber.onNext(packets.get(sent++));
+			}
+			sending = false;
+			if (sent == packets.size() && !cancelled) {
+				cancelled = true;
+				subscriber.onComplete();
+			}
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+		}
+	}
+
+	private static class Sink<T> implements Flow.Subscriber<T> {
+		final List<Object> got = new ArrayList<Object>();
+		final int step;
+		Flow.Subscription subscription;
+		boolean complete;
+		Throwable error;
+
+		Sink(int s) {
+			step = s;
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription s) {
+			subscription = s;
+			if (step > 0) {
+				s.request(step);
+			}
+		}
+
+		@Override
+		public synchronized void onNext(T item) {
+			if (item instanceof Verdict) {
+				Verdict v = (Verdict)item;
+				got.add(v.getPacket());
+				got.add(v.getStatus());
+			} else {
+				got.add(item);
+			}
+			if (step > 0) {
+				subscription.request(step);
+			}
+		}
+
+		@Override
+		public synchronized void onError(Throwable t) {
+			error = t;
+			notifyAll();
+		}
+
+		@Override
+		public synchronized void onComplete() {
+			complete = true;
+			notifyAll();
+		}
+
+		synchronized void await() throws InterruptedException {
+			long until = System.currentTimeMillis() + 10000;
+			while (!complete && error == null && System.currentTimeMillis() < until) {
+				wait(100);
+			}
+			assertTrue(complete || error != null);
+		}
+	}
+
+	@Test
+	public void testFilter() throws Exception {
+		List<ByteBuffer> packets = getPackets(500);
+		List<Object> expected = new ArrayList<Object>();
+		for (ByteBuffer b : packets) {
+			if (accepted(b)) {
+				expected.add(b);
+			}
+		}
+		for (int step : new int[] {1, 3, 1000}) {
+			EBPFFilterProcessor f = new EBPFFilterProcessor(getHandle(), null, 16);
+			Sink<ByteBuffer> sink = new Sink<ByteBuffer>(step);
+			f.subscribe(sink);
+			Source source = new Source(packets, f);
+			sink.await();
+			assertNull(sink.error);
+			assertEquals(expected, sink.got);
+			assertEquals(500 - expected.size(), f.getDropped());
+			assertEquals(50, f.getFailed());
+			assertTrue(source.maxOutstanding <= f.getBatchSize());
+		}
+	}
+
+	@Test
+	public void testBackpressure() throws Exception {
+		List<ByteBuffer> packets = getPackets(100);
+		EBPFFilterProcessor f = new EBPFFilterProcessor(getHandle(), null, 8);
+		Sink<ByteBuffer> sink = new Sink<ByteBuffer>(0);
+		f.subscribe(sink);
+		Source source = new Source(packets, f);
+		// Nothing asked for downstream: upstream stops once the ring is full.
+		assertEquals(8, source.sent);
+		assertTrue(sink.got.isEmpty());
+
+		sink.subscription.request(2);
+		assertEquals(2, sink.got.size());
+		assertTrue(source.sent < 100);
+		sink.subscription.request(Long.MAX_VALUE);
+		sink.await();
+		assertEquals(100, source.sent);
+	}
+
+	@Test
+	public void testVerdicts() throws Exception {
+		List<ByteBuffer> packets = getPackets(40);
+		EBPFVerdictProcessor v = new EBPFVerdictProcessor(getHandle());
+		Sink<Verdict> sink = new Sink<Verdict>(5);
+		v.subscribe(sink);
+		SubmissionPublisher<ByteBuffer> publisher = new SubmissionPublisher<ByteBuffer>();
+		publisher.subscribe(v);
+		for (ByteBuffer b : packets) {
+			publisher.submit(b);
+		}
+		publisher.close();
+		sink.await();
+		assertNull(sink.error);
+		assertEquals(80, sink.got.size());
+		int i;
+		for (i = 0; i < 40; i++) {
+			ByteBuffer b = packets.get(i);
+			assertSame(b, sink.got.get(2 * i));
+			assertEquals(b.remaining() == 0 ? Status.OUT_OF_BOUNDS : Status.OK, sink.got.get(2 * i + 1));
+		}
+	}
+
+	@Test
+	public void testSwap() throws Exception {
+		EBPFProgramHandle h = getHandle();
+		EBPFFilterProcessor f = new EBPFFilterProcessor(h, null, 1);
+		Sink<ByteBuffer> sink = new Sink<ByteBuffer>(1);
+		f.subscribe(sink);
+		SubmissionPublisher<ByteBuffer> publisher = new SubmissionPublisher<ByteBuffer>();
+		publisher.subscribe(f);
+		publisher.submit(ByteBuffer.wrap(new byte[] {2}));
+		h.publish(new EBPFInstruction[] {
+			EBPFInstruction.MOV_IMM(Register.R0, 1),
+			EBPFInstruction.EXIT(),
+		});
+		publisher.submit(ByteBuffer.wrap(new byte[] {4}));
+		publisher.close();
+		sink.await();
+		// At most the first was run on the old program.
+		assertTrue(sink.got.size() >= 1);
+		assertEquals(4, ((ByteBuffer)sink.got.get(sink.got.size() - 1)).get(0));
+	}
+
+	@Test
+	public void testErrors() throws Exception {
+		EBPFFilterProcessor f = new EBPFFilterProcessor(getHandle());
+		Sink<ByteBuffer> first = new Sink<ByteBuffer>(0);
+		f.subscribe(first);
+		Sink<ByteBuffer> second = new Sink<ByteBuffer>(1);
+		f.subscribe(second);
+		assertTrue(second.error instanceof IllegalStateException);
+
+		Source source = new Source(getPackets(100), f);
+		first.subscription.request(0);
+		assertTrue(first.error instanceof IllegalArgumentException);
+		assertTrue(source.cancelled);
+
+		f = new EBPFFilterProcessor(getHandle());
+		Sink<ByteBuffer> sink = new Sink<ByteBuffer>(1);
+		f.subscribe(sink);
+		SubmissionPublisher<ByteBuffer> publisher = new SubmissionPublisher<ByteBuffer>();
+		publisher.subscribe(f);
+		publisher.closeExceptionally(new RuntimeException("boom"));
+		sink.await();
+		assertEquals("boom", sink.error.getMessage());
+	}
+
+	@Test
+	public void testBadRequestInOnNext() throws Exception {
+		// The error for a bad request made in onNext comes after it returns.
+		EBPFFilterProcessor f = new EBPFFilterProcessor(getHandle());
+		final boolean[] inOnNext = new boolean[1];
+		final List<String> signals = new ArrayList<String>();
+		Sink<ByteBuffer> sink = new Sink<ByteBuffer>(100) {
+			@Override
+			public synchronized void onNext(ByteBuffer item) {
+				assertFalse(inOnNext[0]);
+				inOnNext[0] = true;
+				signals.add("next");
+				subscription.request(-1);
+				inOnNext[0] = false;
+			}
+
+			@Override
+			public synchronized void onError(Throwable t) {
+				assertFalse(inOnNext[0]);
+				signals.add("error");
+				super.onError(t);
+			}
+		};
+		f.subscribe(sink);
+		Source source = new Source(getPackets(100), f);
+		assertTrue(sink.error instanceof IllegalArgumentException);
+		assertTrue(source.cancelled);
+		assertEquals("[next, error]", signals.toString());
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		EBPFFilterProcessor f = new EBPFFilterProcessor(getHandle(), null, 4);
+		Sink<ByteBuffer> sink = new Sink<ByteBuffer>(1);
+		f.subscribe(sink);
+		sink.subscription.cancel();
+		Source source = new Source(getPackets(100), f);
+		assertTrue(source.cancelled);
+		assertTrue(source.sent <= 4);
+		assertTrue(sink.got.isEmpty());
+		assertFalse(sink.complete);
+	}
+}
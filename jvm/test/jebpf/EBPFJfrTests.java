@@ -0,0 +1,89 @@
+package jebpf;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import com.sobel.jebpf.EBPFEvents;
+import com.sobel.jebpf.EBPFInstruction;
+import com.sobel.jebpf.EBPFInstruction.InstructionCode;
+import com.sobel.jebpf.EBPFInstruction.InstructionSize;
+import com.sobel.jebpf.EBPFInstruction.Register;
+import com.sobel.jebpf.EBPFJfr;
+import com.sobel.jebpf.EBPFPackedProgram;
+import com.sobel.jebpf.EBPFProgram;
+import com.sobel.jebpf.EBPFProgramHandle;
+
+public class EBPFJfrTests {
+
+	private static EBPFInstruction[] getProgram(int k) {
+		return new EBPFInstruction[] {
+			EBPFInstruction.LD_ABS(InstructionSize.B, 0),
+			EBPFInstruction.ALU_IMM(InstructionCode.ADD, Register.R0, k),
+			EBPFInstruction.EXIT(),
+		};
+	}
+
+	@Test
+	public void testEvents() throws Exception {
+		EBPFJfr.install(-1, 1);
+		File f = File.createTempFile("jebpf", ".jfr");
+		try {
+			Recording r = new Recording();
+			r.enable("com.sobel.jebpf.Decode");
+			r.enable("com.sobel.jebpf.Verify");
+			r.enable("com.sobel.jebpf.Compile");
+			r.enable("com.sobel.jebpf.Publish");
+			r.enable("com.sobel.jebpf.Retire");
+			r.enable("com.sobel.jebpf.Run");
+			r.start();
+
+			EBPFPackedProgram.decode(new EBPFPackedProgram(getProgram(1)).encode());
+			EBPFProgramHandle h = new EBPFProgramHandle("jfr", getProgram(1), null);
+			h.publish(getProgram(2));
+			assertEquals(2 + 7, h.run(new byte[] {7}));
+			EBPFProgram p = new EBPFProgram("interpreted", getProgram(3), -1, null);
+			p.tryRun(new byte[0]);
+
+			r.stop();
+			r.dump(f.toPath());
+			r.close();
+
+			Map<String, Integer> counts = new HashMap<String, Integer>();
+			List<RecordedEvent> events = RecordingFile.readAllEvents(f.toPath());
+			for (RecordedEvent e : events) {
+				String name = e.getEventType().getName();
+				Integer n = counts.get(name);
+				counts.put(name, n == null ? 1 : n + 1);
+				if (name.equals("com.sobel.jebpf.Run") && e.getString("program").equals("interpreted")) {
+					assertEquals("OUT_OF_BOUNDS", e.getString("status"));
+					assertEquals(1, e.getInt("steps"));
+					assertEquals(3, e.getInt("instructions"));
+				}
+				if (name.equals("com.sobel.jebpf.Compile")) {
+					assertEquals(3, e.getInt("instructions"));
+					assertTrue(e.getInt("codeBytes") > 0);
+				}
+			}
+			assertEquals(Integer.valueOf(1), counts.get("com.sobel.jebpf.Decode"));
+			assertEquals(Integer.valueOf(2), counts.get("com.sobel.jebpf.Verify"));
+			assertEquals(Integer.valueOf(2), counts.get("com.sobel.jebpf.Compile"));
+			assertEquals(Integer.valueOf(2), counts.get("com.sobel.jebpf.Publish"));
+			assertEquals(Integer.valueOf(1), counts.get("com.sobel.jebpf.Retire"));
+			assertEquals(Integer.valueOf(2), counts.get("com.sobel.jebpf.Run"));
+		} finally {
+			EBPFJfr.uninstall();
+			f.delete();
+		}
+		assertNull(EBPFEvents.getListener());
+	}
+}
@@ -0,0 +1,150 @@
+package jebpf;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.sobel.jebpf.ControlFlowGraph;
+import com.sobel.jebpf.EBPFInstruction;
+import com.sobel.jebpf.EBPFInstruction.InstructionCode;
+import com.sobel.jebpf.EBPFInstruction.InstructionSize;
+import com.sobel.jebpf.EBPFInstruction.Register;
+
+public class ControlFlowGraphTests {
+
+	private static int mask(Register... regs) {
+		int m = 0;
+		for (Register r : regs) {
+			m |= ControlFlowGraph.registerMask(r);
+		}
+		return m;
+	}
+
+	@Test
+	public void testStraightLine() {
+		EBPFInstruction[] code = {
+			EBPFInstruction.MOV_IMM(Register.R0, 1),
+			EBPFInstruction.ALU_IMM(InstructionCode.ADD, Register.R0, 1),
+			EBPFInstruction.EXIT(),
+		};
+		ControlFlowGraph cfg = ControlFlowGraph.build(code);
+		assertEquals(1, cfg.getBlockCount());
+		assertEquals(0, cfg.getBlockStart(0));
+		assertEquals(3, cfg.getBlockEnd(0));
+		assertEquals(0, cfg.getSuccessorCount(0));
+		assertEquals(ControlFlowGraph.FLAG_EXIT, cfg.getFlags(0));
+		assertEquals(0, cfg.getLiveIn(0));
+	}
+
+	@Test
+	public void testEmpty() {
+		ControlFlowGraph cfg = ControlFlowGraph.build(new EBPFInstruction[] {});
+		assertEquals(0, cfg.getBlockCount());
+	}
+
+	@Test
+	public void testDiamond() {
+		EBPFInstruction[] code = {
+			EBPFInstruction.LD_ABS(InstructionSize.B, 0),                          // 0: B0
+			EBPFInstruction.JMP_IMM(InstructionCode.JEQ, Register.R0, 5, (short)2), // 1
+			EBPFInstruction.MOV_IMM(Register.R6, 1),                                // 2: B1
+			EBPFInstruction.JMP_JA((short)1),                                       // 3
+			EBPFInstruction.MOV_IMM(Register.R6, 2),                                // 4: B2
+			EBPFInstruction.MOV_REG(Register.R0, Register.R6),                      // 5: B3
+			EBPFInstruction.EXIT(),                                                 // 6
+		};
+		ControlFlowGraph cfg = ControlFlowGraph.build(code);
+		assertEquals(4, cfg.getBlockCount());
+		assertEquals(1, cfg.getBlockOf(3));
+		assertEquals(2, cfg.getBlockOf(4));
+		assertEquals(3, cfg.getBlockOf(6));
+
+		assertEquals(2, cfg.getSuccessorCount(0));
+		assertEquals(1, cfg.getSuccessor(0, 0)); // fallthrough first
+		assertEquals(2, cfg.getSuccessor(0, 1));
+		assertEquals(1, cfg.getSuccessorCount(1));
+		assertEquals(3, cfg.getSuccessor(1, 0));
+		assertEquals(2, cfg.getPredecessorCount(3));
+
+		assertEquals(0, cfg.getImmediateDominator(3));
+		assertTrue(cfg.dominates(0, 3));
+		assertFalse(cfg.dominates(1, 3));
+		assertFalse(cfg.dominates(2, 3));
+
+		assertEquals(mask(Register.R6), cfg.getLiveIn(3));
+		assertEquals(mask(Register.R6), cfg.getLiveOut(1));
+		// R0 from the LD is overwritten in B3 before EXIT reads it.
+		assertEquals(0, cfg.getLiveOut(0));
+		assertEquals(0, cfg.getLiveIn(0));
+	}
+
+	@Test
+	public void testLdScratchKillsLiveness() {
+		EBPFInstruction[] code = {
+			EBPFInstruction.LD_ABS(InstructionSize.B, 0),
+			EBPFInstruction.ALU_REG(InstructionCode.ADD, Register.R0, Register.R1),
+			EBPFInstruction.EXIT(),
+		};
+		ControlFlowGraph cfg = ControlFlowGraph.build(code);
+		// R1 is read but was scratched by the LD - nothing flows in.
+		assertEquals(0, cfg.getLiveIn(0));
+	}
+
+	@Test
+	public void testLiveIntoEntry() {
+		EBPFInstruction[] code = {
+			EBPFInstruction.MOV_REG(Register.R0, Register.R1),
+			EBPFInstruction.EXIT(),
+		};
+		ControlFlowGraph cfg = ControlFlowGraph.build(code);
+		assertEquals(mask(Register.R1), cfg.getLiveIn(0));
+	}
+
+	@Test
+	public void testUnreachable() {
+		EBPFInstruction[] code = {
+			EBPFInstruction.MOV_IMM(Register.R0, 0),
+			EBPFInstruction.JMP_JA((short)1),
+			EBPFInstruction.MOV_IMM(Register.R0, 1), // dead
+			EBPFInstruction.EXIT(),
+		};
+		ControlFlowGraph cfg = ControlFlowGraph.build(code);
+		assertEquals(3, cfg.getBlockCount());
+		assertTrue(cfg.isReachable(0));
+		assertFalse(cfg.isReachable(1));
+		assertTrue(cfg.isReachable(2));
+		assertEquals(0, cfg.getImmediateDominator(2));
+		assertEquals(ControlFlowGraph.NO_BLOCK, cfg.getImmediateDominator(1));
+	}
+
+	@Test
+	public void testBadJumpsAndFallingOff() {
+		EBPFInstruction[] code = {
+			EBPFInstruction.MOV_IMM(Register.R0, 0),
+			EBPFInstruction.JMP_IMM(InstructionCode.JEQ, Register.R0, 0, (short)5), // past the end
+			EBPFInstruction.JMP_JA((short)-2),
+			EBPFInstruction.MOV_IMM(Register.R0, 0), // falls off
+		};
+		ControlFlowGraph cfg = ControlFlowGraph.build(code);
+		assertEquals(3, cfg.getBlockCount());
+		assertEquals(ControlFlowGraph.FLAG_FALLS_OFF, cfg.getFlags(0));
+		assertEquals(1, cfg.getSuccessorCount(0));
+		assertEquals(ControlFlowGraph.FLAG_BAD_JUMP, cfg.getFlags(1));
+		assertEquals(0, cfg.getSuccessorCount(1));
+		assertFalse(cfg.isReachable(2));
+		assertEquals(ControlFlowGraph.FLAG_FALLS_OFF, cfg.getFlags(2));
+	}
+
+	@Test
+	public void testZeroOffsetBranchHasOneSuccessor() {
+		EBPFInstruction[] code = {
+			EBPFInstruction.MOV_IMM(Register.R0, 0),
+			EBPFInstruction.JMP_IMM(InstructionCode.JEQ, Register.R0, 0, (short)0),
+			EBPFInstruction.EXIT(),
+		};
+		ControlFlowGraph cfg = ControlFlowGraph.build(code);
+		assertEquals(2, cfg.getBlockCount());
+		assertEquals(1, cfg.getSuccessorCount(0));
+		assertEquals(1, cfg.getPredecessorCount(1));
+	}
+}
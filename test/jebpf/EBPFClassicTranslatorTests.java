@@ -0,0 +1,243 @@
+package jebpf;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.sobel.jebpf.EBPFClassicTranslator;
+import com.sobel.jebpf.EBPFClassicTranslator.EBPFTranslateException;
+import com.sobel.jebpf.EBPFClassicTranslator.SockFilter;
+import com.sobel.jebpf.EBPFCompiledProgram;
+import com.sobel.jebpf.EBPFContext;
+import com.sobel.jebpf.EBPFInstruction;
+import com.sobel.jebpf.EBPFInterpreter;
+import com.sobel.jebpf.EBPFInterpreter.Status;
+import com.sobel.jebpf.EBPFLaneProgram;
+import com.sobel.jebpf.EBPFProgram;
+import com.sobel.jebpf.EBPFVerifier;
+import com.sobel.jebpf.EBPFVerifier.EBPFVerifyException;
+
+public class EBPFClassicTranslatorTests {
+
+	// tcpdump -dd "tcp dst port 22"
+	private static final String TCP_DST_22 =
+			"{ 0x28, 0, 0, 0x0000000c },\n"
+			+ "{ 0x15, 0, 4, 0x000086dd },\n"
+			+ "{ 0x30, 0, 0, 0x00000014 },\n"
+			+ "{ 0x15, 0, 11, 0x00000006 },\n"
+			+ "{ 0x28, 0, 0, 0x00000038 },\n"
+			+ "{ 0x15, 8, 9, 0x00000016 },\n"
+			+ "{ 0x15, 0, 8, 0x00000800 },\n"
+			+ "{ 0x30, 0, 0, 0x00000017 },\n"
+			+ "{ 0x15, 0, 6, 0x00000006 },\n"
+			+ "{ 0x28, 0, 0, 0x00000014 },\n"
+			+ "{ 0x45, 4, 0, 0x00001fff },\n"
+			+ "{ 0xb1, 0, 0, 0x0000000e },\n"
+			+ "{ 0x48, 0, 0, 0x00000010 },\n"
+			+ "{ 0x15, 0, 1, 0x00000016 },\n"
+			+ "{ 0x6, 0, 0, 0x00040000 },\n"
+			+ "{ 0x6, 0, 0, 0x00000000 },\n";
+
+	// The same, tcpdump -ddd
+	private static final String TCP_DST_22_DDD =
+			"16\n40 0 0 12\n21 0 4 34525\n48 0 0 20\n21 0 11 6\n40 0 0 56\n21 8 9 22\n21 0 8 2048\n"
+			+ "48 0 0 23\n21 0 6 6\n40 0 0 20\n69 4 0 8191\n177 0 0 14\n72 0 0 16\n21 0 1 22\n"
+			+ "6 0 0 262144\n6 0 0 0\n";
+
+	private static byte[] getIPv4(int proto, int port, boolean fragment) {
+		byte[] p = new byte[60];
+		p[12] = 0x08;
+		p[14] = 0x46; // 24 byte header
+		p[20] = (byte)(fragment ? 0x20 : 0x40);
+		p[21] = (byte)(fragment ? 1 : 0);
+		p[23] = (byte)proto;
+		p[14 + 24 + 2] = (byte)(port >> 8);
+		p[14 + 24 + 3] = (byte)port;
+		return p;
+	}
+
+	private static byte[] getIPv6(int port) {
+		byte[] p = new byte[80];
+		p[12] = (byte)0x86;
+		p[13] = (byte)0xdd;
+		p[20] = 6;
+		p[56] = (byte)(port >> 8);
+		p[57] = (byte)port;
+		return p;
+	}
+
+	private static int run(EBPFInstruction[] code, byte[] packet) {
+		EBPFInterpreter t = new EBPFInterpreter(code);
+		Status s = t.tryRun(packet);
+		long r = EBPFCompiledProgram.compile(code).tryRun(packet);
+		assertEquals(s, EBPFProgram.statusOf(r));
+		if (s == Status.OK) {
+			assertEquals(t.getReturnValue(), EBPFProgram.valueOf(r));
+		}
+		return EBPFClassicTranslator.verdict(r);
+	}
+
+	@Test
+	public void testTcpdumpFilter() throws EBPFTranslateException, EBPFVerifyException {
+		SockFilter[] filter = EBPFClassicTranslator.parse(TCP_DST_22);
+		assertEquals(16, filter.length);
+		assertEquals(0xb1, filter[11].mCode);
+		assertEquals(filter.length, EBPFClassicTranslator.parse(TCP_DST_22_DDD).length);
+
+		EBPFInstruction[] code = EBPFClassicTranslator.translate(filter);
+		EBPFVerifier.verify(code);
+		assertTrue(EBPFLaneProgram.compile(code).isVectorized());
+
+		assertEquals(262144, run(code, getIPv4(6, 22, false)));
+		assertEquals(0, run(code, getIPv4(6, 80, false)));
+		assertEquals(0, run(code, getIPv4(17, 22, false)));
+		assertEquals(0, run(code, getIPv4(6, 22, true)));
+		assertEquals(262144, run(code, getIPv6(22)));
+		assertEquals(0, run(code, getIPv6(23)));
+		// Too short to hold the port: out of bounds, which is 0.
+		byte[] runt = new byte[30];
+		runt[12] = 0x08;
+		runt[14] = 0x46;
+		runt[23] = 6;
+		assertEquals(0, run(code, runt));
+		assertEquals(0, run(code, new byte[0]));
+
+		assertEquals(code.length, EBPFClassicTranslator.translate(EBPFClassicTranslator.parse(TCP_DST_22_DDD)).length);
+	}
+
+	@Test
+	public void testDecode() throws EBPFTranslateException {
+		byte[] b = {
+			0x28, 0, 0, 0, 0x0c, 0, 0, 0,
+			0x15, 0, 2, 3, (byte)0xdd, (byte)0x86, 0, 0,
+		};
+		SockFilter[] f = EBPFClassicTranslator.decode(b, ByteOrder.LITTLE_ENDIAN);
+		assertEquals(0x28, f[0].mCode);
+		assertEquals(12, f[0].mK);
+		assertEquals(2, f[1].mJt);
+		assertEquals(3, f[1].mJf);
+		assertEquals(0x86dd, f[1].mK);
+		assertEquals("{ 0x15, 2, 3, 0x000086dd }", f[1].toString());
+	}
+
+	@Test
+	public void testScratchAndRegisters() throws EBPFTranslateException, EBPFVerifyException {
+		// M[3] = P[0]; X = P[1]; A = M[3] * X - X; M[15] = A; A = 0; X = M[15]; return X + 1
+		SockFilter[] filter = {
+			new SockFilter(0x30, 0, 0, 0),  // ldb [0]
+			new SockFilter(0x02, 0, 0, 3),  // st M[3]
+			new SockFilter(0x30, 0, 0, 1),  // ldb [1]
+			new SockFilter(0x07, 0, 0, 0),  // tax
+			new SockFilter(0x60, 0, 0, 3),  // ld M[3]
+			new SockFilter(0x2c, 0, 0, 0),  // mul x
+			new SockFilter(0x1c, 0, 0, 0),  // sub x
+			new SockFilter(0x02, 0, 0, 15), // st M[15]
+			new SockFilter(0x00, 0, 0, 0),  // ld #0
+			new SockFilter(0x61, 0, 0, 15), // ldx M[15]
+			new SockFilter(0x87, 0, 0, 0),  // txa
+			new SockFilter(0x04, 0, 0, 1),  // add #1
+			new SockFilter(0x16, 0, 0, 0),  // ret a
+		};
+		EBPFInstruction[] code = EBPFClassicTranslator.translate(filter);
+		EBPFVerifier.verify(code);
+		assertEquals(7 * 5 - 5 + 1, run(code, new byte[] {7, 5}));
+	}
+
+	@Test
+	public void testUnsignedDivide() throws EBPFTranslateException {
+		int[] values = {0, 1, 7, 100, 0x7FFFFFFF, 0x80000000, 0x80000001, 0xFFFFFFFE, 0xFFFFFFFF, 12345678};
+		for (int a : values) {
+			for (int d : values) {
+				for (boolean mod : new boolean[] {false, true}) {
+					int op = mod ? 0x94 : 0x34;
+					// A = P[0:4], X = d, A op= X; and A op= d as a constant.
+					SockFilter[] byX = {
+						new SockFilter(0x20, 0, 0, 0),
+						new SockFilter(0x01, 0, 0, d),
+						new SockFilter(op | 0x08, 0, 0, 0),
+						new SockFilter(0x16, 0, 0, 0),
+					};
+					byte[] packet = {(byte)(a >> 24), (byte)(a >> 16), (byte)(a >> 8), (byte)a};
+					long ua = a & 0xFFFFFFFFL;
+					long ud = d & 0xFFFFFFFFL;
+					int expected = d == 0 ? 0 : (int)(mod ? ua % ud : ua / ud);
+					String where = Long.toHexString(ua) + (mod ? " % " : " / ") + Long.toHexString(ud);
+					assertEquals(where, expected, run(EBPFClassicTranslator.translate(byX), packet));
+					if (d != 0) {
+						SockFilter[] byK = {byX[0], new SockFilter(op, 0, 0, d), byX[3]};
+						assertEquals(where, expected, run(EBPFClassicTranslator.translate(byK), packet));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testLength() throws EBPFTranslateException, EBPFVerifyException {
+		// return len > 10 ? len : 1
+		SockFilter[] filter = {
+			new SockFilter(0x80, 0, 0, 0),  // ld len
+			new SockFilter(0x25, 1, 0, 10), // jgt #10
+			new SockFilter(0x06, 0, 0, 1),  // ret #1
+			new SockFilter(0x16, 0, 0, 0),  // ret a
+		};
+		try {
+			EBPFClassicTranslator.translate(filter);
+			fail();
+		} catch (EBPFTranslateException e) {
+			assertEquals(0, e.instruction);
+		}
+		EBPFInstruction[] code = EBPFClassicTranslator.translate(filter, true);
+		EBPFVerifier.verify(code, true);
+		EBPFCompiledProgram p = EBPFCompiledProgram.compile(code);
+		EBPFContext ctx = new EBPFContext();
+		for (int len : new int[] {3, 10, 11, 200}) {
+			byte[] packet = new byte[len];
+			ctx.parseEthernet(packet, 0);
+			long r = p.tryRun(packet, ctx, p.newFrame());
+			assertEquals(len > 10 ? len : 1, EBPFClassicTranslator.verdict(r));
+		}
+	}
+
+	@Test
+	public void testRejects() {
+		SockFilter ret = new SockFilter(0x06, 0, 0, 0);
+		SockFilter[][] bad = {
+			{},
+			// Doesn't end in RET
+			{new SockFilter(0x00, 0, 0, 0)},
+			// Jumps past the end
+			{new SockFilter(0x15, 0, 1, 0), ret},
+			{new SockFilter(0x05, 0, 0, 1), ret},
+			// Scratch out of range
+			{new SockFilter(0x02, 0, 0, 16), ret},
+			{new SockFilter(0x60, 0, 0, -1), ret},
+			// Ancillary load (SKF_AD_OFF + SKF_AD_PROTOCOL)
+			{new SockFilter(0x28, 0, 0, -0x1000), ret},
+			// Division by a 0 constant, and a bad shift
+			{new SockFilter(0x34, 0, 0, 0), ret},
+			{new SockFilter(0x64, 0, 0, 32), ret},
+			// Unknown codes: ALU MOV, LDX ABS, ldh MSH
+			{new SockFilter(0xb4, 0, 0, 0), ret},
+			{new SockFilter(0x21, 0, 0, 0), ret},
+			{new SockFilter(0xa8, 0, 0, 0), ret},
+		};
+		for (SockFilter[] f : bad) {
+			try {
+				EBPFClassicTranslator.translate(f);
+				fail(Arrays.toString(f));
+			} catch (EBPFTranslateException e) {
+				// expected
+			}
+		}
+		try {
+			EBPFClassicTranslator.parse("2\n6 0 0 0\n");
+			fail();
+		} catch (EBPFTranslateException e) {
+			// expected
+		}
+	}
+}
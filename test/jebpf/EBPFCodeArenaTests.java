@@ -0,0 +1,90 @@
+package jebpf;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.sobel.jebpf.EBPFCodeArena;
+import com.sobel.jebpf.EBPFCompiledProgram;
+import com.sobel.jebpf.EBPFInstruction;
+import com.sobel.jebpf.EBPFInstruction.InstructionCode;
+import com.sobel.jebpf.EBPFInstruction.InstructionSize;
+import com.sobel.jebpf.EBPFInstruction.Register;
+import com.sobel.jebpf.EBPFInterpreter.EBPFProgramException;
+
+public class EBPFCodeArenaTests {
+
+	// Returns k if byte 0 is k, else 0.
+	private static EBPFInstruction[] getCode(int k) {
+		return new EBPFInstruction[] {
+			EBPFInstruction.LD_ABS(InstructionSize.B, 0),
+			EBPFInstruction.JMP_IMM(InstructionCode.JEQ, Register.R0, k, (short)1),
+			EBPFInstruction.MOV_IMM(Register.R0, 0),
+			EBPFInstruction.EXIT(),
+		};
+	}
+
+	private static final int CODE_BYTES = EBPFCompiledProgram.compile(getCode(0)).getCodeSize();
+
+	@Test
+	public void testManyProgramsShareOneArena() throws EBPFProgramException {
+		EBPFCodeArena arena = new EBPFCodeArena(64);
+		List<EBPFCompiledProgram> programs = new ArrayList<EBPFCompiledProgram>();
+		int i;
+		for (i = 0; i < 100; i++) {
+			programs.add(arena.compile(getCode(i)));
+		}
+		assertEquals(100, arena.getProgramCount());
+		assertEquals(100L * CODE_BYTES, arena.getUsedBytes());
+		assertTrue(arena.getCapacityBytes() >= arena.getUsedBytes());
+		// It had to grow, which moves everything.
+		assertTrue(arena.getCompactionCount() > 0);
+
+		for (i = 0; i < 100; i++) {
+			assertEquals(CODE_BYTES, programs.get(i).getCodeSize());
+			assertEquals(i, programs.get(i).run(new byte[] {(byte)i}));
+			assertEquals(0, programs.get(i).run(new byte[] {(byte)(i + 1)}));
+		}
+	}
+
+	@Test
+	public void testReleaseAndCompact() throws EBPFProgramException {
+		EBPFCodeArena arena = new EBPFCodeArena();
+		EBPFCompiledProgram a = arena.compile(getCode(1));
+		EBPFCompiledProgram b = arena.compile(getCode(2));
+		EBPFCompiledProgram c = arena.compile(getCode(3));
+
+		arena.release(b);
+		assertEquals(2, arena.getProgramCount());
+		assertEquals(2L * CODE_BYTES, arena.getUsedBytes());
+		assertEquals(CODE_BYTES, arena.getGarbageBytes());
+
+		arena.compact();
+		assertEquals(0, arena.getGarbageBytes());
+		assertEquals(1, a.run(new byte[] {1}));
+		assertEquals(3, c.run(new byte[] {3}));
+	}
+
+	@Test
+	public void testCollectedProgramsAreReclaimed() throws InterruptedException {
+		EBPFCodeArena arena = new EBPFCodeArena();
+		EBPFCompiledProgram keep = arena.compile(getCode(1));
+		int i;
+		for (i = 0; i < 50; i++) {
+			arena.compile(getCode(i));
+		}
+		int reclaimed = 0;
+		for (i = 0; i < 50 && reclaimed < 50; i++) {
+			System.gc();
+			Thread.sleep(10);
+			reclaimed += arena.purge();
+		}
+		assertEquals(50, reclaimed);
+		assertEquals(1, arena.getProgramCount());
+		assertEquals(CODE_BYTES, arena.getUsedBytes());
+		assertNotNull(keep);
+	}
+}
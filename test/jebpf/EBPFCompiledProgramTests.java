@@ -0,0 +1,214 @@
+package jebpf;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Test;
+
+import com.sobel.jebpf.EBPFCompiledProgram;
+import com.sobel.jebpf.EBPFInstruction;
+import com.sobel.jebpf.EBPFInstruction.InstructionCode;
+import com.sobel.jebpf.EBPFInstruction.InstructionSize;
+import com.sobel.jebpf.EBPFInstruction.Register;
+import com.sobel.jebpf.EBPFInterpreter;
+import com.sobel.jebpf.EBPFInterpreter.EBPFProgramException;
+import com.sobel.jebpf.EBPFInterpreter.Status;
+import com.sobel.jebpf.EBPFMetrics;
+import com.sobel.jebpf.EBPFProgram;
+
+public class EBPFCompiledProgramTests {
+
+	private static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(Runnable r) {
+			r.run();
+		}
+	};
+
+	private static final byte[][] PACKETS = {
+		{},
+		{(byte)0xFF},
+		{(byte)0xFF, (byte)0xBB, (byte)0x99, (byte)0x55},
+		{1, 2, 3, 4, 5, 6, 7, 8, 9},
+	};
+
+	/**
+	 * Runs code through both engines over every packet, checking they agree.
+	 */
+	private static void assertSameAsInterpreter(EBPFInstruction[] code) {
+		EBPFCompiledProgram c = EBPFCompiledProgram.compile(code);
+		for (byte[] p : PACKETS) {
+			EBPFInterpreter t = new EBPFInterpreter(code);
+			Status expected = t.tryRun(p);
+			int[] frame = c.newFrame();
+			long r = c.tryRun(p, frame);
+			assertEquals(expected, EBPFProgram.statusOf(r));
+			if (expected == Status.OK) {
+				assertEquals(t.getReturnValue(), EBPFProgram.valueOf(r));
+			}
+		}
+	}
+
+	private static List<EBPFInstruction[]> getPrograms() {
+		List<EBPFInstruction[]> out = new ArrayList<EBPFInstruction[]>();
+		for (InstructionCode op : InstructionCode.values()) {
+			if (op.ordinal() <= InstructionCode.END_NOT_IMPLEMENTED.ordinal()) {
+				out.add(new EBPFInstruction[] {
+					EBPFInstruction.MOV_IMM(Register.R0, 0x80000007),
+					EBPFInstruction.MOV_IMM(Register.R1, 3),
+					EBPFInstruction.ALU_REG(op, Register.R0, Register.R1),
+					EBPFInstruction.ALU_IMM(op, Register.R0, -2),
+					EBPFInstruction.EXIT(),
+				});
+			} else if (op != InstructionCode.EXIT) {
+				out.add(new EBPFInstruction[] {
+					EBPFInstruction.LD_ABS(InstructionSize.B, 0),
+					EBPFInstruction.MOV_IMM(Register.R2, 0x80),
+					EBPFInstruction.JMP_REG(op, Register.R0, Register.R2, (short)2),
+					EBPFInstruction.JMP_IMM(op, Register.R0, -1, (short)2),
+					EBPFInstruction.EXIT(),
+					EBPFInstruction.MOV_IMM(Register.R0, 7),
+					EBPFInstruction.EXIT(),
+				});
+			}
+		}
+		for (InstructionSize size : InstructionSize.values()) {
+			out.add(new EBPFInstruction[] {
+				EBPFInstruction.LD_ABS(size, 1),
+				EBPFInstruction.MOV_REG(Register.R6, Register.R0),
+				EBPFInstruction.MOV_IMM(Register.R7, 2),
+				EBPFInstruction.LD_IND(size, Register.R7, 3),
+				EBPFInstruction.ALU_REG(InstructionCode.ADD, Register.R0, Register.R6),
+				EBPFInstruction.EXIT(),
+			});
+		}
+		// Scratched registers
+		out.add(new EBPFInstruction[] {
+			EBPFInstruction.MOV_IMM(Register.R3, 1),
+			EBPFInstruction.LD_ABS(InstructionSize.B, 0),
+			EBPFInstruction.MOV_REG(Register.R0, Register.R3),
+			EBPFInstruction.EXIT(),
+		});
+		// Errors
+		out.add(new EBPFInstruction[] {});
+		out.add(new EBPFInstruction[] { EBPFInstruction.EXIT() });
+		out.add(new EBPFInstruction[] { EBPFInstruction.MOV_IMM(Register.R0, 1) });
+		out.add(new EBPFInstruction[] {
+			EBPFInstruction.MOV_IMM(Register.R0, 1),
+			EBPFInstruction.JMP_JA((short)5),
+			EBPFInstruction.EXIT(),
+		});
+		out.add(new EBPFInstruction[] {
+			EBPFInstruction.MOV_IMM(Register.R0, 1),
+			EBPFInstruction.JMP_JA((short)-1),
+			EBPFInstruction.EXIT(),
+		});
+		out.add(new EBPFInstruction[] { EBPFInstruction.MOV_REG(Register.R0, null), EBPFInstruction.EXIT() });
+		out.add(new EBPFInstruction[] { EBPFInstruction.MOV_IMM(null, 1), EBPFInstruction.EXIT() });
+		out.add(new EBPFInstruction[] { EBPFInstruction.MOV_IMM(Register.R10, 1), EBPFInstruction.EXIT() });
+		out.add(new EBPFInstruction[] {
+			EBPFInstruction.ALU_IMM(InstructionCode.ADD, Register.R10, 1),
+			EBPFInstruction.EXIT(),
+		});
+		out.add(new EBPFInstruction[] {
+			EBPFInstruction.ALU_IMM(InstructionCode.NEG, Register.R0, 1),
+			EBPFInstruction.EXIT(),
+		});
+		out.add(new EBPFInstruction[] {
+			EBPFInstruction.MOV_IMM(Register.R0, 1),
+			EBPFInstruction.ALU_REG(InstructionCode.NEG, Register.R0, null),
+			EBPFInstruction.EXIT(),
+		});
+		out.add(new EBPFInstruction[] {
+			EBPFInstruction.MOV_IMM(Register.R0, 1),
+			EBPFInstruction.JMP_REG(InstructionCode.JEQ, Register.R0, Register.R9, (short)0),
+			EBPFInstruction.EXIT(),
+		});
+		out.add(new EBPFInstruction[] {
+			EBPFInstruction.LD_IND(InstructionSize.B, null, 0),
+			EBPFInstruction.EXIT(),
+		});
+		return out;
+	}
+
+	@Test
+	public void testMatchesInterpreter() {
+		for (EBPFInstruction[] code : getPrograms()) {
+			assertSameAsInterpreter(code);
+		}
+	}
+
+	@Test
+	public void testRunThrowsWithDiagnostics() {
+		EBPFInstruction[] code = {
+			EBPFInstruction.MOV_IMM(Register.R6, 4),
+			EBPFInstruction.LD_IND(InstructionSize.W, Register.R6, 0),
+			EBPFInstruction.EXIT(),
+		};
+		EBPFCompiledProgram c = EBPFCompiledProgram.compile(code);
+		try {
+			c.run(new byte[] {1, 2, 3, 4});
+			fail("Expected out of bounds");
+		} catch (EBPFProgramException e) {
+			assertEquals(Status.OUT_OF_BOUNDS, e.status);
+			assertEquals(Integer.valueOf(1), e.trace.get(0));
+			assertEquals(Integer.valueOf(4), e.registers.get(Register.R6));
+		}
+	}
+
+	@Test
+	public void testTierPromotion() throws EBPFProgramException {
+		EBPFInstruction[] code = {
+			EBPFInstruction.LD_ABS(InstructionSize.B, 0),
+			EBPFInstruction.EXIT(),
+		};
+		EBPFProgram p = new EBPFProgram("first", code, 3, DIRECT);
+		int i;
+		for (i = 0; i < 3; i++) {
+			assertEquals(5, p.run(new byte[] {5}));
+			assertEquals(EBPFProgram.Tier.INTERPRETED, p.getTier());
+		}
+		assertEquals(5, p.run(new byte[] {5}));
+		assertEquals(EBPFProgram.Tier.COMPILED, p.getTier());
+		assertEquals(6, p.run(new byte[] {6}));
+
+		long r = p.tryRun(new byte[] {});
+		assertEquals(Status.OUT_OF_BOUNDS, EBPFProgram.statusOf(r));
+	}
+
+	@Test
+	public void testNeverCompiles() throws EBPFProgramException {
+		EBPFProgram p = new EBPFProgram("never", new EBPFInstruction[] {
+			EBPFInstruction.MOV_IMM(Register.R0, -3),
+			EBPFInstruction.EXIT(),
+		}, -1, DIRECT);
+		int i;
+		for (i = 0; i < 100; i++) {
+			assertEquals(-3, EBPFProgram.valueOf(p.tryRun(new byte[] {})));
+		}
+		assertEquals(EBPFProgram.Tier.INTERPRETED, p.getTier());
+		p.compileNow();
+		assertEquals(EBPFProgram.Tier.COMPILED, p.getTier());
+		assertEquals(-3, p.run(new byte[] {}));
+	}
+
+	@Test
+	public void testCompiledMetrics() throws EBPFProgramException {
+		EBPFProgram p = new EBPFProgram("m", new EBPFInstruction[] {
+			EBPFInstruction.LD_ABS(InstructionSize.B, 0),
+			EBPFInstruction.EXIT(),
+		}, 0, DIRECT);
+		EBPFMetrics m = new EBPFMetrics("m");
+		p.setMetrics(m);
+		p.compileNow();
+		p.run(new byte[] {1});
+		p.tryRun(new byte[] {});
+		assertEquals(2, m.getRuns());
+		assertEquals(3, m.getInstructionsRetired());
+		assertEquals(1, m.getVerdictCount(1));
+		assertEquals(1, m.getFailureCount(Status.OUT_OF_BOUNDS));
+	}
+}
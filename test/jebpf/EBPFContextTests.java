@@ -0,0 +1,151 @@
+package jebpf;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.sobel.jebpf.EBPFCompiledProgram;
+import com.sobel.jebpf.EBPFContext;
+import com.sobel.jebpf.EBPFFilterSet;
+import com.sobel.jebpf.EBPFInstruction;
+import com.sobel.jebpf.EBPFInstruction.InstructionCode;
+import com.sobel.jebpf.EBPFInstruction.InstructionSize;
+import com.sobel.jebpf.EBPFInstruction.Register;
+import com.sobel.jebpf.EBPFInterpreter;
+import com.sobel.jebpf.EBPFInterpreter.EBPFProgramException;
+import com.sobel.jebpf.EBPFInterpreter.Status;
+import com.sobel.jebpf.EBPFProgram;
+import com.sobel.jebpf.EBPFVerifier;
+import com.sobel.jebpf.EBPFVerifier.EBPFVerifyException;
+
+public class EBPFContextTests {
+
+	// Ethernet + IPv4 (with 4 bytes of options) + TCP, dest port 443.
+	private static byte[] getPacket() {
+		byte[] p = new byte[14 + 24 + 20];
+		p[12] = 0x08;
+		p[14] = 0x46;
+		p[14 + 9] = 6;
+		p[38 + 2] = 0x01;
+		p[38 + 3] = (byte)0xBB;
+		return p;
+	}
+
+	// TCP dest port, from the context's L4 offset.
+	private static EBPFInstruction[] getPortFilter() {
+		return new EBPFInstruction[] {
+			EBPFInstruction.LDX_MEM(InstructionSize.W, Register.R2, Register.R1, (short)EBPFContext.IP_PROTOCOL),
+			EBPFInstruction.MOV_IMM(Register.R0, 0),
+			EBPFInstruction.JMP_IMM(InstructionCode.JNE, Register.R2, 6, (short)2),
+			EBPFInstruction.LDX_MEM(InstructionSize.W, Register.R6, Register.R1, (short)EBPFContext.L4_OFFSET),
+			EBPFInstruction.LD_IND(InstructionSize.H, Register.R6, 2),
+			EBPFInstruction.EXIT(),
+		};
+	}
+
+	@Test
+	public void testParseEthernet() {
+		EBPFContext ctx = new EBPFContext();
+		ctx.parseEthernet(getPacket(), 3000000007L);
+		assertEquals(58, ctx.getInt(EBPFContext.PACKET_LENGTH));
+		assertEquals(14, ctx.getInt(EBPFContext.L3_OFFSET));
+		assertEquals(38, ctx.getInt(EBPFContext.L4_OFFSET));
+		assertEquals(0x0800, ctx.getInt(EBPFContext.ETHERTYPE));
+		assertEquals(6, ctx.getInt(EBPFContext.IP_PROTOCOL));
+		assertEquals(3, ctx.getInt(EBPFContext.TIMESTAMP_SECONDS));
+		assertEquals(7, ctx.getInt(EBPFContext.TIMESTAMP_NANOS));
+
+		ctx.parseEthernet(new byte[10], 0);
+		assertEquals(-1, ctx.getInt(EBPFContext.L3_OFFSET));
+		assertEquals(-1, ctx.getInt(EBPFContext.IP_PROTOCOL));
+	}
+
+	@Test
+	public void testRunWithContext() throws EBPFProgramException, EBPFVerifyException {
+		EBPFContext ctx = new EBPFContext();
+		byte[] packet = getPacket();
+		ctx.parseEthernet(packet, 0);
+		EBPFInstruction[] code = getPortFilter();
+		EBPFVerifier.verify(code, true);
+
+		assertEquals(443, new EBPFInterpreter(code).run(packet, ctx));
+		assertEquals(443, EBPFCompiledProgram.compile(code).run(packet, ctx));
+		EBPFProgram p = new EBPFProgram("port", code, -1, null);
+		assertEquals(443, p.run(packet, ctx));
+		p.compileNow();
+		assertEquals(443, EBPFProgram.valueOf(p.tryRun(packet, ctx)));
+
+		EBPFFilterSet set = new EBPFFilterSet(new EBPFInstruction[][] {code, code, getPortFilter()});
+		long[] results = new long[3];
+		set.evaluate(packet, ctx, results);
+		assertEquals(443, EBPFProgram.valueOf(results[2]));
+	}
+
+	@Test
+	public void testWithoutContext() {
+		EBPFInstruction[] code = getPortFilter();
+		try {
+			EBPFVerifier.verify(code);
+			fail("R1 isn't set without a context");
+		} catch (EBPFVerifyException e) {
+			assertEquals(0, e.instruction);
+		}
+		assertEquals(Status.UNINITIALIZED_REGISTER, new EBPFInterpreter(code).tryRun(getPacket()));
+	}
+
+	@Test
+	public void testEnginesAgree() {
+		EBPFContext ctx = new EBPFContext(32);
+		int i;
+		for (i = 0; i < ctx.size(); i += 4) {
+			ctx.setInt(i, 0x01020304 * (i + 1));
+		}
+		EBPFInstruction[][] programs = {
+			{
+				EBPFInstruction.LDX_MEM(InstructionSize.B, Register.R0, Register.R1, (short)31),
+				EBPFInstruction.EXIT(),
+			}, {
+				EBPFInstruction.LDX_MEM(InstructionSize.H, Register.R0, Register.R1, (short)31),
+				EBPFInstruction.EXIT(),
+			}, {
+				EBPFInstruction.LDX_MEM(InstructionSize.W, Register.R0, Register.R1, (short)-1),
+				EBPFInstruction.EXIT(),
+			}, {
+				EBPFInstruction.MOV_IMM(Register.R3, EBPFContext.POINTER + 8),
+				EBPFInstruction.LDX_MEM(InstructionSize.W, Register.R0, Register.R3, (short)4),
+				EBPFInstruction.EXIT(),
+			}, {
+				EBPFInstruction.LDX_MEM(InstructionSize.W, Register.R10, Register.R1, (short)0),
+				EBPFInstruction.EXIT(),
+			}, {
+				EBPFInstruction.LDX_MEM(InstructionSize.W, null, Register.R1, (short)0),
+				EBPFInstruction.EXIT(),
+			}, {
+				EBPFInstruction.LDX_MEM(InstructionSize.W, Register.R0, Register.R4, (short)0),
+				EBPFInstruction.EXIT(),
+			}, {
+				EBPFInstruction.LD_ABS(InstructionSize.B, 0),
+				EBPFInstruction.LDX_MEM(InstructionSize.W, Register.R0, Register.R1, (short)0),
+				EBPFInstruction.EXIT(),
+			},
+		};
+		byte[] packet = {1, 2, 3, 4};
+		for (EBPFInstruction[] code : programs) {
+			for (EBPFContext c : new EBPFContext[] {ctx, null}) {
+				EBPFInterpreter t = new EBPFInterpreter(code);
+				Status expected = t.tryRun(packet, c);
+				long r = EBPFCompiledProgram.compile(code).tryRun(packet, c, new int[EBPFCompiledProgram.FRAME_SIZE]);
+				assertEquals(code[0].toString(), expected, EBPFProgram.statusOf(r));
+				if (expected == Status.OK) {
+					assertEquals(t.getReturnValue(), EBPFProgram.valueOf(r));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testDisassembly() {
+		assertEquals("ldxh r2, [r1+8]",
+				EBPFInstruction.LDX_MEM(InstructionSize.H, Register.R2, Register.R1, (short)8).toString());
+	}
+}
@@ -0,0 +1,118 @@
+package jebpf;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.sobel.jebpf.EBPFAdmissionPolicy;
+import com.sobel.jebpf.EBPFAdmissionPolicy.EBPFAdmissionException;
+import com.sobel.jebpf.EBPFCompiledProgram;
+import com.sobel.jebpf.EBPFCostModel;
+import com.sobel.jebpf.EBPFCostModel.Cost;
+import com.sobel.jebpf.EBPFInstruction;
+import com.sobel.jebpf.EBPFInstruction.InstructionCode;
+import com.sobel.jebpf.EBPFInstruction.InstructionSize;
+import com.sobel.jebpf.EBPFInstruction.Register;
+import com.sobel.jebpf.EBPFProgramHandle;
+import com.sobel.jebpf.EBPFVerifier.EBPFVerifyException;
+
+public class EBPFCostModelTests {
+
+	// Byte 0 picks a cheap long path (odd) or a short path through a DIV (even).
+	private static EBPFInstruction[] getCode() {
+		return new EBPFInstruction[] {
+			EBPFInstruction.LD_ABS(InstructionSize.B, 0),
+			EBPFInstruction.JMP_IMM(InstructionCode.JSET, Register.R0, 1, (short)3),
+			EBPFInstruction.MOV_IMM(Register.R1, 7),
+			EBPFInstruction.ALU_REG(InstructionCode.DIV, Register.R0, Register.R1),
+			EBPFInstruction.EXIT(),
+			EBPFInstruction.ALU_IMM(InstructionCode.ADD, Register.R0, 1),
+			EBPFInstruction.ALU_IMM(InstructionCode.ADD, Register.R0, 1),
+			EBPFInstruction.ALU_IMM(InstructionCode.ADD, Register.R0, 1),
+			EBPFInstruction.ALU_IMM(InstructionCode.ADD, Register.R0, 1),
+			EBPFInstruction.ALU_IMM(InstructionCode.ADD, Register.R0, 1),
+			EBPFInstruction.EXIT(),
+		};
+	}
+
+	private static EBPFCostModel unit() {
+		EBPFCostModel m = new EBPFCostModel().setLoadCost(1, 1).setMemoryLoadCost(1);
+		for (InstructionCode c : InstructionCode.values()) {
+			m.setAluCost(c, 1);
+		}
+		return m;
+	}
+
+	@Test
+	public void testUnitCostIsMaxSteps() {
+		EBPFInstruction[] code = getCode();
+		Cost cost = unit().analyze(code);
+		assertEquals(8, cost.maxInstructions);
+		assertEquals(8, cost.maxCost);
+
+		EBPFCompiledProgram c = EBPFCompiledProgram.compile(code);
+		int max = 0;
+		int b;
+		for (b = 0; b < 2; b++) {
+			int[] frame = c.newFrame();
+			c.tryRun(new byte[] {(byte)b}, frame);
+			max = Math.max(max, EBPFCompiledProgram.getSteps(frame));
+		}
+		assertEquals(max, cost.maxInstructions);
+	}
+
+	@Test
+	public void testWeights() {
+		Cost cost = new EBPFCostModel().analyze(getCode());
+		// The DIV path: load, jump, mov, div, exit.
+		assertEquals(4 + 1 + 1 + 20 + 1, cost.maxCost);
+		assertEquals(5, cost.maxInstructions);
+		assertArrayEquals(new int[] {0, 1}, cost.getPath());
+
+		cost = new EBPFCostModel().setAluCost(InstructionCode.DIV, 2).analyze(getCode());
+		assertEquals(4 + 1 + 5 + 1, cost.maxCost);
+		assertArrayEquals(new int[] {0, 2}, cost.getPath());
+	}
+
+	@Test
+	public void testAdmission() throws EBPFVerifyException {
+		EBPFAdmissionPolicy policy = new EBPFAdmissionPolicy(new EBPFCostModel(), 30, 5, 20);
+		assertEquals(3, policy.getClassCount());
+		assertEquals(2, policy.admit(getCode()).costClass);
+		assertEquals(0, policy.admit(new EBPFInstruction[] {
+			EBPFInstruction.MOV_IMM(Register.R0, 1),
+			EBPFInstruction.EXIT(),
+		}).costClass);
+
+		policy = new EBPFAdmissionPolicy(new EBPFCostModel(), 26, 5, 20);
+		try {
+			policy.admit(getCode());
+			fail();
+		} catch (EBPFAdmissionException e) {
+			assertEquals(27, e.cost.maxCost);
+		}
+		// Still verified first.
+		try {
+			policy.admit(new EBPFInstruction[] {EBPFInstruction.MOV_IMM(Register.R0, 1)});
+			fail();
+		} catch (EBPFAdmissionException e) {
+			fail();
+		} catch (EBPFVerifyException e) {
+		}
+	}
+
+	@Test
+	public void testHandlePolicy() throws EBPFVerifyException {
+		EBPFProgramHandle h = new EBPFProgramHandle("test", new EBPFInstruction[] {
+			EBPFInstruction.MOV_IMM(Register.R0, 1),
+			EBPFInstruction.EXIT(),
+		}, null);
+		h.setAdmissionPolicy(new EBPFAdmissionPolicy(new EBPFCostModel(), 10));
+		try {
+			h.publish(getCode());
+			fail();
+		} catch (EBPFAdmissionException e) {
+		}
+		assertEquals(1, h.getVersion());
+	}
+}
@@ -0,0 +1,122 @@
+package jebpf;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.sobel.jebpf.EBPFContext;
+import com.sobel.jebpf.EBPFDifferential;
+import com.sobel.jebpf.EBPFDifferential.Divergence;
+import com.sobel.jebpf.EBPFDifferential.Engine;
+import com.sobel.jebpf.EBPFInstruction;
+import com.sobel.jebpf.EBPFInterpreter;
+import com.sobel.jebpf.EBPFInterpreter.Status;
+import com.sobel.jebpf.EBPFProgramGenerator;
+import com.sobel.jebpf.EBPFVerifier;
+import com.sobel.jebpf.EBPFVerifier.EBPFVerifyException;
+
+public class EBPFDifferentialTests {
+
+	@Test
+	public void testGeneratedProgramsVerify() throws EBPFVerifyException {
+		for (boolean withContext : new boolean[] {false, true}) {
+			EBPFProgramGenerator g = new EBPFProgramGenerator(7).setWithContext(withContext);
+			int i;
+			for (i = 0; i < 2000; i++) {
+				EBPFInstruction[] code = g.nextProgram();
+				try {
+					EBPFVerifier.verify(code, withContext);
+				} catch (EBPFVerifyException e) {
+					fail(e.getMessage() + " in " + Arrays.toString(code));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSameSeedSameCorpus() {
+		EBPFProgramGenerator a = new EBPFProgramGenerator(42).setLength(3, 20);
+		EBPFProgramGenerator b = new EBPFProgramGenerator(42).setLength(3, 20);
+		int i;
+		for (i = 0; i < 50; i++) {
+			EBPFInstruction[] code = a.nextProgram();
+			assertTrue(code.length >= 3 && code.length <= 20);
+			assertEquals(Arrays.toString(code), Arrays.toString(b.nextProgram()));
+			assertArrayEquals(a.nextPacket(), b.nextPacket());
+		}
+	}
+
+	@Test
+	public void testCorpusFailsInManyWays() {
+		EBPFProgramGenerator g = new EBPFProgramGenerator(3).setWithContext(true);
+		EnumSet<Status> seen = EnumSet.noneOf(Status.class);
+		EBPFContext ctx = new EBPFContext();
+		int i;
+		for (i = 0; i < 500; i++) {
+			EBPFInterpreter t = new EBPFInterpreter(g.nextProgram());
+			byte[] packet = g.nextPacket();
+			ctx.parseEthernet(packet, 0);
+			seen.add(t.tryRun(packet, ctx));
+		}
+		assertTrue(seen.toString(), seen.containsAll(EnumSet.of(
+				Status.OK, Status.OUT_OF_BOUNDS, Status.MISALIGNED_ACCESS)));
+	}
+
+	@Test
+	public void testEnginesAgree() {
+		for (boolean withContext : new boolean[] {false, true}) {
+			EBPFDifferential d = new EBPFDifferential(EBPFDifferential.allEngines(), 5);
+			EBPFProgramGenerator g = new EBPFProgramGenerator(withContext ? 11 : 12).setWithContext(withContext);
+			List<Divergence> found = d.check(g, 300, 40);
+			assertTrue(found.isEmpty() ? "" : found.get(0).toString(), found.isEmpty());
+			assertEquals(6L * 300 * 40, d.getRunCount());
+		}
+	}
+
+	@Test
+	public void testDivergenceReported() {
+		// Compiled, but every OK result is off by one.
+		final Engine compiled = EBPFDifferential.compiled();
+		Engine broken = new Engine() {
+			@Override
+			public String getName() {
+				return "broken";
+			}
+
+			@Override
+			public void load(EBPFInstruction[][] programs) {
+				compiled.load(programs);
+			}
+
+			@Override
+			public void run(byte[] packet, EBPFContext ctx, long[] results) {
+				compiled.run(packet, ctx, results);
+				int i;
+				for (i = 0; i < results.length; i++) {
+					results[i]++;
+				}
+			}
+		};
+		EBPFInstruction[][] programs = {
+			{
+				EBPFInstruction.MOV_IMM(EBPFInstruction.Register.R0, 5),
+				EBPFInstruction.EXIT(),
+			},
+		};
+		EBPFDifferential d = new EBPFDifferential(Collections.singletonList(broken), 10);
+		List<Divergence> found = d.check(programs, new byte[][] {{1, 2}}, false);
+		assertEquals(1, found.size());
+		Divergence x = found.get(0);
+		assertEquals("broken", x.engine);
+		assertEquals(
+				"broken: expected OK 5, got OK 6\n"
+				+ "packet: 01 02\n"
+				+ "  0: mov r0, 5\n"
+				+ "  1: exit", x.toString());
+	}
+}
@@ -0,0 +1,123 @@
+package jebpf;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.sobel.jebpf.EBPFCompiledProgram;
+import com.sobel.jebpf.EBPFFilterSet;
+import com.sobel.jebpf.EBPFInstruction;
+import com.sobel.jebpf.EBPFInstruction.InstructionCode;
+import com.sobel.jebpf.EBPFInstruction.InstructionSize;
+import com.sobel.jebpf.EBPFInstruction.Register;
+
+public class EBPFFilterSetTests {
+
+	// Accepts (returns k + 1) when the halfword at 12 is ethertype and the
+	// byte at 23 is proto.
+	private static EBPFInstruction[] getFilter(int ethertype, int proto, int k) {
+		return new EBPFInstruction[] {
+			EBPFInstruction.LD_ABS(InstructionSize.H, 12),
+			EBPFInstruction.JMP_IMM(InstructionCode.JNE, Register.R0, ethertype, (short)4),
+			EBPFInstruction.LD_ABS(InstructionSize.B, 23),
+			EBPFInstruction.JMP_IMM(InstructionCode.JNE, Register.R0, proto, (short)2),
+			EBPFInstruction.MOV_IMM(Register.R0, k + 1),
+			EBPFInstruction.JMP_JA((short)1),
+			EBPFInstruction.MOV_IMM(Register.R0, 0),
+			EBPFInstruction.EXIT(),
+		};
+	}
+
+	private static List<EBPFInstruction[]> getFilters() {
+		List<EBPFInstruction[]> out = new ArrayList<EBPFInstruction[]>();
+		int i;
+		for (i = 0; i < 40; i++) {
+			out.add(getFilter(i % 3 == 0 ? 0x86DD : 0x0800, i % 5, i));
+		}
+		// Copies of filter 1, and ones that fail part way.
+		out.add(getFilter(0x0800, 1, 1));
+		out.add(getFilter(0x0800, 1, 1));
+		out.add(new EBPFInstruction[] {
+			EBPFInstruction.LD_ABS(InstructionSize.H, 12),
+			EBPFInstruction.MOV_REG(Register.R0, Register.R3),
+			EBPFInstruction.EXIT(),
+		});
+		out.add(new EBPFInstruction[] {
+			EBPFInstruction.LD_ABS(InstructionSize.H, 12),
+			EBPFInstruction.LD_ABS(InstructionSize.W, 60),
+			EBPFInstruction.EXIT(),
+		});
+		out.add(new EBPFInstruction[] {
+			EBPFInstruction.LD_ABS(InstructionSize.H, 12),
+			EBPFInstruction.JMP_JA((short)0),
+		});
+		return out;
+	}
+
+	private static byte[] getPacket(Random r) {
+		byte[] p = new byte[r.nextInt(4) == 0 ? r.nextInt(30) : 64];
+		r.nextBytes(p);
+		if (p.length > 23) {
+			boolean v6 = r.nextBoolean();
+			p[12] = (byte)(v6 ? 0x86 : 0x08);
+			p[13] = (byte)(v6 ? 0xDD : 0x00);
+			p[23] = (byte)r.nextInt(5);
+		}
+		return p;
+	}
+
+	@Test
+	public void testSameAsRunningEachAlone() {
+		List<EBPFInstruction[]> filters = getFilters();
+		EBPFFilterSet set = new EBPFFilterSet(filters.toArray(new EBPFInstruction[0][]));
+		assertEquals(filters.size(), set.size());
+		assertEquals(filters.size() - 2, set.getDistinctCount());
+
+		EBPFCompiledProgram[] alone = new EBPFCompiledProgram[filters.size()];
+		int i;
+		for (i = 0; i < alone.length; i++) {
+			alone[i] = EBPFCompiledProgram.compile(filters.get(i));
+		}
+
+		Random r = new Random(34);
+		long[] results = new long[filters.size()];
+		long[] mask = new long[1];
+		int n;
+		for (n = 0; n < 500; n++) {
+			byte[] p = getPacket(r);
+			set.evaluate(p, results);
+			int[] verdicts = set.verdicts(p);
+			set.match(p, results, mask);
+			for (i = 0; i < alone.length; i++) {
+				long expected = alone[i].tryRun(p);
+				assertEquals("filter " + i, expected, results[i]);
+				boolean accepted = (expected >>> 32) == 0 && (int)expected != 0;
+				assertEquals(accepted ? (int)expected : 0, verdicts[i]);
+				assertEquals(accepted, (mask[0] & (1L << i)) != 0);
+			}
+		}
+	}
+
+	@Test
+	public void testSharesCommonWork() {
+		List<EBPFInstruction[]> filters = new ArrayList<EBPFInstruction[]>();
+		int i;
+		for (i = 0; i < 40; i++) {
+			filters.add(getFilter(0x0800, 6, i));
+		}
+		EBPFFilterSet set = new EBPFFilterSet(filters.toArray(new EBPFInstruction[0][]));
+		// Loads and compares once, then a leaf per filter for its
+		// verdict, plus the two shared reject paths.
+		assertEquals(filters.size() + 4, set.getNodeCount());
+	}
+
+	@Test
+	public void testEmpty() {
+		EBPFFilterSet set = new EBPFFilterSet(new EBPFInstruction[0][]);
+		assertEquals(0, set.verdicts(new byte[10]).length);
+	}
+}
@@ -0,0 +1,205 @@
+package jebpf;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.sobel.jebpf.EBPFContext;
+import com.sobel.jebpf.EBPFFlightRecorder;
+import com.sobel.jebpf.EBPFFlightRecorder.Record;
+import com.sobel.jebpf.EBPFInstruction;
+import com.sobel.jebpf.EBPFInstruction.InstructionCode;
+import com.sobel.jebpf.EBPFInstruction.InstructionSize;
+import com.sobel.jebpf.EBPFInstruction.Register;
+import com.sobel.jebpf.EBPFInterpreter;
+import com.sobel.jebpf.EBPFInterpreter.Status;
+import com.sobel.jebpf.EBPFPacketView;
+import com.sobel.jebpf.EBPFProgram;
+import com.sobel.jebpf.EBPFProgramHandle;
+import com.sobel.jebpf.EBPFVerifier.EBPFVerifyException;
+
+public class EBPFFlightRecorderTests {
+
+	// R6 = P[0]; return P[P[0]], out of bounds for big enough P[0].
+	private static EBPFInstruction[] getProgram() {
+		return new EBPFInstruction[] {
+			EBPFInstruction.LD_ABS(InstructionSize.B, 0),
+			EBPFInstruction.MOV_REG(Register.R6, Register.R0),
+			EBPFInstruction.JMP_IMM(InstructionCode.JEQ, Register.R6, 0, (short)1),
+			EBPFInstruction.LD_IND(InstructionSize.B, Register.R6, 0),
+			EBPFInstruction.EXIT(),
+		};
+	}
+
+	private static byte[] getPacket(int first, int length) {
+		byte[] p = new byte[length];
+		int i;
+		for (i = 0; i < length; i++) {
+			p[i] = (byte)(i + 10);
+		}
+		p[0] = (byte)first;
+		return p;
+	}
+
+	@Test
+	public void testRecordsFailures() throws IOException {
+		EBPFFlightRecorder fr = new EBPFFlightRecorder(4, 8);
+		for (int threshold : new int[] {-1, 0}) {
+			EBPFProgram p = new EBPFProgram("oob", getProgram(), threshold, null);
+			p.setFlightRecorder(fr);
+			if (threshold == 0) {
+				p.compileNow();
+			}
+			long before = fr.getRecordedCount();
+			// Fine, then out of bounds.
+			assertEquals(Status.OK, EBPFProgram.statusOf(p.tryRun(getPacket(3, 20))));
+			assertEquals(before, fr.getRecordedCount());
+			assertEquals(Status.OUT_OF_BOUNDS, EBPFProgram.statusOf(p.tryRun(getPacket(50, 20))));
+			assertEquals(before + 1, fr.getRecordedCount());
+		}
+
+		File f = File.createTempFile("jebpf", ".flight");
+		try {
+			fr.dump(f);
+			List<Record> records = EBPFFlightRecorder.load(f);
+			assertEquals(2, records.size());
+			for (Record r : records) {
+				assertEquals("oob", r.programName);
+				assertEquals(Status.OUT_OF_BOUNDS, r.status);
+				assertEquals(3, r.finalPC);
+				assertEquals(4, r.steps);
+				assertTrue(r.isInitialized(Register.R6));
+				assertEquals(50, r.getRegister(Register.R6));
+				assertFalse(r.isInitialized(Register.R2));
+				assertEquals(20, r.packetLength);
+				assertEquals(8, r.packet.length);
+				assertTrue(r.isTruncated());
+				assertEquals(11, r.packet[1]);
+				assertNull(r.context);
+
+				EBPFInterpreter t = r.replay();
+				assertEquals(Status.OUT_OF_BOUNDS, t.getStatus());
+				assertEquals(4, t.getDiagnostics().trace.size());
+			}
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Test
+	public void testRingAndSlowRuns() throws IOException {
+		EBPFFlightRecorder fr = new EBPFFlightRecorder(3, 64);
+		EBPFProgram p = new EBPFProgram("slow", getProgram(), 0, null);
+		p.compileNow();
+		p.setFlightRecorder(fr);
+		// Every run is slow at 0.
+		fr.setSlowThreshold(0);
+		EBPFContext ctx = new EBPFContext();
+		int i;
+		for (i = 1; i <= 5; i++) {
+			byte[] packet = getPacket(i, 10);
+			ctx.parseEthernet(packet, i);
+			assertEquals(Status.OK, EBPFProgram.statusOf(p.tryRun(EBPFPacketView.of(packet), ctx)));
+		}
+		assertEquals(5, fr.getRecordedCount());
+
+		File f = File.createTempFile("jebpf", ".flight");
+		try {
+			fr.dump(f);
+			List<Record> records = EBPFFlightRecorder.load(f);
+			// The last three, oldest first.
+			assertEquals(3, records.size());
+			for (i = 0; i < 3; i++) {
+				Record r = records.get(i);
+				assertEquals(Status.OK, r.status);
+				assertEquals(i + 3, r.packet[0]);
+				assertEquals(i + 3 + 10, r.value);
+				assertFalse(r.isTruncated());
+				assertEquals(EBPFContext.DEFAULT_SIZE, r.context.length);
+				EBPFInterpreter t = r.replay();
+				assertEquals(Status.OK, t.getStatus());
+				assertEquals(r.value, t.getReturnValue());
+			}
+		} finally {
+			f.delete();
+		}
+
+		p.setFlightRecorder(null);
+		fr.setSlowThreshold(-1);
+		p.tryRun(getPacket(50, 10));
+		assertEquals(5, fr.getRecordedCount());
+	}
+
+	@Test
+	public void testHandleVersions() throws EBPFVerifyException, IOException {
+		EBPFFlightRecorder fr = new EBPFFlightRecorder(8, 16);
+		EBPFProgramHandle h = new EBPFProgramHandle("h", getProgram(), null);
+		h.setFlightRecorder(fr);
+		h.tryRun(getPacket(50, 4));
+		EBPFInstruction[] next = getProgram();
+		next[3] = EBPFInstruction.LD_IND(InstructionSize.H, Register.R6, 0);
+		h.publish(next);
+		h.tryRun(getPacket(50, 4));
+
+		File f = File.createTempFile("jebpf", ".flight");
+		try {
+			fr.dump(f);
+			List<Record> records = EBPFFlightRecorder.load(f);
+			assertEquals(2, records.size());
+			assertEquals(InstructionSize.B, records.get(0).instructions[3].mSize);
+			assertEquals(InstructionSize.H, records.get(1).instructions[3].mSize);
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Test
+	public void testRetiredVersionsDropped() throws EBPFVerifyException, IOException {
+		EBPFFlightRecorder fr = new EBPFFlightRecorder(4, 16);
+		EBPFProgramHandle h = new EBPFProgramHandle("h", getProgram(), null);
+		h.setFlightRecorder(fr);
+		int i;
+		for (i = 0; i < 100; i++) {
+			EBPFInstruction[] next = getProgram();
+			// Each version different, so every record is from its own.
+			next[3] = EBPFInstruction.LD_IND(InstructionSize.B, Register.R6, i);
+			h.publish(next);
+			h.tryRun(getPacket(50, 4));
+			// The current version, plus one per record in the ring.
+			assertTrue(fr.getProgramCount() <= 5);
+		}
+
+		File f = File.createTempFile("jebpf", ".flight");
+		try {
+			fr.dump(f);
+			List<Record> records = EBPFFlightRecorder.load(f);
+			assertEquals(4, records.size());
+			for (i = 0; i < 4; i++) {
+				assertEquals(96 + i, records.get(i).instructions[3].mImm);
+			}
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Test
+	public void testBadFile() throws IOException {
+		File f = File.createTempFile("jebpf", ".flight");
+		try {
+			try {
+				EBPFFlightRecorder.load(f);
+				fail();
+			} catch (IOException e) {
+				// expected
+			}
+			new EBPFFlightRecorder(1, 1).dump(f);
+			assertEquals(0, EBPFFlightRecorder.load(f).size());
+		} finally {
+			f.delete();
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package jebpf;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.sobel.jebpf.EBPFInstruction;
+import com.sobel.jebpf.EBPFInstruction.InstructionCode;
+import com.sobel.jebpf.EBPFInstruction.InstructionSize;
+import com.sobel.jebpf.EBPFInstruction.Register;
+import com.sobel.jebpf.EBPFInterpreter;
+import com.sobel.jebpf.EBPFInterpreter.Status;
+import com.sobel.jebpf.EBPFLaneProgram;
+import com.sobel.jebpf.EBPFProgram;
+import com.sobel.jebpf.EBPFProgramGenerator;
+
+public class EBPFLaneProgramTests {
+
+	private static EBPFInstruction[] getFilter() {
+		return new EBPFInstruction[] {
+			EBPFInstruction.LD_ABS(InstructionSize.H, 12),
+			EBPFInstruction.JMP_IMM(InstructionCode.JNE, Register.R0, 0x0800, (short)6),
+			EBPFInstruction.LD_ABS(InstructionSize.B, 14),
+			EBPFInstruction.ALU_IMM(InstructionCode.AND, Register.R0, 0xF),
+			EBPFInstruction.ALU_IMM(InstructionCode.LSH, Register.R0, 2),
+			EBPFInstruction.MOV_REG(Register.R6, Register.R0),
+			// Destination port, past the IP header.
+			EBPFInstruction.LD_IND(InstructionSize.H, Register.R6, 16),
+			EBPFInstruction.EXIT(),
+			EBPFInstruction.MOV_IMM(Register.R0, -1),
+			EBPFInstruction.EXIT(),
+		};
+	}
+
+	private static byte[] getPacket(int ethertype, int ihl, int port, int length) {
+		byte[] p = new byte[length];
+		if (length > 14) {
+			p[12] = (byte)(ethertype >> 8);
+			p[13] = (byte)ethertype;
+			p[14] = (byte)(0x40 | ihl);
+		}
+		int at = 14 + ihl * 4 + 2;
+		if (at + 1 < length) {
+			p[at] = (byte)(port >> 8);
+			p[at + 1] = (byte)port;
+		}
+		return p;
+	}
+
+	private static void assertAgrees(EBPFInstruction[] code, byte[][] packets, long[] results) {
+		EBPFInterpreter t = new EBPFInterpreter(code);
+		int i;
+		for (i = 0; i < packets.length; i++) {
+			Status s = t.tryRun(packets[i]);
+			String where = Arrays.toString(code) + " on packet " + i;
+			assertEquals(where, s, EBPFProgram.statusOf(results[i]));
+			if (s == Status.OK) {
+				assertEquals(where, t.getReturnValue(), EBPFProgram.valueOf(results[i]));
+			}
+		}
+	}
+
+	@Test
+	public void testFilter() {
+		EBPFLaneProgram p = EBPFLaneProgram.compile(getFilter());
+		assertTrue(p.isVectorized());
+		// More than two batches' worth, the last one partial.
+		byte[][] packets = new byte[EBPFLaneProgram.LANES * 2 + 5][];
+		int i;
+		for (i = 0; i < packets.length; i++) {
+			int ethertype = i % 3 == 0 ? 0x86DD : 0x0800;
+			packets[i] = getPacket(ethertype, 5 + i % 4, 1000 + i, i % 5 == 0 ? 30 : 60);
+		}
+		long[] results = new long[packets.length];
+		p.tryRun(packets, results);
+		assertAgrees(getFilter(), packets, results);
+		assertEquals(1001, EBPFProgram.valueOf(results[1]));
+		assertEquals(-1, EBPFProgram.valueOf(results[3]));
+		assertEquals(Status.OUT_OF_BOUNDS, EBPFProgram.statusOf(results[5]));
+	}
+
+	@Test
+	public void testGeneratedAgree() {
+		EBPFProgramGenerator g = new EBPFProgramGenerator(44).setMemory(false).setLength(2, 24);
+		byte[][] packets = new byte[EBPFLaneProgram.LANES + 7][];
+		int i;
+		for (i = 0; i < packets.length; i++) {
+			packets[i] = g.nextPacket();
+		}
+		long[] results = new long[packets.length];
+		int[] frame = null;
+		for (i = 0; i < 500; i++) {
+			EBPFInstruction[] code = g.nextProgram();
+			EBPFLaneProgram p = EBPFLaneProgram.compile(code);
+			assertTrue(Arrays.toString(code), p.isVectorized());
+			if (frame == null || frame.length < p.newFrame().length) {
+				frame = p.newFrame();
+			}
+			p.tryRun(packets, 0, packets.length, results, frame);
+			assertAgrees(code, packets, results);
+		}
+	}
+
+	@Test
+	public void testRange() {
+		EBPFLaneProgram p = EBPFLaneProgram.compile(getFilter());
+		byte[][] packets = new byte[6][];
+		int i;
+		for (i = 0; i < packets.length; i++) {
+			packets[i] = getPacket(0x0800, 5, i, 60);
+		}
+		long[] results = new long[packets.length];
+		Arrays.fill(results, 99);
+		p.tryRun(packets, 2, 3, results, p.newFrame());
+		assertEquals(99, results[1]);
+		assertEquals(2, EBPFProgram.valueOf(results[2]));
+		assertEquals(4, EBPFProgram.valueOf(results[4]));
+		assertEquals(99, results[5]);
+	}
+
+	@Test
+	public void testFallback() {
+		EBPFInstruction[][] programs = {
+			// Stack
+			{
+				EBPFInstruction.LD_ABS(InstructionSize.B, 0),
+				EBPFInstruction.STX_MEM(InstructionSize.W, Register.R10, Register.R0, (short)-4),
+				EBPFInstruction.LDX_MEM(InstructionSize.H, Register.R0, Register.R10, (short)-2),
+				EBPFInstruction.EXIT(),
+			},
+			// Doesn't verify
+			{
+				EBPFInstruction.MOV_REG(Register.R0, Register.R2),
+				EBPFInstruction.EXIT(),
+			},
+		};
+		byte[][] packets = {{7}, {}, {(byte)0xFF, 1}};
+		for (EBPFInstruction[] code : programs) {
+			EBPFLaneProgram p = EBPFLaneProgram.compile(code);
+			assertFalse(p.isVectorized());
+			long[] results = new long[packets.length];
+			p.tryRun(packets, results);
+			assertAgrees(code, packets, results);
+		}
+	}
+}
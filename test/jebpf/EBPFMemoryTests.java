@@ -0,0 +1,322 @@
+package jebpf;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.sobel.jebpf.EBPFCompiledProgram;
+import com.sobel.jebpf.EBPFContext;
+import com.sobel.jebpf.EBPFFilterSet;
+import com.sobel.jebpf.EBPFInstruction;
+import com.sobel.jebpf.EBPFInstruction.EBPFDecodeException;
+import com.sobel.jebpf.EBPFInstruction.InstructionCode;
+import com.sobel.jebpf.EBPFInstruction.InstructionSize;
+import com.sobel.jebpf.EBPFInstruction.Register;
+import com.sobel.jebpf.EBPFInterpreter;
+import com.sobel.jebpf.EBPFInterpreter.EBPFProgramException;
+import com.sobel.jebpf.EBPFInterpreter.Status;
+import com.sobel.jebpf.EBPFMemory;
+import com.sobel.jebpf.EBPFProgram;
+import com.sobel.jebpf.EBPFSharedMemory;
+import com.sobel.jebpf.EBPFVerifier;
+import com.sobel.jebpf.EBPFVerifier.EBPFVerifyException;
+
+public class EBPFMemoryTests {
+
+	// Stores bytes 1-4 of the packet to the stack in every width, reads them back.
+	private static EBPFInstruction[] getStackCode() {
+		return new EBPFInstruction[] {
+			// Zero before anything is stored.
+			EBPFInstruction.LDX_MEM(InstructionSize.W, Register.R6, Register.R10, (short)-8),
+			EBPFInstruction.LD_ABS(InstructionSize.W, 0),
+			EBPFInstruction.STX_MEM(InstructionSize.W, Register.R10, Register.R0, (short)-8),
+			EBPFInstruction.STX_MEM(InstructionSize.H, Register.R10, Register.R0, (short)-2),
+			EBPFInstruction.STX_MEM(InstructionSize.B, Register.R10, Register.R0, (short)-3),
+			EBPFInstruction.MOV_IMM(Register.R2, 5),
+			EBPFInstruction.STX_XADD(InstructionSize.W, Register.R10, Register.R2, (short)-8),
+			EBPFInstruction.STX_XADD(InstructionSize.DW, Register.R10, Register.R2, (short)-16),
+			EBPFInstruction.LDX_MEM(InstructionSize.W, Register.R0, Register.R10, (short)-8),
+			EBPFInstruction.LDX_MEM(InstructionSize.W, Register.R3, Register.R10, (short)-4),
+			EBPFInstruction.LDX_MEM(InstructionSize.W, Register.R4, Register.R10, (short)-12),
+			EBPFInstruction.ALU_REG(InstructionCode.XOR, Register.R0, Register.R3),
+			EBPFInstruction.ALU_REG(InstructionCode.XOR, Register.R0, Register.R4),
+			EBPFInstruction.ALU_REG(InstructionCode.XOR, Register.R0, Register.R6),
+			EBPFInstruction.EXIT(),
+		};
+	}
+
+	@Test
+	public void testStack() throws EBPFProgramException, EBPFVerifyException, EBPFDecodeException {
+		EBPFInstruction[] code = EBPFInstruction.decodeMany(EBPFInstruction.encodeMany(getStackCode()));
+		EBPFVerifier.verify(code);
+		byte[] packet = {0x10, 0x20, 0x30, 0x40};
+		// [r10-8] = 0x10203040 + 5, [r10-4] = 0x00003040, one byte at -3 = 0x40, [r10-12] = 5
+		int expected = (0x10203045) ^ (0x00403040) ^ 5;
+		EBPFInterpreter t = new EBPFInterpreter(code);
+		EBPFCompiledProgram c = EBPFCompiledProgram.compile(code);
+		int[] frame = c.newFrame();
+		int i;
+		// Again, to see the stack start out zeroed on every run.
+		for (i = 0; i < 2; i++) {
+			assertEquals(expected, t.run(packet));
+			assertEquals(expected, EBPFProgram.valueOf(c.tryRun(packet, frame)));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testFrameTooSmall() {
+		EBPFCompiledProgram.compile(getStackCode()).tryRun(new byte[4], new int[EBPFCompiledProgram.FRAME_SIZE]);
+	}
+
+	// Counts packets (W) and bytes (DW) into shared memory in slot 0.
+	private static EBPFInstruction[] getCounter() {
+		return new EBPFInstruction[] {
+			EBPFInstruction.LDX_MEM(InstructionSize.W, Register.R3, Register.R1, (short)EBPFContext.PACKET_LENGTH),
+			EBPFInstruction.MOV_IMM(Register.R2, EBPFMemory.region(0)),
+			EBPFInstruction.MOV_IMM(Register.R4, 1),
+			EBPFInstruction.STX_XADD(InstructionSize.W, Register.R2, Register.R4, (short)0),
+			EBPFInstruction.STX_XADD(InstructionSize.DW, Register.R2, Register.R3, (short)8),
+			EBPFInstruction.MOV_IMM(Register.R0, 1),
+			EBPFInstruction.EXIT(),
+		};
+	}
+
+	@Test
+	public void testSharedCounters() throws Exception {
+		final EBPFSharedMemory counters = new EBPFSharedMemory(16);
+		final EBPFProgram interpreted = new EBPFProgram("count", getCounter(), -1, null);
+		final EBPFProgram compiled = new EBPFProgram("count", getCounter(), -1, null);
+		compiled.compileNow();
+		final int runs = 20000;
+		List<Thread> threads = new ArrayList<Thread>();
+		int i;
+		for (i = 0; i < 4; i++) {
+			final EBPFProgram p = i % 2 == 0 ? interpreted : compiled;
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					EBPFContext ctx = new EBPFContext();
+					ctx.setSharedMemory(0, counters);
+					ctx.setInt(EBPFContext.PACKET_LENGTH, 1 << 20);
+					int j;
+					for (j = 0; j < runs; j++) {
+						assertEquals(Status.OK, EBPFProgram.statusOf(p.tryRun(new byte[0], ctx)));
+					}
+				}
+			});
+		}
+		for (Thread th : threads) {
+			th.start();
+		}
+		for (Thread th : threads) {
+			th.join();
+		}
+		assertEquals(4 * runs, counters.getInt(0));
+		// Past 32 bits.
+		assertEquals(4L * runs << 20, counters.getLong(8));
+	}
+
+	@Test
+	public void testSharedMemoryLayout() {
+		EBPFSharedMemory m = new EBPFSharedMemory(16);
+		m.setLong(0, 0x0102030405060708L);
+		assertEquals(0x01020304, m.getInt(0));
+		assertEquals(0x05060708, m.getInt(4));
+		m.setInt(4, -1);
+		assertEquals(0x01020304FFFFFFFFL, m.getLong(0));
+		assertEquals(0x01020305, m.addInt(0, 1));
+		assertEquals(-1, m.getInt(4));
+		m.clear();
+		assertEquals(0, m.getLong(0));
+	}
+
+	@Test
+	public void testEnginesAgree() {
+		EBPFSharedMemory shared = new EBPFSharedMemory(8);
+		EBPFContext ctx = new EBPFContext();
+		ctx.setSharedMemory(1, shared);
+		int r1 = EBPFMemory.region(1);
+		EBPFInstruction[][] programs = {
+			// Misaligned
+			{
+				EBPFInstruction.STX_MEM(InstructionSize.W, Register.R10, Register.R10, (short)-6),
+				EBPFInstruction.EXIT(),
+			}, {
+				EBPFInstruction.MOV_IMM(Register.R0, 1),
+				EBPFInstruction.STX_XADD(InstructionSize.DW, Register.R10, Register.R0, (short)-4),
+				EBPFInstruction.EXIT(),
+			}, {
+				EBPFInstruction.LDX_MEM(InstructionSize.H, Register.R0, Register.R10, (short)-3),
+				EBPFInstruction.EXIT(),
+			},
+			// Out of bounds
+			{
+				EBPFInstruction.STX_MEM(InstructionSize.W, Register.R10, Register.R10, (short)0),
+				EBPFInstruction.EXIT(),
+			}, {
+				EBPFInstruction.STX_MEM(InstructionSize.B, Register.R10, Register.R10, (short)-513),
+				EBPFInstruction.EXIT(),
+			}, {
+				EBPFInstruction.STX_MEM(InstructionSize.W, Register.R1, Register.R10, (short)0),
+				EBPFInstruction.EXIT(),
+			}, {
+				EBPFInstruction.MOV_IMM(Register.R2, EBPFMemory.region(0)),
+				EBPFInstruction.STX_XADD(InstructionSize.W, Register.R2, Register.R10, (short)0),
+				EBPFInstruction.EXIT(),
+			}, {
+				EBPFInstruction.MOV_IMM(Register.R2, r1),
+				EBPFInstruction.LDX_MEM(InstructionSize.W, Register.R0, Register.R2, (short)8),
+				EBPFInstruction.EXIT(),
+			},
+			// OK
+			{
+				EBPFInstruction.MOV_IMM(Register.R2, r1),
+				EBPFInstruction.MOV_IMM(Register.R3, 0x1234),
+				EBPFInstruction.STX_MEM(InstructionSize.H, Register.R2, Register.R3, (short)6),
+				EBPFInstruction.STX_XADD(InstructionSize.W, Register.R2, Register.R3, (short)4),
+				EBPFInstruction.LDX_MEM(InstructionSize.W, Register.R0, Register.R2, (short)4),
+				EBPFInstruction.EXIT(),
+			}, {
+				// Programs without stores see an all-zero stack.
+				EBPFInstruction.LDX_MEM(InstructionSize.W, Register.R0, Register.R10, (short)-4),
+				EBPFInstruction.EXIT(),
+			}, {
+				EBPFInstruction.MOV_REG(Register.R0, Register.R10),
+				EBPFInstruction.EXIT(),
+			},
+			// Bad instructions
+			{
+				EBPFInstruction.MOV_IMM(Register.R0, 1),
+				EBPFInstruction.STX_XADD(InstructionSize.H, Register.R10, Register.R0, (short)-4),
+				EBPFInstruction.EXIT(),
+			}, {
+				EBPFInstruction.MOV_IMM(Register.R0, 1),
+				EBPFInstruction.STX_MEM(InstructionSize.DW, Register.R10, Register.R0, (short)-8),
+				EBPFInstruction.EXIT(),
+			}, {
+				EBPFInstruction.LDX_MEM(InstructionSize.DW, Register.R0, Register.R10, (short)-8),
+				EBPFInstruction.EXIT(),
+			}, {
+				EBPFInstruction.LD_ABS(InstructionSize.DW, 0),
+				EBPFInstruction.EXIT(),
+			}, {
+				EBPFInstruction.STX_MEM(InstructionSize.W, Register.R10, null, (short)-8),
+				EBPFInstruction.EXIT(),
+			}, {
+				EBPFInstruction.STX_MEM(InstructionSize.W, Register.R10, Register.R5, (short)-8),
+				EBPFInstruction.EXIT(),
+			},
+		};
+		byte[] packet = {1, 2, 3, 4};
+		List<Status> seen = new ArrayList<Status>();
+		for (EBPFInstruction[] code : programs) {
+			for (EBPFContext c : new EBPFContext[] {ctx, null}) {
+				shared.clear();
+				EBPFInterpreter t = new EBPFInterpreter(code);
+				Status expected = t.tryRun(packet, c);
+				int value = t.getReturnValue();
+				shared.clear();
+				EBPFCompiledProgram compiled = EBPFCompiledProgram.compile(code);
+				long r = compiled.tryRun(packet, c, compiled.newFrame());
+				assertEquals(code[code.length - 2].toString(), expected, EBPFProgram.statusOf(r));
+				if (expected == Status.OK) {
+					assertEquals(value, EBPFProgram.valueOf(r));
+				}
+				seen.add(expected);
+			}
+		}
+		assertTrue(seen.contains(Status.MISALIGNED_ACCESS));
+		assertTrue(seen.contains(Status.BAD_ST_SIZE));
+		assertTrue(seen.contains(Status.BAD_LD_SIZE));
+		assertEquals(Status.OK, seen.get(16));
+		assertEquals(Status.OUT_OF_BOUNDS, seen.get(17));
+	}
+
+	@Test
+	public void testSharedMemoryValue() throws EBPFProgramException {
+		EBPFSharedMemory shared = new EBPFSharedMemory(8);
+		EBPFContext ctx = new EBPFContext();
+		ctx.setSharedMemory(1, shared);
+		EBPFInstruction[] code = {
+			EBPFInstruction.MOV_IMM(Register.R2, EBPFMemory.region(1)),
+			EBPFInstruction.MOV_IMM(Register.R3, 0x1234),
+			EBPFInstruction.STX_MEM(InstructionSize.H, Register.R2, Register.R3, (short)6),
+			EBPFInstruction.STX_XADD(InstructionSize.W, Register.R2, Register.R3, (short)4),
+			EBPFInstruction.LDX_MEM(InstructionSize.W, Register.R0, Register.R2, (short)4),
+			EBPFInstruction.EXIT(),
+		};
+		assertEquals(0x2468, new EBPFInterpreter(code).run(new byte[0], ctx));
+		assertEquals(0x2468L, shared.getLong(0));
+	}
+
+	@Test
+	public void testVerifier() throws EBPFVerifyException {
+		EBPFVerifier.verify(getStackCode());
+		EBPFVerifier.verify(getCounter(), true);
+		try {
+			EBPFVerifier.verify(new EBPFInstruction[] {
+				EBPFInstruction.STX_XADD(InstructionSize.B, Register.R10, Register.R10, (short)-4),
+				EBPFInstruction.MOV_IMM(Register.R0, 0),
+				EBPFInstruction.EXIT(),
+			});
+			fail();
+		} catch (EBPFVerifyException e) {
+			assertEquals(0, e.instruction);
+		}
+		try {
+			EBPFVerifier.verify(new EBPFInstruction[] {
+				EBPFInstruction.STX_MEM(InstructionSize.W, Register.R10, Register.R3, (short)-4),
+				EBPFInstruction.MOV_IMM(Register.R0, 0),
+				EBPFInstruction.EXIT(),
+			});
+			fail();
+		} catch (EBPFVerifyException e) {
+			assertTrue(e.getMessage().contains("uninitialized R3"));
+		}
+	}
+
+	@Test
+	public void testFilterSet() {
+		EBPFInstruction[] stack = getStackCode();
+		EBPFInstruction[] other = stack.clone();
+		other[other.length - 2] = EBPFInstruction.MOV_IMM(Register.R0, 7);
+		EBPFFilterSet set = new EBPFFilterSet(new EBPFInstruction[][] {stack, other, getCounter()});
+		byte[] packet = {0x10, 0x20, 0x30, 0x40};
+		long[] results = new long[3];
+		set.evaluate(packet, results);
+		assertEquals(EBPFCompiledProgram.compile(stack).tryRun(packet), results[0]);
+		assertEquals(7, EBPFProgram.valueOf(results[1]));
+		// Runs without a context, so R1 is uninitialized.
+		assertEquals(Status.UNINITIALIZED_REGISTER, EBPFProgram.statusOf(results[2]));
+	}
+
+	@Test
+	public void testDisassembly() {
+		assertEquals("stxh [r10-4], r2",
+				EBPFInstruction.STX_MEM(InstructionSize.H, Register.R10, Register.R2, (short)-4).toString());
+		assertEquals("xadddw [r2+0], r3",
+				EBPFInstruction.STX_XADD(InstructionSize.DW, Register.R2, Register.R3, (short)0).toString());
+	}
+
+	@Test
+	public void testStackFreshEachCompiledRun() throws EBPFProgramException {
+		// Stores byte 0 to the stack unless it's 0, then reads the slot back.
+		EBPFInstruction[] code = new EBPFInstruction[] {
+			EBPFInstruction.LD_ABS(InstructionSize.B, 0),
+			EBPFInstruction.JMP_IMM(InstructionCode.JEQ, Register.R0, 0, (short)1),
+			EBPFInstruction.STX_MEM(InstructionSize.W, Register.R10, Register.R0, (short)-4),
+			EBPFInstruction.LDX_MEM(InstructionSize.W, Register.R0, Register.R10, (short)-4),
+			EBPFInstruction.EXIT(),
+		};
+		EBPFProgram p = new EBPFProgram("stack", code, 0, null);
+		p.compileNow();
+		// Runs on one thread share a frame, but never what's on its stack.
+		assertEquals(7, p.run(new byte[] {7}));
+		assertEquals(0, p.run(new byte[] {0}));
+		assertEquals(9, EBPFProgram.valueOf(p.tryRun(new byte[] {9})));
+		assertEquals(0, EBPFProgram.valueOf(p.tryRun(new byte[] {0})));
+	}
+}
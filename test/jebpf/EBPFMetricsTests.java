@@ -0,0 +1,169 @@
+package jebpf;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.sobel.jebpf.EBPFInstruction;
+import com.sobel.jebpf.EBPFInstruction.InstructionSize;
+import com.sobel.jebpf.EBPFInstruction.Register;
+import com.sobel.jebpf.EBPFInterpreter;
+import com.sobel.jebpf.EBPFInterpreter.EBPFProgramException;
+import com.sobel.jebpf.EBPFInterpreter.Status;
+import com.sobel.jebpf.EBPFMetrics;
+import com.sobel.jebpf.EBPFMetricsRegistry;
+import com.sobel.jebpf.EBPFProgram;
+import com.sobel.jebpf.LatencyHistogram;
+import com.sobel.jebpf.StripedCounters;
+
+public class EBPFMetricsTests {
+
+	// Returns the first byte of the packet.
+	private static final EBPFInstruction[] CODE = {
+		EBPFInstruction.LD_ABS(InstructionSize.B, 0),
+		EBPFInstruction.EXIT(),
+	};
+
+	@Test
+	public void testRunsVerdictsAndFailures() throws EBPFProgramException {
+		EBPFMetrics m = new EBPFMetrics("first-byte");
+		EBPFInterpreter t = new EBPFInterpreter(CODE);
+		t.setMetrics(m);
+
+		t.run(new byte[] {0});
+		t.run(new byte[] {1});
+		t.run(new byte[] {1});
+		t.run(new byte[] {(byte)200});
+		try {
+			t.run(new byte[] {});
+			fail("Expected out of bounds");
+		} catch (EBPFProgramException e) {
+			assertEquals(Status.OUT_OF_BOUNDS, e.status);
+		}
+
+		assertEquals(5, m.getRuns());
+		assertEquals(9, m.getInstructionsRetired());
+		assertEquals(1, m.getVerdictCount(0));
+		assertEquals(2, m.getVerdictCount(1));
+		assertEquals(1, m.getOtherVerdictCount());
+		assertEquals(1, m.getFailures());
+		assertEquals(1, m.getFailureCount(Status.OUT_OF_BOUNDS));
+		assertEquals(Long.valueOf(1), m.getFailureCounts().get("OUT_OF_BOUNDS"));
+		assertEquals(1, m.getFailureCounts().size());
+		assertEquals(5, m.getLatency().getCount());
+
+		m.reset();
+		assertEquals(0, m.getRuns());
+		assertEquals(0, m.getLatency().getCount());
+	}
+
+	@Test
+	public void testUninitializedReason() {
+		EBPFMetrics m = new EBPFMetrics("bad");
+		EBPFInterpreter t = new EBPFInterpreter(new EBPFInstruction[] {
+			EBPFInstruction.MOV_REG(Register.R0, Register.R4),
+			EBPFInstruction.EXIT(),
+		});
+		t.setMetrics(m);
+		try {
+			t.run(new byte[] {});
+			fail("Expected uninitialized read");
+		} catch (EBPFProgramException e) {
+			assertEquals(Status.UNINITIALIZED_REGISTER, e.status);
+		}
+		assertEquals(1, m.getFailureCount(Status.UNINITIALIZED_REGISTER));
+	}
+
+	@Test
+	public void testRegistry() {
+		EBPFMetricsRegistry r = new EBPFMetricsRegistry(false);
+		assertNull(r.forProgram("a"));
+		r.setEnabled(true);
+		EBPFMetrics a = r.forProgram("a");
+		assertNotNull(a);
+		assertSame(a, r.forProgram("a"));
+		assertSame(a, r.get("a"));
+		assertEquals(1, r.getAll().size());
+		assertSame(a, r.remove("a"));
+		assertNull(r.get("a"));
+	}
+
+	@Test
+	public void testHistogramPercentiles() {
+		LatencyHistogram h = new LatencyHistogram();
+		int i;
+		for (i = 1; i <= 1000; i++) {
+			h.record(i * 1000);
+		}
+		assertEquals(1000, h.getCount());
+		assertEquals(1000000, h.getMax());
+		long p50 = h.getValueAtPercentile(50);
+		assertTrue("p50 " + p50, p50 >= 500000 && p50 <= 500000 * 17 / 16);
+		long p99 = h.getValueAtPercentile(99);
+		assertTrue("p99 " + p99, p99 >= 990000 && p99 <= 1000000);
+		assertEquals(1000000, h.getValueAtPercentile(100));
+
+		// Small values are exact
+		h.reset();
+		h.record(3);
+		assertEquals(3, h.getValueAtPercentile(50));
+		// Huge ones are clamped
+		h.record(Long.MAX_VALUE);
+		assertEquals(LatencyHistogram.MAX_TRACKABLE, h.getMax());
+	}
+
+	@Test
+	public void testStripedCountersFromManyThreads() throws InterruptedException {
+		final StripedCounters c = new StripedCounters(3);
+		Thread[] threads = new Thread[8];
+		int i;
+		for (i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					int j;
+					for (j = 0; j < 10000; j++) {
+						c.increment(1);
+						c.add(2, 2);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertEquals(0, c.sum(0));
+		assertEquals(80000, c.sum(1));
+		assertEquals(160000, c.sum(2));
+	}
+
+	@Test
+	public void testCountsFromManyThreads() throws InterruptedException {
+		final EBPFMetrics m = new EBPFMetrics("shared");
+		final EBPFProgram p = new EBPFProgram("first-byte", CODE);
+		p.setMetrics(m);
+		Thread[] threads = new Thread[8];
+		int i;
+		for (i = 0; i < threads.length; i++) {
+			final byte first = (byte)(i % 2);
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					int j;
+					for (j = 0; j < 5000; j++) {
+						p.tryRun(new byte[] {first});
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertEquals(40000, m.getRuns());
+		assertEquals(20000, m.getVerdictCount(0));
+		assertEquals(20000, m.getVerdictCount(1));
+		assertEquals(m.getRuns(), m.getLatency().getCount());
+	}
+}
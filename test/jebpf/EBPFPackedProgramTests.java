@@ -0,0 +1,159 @@
+package jebpf;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.sobel.jebpf.EBPFContext;
+import com.sobel.jebpf.EBPFInstruction;
+import com.sobel.jebpf.EBPFInstruction.EBPFDecodeException;
+import com.sobel.jebpf.EBPFInstruction.InstructionClass;
+import com.sobel.jebpf.EBPFInstruction.InstructionCode;
+import com.sobel.jebpf.EBPFInstruction.InstructionMode;
+import com.sobel.jebpf.EBPFInstruction.InstructionSize;
+import com.sobel.jebpf.EBPFInstruction.InstructionSource;
+import com.sobel.jebpf.EBPFInstruction.Register;
+import com.sobel.jebpf.EBPFInterpreter;
+import com.sobel.jebpf.EBPFInterpreter.Status;
+import com.sobel.jebpf.EBPFPackedProgram;
+import com.sobel.jebpf.EBPFProgram;
+
+public class EBPFPackedProgramTests {
+
+	// A bit of everything, including what only hand-built instructions have.
+	private static EBPFInstruction[] getEverything() {
+		return new EBPFInstruction[] {
+			EBPFInstruction.ALU_IMM(InstructionCode.ARSH, Register.R3, -7),
+			EBPFInstruction.ALU_REG(InstructionCode.XOR, Register.R10, Register.R9),
+			EBPFInstruction.ALU_REG(InstructionCode.NEG, Register.R1, null),
+			EBPFInstruction.ALU_IMM(InstructionCode.END_NOT_IMPLEMENTED, Register.R0, 0),
+			EBPFInstruction.JMP_IMM(InstructionCode.JSGE, Register.R2, Integer.MIN_VALUE, Short.MAX_VALUE),
+			EBPFInstruction.JMP_REG(InstructionCode.JSET, Register.R4, Register.R5, (short)-1),
+			EBPFInstruction.JMP_JA((short)3),
+			EBPFInstruction.JMP_IMM(InstructionCode.CALL_NOT_IMPLEMENTED, null, 12, (short)0),
+			EBPFInstruction.LD_ABS(InstructionSize.H, 0x7FFFFFFF),
+			EBPFInstruction.LD_IND(InstructionSize.W, Register.R7, -2),
+			EBPFInstruction.LD_ABS(null, 5),
+			EBPFInstruction.LDX_MEM(InstructionSize.B, Register.R2, Register.R1, Short.MIN_VALUE),
+			EBPFInstruction.STX_MEM(InstructionSize.H, Register.R10, Register.R2, (short)-4),
+			EBPFInstruction.STX_XADD(InstructionSize.DW, Register.R2, Register.R3, (short)8),
+			EBPFInstruction.EXIT(),
+		};
+	}
+
+	@Test
+	public void testRoundTrip() {
+		EBPFInstruction[] code = getEverything();
+		EBPFPackedProgram p = new EBPFPackedProgram(code);
+		assertEquals(code.length, p.getInstructionCount());
+		EBPFInstruction[] back = p.toArray();
+		int i;
+		for (i = 0; i < code.length; i++) {
+			EBPFInstruction a = code[i];
+			EBPFInstruction b = back[i];
+			assertEquals(a.toString(), b.toString());
+			assertEquals(a.mClass, b.mClass);
+			assertEquals(a.mCode, b.mCode);
+			assertEquals(a.mSource, b.mSource);
+			assertEquals(a.mSize, b.mSize);
+			assertEquals(a.mMode, b.mMode);
+			assertEquals(a.mDstReg, b.mDstReg);
+			assertEquals(a.mSrcReg, b.mSrcReg);
+			assertEquals(a.mOff, b.mOff);
+			assertEquals(a.mImm, b.mImm);
+		}
+		assertArrayEquals(EBPFInstruction.encodeMany(code), p.encode());
+	}
+
+	@Test
+	public void testGetters() {
+		EBPFPackedProgram p = new EBPFPackedProgram(getEverything());
+		assertEquals(InstructionClass.ALU, p.getInstructionClass(2));
+		assertEquals(InstructionCode.NEG, p.getCode(2));
+		assertEquals(InstructionSource.X, p.getSource(2));
+		assertNull(p.getSrcReg(2));
+		assertNull(p.getSize(2));
+
+		assertEquals(InstructionClass.JMP, p.getInstructionClass(4));
+		assertEquals(InstructionCode.JSGE, p.getCode(4));
+		assertEquals(Integer.MIN_VALUE, p.getImm(4));
+		assertEquals(Short.MAX_VALUE, p.getOff(4));
+
+		assertEquals(InstructionClass.LD, p.getInstructionClass(10));
+		assertNull(p.getSize(10));
+		assertEquals(InstructionMode.ABS, p.getMode(10));
+		assertNull(p.getCode(10));
+
+		assertEquals(InstructionClass.STX, p.getInstructionClass(13));
+		assertEquals(InstructionSize.DW, p.getSize(13));
+		assertEquals(InstructionMode.XADD, p.getMode(13));
+		assertEquals(Register.R2, p.getDstReg(13));
+		assertEquals(Register.R3, p.getSrcReg(13));
+	}
+
+	@Test
+	public void testDecode() throws EBPFDecodeException {
+		EBPFInstruction[] code = getEverything();
+		// Decodable ones only.
+		code = new EBPFInstruction[] {code[0], code[1], code[4], code[5], code[8], code[11], code[13], code[14]};
+		byte[] b = EBPFInstruction.encodeMany(code);
+		EBPFPackedProgram p = EBPFPackedProgram.decode(b);
+		assertArrayEquals(b, p.encode());
+		assertEquals(Arrays.toString(code), Arrays.toString(p.toArray()));
+
+		byte[][] bad = {
+			new byte[7],
+			// Class 7
+			{0x07, 0, 0, 0, 0, 0, 0, 0},
+			// Register 12
+			{(byte)0xb4, (byte)0xc0, 0, 0, 0, 0, 0, 0},
+			// CALL
+			{(byte)0x85, 0, 0, 0, 0, 0, 0, 0},
+		};
+		for (byte[] x : bad) {
+			try {
+				EBPFPackedProgram.decode(x);
+				fail();
+			} catch (EBPFDecodeException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testInterpreterRunsPacked() {
+		EBPFInstruction[] code = {
+			EBPFInstruction.LDX_MEM(InstructionSize.W, Register.R6, Register.R1, (short)EBPFContext.PACKET_LENGTH),
+			EBPFInstruction.LD_ABS(InstructionSize.B, 0),
+			EBPFInstruction.STX_MEM(InstructionSize.W, Register.R10, Register.R0, (short)-4),
+			EBPFInstruction.JMP_IMM(InstructionCode.JGT, Register.R0, 10, (short)2),
+			EBPFInstruction.MOV_IMM(Register.R0, 0),
+			EBPFInstruction.EXIT(),
+			EBPFInstruction.LDX_MEM(InstructionSize.H, Register.R0, Register.R10, (short)-2),
+			EBPFInstruction.ALU_REG(InstructionCode.ADD, Register.R0, Register.R6),
+			EBPFInstruction.EXIT(),
+		};
+		EBPFPackedProgram p = new EBPFPackedProgram(code);
+		EBPFInterpreter packed = new EBPFInterpreter(p);
+		EBPFInterpreter objects = new EBPFInterpreter(code);
+		EBPFContext ctx = new EBPFContext();
+		int b;
+		for (b = 0; b < 20; b++) {
+			byte[] packet = {(byte)b, 1};
+			ctx.setInt(EBPFContext.PACKET_LENGTH, packet.length);
+			assertEquals(Status.OK, packed.tryRun(packet, ctx));
+			assertEquals(Status.OK, objects.tryRun(packet, ctx));
+			assertEquals(b > 10 ? b + 2 : 0, packed.getReturnValue());
+			assertEquals(objects.getReturnValue(), packed.getReturnValue());
+		}
+		// And failures, with no context for R1.
+		assertEquals(Status.UNINITIALIZED_REGISTER, packed.tryRun(new byte[] {1}));
+
+		EBPFProgram program = new EBPFProgram("p", p, -1, null, null);
+		assertSame(p, program.getPackedProgram());
+		assertEquals(code.length, program.getInstructionCount());
+		assertEquals(Arrays.toString(code), Arrays.toString(program.getInstructions()));
+	}
+}
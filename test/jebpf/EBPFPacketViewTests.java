@@ -0,0 +1,144 @@
+package jebpf;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.sobel.jebpf.EBPFCompiledProgram;
+import com.sobel.jebpf.EBPFInstruction;
+import com.sobel.jebpf.EBPFInstruction.InstructionSize;
+import com.sobel.jebpf.EBPFInstruction.Register;
+import com.sobel.jebpf.EBPFInterpreter;
+import com.sobel.jebpf.EBPFInterpreter.Status;
+import com.sobel.jebpf.EBPFPacketView;
+import com.sobel.jebpf.EBPFProgram;
+
+public class EBPFPacketViewTests {
+
+	private static final int[] SPLITS = {3, 0, 5, 1, 11};
+
+	/**
+	 * packet cut into SPLITS-sized segments, each sitting in the middle
+	 * of a bigger (pooled) buffer.
+	 */
+	private static EBPFPacketView split(byte[] packet) {
+		EBPFPacketView v = new EBPFPacketView(2);
+		int at = 0;
+		for (int n : SPLITS) {
+			byte[] pooled = new byte[n + 4];
+			System.arraycopy(packet, at, pooled, 2, n);
+			v.add(pooled, 2, n);
+			at += n;
+		}
+		return v;
+	}
+
+	@Test
+	public void testView() {
+		byte[] packet = new byte[20];
+		new Random(36).nextBytes(packet);
+		EBPFPacketView v = split(packet);
+		assertEquals(20, v.length());
+		assertEquals(5, v.getSegmentCount());
+		assertArrayEquals(packet, v.toByteArray());
+
+		v.clear();
+		assertEquals(0, v.length());
+		v.add(packet, 0, packet.length);
+		assertArrayEquals(packet, v.toByteArray());
+	}
+
+	@Test
+	public void testLoadsMatchContiguous() {
+		byte[] packet = new byte[20];
+		new Random(36).nextBytes(packet);
+		EBPFPacketView v = split(packet);
+
+		for (InstructionSize size : InstructionSize.values()) {
+			int off;
+			for (off = -1; off <= 20; off++) {
+				EBPFInstruction[] code = new EBPFInstruction[] {
+					EBPFInstruction.MOV_IMM(Register.R7, off),
+					EBPFInstruction.LD_IND(size, Register.R7, 0),
+					EBPFInstruction.EXIT(),
+				};
+				EBPFInterpreter t = new EBPFInterpreter(code);
+				Status expected = t.tryRun(packet);
+				int value = t.getReturnValue();
+				String what = size + " at " + off;
+
+				assertEquals(what, expected, t.tryRun(v, null));
+				if (expected == Status.OK) {
+					assertEquals(what, value, t.getReturnValue());
+				}
+				long r = EBPFCompiledProgram.compile(code).tryRun(v, null, new int[EBPFCompiledProgram.FRAME_SIZE]);
+				assertEquals(what, expected, EBPFProgram.statusOf(r));
+				if (expected == Status.OK) {
+					assertEquals(what, value, EBPFProgram.valueOf(r));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testBufferLimit() {
+		for (ByteBuffer b : new ByteBuffer[] {ByteBuffer.allocate(16), ByteBuffer.allocateDirect(16)}) {
+			b.put(2, (byte)7);
+			b.limit(8);
+			EBPFPacketView v = new EBPFPacketView();
+			v.add(b, 2, 6);
+			assertEquals(6, v.length());
+			assertEquals(7, v.toByteArray()[0]);
+			try {
+				// Past the limit, though within the capacity.
+				v.add(b, 4, 6);
+				fail();
+			} catch (IndexOutOfBoundsException e) {
+				// expected
+			}
+			assertEquals(6, v.length());
+		}
+	}
+
+	@Test
+	public void testPacketNotCopied() {
+		byte[] header = new byte[] {0, 0, 0, 1};
+		EBPFPacketView v = EBPFPacketView.of(header, new byte[] {9});
+		EBPFProgram p = new EBPFProgram("test", new EBPFInstruction[] {
+			EBPFInstruction.LD_ABS(InstructionSize.W, 1),
+			EBPFInstruction.EXIT(),
+		}, -1, null);
+		assertEquals(0x109, EBPFProgram.valueOf(p.tryRun(v, null)));
+		header[3] = 2;
+		assertEquals(0x209, EBPFProgram.valueOf(p.tryRun(v, null)));
+	}
+
+	@Test
+	public void testBatch() {
+		EBPFInstruction[] code = new EBPFInstruction[] {
+			EBPFInstruction.LD_ABS(InstructionSize.H, 2),
+			EBPFInstruction.EXIT(),
+		};
+		EBPFPacketView[] batch = new EBPFPacketView[] {
+			EBPFPacketView.of(new byte[] {0, 0, 1, 2}),
+			EBPFPacketView.of(new byte[] {0, 0}),
+			EBPFPacketView.of(new byte[] {0, 0, 3}, new byte[] {4}),
+			null,
+		};
+		EBPFProgram interpreted = new EBPFProgram("test", code, -1, null);
+		EBPFProgram compiled = new EBPFProgram("test", code, -1, null);
+		compiled.compileNow();
+		for (EBPFProgram p : new EBPFProgram[] {interpreted, compiled}) {
+			long[] results = new long[4];
+			results[3] = 99;
+			p.tryRun(batch, 3, null, results);
+			assertEquals(0x102, EBPFProgram.valueOf(results[0]));
+			assertEquals(Status.OUT_OF_BOUNDS, EBPFProgram.statusOf(results[1]));
+			assertEquals(0x304, EBPFProgram.valueOf(results[2]));
+			assertEquals(99, results[3]);
+		}
+	}
+}
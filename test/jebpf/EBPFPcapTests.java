@@ -0,0 +1,247 @@
+package jebpf;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.sobel.jebpf.EBPFInstruction;
+import com.sobel.jebpf.EBPFInstruction.InstructionCode;
+import com.sobel.jebpf.EBPFInstruction.InstructionSize;
+import com.sobel.jebpf.EBPFInstruction.Register;
+import com.sobel.jebpf.EBPFInterpreter.Status;
+import com.sobel.jebpf.EBPFPacketView;
+import com.sobel.jebpf.EBPFPcapReader;
+import com.sobel.jebpf.EBPFPcapReader.Record;
+import com.sobel.jebpf.EBPFPcapReplay;
+import com.sobel.jebpf.EBPFProgram;
+
+public class EBPFPcapTests {
+
+	private static List<byte[]> getPackets(int n) {
+		Random r = new Random(37);
+		List<byte[]> out = new ArrayList<byte[]>();
+		int i;
+		for (i = 0; i < n; i++) {
+			// Some too short for the filter to read.
+			byte[] p = new byte[i % 10 == 0 ? 10 : 20 + r.nextInt(100)];
+			r.nextBytes(p);
+			if (p.length > 14) {
+				p[12] = (byte)(i % 3 == 0 ? 0x86 : 0x08);
+				p[13] = (byte)(i % 3 == 0 ? 0xDD : 0x00);
+			}
+			out.add(p);
+		}
+		return out;
+	}
+
+	// Accepts IPv4.
+	private static EBPFProgram getFilter() {
+		return new EBPFProgram("ipv4", new EBPFInstruction[] {
+			EBPFInstruction.LD_ABS(InstructionSize.H, 12),
+			EBPFInstruction.JMP_IMM(InstructionCode.JEQ, Register.R0, 0x0800, (short)2),
+			EBPFInstruction.MOV_IMM(Register.R0, 0),
+			EBPFInstruction.EXIT(),
+			EBPFInstruction.MOV_IMM(Register.R0, 1),
+			EBPFInstruction.EXIT(),
+		});
+	}
+
+	private static File tempFile(byte[] contents) throws IOException {
+		File f = File.createTempFile("jebpf", ".pcap");
+		f.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(contents);
+		} finally {
+			out.close();
+		}
+		return f;
+	}
+
+	private static byte[] writePcap(List<byte[]> packets, ByteOrder order, boolean nanos) {
+		int size = 24;
+		for (byte[] p : packets) {
+			size += 16 + p.length;
+		}
+		ByteBuffer b = ByteBuffer.allocate(size).order(order);
+		b.putInt(nanos ? 0xA1B23C4D : 0xA1B2C3D4);
+		b.putShort((short)2).putShort((short)4);
+		b.putInt(0).putInt(0).putInt(65535).putInt(1);
+		int i = 0;
+		for (byte[] p : packets) {
+			b.putInt(1000 + i).putInt(i * 7);
+			b.putInt(p.length).putInt(p.length + 4);
+			b.put(p);
+			i++;
+		}
+		return b.array();
+	}
+
+	private static byte[] writePcapng(List<byte[]> packets, ByteOrder order) {
+		return writePcapng(packets, order, -1);
+	}
+
+	// Another ignorable block just before packets[skipBefore], if that's >= 0.
+	private static byte[] writePcapng(List<byte[]> packets, ByteOrder order, int skipBefore) {
+		ByteBuffer b = ByteBuffer.allocate(1024 + packets.size() * 200).order(order);
+		// Section header
+		b.putInt(0x0A0D0D0A).putInt(28).putInt(0x1A2B3C4D).putShort((short)1).putShort((short)0);
+		b.putLong(-1).putInt(28);
+		// A block nobody cares about
+		b.putInt(5).putInt(16).putInt(0).putInt(16);
+		// Interface 0: ethernet, nanosecond timestamps
+		b.putInt(1).putInt(32).putShort((short)1).putShort((short)0).putInt(65535);
+		b.putShort((short)9).putShort((short)1).put((byte)9).put(new byte[3]);
+		b.putShort((short)0).putShort((short)0).putInt(32);
+		int i = 0;
+		for (byte[] p : packets) {
+			if (i == skipBefore) {
+				b.putInt(5).putInt(16).putInt(0).putInt(16);
+			}
+			int padded = (p.length + 3) & ~3;
+			int length = 32 + padded;
+			long ts = 1000000000L * (1000 + i) + i * 7;
+			b.putInt(6).putInt(length).putInt(0).putInt((int)(ts >>> 32)).putInt((int)ts);
+			b.putInt(p.length).putInt(p.length + 4);
+			b.put(p).put(new byte[padded - p.length]);
+			b.putInt(length);
+			i++;
+		}
+		byte[] out = new byte[b.position()];
+		System.arraycopy(b.array(), 0, out, 0, out.length);
+		return out;
+	}
+
+	private static void assertReads(File f, List<byte[]> packets, boolean nanos) throws IOException {
+		EBPFPcapReader reader = new EBPFPcapReader(f);
+		Record r = new Record();
+		EBPFPacketView v = new EBPFPacketView();
+		int i = 0;
+		while (reader.next(r)) {
+			assertArrayEquals(packets.get(i), r.getData());
+			v.clear();
+			r.addTo(v);
+			assertArrayEquals(packets.get(i), v.toByteArray());
+			assertEquals(packets.get(i).length + 4, r.originalLength);
+			assertEquals(1, r.linkType);
+			assertEquals(1000000000L * (1000 + i) + i * 7 * (nanos ? 1 : 1000), r.timestampNanos);
+			i++;
+		}
+		assertEquals(packets.size(), i);
+		reader.close();
+	}
+
+	@Test
+	public void testReadPcap() throws IOException {
+		List<byte[]> packets = getPackets(50);
+		for (ByteOrder order : new ByteOrder[] {ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+			assertReads(tempFile(writePcap(packets, order, false)), packets, false);
+			assertReads(tempFile(writePcap(packets, order, true)), packets, true);
+			assertReads(tempFile(writePcapng(packets, order)), packets, true);
+		}
+		EBPFPcapReader reader = new EBPFPcapReader(tempFile(writePcapng(packets, ByteOrder.BIG_ENDIAN)));
+		assertEquals(EBPFPcapReader.Format.PCAPNG, reader.getFormat());
+		reader.close();
+	}
+
+	@Test
+	public void testTruncatedTail() throws IOException {
+		List<byte[]> packets = getPackets(5);
+		byte[] whole = writePcap(packets, ByteOrder.LITTLE_ENDIAN, false);
+		byte[] cut = new byte[whole.length - 3];
+		System.arraycopy(whole, 0, cut, 0, cut.length);
+		EBPFPcapReplay.Result result = EBPFPcapReplay.replay(tempFile(cut), getFilter(), 1, false);
+		assertEquals(4, result.getPackets());
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotPcap() throws IOException {
+		new EBPFPcapReader(tempFile(new byte[100]));
+	}
+
+	@Test
+	public void testReplay() throws IOException {
+		List<byte[]> packets = getPackets(1000);
+		int accepted = 0;
+		int failed = 0;
+		for (byte[] p : packets) {
+			if (p.length < 14) {
+				failed++;
+			} else if (p[12] == 0x08) {
+				accepted++;
+			}
+		}
+		for (byte[] file : new byte[][] {
+				writePcap(packets, ByteOrder.LITTLE_ENDIAN, false), writePcapng(packets, ByteOrder.BIG_ENDIAN)}) {
+			File f = tempFile(file);
+			EBPFPcapReplay.Result one = EBPFPcapReplay.replay(f, getFilter(), 1, true);
+			assertEquals(1000, one.getPackets());
+			assertEquals(accepted, one.getAccepted());
+			assertEquals(failed, one.getFailed());
+			assertEquals(Long.valueOf(failed), one.getFailureCounts().get(Status.OUT_OF_BOUNDS));
+			assertEquals(Long.valueOf(accepted), one.getVerdictCounts().get(1));
+			assertEquals(accepted, one.getMatchOffsets().length);
+
+			EBPFPcapReplay.Result many = EBPFPcapReplay.replay(f, getFilter(), 4, true);
+			assertEquals(one.toString(), many.toString());
+			assertArrayEquals(one.getMatchOffsets(), many.getMatchOffsets());
+
+			StringWriter w = new StringWriter();
+			many.writeCounts(w);
+			assertEquals("0 " + (1000 - accepted - failed) + "\n1 " + accepted + "\nOUT_OF_BOUNDS " + failed + "\n",
+					w.toString());
+			w = new StringWriter();
+			many.writeMatches(w);
+			assertEquals(accepted, w.toString().split("\n").length);
+		}
+	}
+
+	@Test
+	public void testReplayManyChunks() throws IOException {
+		// Enough records for several chunks.
+		List<byte[]> packets = new ArrayList<byte[]>();
+		int i;
+		for (i = 0; i < 3 * 64 * 1024 + 5; i++) {
+			byte[] p = new byte[14 + i % 5];
+			p[12] = (byte)(i % 7 == 0 ? 0x08 : 0x86);
+			packets.add(p);
+		}
+		File f = tempFile(writePcapng(packets, ByteOrder.LITTLE_ENDIAN));
+		EBPFPcapReplay.Result one = EBPFPcapReplay.replay(f, getFilter(), 1, true);
+		EBPFPcapReplay.Result many = EBPFPcapReplay.replay(f, getFilter(), 3, true);
+		assertEquals(packets.size(), many.getPackets());
+		assertEquals((packets.size() + 6) / 7, many.getAccepted());
+		assertEquals(one.toString(), many.toString());
+		assertArrayEquals(one.getMatchOffsets(), many.getMatchOffsets());
+	}
+
+	@Test
+	public void testBlockBeforeChunk() throws IOException {
+		// A non-packet block right before the second chunk's first record
+		// shouldn't get that record counted by the first chunk too.
+		List<byte[]> packets = new ArrayList<byte[]>();
+		int i;
+		for (i = 0; i < 64 * 1024 + 100; i++) {
+			byte[] p = new byte[14];
+			p[12] = (byte)(i % 2 == 0 ? 0x08 : 0x86);
+			packets.add(p);
+		}
+		File f = tempFile(writePcapng(packets, ByteOrder.LITTLE_ENDIAN, 64 * 1024));
+		EBPFPcapReplay.Result one = EBPFPcapReplay.replay(f, getFilter(), 1, true);
+		EBPFPcapReplay.Result many = EBPFPcapReplay.replay(f, getFilter(), 2, true);
+		assertEquals(packets.size(), one.getPackets());
+		assertEquals(packets.size(), many.getPackets());
+		assertEquals(one.toString(), many.toString());
+		assertArrayEquals(one.getMatchOffsets(), many.getMatchOffsets());
+	}
+}
@@ -0,0 +1,122 @@
+package jebpf;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.sobel.jebpf.EBPFInstruction;
+import com.sobel.jebpf.EBPFInstruction.InstructionCode;
+import com.sobel.jebpf.EBPFInstruction.InstructionSize;
+import com.sobel.jebpf.EBPFInstruction.Register;
+import com.sobel.jebpf.EBPFInterpreter;
+import com.sobel.jebpf.EBPFInterpreter.EBPFProgramException;
+import com.sobel.jebpf.EBPFProfile;
+
+public class EBPFProfileTests {
+
+	// Returns 1 if the first byte is 7, 0 otherwise.
+	private static EBPFInstruction[] getCode() {
+		return new EBPFInstruction[] {
+			EBPFInstruction.LD_ABS(InstructionSize.B, 0),
+			EBPFInstruction.JMP_IMM(InstructionCode.JEQ, Register.R0, 7, (short)2),
+			EBPFInstruction.MOV_IMM(Register.R0, 0),
+			EBPFInstruction.EXIT(),
+			EBPFInstruction.MOV_IMM(Register.R0, 1),
+			EBPFInstruction.EXIT(),
+		};
+	}
+
+	@Test
+	public void testCountsAggregateAcrossRuns() throws EBPFProgramException {
+		EBPFInstruction[] code = getCode();
+		EBPFInterpreter t = new EBPFInterpreter(code);
+		EBPFProfile p = new EBPFProfile(code.length);
+		t.setProfile(p);
+
+		assertEquals(1, t.run(new byte[] {7}));
+		assertEquals(0, t.run(new byte[] {8}));
+		assertEquals(1, t.run(new byte[] {7}));
+		assertEquals(1, t.run(new byte[] {7}));
+
+		assertEquals(4, p.getRuns());
+		assertEquals(4, p.getExecutionCount(0));
+		assertEquals(4, p.getExecutionCount(1));
+		assertEquals(1, p.getExecutionCount(2));
+		assertEquals(3, p.getExecutionCount(4));
+		assertEquals(3, p.getTakenCount(1));
+		assertEquals(1, p.getNotTakenCount(1));
+		assertEquals(0.75, p.getTakenProbability(1), 0.0001);
+		assertEquals(-1, p.getTakenProbability(0), 0.0001);
+		assertEquals(16, p.getTotalExecuted());
+	}
+
+	@Test
+	public void testCountsUpToFailure() {
+		EBPFInstruction[] code = getCode();
+		EBPFInterpreter t = new EBPFInterpreter(code);
+		EBPFProfile p = new EBPFProfile(code.length);
+		t.setProfile(p);
+		try {
+			t.run(new byte[] {});
+			fail("Expected out of bounds");
+		} catch (EBPFProgramException e) {
+			// Expected
+		}
+		assertEquals(1, p.getExecutionCount(0));
+		assertEquals(0, p.getExecutionCount(1));
+	}
+
+	@Test
+	public void testHotSpotsAndMerge() throws EBPFProgramException {
+		EBPFInstruction[] code = getCode();
+		EBPFProfile total = new EBPFProfile(code.length);
+		int i;
+		for (i = 0; i < 2; i++) {
+			EBPFInterpreter t = new EBPFInterpreter(code);
+			EBPFProfile p = new EBPFProfile(code.length);
+			t.setProfile(p);
+			t.run(new byte[] {8});
+			t.run(new byte[] {8});
+			total.merge(p);
+		}
+		assertEquals(4, total.getRuns());
+		assertEquals(4, total.getNotTakenCount(1));
+		int[] hot = total.getHotSpots(3);
+		assertEquals(4, total.getExecutionCount(hot[2]));
+		assertEquals(0, total.getExecutionCount(total.getHotSpots(6)[5]));
+	}
+
+	@Test
+	public void testReport() throws EBPFProgramException {
+		EBPFInstruction[] code = getCode();
+		EBPFInterpreter t = new EBPFInterpreter(code);
+		EBPFProfile p = new EBPFProfile(code.length);
+		t.setProfile(p);
+		t.run(new byte[] {7});
+		t.run(new byte[] {8});
+
+		String report = p.report(code);
+		String[] lines = report.split("\n");
+		assertEquals(code.length + 2, lines.length);
+		assertTrue(lines[3].contains("T 1 / N 1 50%"));
+		assertTrue(lines[3].endsWith("jeq r0, 7, +2"));
+		assertTrue(lines[2].endsWith("ldb [0]"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testWrongSize() {
+		new EBPFInterpreter(getCode()).setProfile(new EBPFProfile(2));
+	}
+
+	@Test
+	public void testDisassembly() {
+		assertEquals("add r0, r1", EBPFInstruction.ALU_REG(InstructionCode.ADD, Register.R0, Register.R1).toString());
+		assertEquals("mov r3, -4", EBPFInstruction.MOV_IMM(Register.R3, -4).toString());
+		assertEquals("neg r2", EBPFInstruction.ALU_IMM(InstructionCode.NEG, Register.R2, 0).toString());
+		assertEquals("ja +3", EBPFInstruction.JMP_JA((short)3).toString());
+		assertEquals("jgt r1, r2, +0", EBPFInstruction.JMP_REG(InstructionCode.JGT, Register.R1, Register.R2, (short)0).toString());
+		assertEquals("exit", EBPFInstruction.EXIT().toString());
+		assertEquals("ldh [12]", EBPFInstruction.LD_ABS(InstructionSize.H, 12).toString());
+		assertEquals("ldw [r7-1]", EBPFInstruction.LD_IND(InstructionSize.W, Register.R7, -1).toString());
+	}
+}
@@ -0,0 +1,282 @@
+package jebpf;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.sobel.jebpf.EBPFAdmissionPolicy;
+import com.sobel.jebpf.EBPFAdmissionPolicy.EBPFAdmissionException;
+import com.sobel.jebpf.EBPFCompiledProgram;
+import com.sobel.jebpf.EBPFCostModel;
+import com.sobel.jebpf.EBPFContext;
+import com.sobel.jebpf.EBPFFilterSet;
+import com.sobel.jebpf.EBPFInstruction;
+import com.sobel.jebpf.EBPFInstruction.EBPFDecodeException;
+import com.sobel.jebpf.EBPFInstruction.InstructionCode;
+import com.sobel.jebpf.EBPFInstruction.InstructionSize;
+import com.sobel.jebpf.EBPFInstruction.Register;
+import com.sobel.jebpf.EBPFInterpreter;
+import com.sobel.jebpf.EBPFInterpreter.Status;
+import com.sobel.jebpf.EBPFPackedProgram;
+import com.sobel.jebpf.EBPFProgram;
+import com.sobel.jebpf.EBPFProgramArray;
+import com.sobel.jebpf.EBPFVerifier;
+import com.sobel.jebpf.EBPFVerifier.EBPFVerifyException;
+
+public class EBPFProgramArrayTests {
+
+	// Tail calls slot 0 for IPv4, 1 for IPv6, 2 for anything else; -1 if
+	// that didn't go anywhere.
+	private static EBPFInstruction[] getClassifier() {
+		return new EBPFInstruction[] {
+			EBPFInstruction.LD_ABS(InstructionSize.H, 12),
+			EBPFInstruction.MOV_IMM(Register.R3, 0),
+			EBPFInstruction.JMP_IMM(InstructionCode.JEQ, Register.R0, 0x0800, (short)3),
+			EBPFInstruction.MOV_IMM(Register.R3, 1),
+			EBPFInstruction.JMP_IMM(InstructionCode.JEQ, Register.R0, 0x86DD, (short)1),
+			EBPFInstruction.MOV_IMM(Register.R3, 2),
+			EBPFInstruction.TAIL_CALL(),
+			EBPFInstruction.MOV_IMM(Register.R0, -1),
+			EBPFInstruction.EXIT(),
+		};
+	}
+
+	// IPv4 protocol
+	private static EBPFInstruction[] getIPv4() {
+		return new EBPFInstruction[] {
+			EBPFInstruction.LD_ABS(InstructionSize.B, 23),
+			EBPFInstruction.EXIT(),
+		};
+	}
+
+	// IPv6 next header + 100, through the stack.
+	private static EBPFInstruction[] getIPv6() {
+		return new EBPFInstruction[] {
+			EBPFInstruction.LD_ABS(InstructionSize.B, 20),
+			EBPFInstruction.ALU_IMM(InstructionCode.ADD, Register.R0, 100),
+			EBPFInstruction.STX_MEM(InstructionSize.W, Register.R10, Register.R0, (short)-4),
+			EBPFInstruction.LDX_MEM(InstructionSize.W, Register.R0, Register.R10, (short)-4),
+			EBPFInstruction.EXIT(),
+		};
+	}
+
+	private static byte[] getPacket(int ethertype, int proto) {
+		byte[] p = new byte[40];
+		p[12] = (byte)(ethertype >> 8);
+		p[13] = (byte)ethertype;
+		p[20] = (byte)proto;
+		p[23] = (byte)proto;
+		return p;
+	}
+
+	private static EBPFProgramArray getArray() throws EBPFVerifyException {
+		EBPFProgramArray a = new EBPFProgramArray(4);
+		a.set(0, new EBPFProgram("ipv4", getIPv4()));
+		a.set(1, new EBPFProgram("ipv6", getIPv6()));
+		return a;
+	}
+
+	// Runs code on both engines, checks they agree and returns R0.
+	private static int run(EBPFInstruction[] code, byte[] packet, EBPFContext ctx) {
+		EBPFInterpreter t = new EBPFInterpreter(code);
+		assertEquals(Status.OK, t.tryRun(packet, ctx));
+		EBPFCompiledProgram c = EBPFCompiledProgram.compile(code);
+		long r = c.tryRun(packet, ctx, c.newFrame());
+		assertEquals(Status.OK, EBPFProgram.statusOf(r));
+		assertEquals(t.getReturnValue(), EBPFProgram.valueOf(r));
+		return t.getReturnValue();
+	}
+
+	@Test
+	public void testDispatch() throws EBPFVerifyException {
+		EBPFVerifier.verify(getClassifier(), true);
+		EBPFContext ctx = new EBPFContext();
+		ctx.setProgramArray(getArray());
+
+		assertEquals(6, run(getClassifier(), getPacket(0x0800, 6), ctx));
+		assertEquals(117, run(getClassifier(), getPacket(0x86DD, 17), ctx));
+		// Slot 2 is empty
+		assertEquals(-1, run(getClassifier(), getPacket(0x0806, 1), ctx));
+		// Short packet: the target fails, and that's the run's result.
+		byte[] runt = new byte[20];
+		runt[12] = 0x08;
+		EBPFInterpreter t = new EBPFInterpreter(getClassifier());
+		assertEquals(Status.OUT_OF_BOUNDS, t.tryRun(runt, ctx));
+		EBPFCompiledProgram c = EBPFCompiledProgram.compile(getClassifier());
+		long r = c.tryRun(runt, ctx, c.newFrame());
+		assertEquals(Status.OUT_OF_BOUNDS, EBPFProgram.statusOf(r));
+	}
+
+	@Test
+	public void testFallThrough() throws EBPFVerifyException {
+		byte[] packet = getPacket(0x0800, 6);
+		// No context, no array.
+		EBPFInterpreter t = new EBPFInterpreter(getClassifier());
+		assertEquals(Status.OK, t.tryRun(packet));
+		assertEquals(-1, t.getReturnValue());
+		assertEquals(-1, EBPFProgram.valueOf(EBPFCompiledProgram.compile(getClassifier()).tryRun(packet)));
+		EBPFContext ctx = new EBPFContext();
+		assertEquals(-1, run(getClassifier(), packet, ctx));
+
+		// Out of range either way.
+		ctx.setProgramArray(getArray());
+		EBPFInstruction[] code = getClassifier();
+		code[1] = EBPFInstruction.MOV_IMM(Register.R3, 4);
+		assertEquals(-1, run(code, packet, ctx));
+		code[1] = EBPFInstruction.MOV_IMM(Register.R3, -1);
+		assertEquals(-1, run(code, packet, ctx));
+
+		// Cleared
+		ctx.getProgramArray().clear(0);
+		assertNull(ctx.getProgramArray().get(0));
+		assertEquals(-1, run(getClassifier(), packet, ctx));
+	}
+
+	@Test
+	public void testChainLimit() throws EBPFVerifyException {
+		EBPFInstruction[] self = {
+			EBPFInstruction.MOV_IMM(Register.R3, 0),
+			EBPFInstruction.TAIL_CALL(),
+			EBPFInstruction.MOV_IMM(Register.R0, 42),
+			EBPFInstruction.EXIT(),
+		};
+		EBPFProgramArray a = new EBPFProgramArray(1);
+		a.set(0, new EBPFProgram("self", self));
+		EBPFContext ctx = new EBPFContext();
+		ctx.setProgramArray(a);
+		assertEquals(42, run(self, new byte[0], ctx));
+
+		EBPFCompiledProgram c = EBPFCompiledProgram.compile(self);
+		int[] frame = c.newFrame();
+		c.tryRun(new byte[0], ctx, frame);
+		// The entry program and MAX_TAIL_CALLS more get as far as the
+		// call, then the last one falls through.
+		assertEquals((EBPFProgramArray.MAX_TAIL_CALLS + 1) * 2 + 2, EBPFCompiledProgram.getSteps(frame));
+	}
+
+	@Test
+	public void testFreshState() throws EBPFVerifyException {
+		// Leaves junk on the stack and in R6, then goes to a program that
+		// reads both.
+		EBPFInstruction[] entry = {
+			EBPFInstruction.MOV_IMM(Register.R6, 77),
+			EBPFInstruction.STX_MEM(InstructionSize.W, Register.R10, Register.R6, (short)-8),
+			EBPFInstruction.MOV_IMM(Register.R3, 0),
+			EBPFInstruction.TAIL_CALL(),
+			EBPFInstruction.MOV_IMM(Register.R0, -1),
+			EBPFInstruction.EXIT(),
+		};
+		EBPFInstruction[] stack = {
+			EBPFInstruction.LDX_MEM(InstructionSize.W, Register.R0, Register.R10, (short)-8),
+			EBPFInstruction.EXIT(),
+		};
+		EBPFInstruction[] r6 = {
+			EBPFInstruction.MOV_REG(Register.R0, Register.R6),
+			EBPFInstruction.EXIT(),
+		};
+		EBPFProgramArray a = new EBPFProgramArray(1);
+		a.set(0, new EBPFProgram("stack", stack));
+		EBPFContext ctx = new EBPFContext();
+		ctx.setProgramArray(a);
+		assertEquals(0, run(entry, new byte[0], ctx));
+
+		try {
+			a.set(0, new EBPFProgram("r6", r6));
+			fail();
+		} catch (EBPFVerifyException e) {
+			// expected
+		}
+		assertEquals("stack", a.get(0).getName());
+	}
+
+	@Test
+	public void testVerifyAndDecode() throws EBPFVerifyException, EBPFDecodeException {
+		// R3 has to be set, and R1-R5 are gone after a fall through.
+		EBPFInstruction[][] bad = {
+			{
+				EBPFInstruction.TAIL_CALL(),
+				EBPFInstruction.MOV_IMM(Register.R0, 0),
+				EBPFInstruction.EXIT(),
+			},
+			{
+				EBPFInstruction.MOV_IMM(Register.R3, 0),
+				EBPFInstruction.TAIL_CALL(),
+				EBPFInstruction.MOV_REG(Register.R0, Register.R1),
+				EBPFInstruction.EXIT(),
+			},
+			// Falls off the end when there's nothing to go to.
+			{
+				EBPFInstruction.MOV_IMM(Register.R3, 0),
+				EBPFInstruction.TAIL_CALL(),
+			},
+		};
+		for (EBPFInstruction[] code : bad) {
+			try {
+				EBPFVerifier.verify(code, true);
+				fail();
+			} catch (EBPFVerifyException e) {
+				// expected
+			}
+		}
+
+		EBPFPackedProgram p = EBPFPackedProgram.decode(new EBPFPackedProgram(getClassifier()).encode());
+		assertEquals("tail_call", p.get(6).toString());
+		EBPFVerifier.verify(p.toArray(), true);
+	}
+
+	@Test
+	public void testFilterSet() throws EBPFVerifyException {
+		EBPFInstruction[] other = getClassifier();
+		other[7] = EBPFInstruction.MOV_IMM(Register.R0, -2);
+		EBPFInstruction[][] filters = {getClassifier(), other, getIPv4()};
+		EBPFFilterSet set = new EBPFFilterSet(filters);
+		EBPFContext ctx = new EBPFContext();
+		ctx.setProgramArray(getArray());
+		long[] results = new long[filters.length];
+		byte[][] packets = {getPacket(0x0800, 6), getPacket(0x86DD, 17), getPacket(0x0806, 1)};
+		for (byte[] packet : packets) {
+			set.evaluate(packet, ctx, results);
+			int i;
+			for (i = 0; i < filters.length; i++) {
+				assertEquals(run(filters[i], packet, ctx), EBPFProgram.valueOf(results[i]));
+			}
+		}
+	}
+
+	@Test
+	public void testAdmission() throws EBPFVerifyException {
+		// Classifier 16 on its own, IPv4 5, IPv6 12.
+		EBPFAdmissionPolicy policy = new EBPFAdmissionPolicy(new EBPFCostModel(), 1000);
+		try {
+			policy.admit(getClassifier(), true);
+			fail();
+		} catch (EBPFAdmissionException e) {
+			assertEquals(16, e.cost.maxCost);
+		}
+
+		policy.setTailCallBudget(10);
+		EBPFAdmissionPolicy.Admission a = policy.admit(getClassifier(), true);
+		assertEquals(16, a.cost.maxCost);
+		assertEquals(16 + EBPFProgramArray.MAX_TAIL_CALLS * 10, a.worstCost);
+		try {
+			new EBPFAdmissionPolicy(new EBPFCostModel(), 300).setTailCallBudget(10).admit(getClassifier(), true);
+			fail();
+		} catch (EBPFAdmissionException e) {
+			// expected
+		}
+
+		// What it can chain to is held to the tail call budget.
+		EBPFProgramArray array = new EBPFProgramArray(4, policy);
+		array.set(0, new EBPFProgram("ipv4", getIPv4()));
+		try {
+			array.set(1, new EBPFProgram("ipv6", getIPv6()));
+			fail();
+		} catch (EBPFAdmissionException e) {
+			assertEquals(12, e.cost.maxCost);
+		}
+		assertNull(array.get(1));
+		EBPFContext ctx = new EBPFContext();
+		ctx.setProgramArray(array);
+		assertEquals(-1, run(getClassifier(), getPacket(0x86DD, 17), ctx));
+	}
+}
@@ -0,0 +1,199 @@
+package jebpf;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Test;
+
+import com.sobel.jebpf.EBPFCodeArena;
+import com.sobel.jebpf.EBPFCompiledProgram;
+import com.sobel.jebpf.EBPFContext;
+import com.sobel.jebpf.EBPFInstruction;
+import com.sobel.jebpf.EBPFInstruction.InstructionCode;
+import com.sobel.jebpf.EBPFInstruction.InstructionSize;
+import com.sobel.jebpf.EBPFInstruction.Register;
+import com.sobel.jebpf.EBPFProgram;
+import com.sobel.jebpf.EBPFProgramCache;
+import com.sobel.jebpf.EBPFProgramHandle;
+import com.sobel.jebpf.EBPFVerifier.EBPFVerifyException;
+
+public class EBPFProgramCacheTests {
+
+	// Returns k if byte 0 is k, else 0.
+	private static EBPFInstruction[] getCode(int k) {
+		return new EBPFInstruction[] {
+			EBPFInstruction.LD_ABS(InstructionSize.B, 0),
+			EBPFInstruction.JMP_IMM(InstructionCode.JEQ, Register.R0, k, (short)1),
+			EBPFInstruction.MOV_IMM(Register.R0, 0),
+			EBPFInstruction.EXIT(),
+		};
+	}
+
+	// The packet length, so only good with a context.
+	private static EBPFInstruction[] getContextCode() {
+		return new EBPFInstruction[] {
+			EBPFInstruction.LDX_MEM(InstructionSize.W, Register.R0, Register.R1, (short)EBPFContext.PACKET_LENGTH),
+			EBPFInstruction.EXIT(),
+		};
+	}
+
+	private static File write(int programs) throws IOException, EBPFVerifyException {
+		File f = File.createTempFile("jebpf", ".cache");
+		f.deleteOnExit();
+		EBPFProgramCache.Builder b = new EBPFProgramCache.Builder();
+		int i;
+		for (i = 0; i < programs; i++) {
+			b.add(getCode(i), false);
+		}
+		b.add(getContextCode(), true);
+		// Same again, shouldn't add another.
+		b.add(getCode(0), true);
+		assertEquals(programs + 1, b.size());
+		b.write(f);
+		return f;
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		File f = write(50);
+		EBPFProgramCache cache = EBPFProgramCache.open(f);
+		assertEquals(51, cache.size());
+		EBPFCodeArena arena = new EBPFCodeArena();
+		// The arena only holds its programs weakly, so keep them around.
+		EBPFCompiledProgram[] compiled = new EBPFCompiledProgram[50];
+		int i;
+		for (i = 0; i < 50; i++) {
+			EBPFProgramCache.Entry e = cache.find(getCode(i));
+			assertTrue(e.isVerified(false));
+			assertTrue(e.isVerified(true));
+			EBPFCompiledProgram c = e.compile(i % 2 == 0 ? arena : null);
+			compiled[i] = c;
+			assertEquals(EBPFCompiledProgram.compile(getCode(i)).getCodeSize(), c.getCodeSize());
+			assertEquals(i, c.run(new byte[] {(byte)i}));
+			assertEquals(0, c.run(new byte[] {(byte)(i + 1)}));
+		}
+		assertEquals(25, arena.getProgramCount());
+
+		EBPFProgramCache.Entry e = cache.find(getContextCode());
+		assertFalse(e.isVerified(false));
+		assertTrue(e.isVerified(true));
+		EBPFContext ctx = new EBPFContext();
+		ctx.setInt(EBPFContext.PACKET_LENGTH, 3);
+		assertEquals(3, e.compile(null).run(new byte[3], ctx));
+
+		assertNull(cache.find(getCode(50)));
+		assertEquals(51, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void testEmpty() throws Exception {
+		File f = File.createTempFile("jebpf", ".cache");
+		f.deleteOnExit();
+		new EBPFProgramCache.Builder().write(f);
+		EBPFProgramCache cache = EBPFProgramCache.open(f);
+		assertEquals(0, cache.size());
+		assertNull(cache.find(getCode(0)));
+	}
+
+	@Test
+	public void testEntryCheckedOnce() throws Exception {
+		File f = write(3);
+		EBPFProgramCache cache = EBPFProgramCache.open(f);
+		assertNotNull(cache.find(getContextCode()));
+		// Damage shows through the mapping, but the entry's already been
+		// checked and its code kept.
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			raf.seek(f.length() - 4);
+			raf.writeInt(0x7FFFFFFF);
+		} finally {
+			raf.close();
+		}
+		EBPFProgramCache.Entry e = cache.find(getContextCode());
+		assertNotNull(e);
+		EBPFContext ctx = new EBPFContext();
+		ctx.setInt(EBPFContext.PACKET_LENGTH, 5);
+		assertEquals(5, e.compile(null).run(new byte[5], ctx));
+		assertEquals(2, cache.getHits());
+	}
+
+	@Test
+	public void testDamagedEntryMisses() throws Exception {
+		File f = write(3);
+		long length = f.length();
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			// Last int of the last entry, the context program's END.
+			raf.seek(length - 4);
+			raf.writeInt(0x7FFFFFFF);
+		} finally {
+			raf.close();
+		}
+		EBPFProgramCache cache = EBPFProgramCache.open(f);
+		assertNull(cache.find(getContextCode()));
+		assertNotNull(cache.find(getCode(2)));
+	}
+
+	private static void assertWontOpen(File f, long at, int v) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			raf.seek(at);
+			raf.writeInt(v);
+		} finally {
+			raf.close();
+		}
+		try {
+			EBPFProgramCache.open(f);
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testBadFiles() throws Exception {
+		assertWontOpen(write(2), 0, 0);
+		// Format, then code version.
+		assertWontOpen(write(2), 4, EBPFProgramCache.FORMAT_VERSION + 1);
+		assertWontOpen(write(2), 8, -1);
+		// More entries than there are.
+		assertWontOpen(write(2), 12, 4);
+
+		File f = write(2);
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			raf.setLength(f.length() - 1);
+		} finally {
+			raf.close();
+		}
+		try {
+			EBPFProgramCache.open(f);
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage().startsWith("Truncated"));
+		}
+	}
+
+	@Test
+	public void testProgramAndHandle() throws Exception {
+		EBPFProgramCache cache = EBPFProgramCache.open(write(5));
+		EBPFProgram p = new EBPFProgram("p", getCode(4), -1, null);
+		p.compileNow(cache);
+		assertEquals(EBPFProgram.Tier.COMPILED, p.getTier());
+		assertEquals(4, p.run(new byte[] {4}));
+
+		EBPFProgramHandle h = new EBPFProgramHandle("h", getCode(1), new EBPFCodeArena(), true);
+		h.setCache(cache);
+		h.publish(getContextCode());
+		h.publish(getCode(3));
+		// Not in there, so verified and compiled as usual.
+		h.publish(getCode(9));
+		assertEquals(3, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(9, h.run(new byte[] {9}, new EBPFContext()));
+	}
+}
@@ -0,0 +1,137 @@
+package jebpf;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.sobel.jebpf.EBPFCodeArena;
+import com.sobel.jebpf.EBPFInstruction;
+import com.sobel.jebpf.EBPFInstruction.InstructionCode;
+import com.sobel.jebpf.EBPFInstruction.InstructionSize;
+import com.sobel.jebpf.EBPFInstruction.Register;
+import com.sobel.jebpf.EBPFInterpreter.EBPFProgramException;
+import com.sobel.jebpf.EBPFProgram;
+import com.sobel.jebpf.EBPFProgramHandle;
+import com.sobel.jebpf.EBPFProgramHandle.Version;
+import com.sobel.jebpf.EBPFVerifier.EBPFVerifyException;
+
+public class EBPFProgramHandleTests {
+
+	private static EBPFInstruction[] getCode(int k) {
+		return new EBPFInstruction[] {
+			EBPFInstruction.MOV_IMM(Register.R0, k),
+			EBPFInstruction.EXIT(),
+		};
+	}
+
+	private static class Recorder implements EBPFProgramHandle.SwapListener {
+		List<Long> published = new ArrayList<Long>();
+		List<Long> retired = new ArrayList<Long>();
+
+		@Override
+		public synchronized void onPublished(EBPFProgramHandle handle, Version version, long prepareNanos) {
+			published.add(version.number);
+		}
+
+		@Override
+		public synchronized void onRetired(EBPFProgramHandle handle, Version version, long drainNanos) {
+			retired.add(version.number);
+		}
+	}
+
+	@Test
+	public void testPublish() throws EBPFVerifyException, EBPFProgramException {
+		EBPFProgramHandle h = new EBPFProgramHandle("test", getCode(1), null);
+		Recorder r = new Recorder();
+		h.setSwapListener(r);
+		assertEquals(1, h.getVersion());
+		assertEquals(1, h.run(new byte[0]));
+		// Prepared off the hot path: already compiled before it's visible.
+		assertEquals(EBPFProgram.Tier.COMPILED, h.getCurrent().program.getTier());
+
+		assertEquals(2, h.publish(getCode(2)));
+		assertEquals(2, h.run(new byte[0]));
+		assertEquals(2, EBPFProgram.valueOf(h.tryRun(new byte[0])));
+		assertTrue(h.getLastPrepareNanos() > 0);
+
+		// Nothing was running, so the old one retires on the spot.
+		assertEquals(1, h.getRetiredCount());
+		assertEquals(1, r.published.size());
+		assertEquals(Long.valueOf(1), r.retired.get(0));
+	}
+
+	@Test
+	public void testBadProgramLeavesCurrentAlone() throws EBPFVerifyException, EBPFProgramException {
+		EBPFProgramHandle h = new EBPFProgramHandle("test", getCode(1), null);
+		try {
+			h.publish(new EBPFInstruction[] {EBPFInstruction.EXIT()});
+			fail("Should have been rejected");
+		} catch (EBPFVerifyException e) {
+		}
+		assertEquals(1, h.getVersion());
+		assertEquals(1, h.run(new byte[0]));
+		assertEquals(0, h.getRetiredCount());
+	}
+
+	@Test
+	public void testInFlightFinishesOnOldVersion() throws Exception {
+		EBPFCodeArena arena = new EBPFCodeArena();
+		EBPFInstruction[] slow = new EBPFInstruction[] {
+			EBPFInstruction.LD_ABS(InstructionSize.B, 0),
+			EBPFInstruction.MOV_IMM(Register.R0, 1),
+			EBPFInstruction.EXIT(),
+		};
+		final EBPFProgramHandle h = new EBPFProgramHandle("test", slow, arena);
+		final Recorder r = new Recorder();
+		h.setSwapListener(r);
+
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicInteger ones = new AtomicInteger();
+		final AtomicInteger twos = new AtomicInteger();
+		Thread[] workers = new Thread[4];
+		int i;
+		for (i = 0; i < workers.length; i++) {
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					byte[] packet = new byte[] {0};
+					while (!stop.get()) {
+						int v = EBPFProgram.valueOf(h.tryRun(packet));
+						if (v == 1) {
+							ones.incrementAndGet();
+						} else if (v == 2) {
+							twos.incrementAndGet();
+						}
+					}
+				}
+			});
+			workers[i].start();
+		}
+		Thread.sleep(20);
+		for (i = 2; i < 20; i++) {
+			h.publish(getCode(i));
+		}
+		h.publish(getCode(2));
+		Thread.sleep(20);
+		stop.set(true);
+		for (Thread t : workers) {
+			t.join();
+		}
+
+		assertTrue(ones.get() > 0);
+		assertTrue(twos.get() > 0);
+		assertEquals(20, h.getVersion());
+		// Every old version drained and retired exactly once.
+		assertEquals(19, h.getRetiredCount());
+		assertEquals(19, r.retired.size());
+		assertEquals(0, h.getCurrent().getInFlight());
+		assertFalse(h.getCurrent().isRetired());
+		// And gave its code back.
+		assertEquals(1, arena.getProgramCount());
+	}
+}
@@ -0,0 +1,144 @@
+package jebpf;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.sobel.jebpf.EBPFInstruction;
+import com.sobel.jebpf.EBPFInstruction.InstructionCode;
+import com.sobel.jebpf.EBPFInstruction.InstructionSize;
+import com.sobel.jebpf.EBPFInstruction.Register;
+import com.sobel.jebpf.EBPFInterpreter;
+import com.sobel.jebpf.EBPFInterpreter.Status;
+import com.sobel.jebpf.EBPFSpecializer;
+import com.sobel.jebpf.EBPFVerifier;
+import com.sobel.jebpf.EBPFVerifier.EBPFVerifyException;
+
+public class EBPFSpecializerTests {
+
+	// Config at 0: an enabled flag (W) and a threshold (W). Passes packets
+	// whose length field (H at 8) is over threshold + 1, if enabled.
+	private static EBPFInstruction[] getProgram() {
+		return new EBPFInstruction[] {
+			EBPFInstruction.LD_ABS(InstructionSize.W, 0),
+			EBPFInstruction.JMP_IMM(InstructionCode.JEQ, Register.R0, 0, (short)5),
+			EBPFInstruction.LD_ABS(InstructionSize.W, 4),
+			EBPFInstruction.MOV_REG(Register.R6, Register.R0),
+			EBPFInstruction.ALU_IMM(InstructionCode.ADD, Register.R6, 1),
+			EBPFInstruction.LD_ABS(InstructionSize.H, 8),
+			EBPFInstruction.JMP_REG(InstructionCode.JGT, Register.R0, Register.R6, (short)2),
+			EBPFInstruction.MOV_IMM(Register.R0, 0),
+			EBPFInstruction.EXIT(),
+			EBPFInstruction.MOV_IMM(Register.R0, 1),
+			EBPFInstruction.EXIT(),
+		};
+	}
+
+	private static byte[] config(int enabled, int threshold) {
+		return new byte[] {
+			(byte)(enabled >>> 24), (byte)(enabled >>> 16), (byte)(enabled >>> 8), (byte)enabled,
+			(byte)(threshold >>> 24), (byte)(threshold >>> 16), (byte)(threshold >>> 8), (byte)threshold,
+		};
+	}
+
+	private static byte[] packet(byte[] config, int length) {
+		byte[] p = new byte[10];
+		System.arraycopy(config, 0, p, 0, config.length);
+		p[8] = (byte)(length >>> 8);
+		p[9] = (byte)length;
+		return p;
+	}
+
+	@Test
+	public void testFoldsConfig() throws Exception {
+		// Enabled: the flag test goes, and so do the config loads and R6,
+		// leaving the comparison against a constant.
+		EBPFInstruction[] on = EBPFSpecializer.specialize(getProgram(), 0, config(1, 99));
+		assertEquals(6, on.length);
+		EBPFInstruction[] expected = new EBPFInstruction[] {
+			EBPFInstruction.LD_ABS(InstructionSize.H, 8),
+			EBPFInstruction.JMP_IMM(InstructionCode.JGT, Register.R0, 100, (short)2),
+			EBPFInstruction.MOV_IMM(Register.R0, 0),
+			EBPFInstruction.EXIT(),
+			EBPFInstruction.MOV_IMM(Register.R0, 1),
+			EBPFInstruction.EXIT(),
+		};
+		int i;
+		for (i = 0; i < expected.length; i++) {
+			assertEquals(expected[i].toString(), on[i].toString());
+		}
+		EBPFVerifier.verify(on);
+
+		// Disabled: nothing left but the answer.
+		EBPFInstruction[] off = EBPFSpecializer.specialize(getProgram(), 0, config(0, 99));
+		assertEquals(2, off.length);
+		assertEquals(0, new EBPFInterpreter(off).run(new byte[0]));
+
+		// Only part of the config known: the threshold load stays.
+		EBPFInstruction[] part = EBPFSpecializer.specialize(getProgram(), 0, new byte[] {0, 0, 0, 1, 0, 0});
+		assertEquals(getProgram().length - 2, part.length);
+	}
+
+	@Test
+	public void testMatchesGeneric() throws Exception {
+		Random r = new Random(50);
+		int i;
+		for (i = 0; i < 200; i++) {
+			byte[] c = config(r.nextInt(2), r.nextInt(1000));
+			EBPFInterpreter generic = new EBPFInterpreter(getProgram());
+			EBPFInterpreter specialized = new EBPFInterpreter(EBPFSpecializer.specialize(getProgram(), 0, c));
+			byte[] p = packet(c, r.nextInt(1100));
+			assertEquals(generic.run(p), specialized.run(p));
+		}
+	}
+
+	@Test
+	public void testUpdateRepublishes() throws EBPFVerifyException, Exception {
+		EBPFSpecializer s = new EBPFSpecializer("cfg", getProgram(), 0, config(1, 99), null, false);
+		long version = s.getHandle().getVersion();
+		assertEquals(1, s.getHandle().run(packet(config(1, 99), 101)));
+		assertEquals(0, s.getHandle().run(packet(config(1, 99), 100)));
+
+		assertFalse(s.update(config(1, 99)));
+		assertEquals(version, s.getHandle().getVersion());
+
+		assertTrue(s.update(4, InstructionSize.W, 200));
+		assertEquals(version + 1, s.getHandle().getVersion());
+		assertEquals(0, s.getHandle().run(packet(config(1, 200), 101)));
+		assertEquals(1, s.getHandle().run(packet(config(1, 200), 202)));
+		assertArrayEquals(config(1, 200), s.getValues());
+
+		try {
+			s.update(6, InstructionSize.W, 1);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testMergesAndKeepsUnknowns() throws Exception {
+		// R6 is 3 on both paths into the join, R7 isn't agreed on.
+		EBPFInstruction[] insns = new EBPFInstruction[] {
+			EBPFInstruction.LD_ABS(InstructionSize.B, 4),
+			EBPFInstruction.MOV_IMM(Register.R6, 3),
+			EBPFInstruction.MOV_IMM(Register.R7, 1),
+			EBPFInstruction.JMP_IMM(InstructionCode.JEQ, Register.R0, 0, (short)1),
+			EBPFInstruction.MOV_IMM(Register.R7, 2),
+			EBPFInstruction.JMP_IMM(InstructionCode.JEQ, Register.R6, 3, (short)2),
+			EBPFInstruction.MOV_IMM(Register.R0, -1),
+			EBPFInstruction.EXIT(),
+			EBPFInstruction.MOV_REG(Register.R0, Register.R7),
+			EBPFInstruction.EXIT(),
+		};
+		// The region doesn't cover byte 4, so the load stays.
+		EBPFInstruction[] out = EBPFSpecializer.specialize(insns, 0, new byte[4]);
+		EBPFVerifier.verify(out);
+		assertEquals(insns.length - 4, out.length);
+		assertEquals(1, new EBPFInterpreter(out).run(new byte[] {0, 0, 0, 0, 0}));
+		assertEquals(2, new EBPFInterpreter(out).run(new byte[] {0, 0, 0, 0, 9}));
+		assertEquals(Status.OUT_OF_BOUNDS, new EBPFInterpreter(out).tryRun(new byte[4]));
+	}
+}
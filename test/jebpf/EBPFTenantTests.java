@@ -0,0 +1,156 @@
+package jebpf;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.sobel.jebpf.EBPFInstruction;
+import com.sobel.jebpf.EBPFInstruction.InstructionCode;
+import com.sobel.jebpf.EBPFInstruction.InstructionSize;
+import com.sobel.jebpf.EBPFInstruction.Register;
+import com.sobel.jebpf.EBPFInterpreter.EBPFProgramException;
+import com.sobel.jebpf.EBPFInterpreter.Status;
+import com.sobel.jebpf.EBPFProgram;
+import com.sobel.jebpf.EBPFProgramHandle;
+import com.sobel.jebpf.EBPFTenant;
+import com.sobel.jebpf.EBPFVerifier.EBPFVerifyException;
+
+public class EBPFTenantTests {
+
+	private static final long HOUR = 3600L * 1000 * 1000 * 1000;
+
+	// Three instructions: P[0] + 1.
+	private static EBPFInstruction[] getProgram() {
+		return new EBPFInstruction[] {
+			EBPFInstruction.LD_ABS(InstructionSize.B, 0),
+			EBPFInstruction.ALU_IMM(InstructionCode.ADD, Register.R0, 1),
+			EBPFInstruction.EXIT(),
+		};
+	}
+
+	@Test
+	public void testCharges() {
+		EBPFTenant tenant = new EBPFTenant("a");
+		for (int threshold : new int[] {-1, 0}) {
+			EBPFProgram p = new EBPFProgram("p", getProgram(), threshold, null);
+			if (threshold == 0) {
+				p.compileNow();
+			}
+			p.setTenant(tenant);
+			assertEquals(6, EBPFProgram.valueOf(p.tryRun(new byte[] {5})));
+			// Fails on the first instruction.
+			assertEquals(Status.OUT_OF_BOUNDS, EBPFProgram.statusOf(p.tryRun(new byte[0])));
+		}
+		assertEquals(4, tenant.getRuns());
+		assertEquals(8, tenant.getInstructionsRetired());
+		assertTrue(tenant.getWallNanos() > 0);
+		assertEquals(0, tenant.getRejectedRuns());
+		assertFalse(tenant.isOverQuota());
+	}
+
+	@Test
+	public void testInstructionQuota() {
+		EBPFTenant tenant = new EBPFTenant("heavy");
+		tenant.setQuota(HOUR, 30, -1);
+		EBPFProgram p = new EBPFProgram("p", getProgram(), 0, null);
+		p.compileNow();
+		p.setTenant(tenant);
+		byte[] packet = new byte[] {1};
+		int i;
+		// Only looked at every CHECK_INTERVAL runs, so these all go through.
+		for (i = 0; i < EBPFTenant.CHECK_INTERVAL; i++) {
+			assertEquals(Status.OK, EBPFProgram.statusOf(p.tryRun(packet)));
+		}
+		assertTrue(tenant.isOverQuota());
+		assertEquals(3 * EBPFTenant.CHECK_INTERVAL, tenant.getWindowInstructions());
+		assertEquals(Status.QUOTA_EXCEEDED, EBPFProgram.statusOf(p.tryRun(packet)));
+		try {
+			p.run(packet);
+			fail();
+		} catch (EBPFProgramException e) {
+			assertEquals(Status.QUOTA_EXCEEDED, e.status);
+		}
+		assertEquals(2, tenant.getRejectedRuns());
+		assertEquals(EBPFTenant.CHECK_INTERVAL, tenant.getRuns());
+
+		// One in four gets through.
+		tenant.setThrottle(4);
+		int ok = 0;
+		for (i = 0; i < 8; i++) {
+			if (EBPFProgram.statusOf(p.tryRun(packet)) == Status.OK) {
+				ok++;
+			}
+		}
+		assertEquals(2, ok);
+
+		// A fresh window.
+		tenant.setQuota(HOUR, 30, -1);
+		assertFalse(tenant.isOverQuota());
+		assertEquals(0, tenant.getWindowInstructions());
+		assertEquals(Status.OK, EBPFProgram.statusOf(p.tryRun(packet)));
+	}
+
+	@Test
+	public void testQuotaAcrossThreads() throws InterruptedException {
+		final EBPFTenant tenant = new EBPFTenant("shared");
+		tenant.setQuota(HOUR, 30, -1);
+		final EBPFProgram p = new EBPFProgram("p", getProgram(), -1, null);
+		p.setTenant(tenant);
+		Thread[] threads = new Thread[4];
+		int i;
+		for (i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					int j;
+					for (j = 0; j < EBPFTenant.CHECK_INTERVAL; j++) {
+						p.tryRun(new byte[] {1});
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		// Each thread's stripe has had a check, whoever it shares with.
+		assertTrue(tenant.isOverQuota());
+		assertEquals(threads.length * EBPFTenant.CHECK_INTERVAL, tenant.getRuns() + tenant.getRejectedRuns());
+	}
+
+	@Test
+	public void testWindowRolls() throws InterruptedException {
+		EBPFTenant tenant = new EBPFTenant("t");
+		// Any time at all is over.
+		tenant.setQuota(1000 * 1000, -1, 1);
+		EBPFProgram p = new EBPFProgram("p", getProgram(), -1, null);
+		p.setTenant(tenant);
+		int i;
+		for (i = 0; i < EBPFTenant.CHECK_INTERVAL; i++) {
+			p.tryRun(new byte[] {1});
+		}
+		assertTrue(tenant.isOverQuota());
+		Thread.sleep(5);
+		assertEquals(Status.OK, EBPFProgram.statusOf(p.tryRun(new byte[] {1})));
+		assertFalse(tenant.isOverQuota());
+
+		tenant.clearQuota();
+		for (i = 0; i < 2 * EBPFTenant.CHECK_INTERVAL; i++) {
+			assertEquals(Status.OK, EBPFProgram.statusOf(p.tryRun(new byte[] {1})));
+		}
+		assertFalse(tenant.isOverQuota());
+	}
+
+	@Test
+	public void testHandleKeepsTenant() throws EBPFVerifyException {
+		EBPFTenant tenant = new EBPFTenant("h");
+		EBPFProgramHandle h = new EBPFProgramHandle("h", getProgram(), null);
+		h.setTenant(tenant);
+		h.tryRun(new byte[] {1});
+		h.publish(getProgram());
+		h.tryRun(new byte[] {1});
+		assertSame(tenant, h.getCurrent().program.getTenant());
+		assertEquals(2, tenant.getRuns());
+		assertEquals(6, tenant.getInstructionsRetired());
+	}
+}
@@ -0,0 +1,80 @@
+package jebpf;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.sobel.jebpf.EBPFInstruction;
+import com.sobel.jebpf.EBPFInstruction.InstructionSize;
+import com.sobel.jebpf.EBPFInstruction.Register;
+import com.sobel.jebpf.EBPFInterpreter;
+import com.sobel.jebpf.EBPFInterpreter.EBPFProgramException;
+import com.sobel.jebpf.EBPFInterpreter.Status;
+
+public class EBPFTryRunTests {
+
+	// Returns byte 2 of the packet.
+	private static final EBPFInstruction[] CODE = {
+		EBPFInstruction.MOV_IMM(Register.R6, 9),
+		EBPFInstruction.LD_ABS(InstructionSize.B, 2),
+		EBPFInstruction.EXIT(),
+	};
+
+	@Test
+	public void testOk() {
+		EBPFInterpreter t = new EBPFInterpreter(CODE);
+		assertEquals(Status.OK, t.tryRun(new byte[] {1, 2, 3}));
+		assertEquals(3, t.getReturnValue());
+		assertNull(t.getDiagnostics());
+	}
+
+	@Test
+	public void testFailureReturnsStatus() {
+		EBPFInterpreter t = new EBPFInterpreter(CODE);
+		assertEquals(Status.OUT_OF_BOUNDS, t.tryRun(new byte[] {1}));
+		assertEquals(Status.OUT_OF_BOUNDS, t.getStatus());
+
+		EBPFProgramException d = t.getDiagnostics();
+		assertSame(d, t.getDiagnostics());
+		assertEquals(Status.OUT_OF_BOUNDS, d.status);
+		assertEquals("Out of bounds memory access", d.getMessage());
+		assertEquals(0, d.getStackTrace().length);
+		// Untraced: just where it stopped.
+		assertEquals(Arrays.asList(1), d.trace);
+		assertEquals(Integer.valueOf(9), d.registers.get(Register.R6));
+
+		// And the interpreter is still usable.
+		assertEquals(Status.OK, t.tryRun(new byte[] {1, 2, 3}));
+		assertNull(t.getDiagnostics());
+	}
+
+	@Test
+	public void testTracedTryRun() {
+		EBPFInterpreter t = new EBPFInterpreter(CODE);
+		t.setTraceOnTryRun(true);
+		assertEquals(Status.OUT_OF_BOUNDS, t.tryRun(new byte[] {}));
+		assertEquals(Arrays.asList(0, 1), t.getDiagnostics().trace);
+	}
+
+	@Test
+	public void testRunStillThrows() {
+		EBPFInterpreter t = new EBPFInterpreter(CODE);
+		try {
+			t.run(new byte[] {});
+			fail("Expected out of bounds");
+		} catch (EBPFProgramException e) {
+			assertEquals(Status.OUT_OF_BOUNDS, e.status);
+			assertEquals(Arrays.asList(0, 1), e.trace);
+			assertTrue(e.getStackTrace().length > 0);
+		}
+	}
+
+	@Test
+	public void testR0Uninitialized() {
+		EBPFInterpreter t = new EBPFInterpreter(new EBPFInstruction[] { EBPFInstruction.EXIT() });
+		assertEquals(Status.R0_UNINITIALIZED, t.tryRun(new byte[] {}));
+		assertTrue(t.getDiagnostics().getMessage().contains("R0 must be initalized"));
+	}
+}
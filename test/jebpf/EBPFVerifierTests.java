@@ -0,0 +1,103 @@
+package jebpf;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.sobel.jebpf.EBPFInstruction;
+import com.sobel.jebpf.EBPFInstruction.InstructionCode;
+import com.sobel.jebpf.EBPFInstruction.InstructionSize;
+import com.sobel.jebpf.EBPFInstruction.Register;
+import com.sobel.jebpf.EBPFVerifier;
+import com.sobel.jebpf.EBPFVerifier.EBPFVerifyException;
+
+public class EBPFVerifierTests {
+
+	private static int rejectedAt(EBPFInstruction[] insns) {
+		try {
+			EBPFVerifier.verify(insns);
+		} catch (EBPFVerifyException e) {
+			return e.instruction;
+		}
+		fail("Should have been rejected");
+		return 0;
+	}
+
+	@Test
+	public void testAcceptsGoodProgram() throws EBPFVerifyException {
+		EBPFVerifier.verify(new EBPFInstruction[] {
+			EBPFInstruction.LD_ABS(InstructionSize.B, 0),
+			EBPFInstruction.JMP_IMM(InstructionCode.JEQ, Register.R0, 7, (short)1),
+			EBPFInstruction.MOV_IMM(Register.R0, 0),
+			EBPFInstruction.EXIT(),
+		});
+	}
+
+	@Test
+	public void testEmpty() {
+		assertEquals(-1, rejectedAt(new EBPFInstruction[0]));
+	}
+
+	@Test
+	public void testFallsOff() {
+		assertEquals(0, rejectedAt(new EBPFInstruction[] {
+			EBPFInstruction.MOV_IMM(Register.R0, 0),
+		}));
+	}
+
+	@Test
+	public void testJumpOutOfRange() {
+		assertEquals(1, rejectedAt(new EBPFInstruction[] {
+			EBPFInstruction.MOV_IMM(Register.R0, 0),
+			EBPFInstruction.JMP_JA((short)1),
+			EBPFInstruction.EXIT(),
+		}));
+	}
+
+	@Test
+	public void testWriteToR10() {
+		assertEquals(0, rejectedAt(new EBPFInstruction[] {
+			EBPFInstruction.MOV_IMM(Register.R10, 0),
+			EBPFInstruction.MOV_IMM(Register.R0, 0),
+			EBPFInstruction.EXIT(),
+		}));
+	}
+
+	@Test
+	public void testUninitializedOnOnePath() {
+		// R2 is only set when the jump isn't taken.
+		assertEquals(3, rejectedAt(new EBPFInstruction[] {
+			EBPFInstruction.MOV_IMM(Register.R0, 1),
+			EBPFInstruction.JMP_IMM(InstructionCode.JEQ, Register.R0, 1, (short)1),
+			EBPFInstruction.MOV_IMM(Register.R2, 1),
+			EBPFInstruction.MOV_REG(Register.R0, Register.R2),
+			EBPFInstruction.EXIT(),
+		}));
+	}
+
+	@Test
+	public void testLoadScratchesRegisters() {
+		assertEquals(2, rejectedAt(new EBPFInstruction[] {
+			EBPFInstruction.MOV_IMM(Register.R1, 1),
+			EBPFInstruction.LD_ABS(InstructionSize.B, 0),
+			EBPFInstruction.MOV_REG(Register.R0, Register.R1),
+			EBPFInstruction.EXIT(),
+		}));
+	}
+
+	@Test
+	public void testR0UninitializedAtExit() {
+		assertEquals(0, rejectedAt(new EBPFInstruction[] {
+			EBPFInstruction.EXIT(),
+		}));
+	}
+
+	@Test
+	public void testBadCode() {
+		assertEquals(1, rejectedAt(new EBPFInstruction[] {
+			EBPFInstruction.MOV_IMM(Register.R0, 0),
+			EBPFInstruction.JMP_IMM(InstructionCode.CALL_NOT_IMPLEMENTED, Register.R0, 0, (short)0),
+			EBPFInstruction.EXIT(),
+		}));
+	}
+}